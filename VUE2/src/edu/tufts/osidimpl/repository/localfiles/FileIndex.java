@@ -0,0 +1,593 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.osidimpl.repository.localfiles;
+
+import java.io.*;
+import java.util.*;
+
+import tufts.vue.DEBUG;
+import tufts.vue.VueResources;
+import tufts.vue.VueUtil;
+
+/**
+ * An index of the files and folders under a set of root folders, so the local files
+ * repository can be searched without listing the file system for every query.  Each
+ * entry has the name, path, type (lower case file extension, or "folder"), size and
+ * modification time of a file, and optionally the text of small text files.
+ *
+ * The index is built in the background, and saved in the VUE user folder so it's
+ * available right away the next time VUE runs.  It's kept current by polling the
+ * modification time of every indexed folder, which changes whenever an entry is added
+ * to, removed from, or renamed in that folder, and re-listing just the folders that
+ * have changed.  Writing to a file doesn't change it's folder, so whenever a folder is
+ * re-listed, the files already in it are re-checked for changes in size or modification
+ * time.  Folders are never re-listed just because time has passed: the size,
+ * modification time and text of a file that's been written to, in a folder that hasn't
+ * otherwise changed, are updated the next time anything changes in that folder.
+ *
+ * Searches are by name substring (the default), name prefix (a query ending in "*"),
+ * and/or type ("type:pdf", or "type:jpg,png" for any of several).
+ */
+final class FileIndex
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(FileIndex.class);
+
+    static final String FOLDER_TYPE = "folder";
+
+    private static final int VERSION = 1;
+
+    private static final int MaxDepth = VueResources.getInt("localfiles.index.max_depth", 12);
+    private static final int MaxEntries = VueResources.getInt("localfiles.index.max_entries", 500000);
+    private static final int PollSeconds = VueResources.getInt("localfiles.index.poll_seconds", 30);
+    /**
+     * Some file systems only keep modification times to the second or two: a folder
+     * modified this recently when we list it could change again without it's modification
+     * time changing, so we re-list it at the next poll.
+     */
+    private static final long ModifiedResolution = 2000;
+    private static final int TextMaxBytes = VueResources.getInt("localfiles.index.text_max_bytes", 0);
+    private static final Set<String> TextTypes =
+        new HashSet(Arrays.asList(VueResources.getString("localfiles.index.text_types", "txt,text").split(",")));
+
+    /** one indexed file or folder */
+    static final class Entry {
+        final String path;
+        final String name;
+        final String lowerName;
+        final String type;
+        final long size;
+        final long modified;
+        final String text; // lower case, or null if not indexed
+
+        Entry(String path, String type, long size, long modified, String text) {
+            this.path = path;
+            this.name = nameOf(path);
+            this.lowerName = name.toLowerCase();
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+            this.text = text;
+        }
+
+        /** for searching the name index */
+        Entry(String lowerName, String path) {
+            this.path = path;
+            this.name = this.lowerName = lowerName;
+            this.type = null;
+            this.size = this.modified = 0;
+            this.text = null;
+        }
+
+        File getFile() {
+            return new File(path);
+        }
+
+        @Override public String toString() {
+            return "FileIndex.Entry[" + path + "; " + type + "]";
+        }
+    }
+
+    /** an indexed folder: how many levels below it to index, and it's modification time and contents as of the last listing */
+    private static final class Folder {
+        final int depth;
+        final long modified;
+        final Set<String> children;
+        Folder(int depth, long modified, Set<String> children) {
+            this.depth = depth;
+            this.modified = modified;
+            this.children = children;
+        }
+    }
+
+    private static final Comparator<Entry> NameOrder = new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                final int c = e1.lowerName.compareTo(e2.lowerName);
+                return c != 0 ? c : e1.path.compareTo(e2.path);
+            }};
+
+    private final Map<String,Integer> mRoots = new LinkedHashMap();
+    private final Map<String,Folder> mFolders = new HashMap();
+    private final Map<String,Entry> mEntries = new HashMap();
+    private final SortedSet<Entry> mByName = new TreeSet(NameOrder);
+    private final Map<String,SortedSet<Entry>> mByType = new HashMap();
+
+    // The index is only ever modified by the indexer thread, which therefore only needs
+    // to synchronize when modifying it, not when reading it.
+
+    private final File mSaveFile;
+    private volatile boolean mReady;
+    private boolean mChanged;
+    private Thread mThread;
+
+    private static FileIndex Instance;
+
+    static synchronized FileIndex getInstance() {
+        if (Instance == null)
+            Instance = new FileIndex(new File(VueUtil.getDefaultUserFolder(), VueResources.getString("save.localfiles.index", "localfiles.index")));
+        return Instance;
+    }
+
+    private FileIndex(File saveFile) {
+        mSaveFile = saveFile;
+    }
+
+    private static String nameOf(String path) {
+        final String name = new File(path).getName();
+        return name.length() > 0 ? name : path; // file system roots have no name
+    }
+
+    private static String typeOf(File file, boolean isFolder) {
+        if (isFolder)
+            return FOLDER_TYPE;
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    /** @return true once the index has been loaded or built, and can be searched */
+    boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Index the given folders: the deep ones down to the max index depth, and the
+     * others only one level.  The first time this is called, a background thread is
+     * started to load or build the index and keep it current.
+     */
+    synchronized void start(Collection<File> deepRoots, Collection<File> shallowRoots)
+    {
+        final Map<String,Integer> roots = new LinkedHashMap();
+        final List<String> deepPaths = new ArrayList();
+        for (File f : deepRoots)
+            deepPaths.add(f.getPath());
+        for (File f : deepRoots) {
+            // don't index folders twice that are already under another deep root
+            final List<String> others = new ArrayList(deepPaths);
+            others.remove(f.getPath());
+            if (!isUnderRoot(f.getPath(), others))
+                roots.put(f.getPath(), MaxDepth);
+        }
+        for (File f : shallowRoots) {
+            if (!roots.containsKey(f.getPath()))
+                roots.put(f.getPath(), 1);
+        }
+        if (mThread != null) {
+            // the thread will pick up any roots that have changed on it's next poll
+            mRoots.clear();
+            mRoots.putAll(roots);
+            return;
+        }
+        mRoots.putAll(roots);
+        mThread = new Thread("VUE-LocalFileIndex") {
+                public void run() {
+                    runIndexer();
+                }};
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    private void runIndexer()
+    {
+        try {
+            load();
+            update(); // the files may have changed since the index was saved
+            mReady = true;
+            save();
+            while (true) {
+                Thread.sleep(PollSeconds * 1000L);
+                update();
+                save();
+            }
+        } catch (InterruptedException e) {
+            Log.info("interrupted");
+        } catch (Throwable t) {
+            Log.error("indexing failed", t);
+        }
+    }
+
+    /** bring the index up to date: index any new roots, drop any old ones, and re-list any changed folders */
+    private void update()
+    {
+        final long start = System.currentTimeMillis();
+        final Map<String,Integer> roots;
+        final Map<String,Folder> folders;
+        synchronized (this) {
+            roots = new LinkedHashMap(mRoots);
+            folders = new HashMap(mFolders);
+        }
+
+        // drop any roots no longer requested
+        for (String path : folders.keySet()) {
+            if (!isUnderRoot(path, roots.keySet()))
+                removeTree(path);
+        }
+
+        for (Map.Entry<String,Integer> e : roots.entrySet()) {
+            final File root = new File(e.getKey());
+            final Folder indexed = folders.get(e.getKey());
+            if (indexed == null || indexed.depth != e.getValue()) {
+                if (root.isDirectory()) {
+                    addEntry(root, true);
+                    scanFolder(root, e.getValue(), true);
+                }
+            }
+        }
+
+        // re-list any folders that have changed, or drop them if they're gone
+        for (String path : folders.keySet()) {
+            final Folder current = mFolders.get(path);
+            if (current == null) // dropped above, with it's root or as part of a tree that's gone
+                continue;
+            final File dir = new File(path);
+            final long modified = dir.lastModified();
+            if (modified == 0 && !dir.isDirectory())
+                removeTree(path);
+            else if (modified != current.modified)
+                scanFolder(dir, current.depth, false);
+        }
+
+        if (DEBUG.IO || mChanged) Log.debug("updated in " + (System.currentTimeMillis() - start) + "ms: " + this);
+    }
+
+    private static boolean isUnderRoot(String path, Collection<String> roots) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root.endsWith(File.separator) ? root : root + File.separator))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * List the given folder, and bring the index of it's contents up to date.
+     * @param recurse -- if true, scan all sub-folders, otherwise only newly found ones
+     */
+    private void scanFolder(File dir, int depth, boolean recurse)
+    {
+        final long modified = dir.lastModified();
+        final String[] names = dir.list();
+        if (names == null)
+            return;
+
+        final Set<String> present = new HashSet();
+        final List<File> subFolders = new ArrayList();
+        boolean full = false;
+        for (String name : names) {
+            if (name.startsWith("."))
+                continue;
+            final File file = new File(dir, name);
+            if (file.isHidden())
+                continue;
+            // everything present is noted, even once the index is full, so nothing still here is removed below
+            present.add(file.getPath());
+            if (full)
+                continue;
+            Entry old = mEntries.get(file.getPath());
+            if (old != null && !recurse && !FOLDER_TYPE.equals(old.type)) {
+                // a file's contents can change without changing it's folder: re-check it
+                if (file.lastModified() == old.modified && file.length() == old.size)
+                    continue;
+                if (file.isDirectory()) {
+                    removeTree(old.path); // replaced by a folder: index it as new
+                    old = null;
+                } else {
+                    addEntry(file, false);
+                    continue;
+                }
+            }
+            if (old == null || recurse) {
+                final boolean isFolder = file.isDirectory();
+                if (!addEntry(file, isFolder)) {
+                    full = true;
+                    continue;
+                }
+                if (isFolder && depth > 1 && !isLink(file))
+                    subFolders.add(file);
+            }
+        }
+
+        final Folder old = mFolders.get(dir.getPath());
+        if (old != null) {
+            for (String path : old.children) {
+                if (!present.contains(path))
+                    removeTree(path);
+            }
+        }
+        // if it was modified too recently to be sure we'd see a later change, record it as unknown
+        final long recorded = System.currentTimeMillis() - modified < ModifiedResolution ? 0 : modified;
+        synchronized (this) {
+            mFolders.put(dir.getPath(), new Folder(depth, recorded, present));
+        }
+
+        for (File f : subFolders)
+            scanFolder(f, depth - 1, recurse);
+    }
+
+    /** @return true if the given folder is a symbolic link or alias -- we don't follow them, to avoid cycles */
+    private static boolean isLink(File dir) {
+        try {
+            final File parent = dir.getAbsoluteFile().getParentFile();
+            return parent != null && !dir.getCanonicalFile().equals(new File(parent.getCanonicalFile(), dir.getName()));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /** @return false if the index is full */
+    private boolean addEntry(File file, boolean isFolder)
+    {
+        final String type = typeOf(file, isFolder);
+        final long size = isFolder ? 0 : file.length();
+        final Entry entry = new Entry(file.getPath(), type, size, file.lastModified(), isFolder ? null : readText(file, type, size));
+        synchronized (this) {
+            final Entry old = mEntries.get(entry.path);
+            if (old == null && mEntries.size() >= MaxEntries) {
+                if (mEntries.size() == MaxEntries) Log.warn("index is full at " + MaxEntries + " entries");
+                return false;
+            }
+            if (old != null)
+                unindex(old);
+            mEntries.put(entry.path, entry);
+            mByName.add(entry);
+            SortedSet<Entry> ofType = mByType.get(type);
+            if (ofType == null)
+                mByType.put(type, ofType = new TreeSet(NameOrder));
+            ofType.add(entry);
+            mChanged = true;
+        }
+        return true;
+    }
+
+    private void unindex(Entry entry) {
+        mByName.remove(entry);
+        final SortedSet<Entry> ofType = mByType.get(entry.type);
+        if (ofType != null)
+            ofType.remove(entry);
+    }
+
+    /** remove the given path, and if it's a folder, everything under it */
+    private synchronized void removeTree(String path)
+    {
+        final Entry entry = mEntries.remove(path);
+        if (entry != null) {
+            unindex(entry);
+            mChanged = true;
+        }
+        final Folder folder = mFolders.remove(path);
+        if (folder != null) {
+            for (String child : folder.children)
+                removeTree(child);
+        }
+    }
+
+    /** @return the lower case text of the given file, if we index text for this type and it's small enough */
+    private static String readText(File file, String type, long size)
+    {
+        if (TextMaxBytes <= 0 || size > TextMaxBytes || !TextTypes.contains(type))
+            return null;
+        Reader in = null;
+        try {
+            in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            final StringBuilder text = new StringBuilder((int) size);
+            final char[] buf = new char[4096];
+            int count;
+            while ((count = in.read(buf)) >= 0)
+                text.append(buf, 0, count);
+            return text.toString().toLowerCase();
+        } catch (IOException e) {
+            if (DEBUG.IO) Log.debug("couldn't read text from " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * @return up to max files matching the given query, in name order: a name substring
+     * (or all names if empty), or a name prefix if it ends with "*", plus any number of
+     * "type:ext1,ext2" filters
+     */
+    synchronized List<File> search(String query, int max)
+    {
+        final Set<String> types = new HashSet();
+        final StringBuilder text = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            if (term.regionMatches(true, 0, "type:", 0, 5)) {
+                for (String type : term.substring(5).toLowerCase().split(","))
+                    types.add(type.startsWith(".") ? type.substring(1) : type);
+            } else if (term.length() > 0) {
+                if (text.length() > 0)
+                    text.append(' ');
+                text.append(term.toLowerCase());
+            }
+        }
+
+        final boolean prefix = text.length() > 0 && text.charAt(text.length() - 1) == '*';
+        final String name = prefix ? text.substring(0, text.length() - 1) : text.toString();
+
+        final List<Collection<Entry>> scan = new ArrayList();
+        if (types.isEmpty()) {
+            scan.add(prefix ? mByName.subSet(new Entry(name, ""), new Entry(name + Character.MAX_VALUE, "")) : mByName);
+        } else {
+            for (String type : types) {
+                final SortedSet<Entry> ofType = mByType.get(type);
+                if (ofType != null)
+                    scan.add(prefix ? ofType.subSet(new Entry(name, ""), new Entry(name + Character.MAX_VALUE, "")) : ofType);
+            }
+        }
+
+        final List<File> results = new ArrayList();
+        for (Collection<Entry> entries : scan) {
+            for (Entry e : entries) {
+                if (prefix
+                    || e.lowerName.indexOf(name) >= 0
+                    || (e.text != null && e.text.indexOf(name) >= 0))
+                {
+                    results.add(e.getFile());
+                    if (results.size() >= max)
+                        return results;
+                }
+            }
+        }
+        return results;
+    }
+
+    private synchronized void load()
+    {
+        if (!mSaveFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mSaveFile)));
+            if (in.readInt() != VERSION) {
+                Log.info("ignoring old index format in " + mSaveFile);
+                return;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final String path = in.readUTF();
+                final int depth = in.readInt();
+                mFolders.put(path, new Folder(depth, in.readLong(), new HashSet()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final String path = in.readUTF();
+                final String type = in.readUTF();
+                final long size = in.readLong();
+                final long modified = in.readLong();
+                final String text = in.readBoolean() ? readLongUTF(in) : null;
+                final Entry entry = new Entry(path, type, size, modified, text);
+                mEntries.put(path, entry);
+                mByName.add(entry);
+                SortedSet<Entry> ofType = mByType.get(type);
+                if (ofType == null)
+                    mByType.put(type, ofType = new TreeSet(NameOrder));
+                ofType.add(entry);
+                final Folder parent = mFolders.get(new File(path).getParent());
+                if (parent != null)
+                    parent.children.add(path);
+            }
+            mReady = true;
+            Log.info("loaded " + this + " from " + mSaveFile);
+        } catch (Throwable t) {
+            Log.warn("couldn't load " + mSaveFile + "; will re-index", t);
+            mFolders.clear();
+            mEntries.clear();
+            mByName.clear();
+            mByType.clear();
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void save()
+    {
+        // Entries and folders are immutable (we only save a folder's depth and modification
+        // time), so we need only copy the references under the lock, and searches needn't
+        // wait for the write.
+        final String[] folderPaths;
+        final Folder[] folders;
+        final Entry[] entries;
+        synchronized (this) {
+            if (!mChanged)
+                return;
+            folderPaths = mFolders.keySet().toArray(new String[mFolders.size()]);
+            folders = new Folder[folderPaths.length];
+            for (int i = 0; i < folderPaths.length; i++)
+                folders[i] = mFolders.get(folderPaths[i]);
+            entries = mEntries.values().toArray(new Entry[mEntries.size()]);
+            mChanged = false;
+        }
+        
+        final File tmp = new File(mSaveFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(folders.length);
+            for (int i = 0; i < folders.length; i++) {
+                out.writeUTF(folderPaths[i]);
+                out.writeInt(folders[i].depth);
+                out.writeLong(folders[i].modified);
+            }
+            out.writeInt(entries.length);
+            for (Entry e : entries) {
+                out.writeUTF(e.path);
+                out.writeUTF(e.type);
+                out.writeLong(e.size);
+                out.writeLong(e.modified);
+                out.writeBoolean(e.text != null);
+                if (e.text != null)
+                    writeLongUTF(out, e.text);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mSaveFile)) {
+                mSaveFile.delete();
+                if (!tmp.renameTo(mSaveFile))
+                    Log.warn("couldn't save index to " + mSaveFile);
+            }
+        } catch (IOException e) {
+            Log.warn("couldn't save index to " + mSaveFile, e);
+            synchronized (this) {
+                mChanged = true; // try again next time
+            }
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /** writeUTF is limited to 64K of encoded data */
+    private static void writeLongUTF(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLongUTF(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override public synchronized String toString() {
+        return "FileIndex[" + mEntries.size() + " entries; " + mFolders.size() + " folders; " + mRoots.size() + " roots]";
+    }
+}
@@ -33,6 +33,8 @@ implements org.osid.repository.Repository
     private String displayName = null;
     private String description = null;
     private java.util.Vector searchTypeVector = null;
+
+    private static final int MaxSearchResults = VueResources.getInt("localfiles.search.max_results", 2000);
 	
     protected Repository(String displayName,
 						 String description,
@@ -46,6 +48,47 @@ implements org.osid.repository.Repository
 		this.repositoryId = repositoryId;
         this.repositoryType = repositoryType;
         this.searchTypeVector = searchTypeVector;
+		startIndexing();
+	}
+
+	/**
+	 * Start indexing the desktop folders in the background for searching: the folders
+	 * under the user's home folder in full, and the others (volumes and file system
+	 * roots) only at the top level, as searches have always covered them.
+	 */
+	private void startIndexing()
+	{
+		try {
+			final String home = VUE.getSystemProperty("user.home");
+			final Vector cabVector = new Vector();
+			installDesktopFolders(cabVector);
+			final List<File> deep = new ArrayList();
+			final List<File> shallow = new ArrayList();
+			for (Object o : cabVector) {
+				final File dir = ((LocalCabinet)o).getFile();
+				if (home != null && dir.getPath().startsWith(home))
+					deep.add(dir);
+				else
+					shallow.add(dir);
+			}
+			FileIndex.getInstance().start(deep, shallow);
+		} catch (Throwable t) {
+			Utilities.log(t);
+		}
+	}
+
+	/** @return a CabinetEntry for the given indexed file, as found by listing it's parent */
+	private static CabinetEntry makeCabinetEntry(File file)
+		throws osid.OsidException
+	{
+		final File parentFile = file.getParentFile();
+		if (parentFile == null)
+			return LocalCabinet.instance(file, null, null);
+		final LocalCabinet parent = LocalCabinet.instance(parentFile, null, null);
+		if (file.isDirectory())
+			return LocalCabinet.instance(file, null, parent);
+		else
+			return new LocalByteStore(file.getPath(), parent);
 	}
 
     public String getDisplayName()
@@ -379,6 +422,14 @@ implements org.osid.repository.Repository
 		java.util.Vector result = new java.util.Vector();
         try
         {
+			final FileIndex index = FileIndex.getInstance();
+			if (index.isReady()) {
+				for (File file : index.search((String) searchCriteria, MaxSearchResults))
+					result.addElement(new Asset(makeCabinetEntry(file), this.repositoryId));
+				return new AssetIterator(result);
+			}
+			
+			// The index isn't ready yet (it's still being built for the first time):
 			// get all assets and look for matches
 			org.osid.repository.AssetIterator ai = getAssets();
 			while (ai.hasNextAsset()) {
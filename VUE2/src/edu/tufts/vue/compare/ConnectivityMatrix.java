@@ -17,6 +17,7 @@
 package edu.tufts.vue.compare;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import tufts.vue.DEBUG;
 import tufts.vue.LWComponent;
@@ -42,6 +43,8 @@ import tufts.vue.LWImage;
  * connection(b,a) = 1 implies there is a link from b to a
  * connection(b,a) may not be equal to connection(a,b)
  * connection(a,b) = connection(b,a) implies the link between a and b is not directed.
+ *
+ * Only the non-zero connections are actually stored.
  */
 public class ConnectivityMatrix
 {
@@ -51,7 +54,7 @@ public class ConnectivityMatrix
 
     protected final LWMap map;
     protected final IndexedCountingSet keys;
-    protected final int cx[][];
+    protected final Connections cx;
     
     protected int scanCount = 0;
     protected int hitCount = 0;
@@ -113,10 +116,121 @@ public class ConnectivityMatrix
         public Iterator<T> iterator()  { return values.iterator(); }
     }
     
+    /**
+     * The non-zero connection values of a matrix, hashed by [row,col] index pair, so a
+     * matrix takes space in proportion to it's connection count, not the square of it's
+     * size.  Real maps are very sparse.  Setting a value to 0 leaves it's slot in place,
+     * but iteration skips zero values.  Open addressing with linear probing: the
+     * table is always a power of 2 in size, and never more than half full.
+     */
+    protected static final class Connections {
+        private static final long EMPTY = -1; // no index pair can produce this: indicies are never negative
+        
+        private long[] pairs;
+        private int[] values;
+        private int used;
+
+        Connections(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2)
+                capacity <<= 1;
+            pairs = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(pairs, EMPTY);
+        }
+
+        Connections(Connections copy) {
+            pairs = copy.pairs.clone();
+            values = copy.values.clone();
+            used = copy.used;
+        }
+
+        private static long pair(int row, int col) {
+            return ((long) row << 32) | (col & 0xFFFFFFFFL);
+        }
+
+        private int slot(long pair) {
+            long h = pair * 0x9E3779B97F4A7C15L;
+            final int mask = pairs.length - 1;
+            int i = (int) (h ^ (h >>> 32)) & mask;
+            while (pairs[i] != EMPTY && pairs[i] != pair)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        int get(int row, int col) {
+            final long pair = pair(row, col);
+            final int i = slot(pair);
+            return pairs[i] == pair ? values[i] : 0;
+        }
+
+        void set(int row, int col, int value) {
+            final long pair = pair(row, col);
+            int i = slot(pair);
+            if (pairs[i] == EMPTY) {
+                if (value == 0)
+                    return;
+                if (used * 2 >= pairs.length) {
+                    grow();
+                    i = slot(pair);
+                }
+                pairs[i] = pair;
+                used++;
+            }
+            values[i] = value;
+        }
+
+        void add(int row, int col, int value) {
+            set(row, col, get(row, col) + value);
+        }
+
+        /** add all the given connections to ours */
+        void addAll(Connections other) {
+            for (int slot = 0; slot < other.slots(); slot++) {
+                final int value = other.valueAt(slot);
+                if (value != 0)
+                    add(other.rowAt(slot), other.colAt(slot), value);
+            }
+        }
+
+        private void grow() {
+            final long[] oldPairs = pairs;
+            final int[] oldValues = values;
+            pairs = new long[oldPairs.length * 2];
+            values = new int[oldPairs.length * 2];
+            Arrays.fill(pairs, EMPTY);
+            for (int i = 0; i < oldPairs.length; i++) {
+                if (oldPairs[i] != EMPTY) {
+                    final int slot = slot(oldPairs[i]);
+                    pairs[slot] = oldPairs[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        /** @return the number of non-zero connections */
+        int count() {
+            int count = 0;
+            for (int i = 0; i < pairs.length; i++)
+                if (valueAt(i) != 0)
+                    count++;
+            return count;
+        }
+
+        // For iterating all connections: any slot from 0 to slots() with a
+        // non-zero valueAt holds a connection.
+
+        int slots()                             { return pairs.length; }
+        int valueAt(int slot)                   { return pairs[slot] == EMPTY ? 0 : values[slot]; }
+        int rowAt(int slot)                     { return (int) (pairs[slot] >>> 32); }
+        int colAt(int slot)                     { return (int) pairs[slot]; }
+        void setValueAt(int slot, int value)    { values[slot] = value; }
+    }
+
     protected ConnectivityMatrix(IndexedCountingSet preComputedSet) {
         this.map = null;
         this.keys = preComputedSet;
-        this.cx = new int[keys.size()][keys.size()];
+        this.cx = new Connections(keys.size());
         if (DEBUG.Enabled) Log.debug(this + " created from pre-computed.");
     }
     
@@ -127,17 +241,54 @@ public class ConnectivityMatrix
         final Collection<LWComponent> allInMap = map.getAllDescendents(ChildKind.PROPER);
         
         indexMergeKeys(allInMap);
-        // after adding all keys, we know exactly how big to make the matrix
-        this.cx = new int[keys.size()][keys.size()];
+        // after adding all keys, we have a decent guess at how many connections to expect
+        this.cx = new Connections(keys.size());
         generateMatrix(allInMap);
         if (DEBUG.Enabled) Log.debug(this + " created.");
     }
     
+    /**
+     * Create a matrix for each of the given maps, all at once on the given executor.
+     * The maps must not be modified until this returns.
+     * @return the matrices, in the same order as the maps
+     */
+    public static List<ConnectivityMatrix> createAll(List<LWMap> maps, ExecutorService executor)
+    {
+        final List<Future<ConnectivityMatrix>> futures = new ArrayList(maps.size());
+        for (final LWMap map : maps) {
+            futures.add(executor.submit(new Callable<ConnectivityMatrix>() {
+                    public ConnectivityMatrix call() { return new ConnectivityMatrix(map); }
+                }));
+        }
+        final List<ConnectivityMatrix> matrices = new ArrayList(maps.size());
+        for (Future<ConnectivityMatrix> f : futures)
+            matrices.add(getResult(f));
+        return matrices;
+    }
+
+    /** @return the result of the given future, waiting for it if need be, re-throwing anything it threw */
+    static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+    
     public IndexedCountingSet getKeys() { return keys; }
     public boolean containsKey(String key) { return keys.contains(key); }
     public int size() { return keys.size(); }
     public LWMap getMap() { return map; }
-    public int[][] getMatrix() { return cx; }
+    /** @return the number of non-zero connections in the matrix */
+    public int getConnectionCount() { return cx.count(); }
     
 
     public static final boolean isValidTarget(LWComponent c) {
@@ -191,15 +342,15 @@ public class ConnectivityMatrix
                         final int tailIndex = keys.findIndex(tailKey);
                         
                         if (arrowState == LWLink.ARROW_BOTH || arrowState == LWLink.ARROW_NONE) {
-                            cx[headIndex][tailIndex] = 1;
-                            cx[tailIndex][headIndex] = 1;
+                            cx.set(headIndex, tailIndex, 1);
+                            cx.set(tailIndex, headIndex, 1);
                         } else if (arrowState == LWLink.ARROW_HEAD) {
-                            cx[tailIndex][headIndex] = 1;
+                            cx.set(tailIndex, headIndex, 1);
                         } else if (arrowState == LWLink.ARROW_TAIL) {
-                            cx[headIndex][tailIndex] = 1;
+                            cx.set(headIndex, tailIndex, 1);
                         }
                     } catch (Throwable t) {
-                        // Should never happen, but theoretically could get NPE or ArrayOutOfBounds
+                        // Should never happen, but theoretically could get an NPE
                         Log.debug("exception: skipping link: " + link + "; " + t);
                     }
                 }
@@ -210,7 +361,7 @@ public class ConnectivityMatrix
     
     
     public int getConnection(int i, int j) {
-        return cx[i][j];
+        return cx.get(i, j);
     }
     
     /** @return connection value found for these two keys, if any, otherwise 0 */
@@ -218,7 +369,7 @@ public class ConnectivityMatrix
         final int row = keys.findIndex(key1);
         final int col = keys.findIndex(key2);
         if (row >= 0 && col >=0) 
-            return this.cx[row][col];
+            return this.cx.get(row, col);
         else 
             return 0;
     }
@@ -227,7 +378,7 @@ public class ConnectivityMatrix
         final int index1 = keys.findIndex(key1);
         final int index2 = keys.findIndex(key2);
         if (index1 >= 0 && index2 >=0)
-            this.cx[index1][index2] = value;
+            this.cx.set(index1, index2, value);
     }
     
     /**
@@ -238,14 +389,13 @@ public class ConnectivityMatrix
      *
      */
     public boolean compare(ConnectivityMatrix c2) {
-        final int size = size();
-        if(c2.size() != size) 
+        if (c2.size() != size() || c2.cx.count() != cx.count())
             return false;
-        for(int i=0;i<size;i++) {
-            for(int j=0;j<size;j++) {
-                if (this.cx[i][j] != c2.cx[i][j])
-                    return false;
-            }
+        // same number of connections: if all of ours are in c2, they're the same
+        for (int slot = 0; slot < cx.slots(); slot++) {
+            final int value = cx.valueAt(slot);
+            if (value != 0 && c2.cx.get(cx.rowAt(slot), cx.colAt(slot)) != value)
+                return false;
         }
         return true;
     }
@@ -259,7 +409,7 @@ public class ConnectivityMatrix
     // }
     
     public String toString() {
-        return getClass().getSimpleName() + "[" + size() + "^2=" + (size()*size()) + " for map " + (map==null?"<aggregate>":map) + "]";
+        return getClass().getSimpleName() + "[" + size() + " keys, " + cx.count() + " connections for map " + (map==null?"<aggregate>":map) + "]";
     }
         
     private static final String NewLine = System.getProperty("line.separator");
@@ -288,7 +438,7 @@ public class ConnectivityMatrix
             capacity += size * (maxLeftLen+1);
 
         if (DEBUG.MERGE) {
-            Log.debug("toString:   cx.size=" + cx.length + " (max alloc matrix)");
+            Log.debug("toString:   cx.size=" + cx.count() + " (connections)");
             Log.debug("toString: nodesSeen=" + scanCount); 
             Log.debug("toString: keysFound=" + hitCount);
             Log.debug("toString: keys.size=" + keys.size() + " (unique property values)");
@@ -342,7 +492,7 @@ public class ConnectivityMatrix
             for (int col = 0; col < size; col++) {
                 if (col != 0)
                     b.append(LABELS_TOP_BIG ? TAB : SPACE);
-                final int val = cx[row][col];
+                final int val = cx.get(row, col);
                 if (val == 0)
                     b.append((row==col) ? '0' : '.');
                 else
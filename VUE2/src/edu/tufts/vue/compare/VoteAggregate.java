@@ -17,6 +17,7 @@ package edu.tufts.vue.compare;
 
 import tufts.vue.DEBUG;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author akumar03
@@ -37,21 +38,27 @@ public class VoteAggregate extends WeightAggregate
     private final int aggregateLinkThreshold;
     private final int aggregateNodeThreshold;
 
-    protected final int[][] linkCounts;
+    protected final Connections linkCounts;
     
     public static VoteAggregate create(List<ConnectivityMatrix> matrices, double nodeThresh, double linkThresh) {
+        return create(matrices, nodeThresh, linkThresh, null);
+    }
+    
+    /** @param executor if non-null, the matrices will be merged in parallel on this executor */
+    public static VoteAggregate create(List<ConnectivityMatrix> matrices, double nodeThresh, double linkThresh, ExecutorService executor) {
         final IndexedCountingSet preComputed = new IndexedCountingSet();
         for (ConnectivityMatrix matrix : matrices)
             preComputed.addAll(matrix.keys);
         // We pre-compute the index so the matrix aggregate will know how big
         // of a matrix will be required to hold it all.
-        return new VoteAggregate(preComputed, matrices, nodeThresh, linkThresh);
+        return new VoteAggregate(preComputed, matrices, nodeThresh, linkThresh, executor);
     }
     
-    private VoteAggregate(IndexedCountingSet preComputed, List<ConnectivityMatrix> matrices, double nodePercent, double linkPercent) {
-        super(preComputed, matrices);
+    private VoteAggregate(IndexedCountingSet preComputed, List<ConnectivityMatrix> matrices, double nodePercent, double linkPercent,
+                          ExecutorService executor) {
+        super(preComputed, matrices, executor);
         // WeightAggregate superclass will have merged in all the matrices to produce counts: we save them here
-        this.linkCounts = super.cx.clone();  // computeLinkVotes is about to write all over super.cx
+        this.linkCounts = new Connections(super.cx);  // computeLinkVotes is about to write all over super.cx
         this.nodePercentMaps = nodePercent;
         this.linkPercentMaps = linkPercent;
         final double nodeThresh = nodePercent * (double) matrices.size();
@@ -67,23 +74,23 @@ public class VoteAggregate extends WeightAggregate
     
     private void computeLinkVotes()
     {
-        final int size = super.size();
-
         // This will collapse the connection count values (in super.cx) from their counts down to a
         // 0 or 1, depending on if the vote passed (the count was at or over the threshold).
 
         // This is nice, and was in the original code, but probably not required: At best it only
         // gives us a slightly faster truth test. E.g., how much faster can (x == 1) be than a full
         // "vote", which is: x > 0 && x >= (final int this.aggregateLinkThreshold) ?  In both
-        // cases, we still need to hash two strings to indicies first, then do the 2d-array access.
+        // cases, we still need to hash two strings to indicies first, then do the connection lookup.
 
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                if (super.cx[i][j] > 0 && super.cx[i][j] >= aggregateLinkThreshold)
-                    super.cx[i][j] = POSITIVE_VOTE;
-                else
-                    super.cx[i][j] = NEGATIVE_VOTE;
-            }
+        // Only connections with a count can vote yes: everything else is already 0 (NEGATIVE_VOTE).
+        for (int slot = 0; slot < super.cx.slots(); slot++) {
+            final int count = super.cx.valueAt(slot);
+            if (count == 0)
+                continue;
+            if (count > 0 && count >= aggregateLinkThreshold)
+                super.cx.setValueAt(slot, POSITIVE_VOTE);
+            else
+                super.cx.setValueAt(slot, NEGATIVE_VOTE);
         }
     }
     
@@ -103,9 +110,9 @@ public class VoteAggregate extends WeightAggregate
         if (ihead < 0 || itail < 0)
             return false;
         
-        if (super.cx[ihead][itail] > 0) {
+        if (super.cx.get(ihead, itail) > 0) {
             // reverse the index order and consume the opposite direction link vote
-            super.cx[itail][ihead] = 0;
+            super.cx.set(itail, ihead, 0);
             return true;
         } else {
             return false;
@@ -121,7 +128,7 @@ public class VoteAggregate extends WeightAggregate
         final int headIndex = keys.findIndex(headKey);
         final int tailIndex = keys.findIndex(tailKey);
         if (headIndex >= 0 && tailIndex >= 0)
-            return linkCounts[headIndex][tailIndex];
+            return linkCounts.get(headIndex, tailIndex);
         else
             return 0;
     }
@@ -16,6 +16,7 @@
 package edu.tufts.vue.compare;
 
 import java.util.*;
+import java.util.concurrent.*;
 import tufts.vue.*;
 
 /**
@@ -29,19 +30,51 @@ public class WeightAggregate extends ConnectivityMatrix
     private final int count;
 
     public static WeightAggregate create(List<ConnectivityMatrix> matrices) {
+        return create(matrices, null);
+    }
+    
+    /** @param executor if non-null, the matrices will be merged in parallel on this executor */
+    public static WeightAggregate create(List<ConnectivityMatrix> matrices, ExecutorService executor) {
         final IndexedCountingSet preComputed = new IndexedCountingSet();
         for (ConnectivityMatrix matrix : matrices)
             preComputed.addAll(matrix.keys);
         // We pre-compute the index so the matrix aggregate will know how big
         // of a matrix will be required to hold it all.
-        return new WeightAggregate(preComputed, matrices);
+        return new WeightAggregate(preComputed, matrices, executor);
     }
     
-    protected WeightAggregate(IndexedCountingSet preComputed, List<ConnectivityMatrix> matrices) {
+    protected WeightAggregate(IndexedCountingSet preComputed, List<ConnectivityMatrix> matrices, ExecutorService executor) {
         super(preComputed);
         this.count = matrices.size();
-        for (ConnectivityMatrix input : matrices)
-            mergeInConnectionValues(input);
+        if (executor == null || matrices.size() < 2) {
+            for (ConnectivityMatrix input : matrices)
+                mergeInConnectionValues(input, this.cx);
+        } else {
+            mergeInParallel(matrices, executor);
+        }
+    }
+
+    /**
+     * Split the matrices into as many groups as we have processors, sum each group into
+     * a partial aggregate on the executor, then add up the partials.  The keys are
+     * complete before we start, and only read from here on, so can be shared.
+     */
+    private void mergeInParallel(final List<ConnectivityMatrix> matrices, ExecutorService executor) {
+        final int groups = Math.min(matrices.size(), Runtime.getRuntime().availableProcessors());
+        final List<Future<Connections>> partials = new ArrayList(groups);
+        for (int g = 0; g < groups; g++) {
+            final int group = g;
+            partials.add(executor.submit(new Callable<Connections>() {
+                    public Connections call() {
+                        final Connections partial = new Connections(keys.size());
+                        for (int i = group; i < matrices.size(); i += groups)
+                            mergeInConnectionValues(matrices.get(i), partial);
+                        return partial;
+                    }
+                }));
+        }
+        for (Future<Connections> partial : partials)
+            this.cx.addAll(getResult(partial));
     }
 
     /**
@@ -50,19 +83,18 @@ public class WeightAggregate extends ConnectivityMatrix
      * from the input matrix have already been merged to this aggregate, and the matrix for this
      * aggregate has been sized to handle all of the input keys.
      */
-    private void mergeInConnectionValues(final ConnectivityMatrix input) {
+    private void mergeInConnectionValues(final ConnectivityMatrix input, final Connections sums) {
         Log.info("mergeIn " + input);
-        final int inSize = input.size();
-        for (int index1 = 0; index1 < inSize; index1++) {
-            for (int index2 = 0; index2 < inSize; index2++) {
-                final int connection = input.cx[index1][index2];
-                if (connection != 0) {
-                    final Object key1 = input.keys.get(index1);
-                    final Object key2 = input.keys.get(index2);
-                    this.cx[this.keys.indexOf(key1)]
-                           [this.keys.indexOf(key2)] += connection;
-                    // Log.debug("merged " + connection + " for " + key1 + "," + key2);
-                }
+        // map each input index to our index for the same key
+        final int[] ourIndex = new int[input.size()];
+        for (int i = 0; i < ourIndex.length; i++)
+            ourIndex[i] = this.keys.indexOf(input.keys.get(i));
+        final Connections in = input.cx;
+        for (int slot = 0; slot < in.slots(); slot++) {
+            final int connection = in.valueAt(slot);
+            if (connection != 0) {
+                sums.add(ourIndex[in.rowAt(slot)], ourIndex[in.colAt(slot)], connection);
+                // Log.debug("merged " + connection + " for " + input.keys.get(in.rowAt(slot)) + "," + input.keys.get(in.colAt(slot)));
             }
         }
     }
@@ -0,0 +1,673 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.vue.layout;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import tufts.vue.*;
+import edu.tufts.vue.dataset.*;
+
+/**
+ * A force directed layout using the spring-electrical model: every link is a spring
+ * pulling it's nodes together, and every node repels every other node.  The nodes
+ * are moved a step at a time along the net force on them until the layout settles,
+ * with the step size adapting to how well it's going (after Y. Hu, "Efficient and
+ * High Quality Force-Directed Graph Drawing", 2005).
+ *
+ * So this will work on large maps, the repulsive forces are approximated with a
+ * Barnes-Hut quad-tree: a distant cluster of nodes repels as a single node at it's
+ * center of mass, which brings each step down from n^2 to n log n.  For large
+ * graphs the force computation is spread across all available processors.
+ *
+ * Large graphs are also laid out multilevel: the graph is repeatedly coarsened by
+ * merging pairs of linked nodes, the coarsest graph is laid out, and then each finer
+ * level starts from the layout of the one above it, where it only needs a little
+ * local refinement.  This avoids the many steps a single level layout spends slowly
+ * untangling the large scale structure of the graph.
+ *
+ * The final (finest) level is animated: the nodes are moved to their interim
+ * positions every so often while the layout runs.
+ */
+public class ForceDirectedLayout extends Layout
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(ForceDirectedLayout.class);
+
+    /** Barnes-Hut accuracy: cells smaller than THETA times their distance are treated as a single body */
+    private static final double THETA = VueResources.getDouble("layout.force.theta");
+    /** natural spring length, as a multiple of the average node diagonal */
+    private static final double SPACING = VueResources.getDouble("layout.force.spacing");
+    private static final int MAX_ITERATIONS = VueResources.getInt("layout.force.max_iterations", 300);
+    /** graphs larger than this are not animated: setting the locations of every node each frame would cost more than the layout */
+    private static final int ANIMATE_MAX = VueResources.getInt("layout.force.animate_max_nodes", 2000);
+    /** graphs at least this big have their forces computed in parallel */
+    private static final int PARALLEL_MIN = VueResources.getInt("layout.force.parallel_min_nodes", 1000);
+
+    /** relative strength of the repulsive force */
+    private static final double REPULSION = 0.2;
+    /** step size is multiplied by this when the layout doesn't improve, and divided by it after steady improvement */
+    private static final double COOLING = 0.9;
+    /** the layout has converged when the step size falls to this fraction of the spring length */
+    private static final double TOLERANCE = 0.01;
+    /** stop coarsening at graphs this small */
+    private static final int MIN_COARSE = 50;
+    /** stop coarsening if a level doesn't reduce the node count to at least this fraction */
+    private static final double MIN_REDUCTION = 0.75;
+    private static final long FRAME_INTERVAL = 40; // ms
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    public ForceDirectedLayout() {
+    }
+
+    public LWMap createMap(Dataset ds, String mapName) throws Exception {
+        return new LWMap(mapName);
+    }
+
+    /** The nodes of a graph, with their positions, and the links between them in compressed adjacency lists */
+    private static final class Graph {
+        final int n;
+        final double[] x, y;
+        /** the neighbors of node i are in adj[adjStart[i]] through adj[adjStart[i+1]-1] */
+        final int[] adjStart, adj;
+        /** the coarsened version of this graph, if there is one */
+        Graph coarser;
+        /** for each of our nodes, the index of the node in the coarser graph it was merged into */
+        int[] toCoarser;
+
+        Graph(int n, int[] adjStart, int[] adj) {
+            this.n = n;
+            this.adjStart = adjStart;
+            this.adj = adj;
+            x = new double[n];
+            y = new double[n];
+        }
+
+        int degree(int i) {
+            return adjStart[i + 1] - adjStart[i];
+        }
+    }
+
+    public void layout(LWSelection selection) throws Exception
+    {
+        final List<LWComponent> nodeList = new ArrayList();
+        for (LWComponent c : selection) {
+            if (c instanceof LWNode && !c.isManagedLocation())
+                nodeList.add(c);
+        }
+        if (nodeList.size() < 2)
+            return;
+
+        final long start = System.currentTimeMillis();
+        final LWComponent[] nodes = nodeList.toArray(new LWComponent[nodeList.size()]);
+        final int n = nodes.length;
+        final Map<LWComponent,Integer> index = new HashMap(n * 2);
+        for (int i = 0; i < n; i++)
+            index.put(nodes[i], i);
+
+        // Find the links between the nodes being laid out.  Links to anything else are ignored.
+
+        final Set<LWLink> links = new HashSet();
+        int[] edgeA = new int[n], edgeB = new int[n];
+        int edgeCount = 0;
+        for (int i = 0; i < n; i++) {
+            for (LWLink link : nodes[i].getLinks()) {
+                if (!links.add(link))
+                    continue;
+                final Integer head = index.get(link.getHead());
+                final Integer tail = index.get(link.getTail());
+                if (head == null || tail == null || head.intValue() == tail.intValue())
+                    continue;
+                if (edgeCount == edgeA.length) {
+                    edgeA = resize(edgeA, edgeCount * 2);
+                    edgeB = resize(edgeB, edgeCount * 2);
+                }
+                edgeA[edgeCount] = head;
+                edgeB[edgeCount] = tail;
+                edgeCount++;
+            }
+        }
+
+        final Graph graph = createGraph(n, edgeA, edgeB, edgeCount);
+
+        // Start from where the nodes are now.  The layout is centered where the nodes were centered.
+
+        final Random random = new Random(n);
+        double diagonal = 0, centerX = 0, centerY = 0;
+        for (int i = 0; i < n; i++) {
+            final LWComponent c = nodes[i];
+            graph.x[i] = c.getX() + c.getWidth() / 2;
+            graph.y[i] = c.getY() + c.getHeight() / 2;
+            centerX += graph.x[i];
+            centerY += graph.y[i];
+            diagonal += Math.hypot(c.getWidth(), c.getHeight());
+        }
+        centerX /= n;
+        centerY /= n;
+        final double K = SPACING * diagonal / n;
+        // so that nodes starting in the same place (e.g., new data nodes) can be told apart
+        for (int i = 0; i < n; i++) {
+            graph.x[i] += (random.nextDouble() - 0.5) * K / 10;
+            graph.y[i] += (random.nextDouble() - 0.5) * K / 10;
+        }
+
+        final List<Graph> levels = new ArrayList();
+        levels.add(graph);
+        for (Graph g = graph; g.n > MIN_COARSE; ) {
+            g = coarsen(g, random);
+            if (g == null)
+                break;
+            levels.add(g);
+        }
+
+        if (DEBUG.LAYOUT) Log.debug("laying out " + n + " nodes, " + edgeCount + " links, in " + levels.size() + " levels; K=" + K);
+
+        final ExecutorService executor = n >= PARALLEL_MIN && THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
+        final Animation animation = n <= ANIMATE_MAX ? Animation.create(nodes, centerX, centerY) : null;
+        try {
+            for (int level = levels.size() - 1; level >= 0; level--) {
+                final Graph g = levels.get(level);
+                final boolean coarsest = (level == levels.size() - 1);
+                if (!coarsest)
+                    prolong(g, K, random);
+                final int iterations = relax(g, K,
+                                             coarsest ? K * 2 : K / 2,
+                                             coarsest,
+                                             coarsest ? MAX_ITERATIONS : MAX_ITERATIONS / 3,
+                                             level == 0 ? animation : null,
+                                             g.n >= PARALLEL_MIN ? executor : null);
+                if (DEBUG.LAYOUT) Log.debug("level " + level + ": " + g.n + " nodes, " + iterations + " iterations");
+            }
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+            if (animation != null)
+                animation.finish();
+        }
+
+        applyLocations(nodes, graph.x, graph.y, centerX, centerY);
+
+        if (DEBUG.LAYOUT) Log.debug("layout of " + n + " nodes took " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static Graph createGraph(int n, int[] edgeA, int[] edgeB, int edgeCount) {
+        final int[] adjStart = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            adjStart[edgeA[e] + 1]++;
+            adjStart[edgeB[e] + 1]++;
+        }
+        for (int i = 0; i < n; i++)
+            adjStart[i + 1] += adjStart[i];
+        final int[] adj = new int[edgeCount * 2];
+        final int[] fill = resize(adjStart, n);
+        for (int e = 0; e < edgeCount; e++) {
+            adj[fill[edgeA[e]]++] = edgeB[e];
+            adj[fill[edgeB[e]]++] = edgeA[e];
+        }
+        return new Graph(n, adjStart, adj);
+    }
+
+    /**
+     * Merge linked pairs of nodes: each node is matched with it's least connected unmatched
+     * neighbor, so hubs don't swallow their neighborhoods in one go.
+     * @return the coarser graph, or null if it wouldn't be enough smaller to be worth it
+     */
+    private static Graph coarsen(Graph g, Random random)
+    {
+        final int n = g.n;
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+
+        final int[] match = new int[n];
+        Arrays.fill(match, -1);
+        final int[] toCoarser = new int[n];
+        int count = 0;
+        for (int i : order) {
+            if (match[i] >= 0)
+                continue;
+            int best = -1;
+            for (int k = g.adjStart[i]; k < g.adjStart[i + 1]; k++) {
+                final int v = g.adj[k];
+                if (match[v] < 0 && v != i && (best < 0 || g.degree(v) < g.degree(best)))
+                    best = v;
+            }
+            if (best < 0) {
+                match[i] = i;
+            } else {
+                match[i] = best;
+                match[best] = i;
+                toCoarser[best] = count;
+            }
+            toCoarser[i] = count++;
+        }
+
+        if (count > n * MIN_REDUCTION)
+            return null;
+
+        // the one or two nodes merged into each coarse node
+        final int[] first = new int[count], second = new int[count];
+        Arrays.fill(second, -1);
+        for (int i = 0; i < n; i++) {
+            if (match[i] == i || i < match[i])
+                first[toCoarser[i]] = i;
+            else
+                second[toCoarser[i]] = i;
+        }
+
+        final int[] adjStart = new int[count + 1];
+        int[] adj = new int[g.adj.length];
+        int size = 0;
+        final int[] seen = new int[count];
+        Arrays.fill(seen, -1);
+        for (int c = 0; c < count; c++) {
+            adjStart[c] = size;
+            for (int m = first[c]; m >= 0; m = (m == first[c] ? second[c] : -1)) {
+                for (int k = g.adjStart[m]; k < g.adjStart[m + 1]; k++) {
+                    final int cv = toCoarser[g.adj[k]];
+                    if (cv != c && seen[cv] != c) {
+                        seen[cv] = c;
+                        adj[size++] = cv;
+                    }
+                }
+            }
+        }
+        adjStart[count] = size;
+
+        final Graph coarse = new Graph(count, adjStart, resize(adj, size));
+        for (int c = 0; c < count; c++) {
+            final int a = first[c], b = second[c];
+            if (b < 0) {
+                coarse.x[c] = g.x[a];
+                coarse.y[c] = g.y[a];
+            } else {
+                coarse.x[c] = (g.x[a] + g.x[b]) / 2;
+                coarse.y[c] = (g.y[a] + g.y[b]) / 2;
+            }
+        }
+        g.coarser = coarse;
+        g.toCoarser = toCoarser;
+        return coarse;
+    }
+
+    /**
+     * Start the nodes of the given graph from the layout of the coarser graph: each node
+     * starts near the node it was merged into, with that layout expanded to make room
+     * for the extra nodes.
+     */
+    private static void prolong(Graph g, double K, Random random)
+    {
+        final Graph coarse = g.coarser;
+        double cx = 0, cy = 0;
+        for (int c = 0; c < coarse.n; c++) {
+            cx += coarse.x[c];
+            cy += coarse.y[c];
+        }
+        cx /= coarse.n;
+        cy /= coarse.n;
+        final double scale = Math.sqrt((double) g.n / coarse.n);
+        for (int i = 0; i < g.n; i++) {
+            final int c = g.toCoarser[i];
+            g.x[i] = cx + (coarse.x[c] - cx) * scale + (random.nextDouble() - 0.5) * K / 2;
+            g.y[i] = cy + (coarse.y[c] - cy) * scale + (random.nextDouble() - 0.5) * K / 2;
+        }
+    }
+
+    /**
+     * Move the nodes along the forces on them until the layout converges.
+     * @param adaptive if true, the step size grows while the layout keeps improving, and shrinks
+     * when it doesn't.  Otherwise the step size just steadily shrinks, which is all that's needed
+     * to refine a layout that's already roughly right.
+     * @return the number of iterations it took
+     */
+    private static int relax(Graph g, double K, double step, boolean adaptive, int maxIterations, Animation animation, ExecutorService executor)
+        throws Exception
+    {
+        final double[] fx = new double[g.n], fy = new double[g.n];
+        double energy = Double.MAX_VALUE;
+        int progress = 0;
+        int iteration = 0;
+        while (iteration++ < maxIterations) {
+            computeForces(g, K, fx, fy, executor);
+
+            double newEnergy = 0;
+            for (int i = 0; i < g.n; i++) {
+                final double f2 = fx[i] * fx[i] + fy[i] * fy[i];
+                if (f2 > 0) {
+                    final double f = Math.sqrt(f2);
+                    g.x[i] += step * fx[i] / f;
+                    g.y[i] += step * fy[i] / f;
+                    newEnergy += f2;
+                }
+            }
+
+            if (!adaptive) {
+                step *= COOLING;
+            } else if (newEnergy < energy) {
+                if (++progress >= 5) {
+                    progress = 0;
+                    step /= COOLING;
+                }
+            } else {
+                progress = 0;
+                step *= COOLING;
+            }
+            energy = newEnergy;
+
+            if (animation != null)
+                animation.frame(g.x, g.y);
+            if (step < K * TOLERANCE)
+                break;
+        }
+        return iteration;
+    }
+
+    private static void computeForces(final Graph g, double K, final double[] fx, final double[] fy, ExecutorService executor)
+        throws Exception
+    {
+        final QuadTree tree = new QuadTree(g.x, g.y, g.n);
+        final double strength = REPULSION * K * K;
+
+        if (executor == null) {
+            tree.repulse(0, g.n, strength, fx, fy);
+        } else {
+            final int chunks = THREADS * 4;
+            final List<Callable<Object>> tasks = new ArrayList(chunks);
+            for (int k = 0; k < chunks; k++) {
+                final int lo = (int) ((long) g.n * k / chunks);
+                final int hi = (int) ((long) g.n * (k + 1) / chunks);
+                tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            tree.repulse(lo, hi, strength, fx, fy);
+                            return null;
+                        }});
+            }
+            for (Future f : executor.invokeAll(tasks))
+                f.get(); // re-throws any failure
+        }
+
+        // springs: pull of magnitude d^2/K toward each neighbor
+        for (int i = 0; i < g.n; i++) {
+            for (int k = g.adjStart[i]; k < g.adjStart[i + 1]; k++) {
+                final int j = g.adj[k];
+                final double dx = g.x[j] - g.x[i];
+                final double dy = g.y[j] - g.y[i];
+                final double d = Math.sqrt(dx * dx + dy * dy);
+                fx[i] += dx * d / K;
+                fy[i] += dy * d / K;
+            }
+        }
+    }
+
+    /**
+     * A Barnes-Hut quad-tree over a set of points, stored in flat arrays.  Each leaf
+     * cell holds a chain of bodies (through next[]), which will only ever be more than
+     * one if they're at the same location.  Cells are always created after their
+     * parent, so the tree can be summarized by walking the cells backwards.
+     */
+    private static final class QuadTree {
+        private static final int EMPTY = -1, INTERNAL = -2;
+        private static final int MAX_DEPTH = 40;
+
+        private final double[] x, y;
+        private final int[] next;
+        private int[] body, child;
+        private double[] midX, midY, half, mass, comX, comY;
+        private int cells;
+
+        QuadTree(double[] x, double[] y, int n) {
+            this.x = x;
+            this.y = y;
+            next = new int[n];
+            allocate(n * 2 + 1);
+
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (x[i] < minX) minX = x[i];
+                if (x[i] > maxX) maxX = x[i];
+                if (y[i] < minY) minY = y[i];
+                if (y[i] > maxY) maxY = y[i];
+            }
+            newCell((minX + maxX) / 2, (minY + maxY) / 2, Math.max(maxX - minX, maxY - minY) / 2 + 1);
+            for (int i = 0; i < n; i++)
+                insert(i);
+            summarize();
+        }
+
+        private void allocate(int capacity) {
+            body = resize(body, capacity);
+            child = resize(child, capacity * 4);
+            midX = resize(midX, capacity);
+            midY = resize(midY, capacity);
+            half = resize(half, capacity);
+            mass = resize(mass, capacity);
+            comX = resize(comX, capacity);
+            comY = resize(comY, capacity);
+        }
+
+        private int newCell(double mx, double my, double h) {
+            if (cells == body.length)
+                allocate(cells * 2);
+            final int c = cells++;
+            body[c] = EMPTY;
+            child[c * 4] = child[c * 4 + 1] = child[c * 4 + 2] = child[c * 4 + 3] = -1;
+            midX[c] = mx;
+            midY[c] = my;
+            half[c] = h;
+            return c;
+        }
+
+        private int childFor(int cell, double px, double py) {
+            final int q = (px >= midX[cell] ? 1 : 0) + (py >= midY[cell] ? 2 : 0);
+            int c = child[cell * 4 + q];
+            if (c < 0) {
+                final double h = half[cell] / 2;
+                c = newCell(midX[cell] + ((q & 1) != 0 ? h : -h),
+                            midY[cell] + ((q & 2) != 0 ? h : -h),
+                            h);
+                child[cell * 4 + q] = c;
+            }
+            return c;
+        }
+
+        private void insert(int i) {
+            int cell = 0;
+            for (int depth = 0; ; depth++) {
+                final int b = body[cell];
+                if (b == INTERNAL) {
+                    cell = childFor(cell, x[i], y[i]);
+                } else if (b == EMPTY) {
+                    body[cell] = i;
+                    next[i] = -1;
+                    return;
+                } else if (depth >= MAX_DEPTH || (x[b] == x[i] && y[b] == y[i])) {
+                    next[i] = b;
+                    body[cell] = i;
+                    return;
+                } else {
+                    // split the leaf: move it's bodies down a level, and try again from here
+                    body[cell] = INTERNAL;
+                    final int c = childFor(cell, x[b], y[b]); // may re-allocate body[]
+                    body[c] = b;
+                }
+            }
+        }
+
+        private void summarize() {
+            for (int c = cells - 1; c >= 0; c--) {
+                double m = 0, sx = 0, sy = 0;
+                if (body[c] == INTERNAL) {
+                    for (int q = 0; q < 4; q++) {
+                        final int k = child[c * 4 + q];
+                        if (k >= 0) {
+                            m += mass[k];
+                            sx += comX[k] * mass[k];
+                            sy += comY[k] * mass[k];
+                        }
+                    }
+                } else {
+                    for (int j = body[c]; j >= 0; j = next[j]) {
+                        m++;
+                        sx += x[j];
+                        sy += y[j];
+                    }
+                }
+                mass[c] = m;
+                if (m > 0) {
+                    comX[c] = sx / m;
+                    comY[c] = sy / m;
+                }
+            }
+        }
+
+        /**
+         * Set fx & fy for bodies lo through hi-1 to the repulsive force on them from all the
+         * other bodies, of magnitude strength/distance.  This only reads the tree, so it may
+         * be run on separate ranges of bodies at once.
+         */
+        void repulse(int lo, int hi, double strength, double[] fx, double[] fy) {
+            final double theta2 = THETA * THETA;
+            final int[] stack = new int[4 * (MAX_DEPTH + 2)];
+            for (int i = lo; i < hi; i++) {
+                final double px = x[i], py = y[i];
+                double sx = 0, sy = 0;
+                int sp = 0;
+                stack[sp++] = 0;
+                while (sp > 0) {
+                    final int c = stack[--sp];
+                    final int b = body[c];
+                    if (b == EMPTY)
+                        continue;
+                    if (b != INTERNAL) {
+                        for (int j = b; j >= 0; j = next[j]) {
+                            if (j == i)
+                                continue;
+                            double dx = px - x[j], dy = py - y[j];
+                            double d2 = dx * dx + dy * dy;
+                            if (d2 == 0) {
+                                // at the same spot: push apart in an arbitrary direction
+                                final double angle = (i - j) * 2.399963;
+                                dx = Math.cos(angle) * 0.01;
+                                dy = Math.sin(angle) * 0.01;
+                                d2 = 0.0001;
+                            }
+                            sx += dx / d2;
+                            sy += dy / d2;
+                        }
+                        continue;
+                    }
+                    final double dx = px - comX[c], dy = py - comY[c];
+                    final double d2 = dx * dx + dy * dy;
+                    final double width = half[c] * 2;
+                    if (width * width < theta2 * d2) {
+                        sx += mass[c] * dx / d2;
+                        sy += mass[c] * dy / d2;
+                    } else {
+                        for (int q = 0; q < 4; q++) {
+                            final int k = child[c * 4 + q];
+                            if (k >= 0)
+                                stack[sp++] = k;
+                        }
+                    }
+                }
+                fx[i] = strength * sx;
+                fy[i] = strength * sy;
+            }
+        }
+    }
+
+    /** @return a copy of the given array (which may be null) resized to the given length: Arrays.copyOf is Java 6 */
+    private static int[] resize(int[] a, int length) {
+        final int[] copy = new int[length];
+        if (a != null)
+            System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+        return copy;
+    }
+
+    private static double[] resize(double[] a, int length) {
+        final double[] copy = new double[length];
+        if (a != null)
+            System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+        return copy;
+    }
+
+    /** move the nodes to the given center locations, with the layout as a whole centered on centerX,centerY */
+    private static void applyLocations(LWComponent[] nodes, double[] x, double[] y, double centerX, double centerY)
+    {
+        double cx = 0, cy = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            cx += x[i];
+            cy += y[i];
+        }
+        final double dx = centerX - cx / nodes.length;
+        final double dy = centerY - cy / nodes.length;
+        for (int i = 0; i < nodes.length; i++) {
+            final LWComponent c = nodes[i];
+            c.setLocation(x[i] + dx - c.getWidth() / 2,
+                          y[i] + dy - c.getHeight() / 2);
+        }
+    }
+
+    /**
+     * Shows the layout in progress by moving the nodes to their interim locations every
+     * FRAME_INTERVAL.  The layout is usually run inside an event batch (see LayoutAction),
+     * so the viewer won't hear about these moves until the layout is done, and it's tile
+     * cache won't know they're out of date: the viewer is put in animating mode, so it
+     * paints the frames directly.
+     */
+    private static final class Animation {
+        private final LWComponent[] nodes;
+        private final double centerX, centerY;
+        private final MapViewer viewer;
+        private long lastFrame = System.currentTimeMillis();
+
+        private Animation(LWComponent[] nodes, double centerX, double centerY, MapViewer viewer) {
+            this.nodes = nodes;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.viewer = viewer;
+            viewer.setAnimating(true);
+        }
+
+        /** @return an animation if the nodes are visible in the active viewer, and we can paint it, otherwise null */
+        static Animation create(LWComponent[] nodes, double centerX, double centerY) {
+            if (!javax.swing.SwingUtilities.isEventDispatchThread())
+                return null;
+            final MapViewer viewer = VUE.getActiveViewer();
+            if (viewer == null || !viewer.isShowing() || viewer.getMap() != nodes[0].getMap())
+                return null;
+            return new Animation(nodes, centerX, centerY, viewer);
+        }
+
+        void frame(double[] x, double[] y) {
+            final long now = System.currentTimeMillis();
+            if (now - lastFrame < FRAME_INTERVAL)
+                return;
+            applyLocations(nodes, x, y, centerX, centerY);
+            viewer.paintImmediately(viewer.getVisibleRect());
+            lastFrame = System.currentTimeMillis();
+        }
+
+        void finish() {
+            viewer.setAnimating(false);
+        }
+    }
+}
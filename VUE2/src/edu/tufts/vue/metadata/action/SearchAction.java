@@ -112,15 +112,12 @@ public class SearchAction extends AbstractAction
     private ResultOp resultAction = RA_SELECT;
     private final List<VueMetadataElement> searchTerms;
     
-    private List<String> textToFind = new ArrayList<String>();
     private boolean setBasic = true;
     private boolean textOnly = false;
     private boolean everything = false; // no longer makes functional difference
     private boolean metadataOnly = false;
     private boolean treatNoneSpecially = false;
     
-    private boolean actualCriteriaAdded;
-    private boolean waitCursorActivated;
     
     public SearchAction(List<edu.tufts.vue.metadata.VueMetadataElement> searchTerms, SearchType type)  {
         super(VueResources.getString("searchgui.search"));
@@ -205,320 +202,99 @@ public class SearchAction extends AbstractAction
     // End of the API
     //----------------------------------------------------------------------------------------
     
-    private static final String AS_ONE_QUERY = "as-one-query(logical-and)";
-    private static final String AS_MULTIPLE_QUERIES = "as-query-list(logical-or)";
-
-    /*
-     * this has been boiled down, tho still needs a rewrite -- way to complex
+    /**
+     * @return the search criteria for the given terms, resolved against the given index
+     * (field names in the search text are only recognized if they exist in the index).
+     * Note: the only thing we take out of the VME's these days are the values, and possibly the keys.
      */
-    // Note: the only thing we take out of the VME's these days are the values, and possibly the keys
-    private List<Query> makeQueryFromCriteria
-        (final List<VueMetadataElement> terms,
-         final String queryType)
+    private List<SearchIndex.Criteria> makeCriteria(final SearchIndex index, final List<VueMetadataElement> terms)
     {
-        Query query = new Query();  // note: most of the time, this won't even be used...
-        final List<Query> queryList;
-
-        if (queryType == AS_ONE_QUERY)
-            queryList = null;
-        else 
-            queryList = new ArrayList<Query>();
-        
-        this.textToFind = new ArrayList<String>(); // NOTE SIDE EFFECT
-        actualCriteriaAdded = false;
-
-        if (DEBUG.SEARCH) {
-            Log.debug("makeQueryFromCriteria: " + Util.tags(queryType) + "; terms="
-                      + (terms.size() == 1 ? terms.get(0) : Util.tags(terms)));
-        }
+        final List<SearchIndex.Criteria> criteriaList = new ArrayList<SearchIndex.Criteria>(terms.size());
         
         for (VueMetadataElement criteria : terms)
         {
             if (DEBUG.SEARCH) Log.debug("processing criteria: " + criteria);
 
-            // [DAN] query.addCriteria(criteria.getKey(),criteria.getValue());
-            // [SMF] final String[] statement = (String[])(criteria.getObject());
+            final String value = criteria.getValue() == null ? "" : criteria.getValue();
 
-            if (setBasic != true) {  
-                if (DEBUG.SEARCH) {    
-                    Log.debug("query setBasic != true -- more than simple label-contains");
-                    Log.debug("RDFIndex.VUE_ONTOLOGY+none=[" + RDFIndex.VUE_ONTOLOGY+"none]");
-                }
-                if (this.treatNoneSpecially && criteria.getKey().equals(RDFIndex.VueTermOntologyNone)) {
-                    // Note that above is only place where treatNoneSpecially is tested
-                    if (DEBUG.SEARCH) Log.debug("using manual textToFind: #none is special & no term (query will be empty)");
-                    // [DAN] query.addCriteria("*",criteria.getValue(),statement[2]);
-                    textToFind.add(criteria.getValue());
-                    // The Query object won't even be used!
-                }   
-                else if (this.textOnly) {
-                    // NOTE: this is the ONLY place "textOnly" is tested, and the result is redundant
-                    // to the case above -- FACTOR OUT.  Note: this means that an EVERYTHING search
-                    // is the same as a CATEGORY+KEYWORDS search.
-                    if (DEBUG.SEARCH) Log.debug("using manual textToFind: textOnly=true (query will be empty)");
-                    textToFind.add(criteria.getValue()); 
-                    // The Query object won't even be used!
-                }
-                else {
-                    query.addCriteria(criteria.getKey(), criteria.getValue(), "CONTAINS");
-                    
-                    // note above we're ignoring the Qualifier that exists in the VME object and
-                    // using "contains", which is appropriate, as 2nd term VME's appear to be
-                    // marked with STARTS_WITH as opposed to CONTAINS.  Same applies to the
-                    // addCriteria below.
-                    
-                    // [DAN] query.addCriteria(criteria.getKey(),criteria.getValue(),statement[2]); // would be nice to be able to say
-                    // [DAN] query condition here -- could do as subclass of VueMetadataElement? getCondition()? then a search
-                    // [DAN] can be metadata too..
-                    // [SMF] Now I see why statement[2] (VME object data) may have been ignored here -- it wasn't
-                    // always being properly set in MetadataSearchMainGUI -- not that we currently have any
-                    // GUI for this -- everything is always CONTAINS anyway (e.g., no STARTS_WITH).
-                    actualCriteriaAdded = true;
-                }
+            if (setBasic) {
+                // search only amongst labels
+                criteriaList.add(new SearchIndex.Criteria(SearchIndex.LABEL, value.trim(), false));
             }
-            else {
-                query.addCriteria(RDFIndex.VUE_ONTOLOGY+Constants.LABEL, criteria.getValue(), "CONTAINS");
-                // [DAN] query.addCriteria(RDFIndex.VUE_ONTOLOGY+Constants.LABEL,criteria.getValue(),statement[2]); // see comments just above
-                actualCriteriaAdded = true;
+            else if (textOnly || (treatNoneSpecially && RDFIndex.VueTermOntologyNone.equals(criteria.getKey()))) {
+                // Search all fields for the text. Note that an EVERYTHING search is the same as a
+                // CATEGORY+KEYWORDS search.  Free text may use the search syntax (field:text, text*, "text").
+                if (value.trim().length() > 0)
+                    criteriaList.add(index.parse(value));
             }
-            if (queryList != null) {
-                // Instead of continuing to add criteria to the current query, add this
-                // single-criteria query to the list, and start next iteration with a fresh query.
-                // Note that the only time we appear to add multiple criteria to a single query
-                // is when doing "Labels" searches with operator AND.
-                if (actualCriteriaAdded) {
-                    queryList.add(query);
-                    query = new Query();
-                }
+            else {
+                // Note that we're ignoring the Qualifier that exists in the VME object and always using
+                // "contains", which is appropriate, as 2nd term VME's appear to be marked with STARTS_WITH
+                // as opposed to CONTAINS.  (Not that we currently have any GUI for this).
+                criteriaList.add(new SearchIndex.Criteria(criteria.getKey(), value.trim(), false));
             }
         }
         
-        if (DEBUG.SEARCH) {
-            // Note that most of the time, all the queries are empty and won't even be used!
-            if (queryList != null) {
-                int i = 0;
-                for (Query q : queryList)
-                    Log.debug("query " + (i++) + ": " + q.createSPARQLQuery());
-            } else {
-                Log.debug("query: " + (query == null ? "<NO QUERY>" : query.createSPARQLQuery()));
-            }
-        }
+        if (DEBUG.SEARCH) Log.debug("criteria: " + Util.tags(criteriaList));
 
-        if (queryList == null) {
-            return query == null ? null : Collections.singletonList(query);
-        } else
-            return queryList;
+        return criteriaList;
     }
 
-    /** create one query with multiple criteria */
-    private Query createQuery_Logical_And(List<VueMetadataElement> terms)
-    {
-        return makeQueryFromCriteria(terms, AS_ONE_QUERY).get(0);
-    }
-    
-    /** create one query for each criteria */
-    private List<Query> createQueries_Logical_Or(List<VueMetadataElement> terms)
-    {
-        return makeQueryFromCriteria(terms, AS_MULTIPLE_QUERIES);
-    }
-
-    private static final String INDEX_WITH_WAIT_CURSOR = "<index-with-wait-cursor>";
-    private static final String INDEX_NO_WAIT_CURSOR = "<index-no-wait-cursor>";
-
     /**
-     * @return an index over given search scope (e.g., the currently active map, or all open maps)
+     * @return the maps in the given search scope (e.g., the currently active map, or all open maps)
      */
-    private RDFIndex getIndexForScope(final ComboKey scope)
+    private Collection<LWMap> getMapsForScope(final ComboKey scope)
     {
-        if (DEBUG.SEARCH) Log.debug("getIndexForScope " + Util.tags(scope));
-
-        if (scope == SEARCH_SCOPE_ALL_OPEN_MAPS) { 
-            if (DEBUG.SEARCH) Log.debug("indexing all open maps...");
-
-            this.waitCursorActivated = true;
-            tufts.vue.gui.GUI.activateWaitCursor();
-            
-            final RDFIndex globalIndex = new RDFIndex();
+        if (DEBUG.SEARCH) Log.debug("getMapsForScope " + Util.tags(scope));
 
+        if (scope == SEARCH_SCOPE_ALL_OPEN_MAPS) {
             // TODO: do we really want to search amongst existing "Search Results" maps?
-
-            for (LWMap map : VUE.getAllMaps()) {
-                if (DEBUG.SEARCH || DEBUG.RDF) Log.debug("adding to global index: " + map);
-                final RDFIndex mapIndex = getIndexForMap(map, !this.metadataOnly, INDEX_NO_WAIT_CURSOR);
-                globalIndex.addMapIndex(mapIndex);
-            }
-
-            if (DEBUG.SEARCH || DEBUG.RDF) Log.debug("done indexing all maps.");
-
-            return globalIndex;
-            
+            return VUE.getAllMaps();
         } else { // default SEARCH_SCOPE_CURRENT_MAP
-            return getIndexForMap(VUE.getActiveMap(), !this.metadataOnly, INDEX_WITH_WAIT_CURSOR);
+            final LWMap map = VUE.getActiveMap();
+            return map == null ? Collections.EMPTY_LIST : Collections.singletonList(map);
         }
     }
 
-
     /**
-     * This will find a valid cached index for the given map, or create and populate a fresh
-     * one. Note that this call can also have a crucial side effect: it will activate the global wait
-     * cursor if indexing is begun, and this.waitCursorActivated must be checked later to see if it
-     * should be cleared.
+     * Search the given maps.  Each map keeps it's own SearchIndex, which is brought up to date
+     * with any changes since the last search on that map when it's searched.
      */
-    private RDFIndex getIndexForMap(final LWMap map, boolean include_LWC_fields, String activateWait)
-    {
-        final CachedIndex cache = map.getClientData(CachedIndex.class);
-        final RDFIndex index;
-
-        if (cache != null && cache.isStillValid(include_LWC_fields)) {
-            if (DEBUG.SEARCH) Log.debug("found valid cached index " + Util.tags(cache));
-            index = cache.index;
-        } else {
-            if (DEBUG.SEARCH || DEBUG.RDF) {
-                if (cache != null) Log.debug("saw cached index " + Util.tags(cache) + "; but was invalid");
-                Log.debug("indexing " + map + "...");
-            }
-
-            if (activateWait == INDEX_WITH_WAIT_CURSOR) {
-                this.waitCursorActivated = true;
-                tufts.vue.gui.GUI.activateWaitCursor(); 
-            }
-
-            // Todo: can't we get rid of the METAONLY flag by modifying the search itself to ignore
-            // the specific URI keys?
-
-            index = new RDFIndex();
-            index.indexAdd(map, !include_LWC_fields, this.everything);
-            // note: the "everything" is currently ignored during indexing -- e.g., we never index LWSlide content
-            map.setClientData(CachedIndex.class, new CachedIndex(index, map, include_LWC_fields));
-                
-            if (DEBUG.SEARCH || DEBUG.RDF) Log.debug(" indexed " + map + ".");
-        }
-        
-        return index;
-    }
-
-    private static class CachedIndex {
-        final RDFIndex index;
-        final LWMap map;
-        final long mapChangeStateAtIndex;
-        final boolean indexHad_LWC_fields;
-        CachedIndex(RDFIndex i, LWMap m, boolean didIndex_LWC_fields) {
-            index = i;
-            map = m;
-            mapChangeStateAtIndex = map.getChangeState();
-            indexHad_LWC_fields = didIndex_LWC_fields;
-        }
-        boolean isStillValid(boolean want_LWC_fields) {
-            return map.getChangeState() == mapChangeStateAtIndex && indexHad_LWC_fields == want_LWC_fields;
-        }
-    }
-
-    
-    private Collection<LWComponent> runSearch(
-                                              final edu.tufts.vue.rdf.RDFIndex index,
-                                              final List<VueMetadataElement> terms)
-    // add actualCriteraAdded & crossTermOperator as explicit inputs
+    private Collection<LWComponent> runSearch(final Collection<LWMap> maps, final List<VueMetadataElement> terms)
     {
         if (DEBUG.SEARCH) {
-            Log.debug("runSearch: term(s): " + (terms.size() > 1 ? terms.size() : terms));
+            Log.debug("runSearch: term(s): " + (terms.size() > 1 ? terms.size() : terms) + "; operator=" + Util.tags(crossTermOperator));
             if (terms.size() > 1)
                 Util.dump(terms);
         }
 
-        // one of these two will be non-null, tho they will often be empty!
-        final Query query;
-        final List<Query> queryList;
+        // We'll get multiple hits for single nodes with multiple matching fields, so the results are a Set.
+        // The order they are found in is preserved.
         
-        if (true /*searchType == TYPE_QUERY*/) {
-            if (DEBUG.SEARCH) Log.debug("operator=" + Util.tags(crossTermOperator));
-            // The was designed was if it's AND, we create a single query, but if OR,
-            // we create multiple queries.
-
-            // NOTE THAT A FREQUENT RESULT OF THESE createQuery CALLS IS TO SIDE-EFFECT FILL
-            // "textToFind", and RETURN AN EMPTY QUERY or EMPTY QUERY-LIST.
-            
-            if (crossTermOperator == Operator.AND) {
-                query = createQuery_Logical_And(terms);
-                queryList = null;
-            } else { // if (crossTermOperator == SearchAction.OR) {
-                // Dan had said: "todo: AND in first query" -- what'd he mean by this?
-                // What it seems we could be missing is to handle the OR case via a single query...
-                query = null;
-                queryList = createQueries_Logical_Or(terms);
-            }
-        }
-        
-        // Although we'll get multiple URI hits for single nodes with multiple matching fields, the
-        // current QuerySolution's only contain the *content* of what was matched, not the keyword,
-        // and even if we had the keyword, we don't currently have a use case where we'd do
-        // anything with it, so to simplify things we just make the results a HashSet.  [ ED: We've
-        // now added keywords to results, so we could examine them for interesting stats if we like,
-        // e.g., a search for "mentor" (ClubZora test data set) might reveal that all hits happened
-        // to occur on a field named "Role" ]
-        
-        final Collection<URI> results = new HashSet<URI>();
-
-        // TYPE_QUERY appears to be used in most (all?) cases, which works differently than
-        // TYPE_FIELD.  TYPE_FIELD, I *thought* I saw was used when we search just amongst
-        // "labels", and probably other similar cases.  The code paths are more different than they
-        // ought to be.  E.g., TYPE_FIELD will match the word "header" from the style on the master
-        // slide -- I think that's an indexing issue -- so they can actually INDEX differently.
-        // That is is being mediated by the "everything" flag.  Okay -- it turns out TYPE_FIELD is
-        // never used -- was not deployed in a live codepath in MetadataSearchMainGUI.
-        // 
-        // SMF 2012-07 todo: could still refactor the hell out of what's left here. 
-        //
-        // if (searchType == TYPE_FIELD) {
-        //     // Single search box case -- DOESN'T APPEAR TO BE DEPLOYED IN ANY ACTIVE VUE CODE -- SMF 2012
-        //     if (DEBUG.Enabled) Log.info("TYPE_FIELD IN USE", new Throwable("HERE"));
-        //     for (String tag : tags) {
-        //         if (DEBUG.RDF || DEBUG.SEARCH) Log.debug("processing tag " + Util.tags(tag));
-        //         results.addAll(index.searchAllResources(tag));
-        //     }
-        // } else if (searchType == TYPE_QUERY) {
-        
-        if (true) {
-
-            //-----------------------------------------------------------------------------
-            // THIS IS WHERE THE INDEX IS ACTUALLY ASKED TO DO SEARCHES:
-            //-----------------------------------------------------------------------------
-            
-            if (actualCriteriaAdded) {
-                // This code path appears only to be traveled when we NOT searching for "everything"
-                if (textToFind.size() > 0) Log.error("CRITERIA + TEXT-TO-FIND! " + Util.tags(textToFind));
-                if (DEBUG.SEARCH) Log.debug("Query objects were used, operator=" + crossTermOperator);
-                if (crossTermOperator == Operator.AND) {
-                    // In this case, the AND is built into the query via multiple SPARQL sub-statements:
-                    results.addAll(index.search(query));
-                } else if (crossTermOperator == Operator.OR) {
-                    // In this case, the OR is handled by running multiple single-statement queries:
-                    for (Query q : queryList)
-                        results.addAll(index.search(q));
-                } else {
-                    // should never happen:
-                    Log.error("UNHANDLED CROSS TERM OPERATOR " + Util.tags(crossTermOperator));
-                }
-            }
-
-            if (actualCriteriaAdded && textToFind.size() > 0)
-                throw new Error("I THOUGHT ACTUAL QUERY & TEXT-TO-FIND WERE EXCLUSIVE CASES");
+        final Collection<LWComponent> results = new LinkedHashSet<LWComponent>();
 
+        for (LWMap map : maps) {
+            final SearchIndex index = SearchIndex.getIndex(map);
+            final Collection<LWComponent> mapResults = new LinkedHashSet<LWComponent>();
             boolean firstTerm = true;
-            for (String textInput : textToFind) {
-                final String textTerm = textInput.trim();
-                if (DEBUG.SEARCH) Log.debug("textToFind has " + Util.tags(textTerm));
-                if (textTerm.length() > 0) {
-                    if (firstTerm || crossTermOperator == Operator.OR)
-                        results.addAll(index.searchAllValues(textTerm));
-                    else if (crossTermOperator == Operator.AND)
-                        results.retainAll(index.searchAllValues(textTerm));
-                    else
-                        Log.error("Unhandled operator: " + Util.tags(crossTermOperator));
+            for (SearchIndex.Criteria criteria : makeCriteria(index, terms)) {
+                if (firstTerm || crossTermOperator == Operator.OR) {
+                    index.search(criteria, metadataOnly, mapResults);
+                } else if (crossTermOperator == Operator.AND) {
+                    if (mapResults.isEmpty())
+                        break;
+                    final Collection<LWComponent> hits = new HashSet<LWComponent>();
+                    index.search(criteria, metadataOnly, hits);
+                    mapResults.retainAll(hits);
+                } else {
+                    Log.error("Unhandled operator: " + Util.tags(crossTermOperator));
                 }
                 firstTerm = false;
             }
+            if (DEBUG.SEARCH) Log.debug(index + ": " + mapResults.size() + " hits");
+            results.addAll(mapResults);
         }
-        return index.decodeVueResults(results);
+        return results;
     }
 
     /**
@@ -538,17 +314,12 @@ public class SearchAction extends AbstractAction
         
         // selection.clear();
         // let the selection be replaced in one fell swoop: less UI flickering
-        waitCursorActivated = false;
-        
         Collection<LWComponent> hits = null;
 
         try {
-            // getIndex will have activated wait-cursor if new indexing took place
-            hits = runSearch(getIndexForScope(this.searchScope), this.searchTerms);
+            hits = runSearch(getMapsForScope(this.searchScope), this.searchTerms);
         } catch (Throwable t) {
             Log.error("search error, src=(" + ae + ")", t);
-        } finally {
-            if (waitCursorActivated) tufts.vue.gui.GUI.clearWaitCursor();
         }
         
         if (DEBUG.SEARCH) {
@@ -564,7 +335,7 @@ public class SearchAction extends AbstractAction
 
         if (hits == null) {
             // Should only happen on exception:
-            Log.warn("hits is null back from RDFIndex");
+            Log.warn("hits is null back from search");
             java.awt.Toolkit.getDefaultToolkit().beep();            
             return;
         }
@@ -663,7 +434,7 @@ public class SearchAction extends AbstractAction
             
             
     /**
-     * Take the given set of hits from the RDFIndex based search, and process them depending on the
+     * Take the given set of hits from the search, and process them depending on the
      * the user-selected resulting action.  Any returned collection of LWComponents are items to
      * actually be selected, which can vary from the LWComponents that were registered as hits.
      * (E.g., a hit on a node-icon will actually select it's parent node).
@@ -0,0 +1,372 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.vue.metadata.action;
+
+import java.util.*;
+
+import tufts.Util;
+import tufts.vue.DEBUG;
+import tufts.vue.LWCEvent;
+import tufts.vue.LWComponent;
+import tufts.vue.LWKey;
+import tufts.vue.LWMap;
+import tufts.vue.LWPathway;
+import tufts.vue.LWSlide;
+import tufts.vue.VueResources;
+import edu.tufts.vue.metadata.Constants;
+import edu.tufts.vue.metadata.VueMetadataElement;
+import edu.tufts.vue.rdf.RDFIndex;
+
+/**
+ * A full-text index of the searchable content of a single map: labels, notes, resource
+ * properties and meta-data -- the same content RDFIndex extracts for RDF export.
+ *
+ * The index is created once per map, and kept current by listening to the map: any
+ * component that changes is simply marked dirty, and dirty components are re-indexed
+ * the next time the index is searched, so editing costs next to nothing.
+ *
+ * Every distinct field value is kept once, lower-cased, in a dictionary, which is
+ * itself indexed by every 3 character substring ("trigram") of each value.  A search
+ * for text that CONTAINS a term (what VUE search has always done) need only check the
+ * values that contain the least common trigram of the term, instead of every value.
+ *
+ * Search terms may be scoped to a field ("notes:foo", "Role:mentor"), may be a prefix
+ * of a word ("bos*"), or a quoted phrase.  An unquoted term with spaces is also matched
+ * as a phrase, as it always has been.
+ */
+final class SearchIndex implements LWComponent.Listener
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(SearchIndex.class);
+
+    // The field keys are the same as RDFIndex uses, so existing search criteria keys work unchanged
+    static final String LABEL = RDFIndex.VUE_ONTOLOGY + Constants.LABEL;
+    static final String NOTES = RDFIndex.VUE_ONTOLOGY + Constants.NOTES;
+    static final String COLOR = RDFIndex.VUE_ONTOLOGY + Constants.COLOR;
+    static final String CONTENT = RDFIndex.VUE_ONTOLOGY + Constants.CONTENT_INFO_PROPERTY;
+
+    private static final boolean INDEX_COLOR = VueResources.getBool("rdf.rdfize.color");
+    private static final int GRAM = 3;
+
+    /** A single search criteria: text to find, optionally in a single field */
+    static final class Criteria {
+        /** the field to search, or null for any field */
+        final String key;
+        /** lower-case text to find */
+        final String text;
+        /** if true, text must be found at the start of a word */
+        final boolean prefix;
+
+        Criteria(String key, String text, boolean prefix) {
+            this.key = key;
+            this.text = text.toLowerCase();
+            this.prefix = prefix;
+        }
+
+        @Override public String toString() {
+            return "Criteria[" + (key == null ? "*" : key) + (prefix ? " starts-with " : " contains ") + Util.tags(text) + "]";
+        }
+    }
+
+    /** A distinct (lower-cased) field value, and every field it's found in */
+    private static final class Value {
+        final String text;
+        final List<Field> fields = new ArrayList(1);
+        Value(String text) { this.text = text; }
+    }
+
+    /** A field value in a component */
+    private static final class Field {
+        final LWComponent component;
+        final String key;
+        /** true if this is part of the node itself (label, notes, resource), as opposed to it's meta-data */
+        final boolean nodeData;
+        final Value value;
+        Field(LWComponent c, String key, boolean nodeData, Value value) {
+            this.component = c;
+            this.key = key;
+            this.nodeData = nodeData;
+            this.value = value;
+        }
+    }
+
+    private final LWMap mMap;
+    private final Map<LWComponent,List<Field>> mFields = new LinkedHashMap();
+    private final Map<String,Value> mValues = new HashMap();
+    private final Map<String,Set<Value>> mGrams = new HashMap();
+    /** all field keys in use, with the number of fields using them */
+    private final Map<String,int[]> mKeys = new HashMap();
+
+    private final Set<LWComponent> mDirty = new LinkedHashSet();
+    private final Set<LWComponent> mDirtyTrees = new LinkedHashSet();
+    private boolean mSweepNeeded;
+
+    private SearchIndex(LWMap map) {
+        mMap = map;
+        mDirtyTrees.add(map);
+        map.addLWCListener(this);
+    }
+
+    /** @return the index for the given map, creating it if needed */
+    static synchronized SearchIndex getIndex(LWMap map) {
+        SearchIndex index = map.getClientData(SearchIndex.class);
+        if (index == null) {
+            index = new SearchIndex(map);
+            map.setClientData(SearchIndex.class, index);
+        }
+        return index;
+    }
+
+    /** Mark changed components for re-indexing at the next search */
+    public synchronized void LWCChanged(LWCEvent e) {
+        final String name = e.getName();
+        if (name.startsWith("hier.") || (e instanceof LWCEvent.Batch && ((LWCEvent.Batch)e).hasKeyPrefix("hier."))) {
+            // Children may have come or gone: re-scan everything under whatever changed
+            addAll(mDirtyTrees, e);
+            mSweepNeeded = true;
+        } else if (e.key == LWKey.Repaint || e.key == LWKey.UserActionCompleted) {
+            return;
+        } else if (e.component == mMap) {
+            // The map isn't itself indexed: a change it reports for itself may concern any of
+            // it's components (e.g., the meta-data editor reports edits to a multiple
+            // selection this way), so re-index everything.
+            mDirtyTrees.add(mMap);
+        } else {
+            addAll(mDirty, e);
+        }
+    }
+
+    private static void addAll(Set<LWComponent> set, LWCEvent e) {
+        if (e.getComponents() != null)
+            set.addAll(e.getComponents());
+        else if (e.component != null)
+            set.add(e.component);
+    }
+
+    /** bring the index up to date with any changes to the map */
+    private void refresh() {
+        if (mDirty.isEmpty() && mDirtyTrees.isEmpty() && !mSweepNeeded)
+            return;
+
+        final long start = System.currentTimeMillis();
+        int count = 0;
+
+        if (mSweepNeeded) {
+            // drop anything that's no longer in the map
+            for (LWComponent c : new ArrayList<LWComponent>(mFields.keySet())) {
+                if (c.isDeleted() || c.getMap() != mMap)
+                    unindex(c);
+            }
+            mSweepNeeded = false;
+        }
+        for (LWComponent tree : mDirtyTrees) {
+            if (tree != mMap)
+                mDirty.add(tree);
+            mDirty.addAll(tree.getAllDescendents());
+        }
+        mDirtyTrees.clear();
+
+        for (LWComponent c : mDirty) {
+            unindex(c);
+            if (isIndexed(c)) {
+                index(c);
+                count++;
+            }
+        }
+        mDirty.clear();
+
+        if (DEBUG.SEARCH) Log.debug(this + " re-indexed " + count + " components in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private boolean isIndexed(LWComponent c) {
+        return !(c instanceof LWMap || c instanceof LWPathway || c instanceof LWMap.Layer || c instanceof LWSlide)
+            && !c.isDeleted()
+            && c.getMap() == mMap;
+    }
+
+    private void index(LWComponent c) {
+        final List<Field> fields = new ArrayList();
+
+        if (c.hasLabel())
+            add(fields, c, LABEL, true, c.getLabel());
+        if (c.hasNotes())
+            add(fields, c, NOTES, true, c.getNotes());
+        if (INDEX_COLOR && c.getXMLfillColor() != null)
+            add(fields, c, COLOR, true, c.getXMLfillColor());
+
+        final tufts.vue.Resource r = c.getResource();
+        if (r != null) {
+            for (Map.Entry e : r.getProperties().entries()) {
+                if (tufts.vue.Resource.isInternalPropertyKey(e.getKey().toString()))
+                    continue;
+                if (e.getValue() != null)
+                    add(fields, c, CONTENT, true, e.getValue().toString());
+            }
+        }
+
+        for (VueMetadataElement vme : c.getMetadataList().getMetadata()) {
+            final String key = vme.getKey();
+            if (key != null && key.length() > 0)
+                add(fields, c, key, false, vme.getValue());
+        }
+
+        if (fields.size() > 0)
+            mFields.put(c, fields);
+    }
+
+    private void add(List<Field> fields, LWComponent c, String key, boolean nodeData, String text) {
+        if (text == null || text.length() == 0)
+            return;
+        text = text.toLowerCase();
+        Value value = mValues.get(text);
+        if (value == null) {
+            value = new Value(text);
+            mValues.put(text, value);
+            for (int i = 0; i + GRAM <= text.length(); i++) {
+                final String gram = text.substring(i, i + GRAM);
+                Set<Value> values = mGrams.get(gram);
+                if (values == null)
+                    mGrams.put(gram, values = new HashSet());
+                values.add(value);
+            }
+        }
+        final Field field = new Field(c, key, nodeData, value);
+        value.fields.add(field);
+        fields.add(field);
+        final int[] keyCount = mKeys.get(key);
+        if (keyCount == null)
+            mKeys.put(key, new int[] { 1 });
+        else
+            keyCount[0]++;
+    }
+
+    private void unindex(LWComponent c) {
+        final List<Field> fields = mFields.remove(c);
+        if (fields == null)
+            return;
+        for (Field field : fields) {
+            final Value value = field.value;
+            value.fields.remove(field);
+            if (value.fields.isEmpty()) {
+                mValues.remove(value.text);
+                for (int i = 0; i + GRAM <= value.text.length(); i++) {
+                    final String gram = value.text.substring(i, i + GRAM);
+                    final Set<Value> values = mGrams.get(gram);
+                    if (values != null && values.remove(value) && values.isEmpty())
+                        mGrams.remove(gram);
+                }
+            }
+            final int[] keyCount = mKeys.get(field.key);
+            if (keyCount != null && --keyCount[0] <= 0)
+                mKeys.remove(field.key);
+        }
+    }
+
+    /**
+     * @return the values that might contain the given lower-case text: those
+     * containing it's least common trigram, or all values if it's too short to have one
+     */
+    private Collection<Value> candidates(String text) {
+        if (text.length() < GRAM)
+            return mValues.values();
+        Set<Value> fewest = null;
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            final Set<Value> values = mGrams.get(text.substring(i, i + GRAM));
+            if (values == null)
+                return Collections.EMPTY_LIST;
+            if (fewest == null || values.size() < fewest.size())
+                fewest = values;
+        }
+        return fewest;
+    }
+
+    private static boolean matches(String value, Criteria criteria) {
+        int i = value.indexOf(criteria.text);
+        if (!criteria.prefix)
+            return i >= 0;
+        while (i >= 0) {
+            if (i == 0 || !Character.isLetterOrDigit(value.charAt(i - 1)))
+                return true;
+            i = value.indexOf(criteria.text, i + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Add to results every component matching the criteria.
+     * @param metadataOnly if true, only meta-data fields will be searched
+     */
+    synchronized void search(Criteria criteria, boolean metadataOnly, Collection<LWComponent> results) {
+        refresh();
+        if (criteria.text.length() == 0 && criteria.key == null)
+            return; // an empty search on a field finds everything with that field, but otherwise finds nothing
+        for (Value value : candidates(criteria.text)) {
+            if (!matches(value.text, criteria))
+                continue;
+            for (Field field : value.fields) {
+                if (metadataOnly && field.nodeData)
+                    continue;
+                if (criteria.key == null || criteria.key.equals(field.key))
+                    results.add(field.component);
+            }
+        }
+    }
+
+    /**
+     * @return criteria for the given search box input, which may be scoped to a field by
+     * name (e.g., notes:text), may be a quoted phrase, and may end with * to find only
+     * words starting with the text.
+     */
+    synchronized Criteria parse(String input) {
+        String text = input.trim();
+        String key = null;
+
+        final int colon = text.indexOf(':');
+        if (colon > 0) {
+            key = findKey(text.substring(0, colon).trim());
+            if (key != null)
+                text = text.substring(colon + 1).trim();
+        }
+
+        boolean prefix = false;
+        if (text.length() > 1 && text.endsWith("*")) {
+            prefix = true;
+            text = text.substring(0, text.length() - 1);
+        }
+        if (text.length() > 1 && text.startsWith("\"") && text.endsWith("\""))
+            text = text.substring(1, text.length() - 1);
+
+        return new Criteria(key, text, prefix);
+    }
+
+    /** @return the key of the field with the given short name, if there is one in the index */
+    private String findKey(String name) {
+        refresh();
+        if (name.equalsIgnoreCase(Constants.LABEL))
+            return LABEL;
+        if (name.equalsIgnoreCase(Constants.NOTES))
+            return NOTES;
+        for (String key : mKeys.keySet()) {
+            final String shortName = key.substring(key.lastIndexOf(RDFIndex.ONT_SEPARATOR_CHAR) + 1);
+            if (shortName.equalsIgnoreCase(name))
+                return key;
+        }
+        return null;
+    }
+
+    @Override public String toString() {
+        return "SearchIndex[" + mFields.size() + " components; " + mValues.size() + " values; " + mGrams.size() + " trigrams; " + mMap + "]";
+    }
+}
@@ -25,6 +25,8 @@ package tufts.oki.localFiling;
 import java.io.*;
 import java.lang.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import tufts.oki.shared.*;
 
 /**
@@ -32,6 +34,12 @@ import tufts.oki.shared.*;
  *  absolute local file names when creating the LocalByteStore.  Two methods are provided
  *  for getting the bytes in the byte store:  getBytes(), and read().  One method is 
  *  provided for saving bytes in a file:  write().
+ *  <p>
+ *  For large files, which shouldn't be read into memory all at once, there are also
+ *  streaming methods:  openInputStream(), write(InputStream), and transferTo(), which
+ *  copies between files through their FileChannels.  read() streams the file a chunk at
+ *  a time, or for files of at least MAP_THRESHOLD bytes, iterates over a read-only
+ *  memory-mapping of the file.  map() provides such a mapping directly.
  *
  * @author  Mark Norton
  *
@@ -47,6 +55,11 @@ public class LocalByteStore extends LocalCabinetEntry implements osid.filing.Byt
     private boolean readable = true;    //  Is it readable?
     private boolean appendable = true;  //  Is it appendable?
     private File file = null;
+
+    /** files at least this big are memory-mapped by read() instead of being streamed */
+    public static final long MAP_THRESHOLD = 8 * 1024 * 1024;
+    /** the chunk size for streaming reads & writes */
+    public static final int CHUNK_SIZE = ChunkedByteValueIterator.DEFAULT_CHUNK_SIZE;
     
     /**
      *  Create a ByteStore object given a display name and parent.
@@ -268,40 +281,154 @@ public class LocalByteStore extends LocalCabinetEntry implements osid.filing.Byt
             throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
         }
 
-        //  Allocate a buffer to hold the file.  Note that this must fit in memory and be
-        //  small in size than Integer.MAX_VALUE.
-        if (file.length() > (long) Integer.MAX_VALUE)
-            throw new osid.filing.FilingException ("File is too big to read.");
-        int len = (int) file.length();
-        byte[] buf = new byte[len];
-
-        //  Copy the file stream into a buffer.
         try {
-            for (int i = 0; i < len; i++) {
-                buf[i] = (byte)stream.read();
+            //  Allocate a buffer to hold the file.  Note that this must fit in memory and be
+            //  small in size than Integer.MAX_VALUE.
+            final FileChannel channel = stream.getChannel();
+            if (channel.size() > (long) Integer.MAX_VALUE)
+                throw new osid.filing.FilingException ("File is too big to read.");
+            final ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+
+            //  Read the file into the buffer.
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0)
+                    break; // the file was truncated while we read it
             }
-            stream.close();
+            if (buf.hasRemaining()) {
+                final byte[] bytes = new byte[buf.position()];
+                System.arraycopy(buf.array(), 0, bytes, 0, bytes.length);
+                return bytes;
+            }
+            return buf.array();
         }
         catch (java.io.IOException ex) {
             throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
         }
-        
-        return buf;
+        finally {
+            close(stream);
+        }
     }
     
     /**
      *  Iterate over bytes given a version.  Version is ignored if null.
+     *  The bytes are streamed from the file as they're iterated, or for large files,
+     *  iterated from a memory-mapping of the file.
      *
      *  @author Mark Norton
      *
      *  @return A ByteValueIterator which lists all bytes saved in this byte store.
      */
     public osid.shared.ByteValueIterator read(java.util.Calendar version) throws osid.filing.FilingException {
-        byte[] buf = getBytes();
+        if (file.length() >= MAP_THRESHOLD && file.length() <= Integer.MAX_VALUE)
+            return new ChunkedByteValueIterator(map());
+
+        try {
+            return new ChunkedByteValueIterator(new FileInputStream(file).getChannel(), CHUNK_SIZE);
+        }
+        catch (java.io.IOException ex) {
+            throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
+        }
+    }
 
-        //  Create an iterator over the buffer.
-        osid.shared.ByteValueIterator it = (osid.shared.ByteValueIterator) new ByteValueIterator(buf);
-        return it;
+    /**
+     *  Map the file associated with this byte store into memory, read-only.  The file
+     *  itself can be closed once mapped:  the mapping stays valid until it's garbage
+     *  collected.
+     *
+     *  @return A read-only ByteBuffer of the file contents.
+     */
+    public ByteBuffer map() throws osid.filing.FilingException {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream (file);
+            final FileChannel channel = stream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (java.io.IOException ex) {
+            throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
+        }
+        finally {
+            close(stream);
+        }
+    }
+
+    /**
+     *  Open the file associated with this byte store for streaming input.
+     *  The caller must close the stream.
+     *
+     *  @return A buffered InputStream over the file contents.
+     */
+    public InputStream openInputStream() throws osid.filing.FilingException {
+        try {
+            return new BufferedInputStream(new FileInputStream (file), CHUNK_SIZE);
+        }
+        catch (java.io.IOException ex) {
+            throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
+        }
+    }
+
+    /**
+     *  Replace the contents of the file associated with this ByteStore with the
+     *  contents of the given stream, a chunk at a time.  The stream is not closed.
+     */
+    public void write(InputStream in) throws osid.filing.FilingException {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream (file);
+            final byte[] buf = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = in.read(buf)) >= 0)
+                stream.write(buf, 0, count);
+            stream.close();
+            stream = null;
+        }
+        catch (java.io.IOException ex) {
+            throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
+        }
+        finally {
+            close(stream);
+        }
+    }
+
+    /**
+     *  Replace the contents of the given byte store with the contents of this one,
+     *  copying directly between the files' channels, without passing the bytes
+     *  through the Java heap where the platform allows.
+     */
+    public void transferTo(LocalByteStore dest) throws osid.filing.FilingException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream (file);
+            out = new FileOutputStream (dest.getFile());
+            final FileChannel src = in.getChannel();
+            final FileChannel dst = out.getChannel();
+            final long size = src.size();
+            long position = 0;
+            while (position < size) {
+                final long count = src.transferTo(position, size - position, dst);
+                if (count <= 0)
+                    break; // the file was truncated while we copied it
+                position += count;
+            }
+            out.close();
+            out = null;
+        }
+        catch (java.io.IOException ex) {
+            throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
+        }
+        finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (java.io.IOException ex) {}
+        }
     }
     
     /**
@@ -323,12 +450,11 @@ public class LocalByteStore extends LocalCabinetEntry implements osid.filing.Byt
         
         //  Copy the buffer to the file stream.
         try {
-            for (int i = 0; i < b.length; i++) {
-                stream.write((int)b[i]);
-            }
+            stream.write(b);
             stream.close();
         }
         catch (java.io.IOException ex) {
+            close(stream);
             throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
         }
         
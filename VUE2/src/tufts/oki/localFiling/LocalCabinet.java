@@ -222,9 +222,12 @@ public class LocalCabinet extends LocalCabinetEntry implements osid.filing.Cabin
     public osid.filing.ByteStore copyByteStore(String name, osid.filing.ByteStore oldByteStore) throws osid.filing.FilingException {
 
         osid.filing.ByteStore bs = (osid.filing.ByteStore) createByteStore (name);
-        byte[] byte_store = ((LocalByteStore)oldByteStore).getBytes();
-        byte[] new_store = (byte[])byte_store.clone();
-        bs.write (new_store);
+        if (bs instanceof LocalByteStore) {
+            //  Copy file to file, without reading it all into memory.
+            ((LocalByteStore)oldByteStore).transferTo ((LocalByteStore)bs);
+        } else {
+            bs.write (((LocalByteStore)oldByteStore).getBytes());
+        }
         return bs;
     }
     
@@ -50,7 +50,6 @@ public class LocalFilingManager extends tufts.oki.OsidManager implements osid.fi
 {
     private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(LocalFilingManager.class);
     
-    private static final int BUFFER_SIZE = 1024;    //  Size of buffer to use.
     public boolean trace = false;       //  Set this to true to trace operations.
     private SortedSet rootCabinets = null;
     //private LocalCabinet root = null;  //  The root cabinet for a client-session.
@@ -577,25 +576,28 @@ public class LocalFilingManager extends tufts.oki.OsidManager implements osid.fi
     /**
      *  Copy the input stream to the output stream.
      *  <p>
-     *  This is currently implemented as a byte by byte copy, but it's reasonably
-     *  efficient, since the copying is all done in memory with periodic flushing out
-     *  to disk.
+     *  File to file copies (such as between streams from openForInput and openForOutput)
+     *  are done by channel transfer, anything else is copied a chunk at a time.
      *
      *  @author Mark Norton
      */
     public void copy (InputStream in, OutputStream out) throws osid.filing.FilingException {
-        //int data[] = new int[RemoteFilingManager.BUFFER_SIZE/4];
-        
-        BufferedInputStream bin = new BufferedInputStream (in, LocalFilingManager.BUFFER_SIZE);
-        BufferedOutputStream bout = new BufferedOutputStream (out, LocalFilingManager.BUFFER_SIZE);
         try {
-            while (true) {
-                int datum = bin.read();
-                if (datum == -1)
-                    break;
-                bout.write(datum);
+            if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+                final java.nio.channels.FileChannel src = ((FileInputStream)in).getChannel();
+                final java.nio.channels.FileChannel dst = ((FileOutputStream)out).getChannel();
+                long count;
+                do {
+                    count = src.transferTo(src.position(), src.size() - src.position(), dst);
+                    src.position(src.position() + count);
+                } while (count > 0);
+            } else {
+                final byte[] buf = new byte[LocalByteStore.CHUNK_SIZE];
+                int count;
+                while ((count = in.read(buf)) >= 0)
+                    out.write(buf, 0, count);
             }
-            bout.flush();
+            out.flush();
         }
         catch (java.io.IOException ex1) {
             throw new osid.filing.FilingException (osid.filing.FilingException.IO_ERROR);
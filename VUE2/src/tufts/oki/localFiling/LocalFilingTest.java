@@ -41,11 +41,13 @@ import tufts.oki.shared.*;
  *  The following tests are implemented:<br>
  *  1.  Interactive file access test.
  *  2.  Directory test.
+ *  6.  Interactive resumed download, from an FTP server to a local directory.
  * @author  Mark Norton
  */
 public class LocalFilingTest {
     public static final String LOCAL_ROOT = "C:\\";
     static private LocalFilingManager lm = null; //  The local filing manager.
+    static private BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
     
     /** Creates a new instance of FTPFilingTest3 */
     public LocalFilingTest() {
@@ -53,9 +55,8 @@ public class LocalFilingTest {
     
     public static String readline() throws IOException
     {
-	BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-
-	return in.readLine();
+	//  One reader for all, so nothing buffered for the next line is lost.
+	return stdin.readLine();
     }
 
     public static void printFilesInCurrent () throws java.io.IOException, osid.filing.FilingException {
@@ -295,6 +296,63 @@ public class LocalFilingTest {
         //  Delete the byte store.
     }
         
+    /**
+     *  Download a remote file to a local directory, stopping part way.  Check that the
+     *  partial file is left in the local directory, that downloading again resumes at it's
+     *  length, and that only the downloaded file is left when it's done.
+     */
+    public static void test6 () throws java.io.IOException, osid.filing.FilingException {
+        System.out.println ("Test 6:  Resumed download to a local directory.\n");
+
+        System.out.print ("Enter a local directory path: ");
+        String path = readline();
+        System.out.print ("Enter FTP server name: ");
+        String server = readline();
+        System.out.print ("Enter user name: ");
+        String username = readline();
+        System.out.print ("Enter password: ");
+        String password = readline();
+        System.out.print ("Enter the name of a file in the FTP root (at least 64K): ");
+        String fn = readline();
+
+        tufts.oki.remoteFiling.RemoteFilingManager fm = new tufts.oki.remoteFiling.RemoteFilingManager();
+        fm.createClient(server, username, password);
+        tufts.oki.remoteFiling.RemoteByteStore bs =
+            (tufts.oki.remoteFiling.RemoteByteStore) fm.getRoot().getCabinetEntryByName(fn);
+        long len = bs.length();
+        System.out.println ("Remote length: " + len);
+
+        lm = new LocalFilingManager();
+        lm.addRoot (path);
+        File dest = new File (lm.getRootPath(), fn);
+        dest.delete();
+
+        //  Stop a third of the way: the partial file and it's info are left.
+        long stopped = 0;
+        try {
+            tufts.oki.remoteFiling.RemoteFilingTest.download(bs, dest, len / 3);
+        } catch (RuntimeException ex) {
+            System.out.println ("Download " + ex.getMessage());
+        }
+        lm = new LocalFilingManager();  //  A new manager, to list the directory as it is now.
+        lm.addRoot (path);
+        printFilesInCurrent();
+        File[] partial = new File (lm.getRootPath()).listFiles();
+        for (int i = 0; i < partial.length; i++) {
+            if (partial[i].getName().startsWith(fn + ".") && partial[i].getName().endsWith(".part"))
+                stopped = partial[i].length();
+        }
+        System.out.println ("Partial file length: " + stopped);
+
+        //  Resume.
+        long offset = tufts.oki.remoteFiling.RemoteFilingTest.download(bs, dest, -1);
+        System.out.println ((offset == stopped && offset > 0 ? "\tok:     " : "\tFAILED: ") + "resumed at " + offset);
+        System.out.println ((dest.length() == len ? "\tok:     " : "\tFAILED: ") + "downloaded " + dest.length() + " of " + len);
+        lm = new LocalFilingManager();
+        lm.addRoot (path);
+        printFilesInCurrent();
+    }
+        
     /**
      * @param args the command line arguments
      */
@@ -316,6 +374,8 @@ public class LocalFilingTest {
             test4();
         if (testNo == 5)
             test5();
+        if (testNo == 6)
+            test6();
         
         System.out.println ("Done!");
     }
@@ -24,6 +24,7 @@
 package tufts.oki.remoteFiling;
 import tufts.oki.shared.*;
 import org.apache.commons.net.ftp.*;
+import org.apache.commons.net.io.CopyStreamListener;
 
 import java.io.*;
 import java.lang.*;
@@ -39,6 +40,9 @@ import java.util.*;
  *
  */
 public class RemoteByteStore extends RemoteCabinetEntry implements osid.filing.ByteStore {
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(RemoteByteStore.class);
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String PARTIAL_INFO_SUFFIX = ".part.info";
     protected static final FTPFileListParser __fileListParser = new DefaultFTPFileListParser();
     private int used = 0;                   //  Bytes written to the buffer.
     private String mime_type = null;    //  The mime type of this byte store.
@@ -306,34 +310,44 @@ public class RemoteByteStore extends RemoteCabinetEntry implements osid.filing.B
     }
     
     /**
-     *  Get the current length of thsi byte store.
+     *  Get the current length of thsi byte store.  This comes from the cached listing of
+     *  the parent directory, if it's there.
      *
      *  @author Mark Norton
      *
      *  @return The current length of this byte store.
      */
     public long length() throws osid.filing.FilingException {
-        long length = 0;
+        return getRemoteFile().getSize();
+    }
+
+    /**
+     *  Get the FTPFile describing this byte store, from the (cached) listing of the parent
+     *  directory if it's there.
+     */
+    private FTPFile getRemoteFile() throws osid.filing.FilingException {
+        FTPFile listed = ((RemoteCabinet) getParent()).getListedFile(getDisplayName());
+        if (listed != null)
+            return listed;
+
+        //  Not in the listing (created since?): ask for this file alone.
+        FTPClient client = rc.borrowClient();
+        boolean ok = false;
         try {
-            FTPClient client = rc.getClient();
-            client.setFileTransferMode(FTP.STREAM_TRANSFER_MODE);
             //  The file to open consists of the root base plus, path to current directory plus name.
-            //String fn = rc.getRootBase() + ((RemoteCabinet)getParent()).separator() + getDisplayName();
-            //String fn = rc.getRootBase() + "/" + getDisplayName();
             String fn = getFullName();
-            //System.out.println("length - file name to open: " + fn);
             FTPFile[] replies = client.listFiles(__fileListParser, fn);
-            System.out.println("File Name = "+fn+" replies ="+replies+"Client:"+client.getStatus());
-            if(replies == null) {
-                System.out.println(client.getReplyCode());
+            ok = true;
+            if (replies == null || replies.length == 0) {
+                if (Log.isDebugEnabled()) Log.debug("length: no listing for " + fn + "; " + client.getReplyCode());
                 throw new osid.filing.FilingException("RemoteByteStore.length: "+osid.filing.FilingException.IO_ERROR);
             }
-            //System.out.println(client.getReplyCode());
-            length = replies[0].getSize();
+            return replies[0];
         } catch (IOException e) {
             throw new osid.filing.FilingException("RemoteByteStore.length: "+osid.filing.FilingException.IO_ERROR);
+        } finally {
+            rc.returnClient(client, ok);
         }
-        return length;
     }
     
     /**
@@ -353,8 +367,6 @@ public class RemoteByteStore extends RemoteCabinetEntry implements osid.filing.B
      *  Get the bytes in a file associated with this byte store.
      */
     public byte[] getBytes() throws osid.filing.FilingException {
-        // Open the file for input access.
-        InputStream stream = null;
         String fn = getFullName();
         
         //  Allocate a buffer to hold the file.  Note that this must fit in memory and be
@@ -362,44 +374,98 @@ public class RemoteByteStore extends RemoteCabinetEntry implements osid.filing.B
         long trueLen = length();
         if (trueLen > (long) Integer.MAX_VALUE)
             throw new osid.filing.FilingException("File is too big to read.");
-        int len = (int) trueLen;
-        byte[] buf = new byte[len];
+        ByteArrayOutputStream buf = new ByteArrayOutputStream((int) trueLen);
 
-        //System.out.println ("getBytes - file name to retrieve: " + fn);
-        try {
-            FTPClient client = rc.getClient();
-            stream = client.retrieveFileStream(fn);
-        }
-        catch (java.io.IOException ex1) {
-            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
-        }
-                
-        //  Copy the file stream into a buffer.
-        try {
-            for (int i = 0; i < len; i++) {
-                buf[i] = (byte)stream.read();
-            }
-            stream.close();
-        }
-        catch (java.io.IOException ex) {
-            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
-        }
+        rc.retrieve(fn, buf, 0, trueLen, null);
         
-        return buf;
+        return buf.toByteArray();
     }
     
     /**
-     *  Iterate over bytes given a version.
+     *  Iterate over bytes given a version.  The bytes are streamed from the server as
+     *  they're iterated over, on a connection that's held until the last byte has been
+     *  read.  To stop part way, close() the iterator.
      *
      *  @author Mark Norton
      *
      *  @return A ByteValueIterator which lists all bytes saved in this byte store.
      */
     public osid.shared.ByteValueIterator read(java.util.Calendar version) throws osid.filing.FilingException {
-        byte[] buf = getBytes();
-        
-        osid.shared.ByteValueIterator it = (osid.shared.ByteValueIterator) new ByteValueIterator(buf);
-        return it;
+        InputStream stream = rc.openInputStream(getFullName());
+        return new ChunkedByteValueIterator(java.nio.channels.Channels.newChannel(stream));
+    }
+
+    /**
+     *  Download the contents of this byte store to the given file.  The bytes go to a
+     *  partial file next to it first, named for this remote file, which is renamed when the
+     *  download is complete.  If a partial file is left from an earlier download of this
+     *  file that failed, this one resumes where that one left off, as long as the remote
+     *  file's size and modification time are still the same as they were when that
+     *  download began.  The listener, if any, is told of the progress.
+     *
+     *  @return The length of the file downloaded.
+     */
+    public long download(File dest, CopyStreamListener listener) throws osid.filing.FilingException {
+        String fn = getFullName();
+        String source = "ftp://" + rc.getUserName() + "@" + rc.getServerName() + fn;
+
+        //  Make sure we have the current size & time, not a cached one.
+        rc.invalidate(((RemoteCabinet) getParent()).getListingPath());
+        FTPFile remote = getRemoteFile();
+        long len = remote.getSize();
+        String modified = remote.getTimestamp() == null ? "" : Long.toString(remote.getTimestamp().getTimeInMillis());
+
+        String partialName = dest.getName() + "." + Integer.toHexString(source.hashCode());
+        File partial = new File(dest.getParentFile(), partialName + PARTIAL_SUFFIX);
+        File partialInfo = new File(dest.getParentFile(), partialName + PARTIAL_INFO_SUFFIX);
+        try {
+            long offset = 0;
+            if (partial.exists()) {
+                java.util.Properties info = new java.util.Properties();
+                if (partialInfo.exists()) {
+                    InputStream in = new FileInputStream(partialInfo);
+                    try {
+                        info.load(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                if (source.equals(info.getProperty("source"))
+                    && Long.toString(len).equals(info.getProperty("size"))
+                    && modified.equals(info.getProperty("modified"))
+                    && partial.length() <= len)
+                    offset = partial.length();
+            }
+            if (offset > 0) {
+                Log.info("resuming download of " + fn + " at " + offset + " of " + len);
+            } else {
+                java.util.Properties info = new java.util.Properties();
+                info.setProperty("source", source);
+                info.setProperty("size", Long.toString(len));
+                info.setProperty("modified", modified);
+                OutputStream out = new FileOutputStream(partialInfo);
+                try {
+                    info.store(out, null);
+                } finally {
+                    out.close();
+                }
+            }
+            OutputStream out = new FileOutputStream(partial, offset > 0);
+            try {
+                rc.retrieve(fn, out, offset, len, listener);
+            } finally {
+                out.close();
+            }
+            if (dest.exists() && !dest.delete())
+                throw new IOException("can't replace " + dest);
+            if (!partial.renameTo(dest))
+                throw new IOException("can't rename " + partial + " to " + dest);
+            partialInfo.delete();
+        } catch (IOException ex) {
+            Log.warn("download " + fn + " to " + dest + ": " + ex);
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        }
+        return dest.length();
     }
     
     /**
@@ -415,26 +481,10 @@ public class RemoteByteStore extends RemoteCabinetEntry implements osid.filing.B
      *
      */
     public void write(byte[] b) throws osid.filing.FilingException {
-        OutputStream stream = null;
-
-        String fn = getFullName();
-        try {
-            FTPClient client = rc.getClient();
-            stream = client.storeFileStream(fn);
-        }
-        catch (java.io.IOException ex1) {
-            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
-        }
-                
-        //  Copy the file stream into a buffer.
         try {
-            for (int i = 0; i < b.length; i++) {
-                stream.write(b[i]);
-            }
-            stream.close();
-        }
-        catch (java.io.IOException ex) {
-            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+            rc.store(getFullName(), new ByteArrayInputStream(b));
+        } finally {
+            rc.invalidate(((RemoteCabinet) getParent()).getListingPath());
         }
     }
     
@@ -40,10 +40,13 @@ import osid.OsidException;
  *
  */
 public class RemoteCabinet extends RemoteCabinetEntry implements osid.filing.Cabinet {
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(RemoteCabinet.class);
     /* parent is inherited from Cabinet Entry.  */
     Vector children = null;
     tufts.oki.shared.Properties properties = null;
     private boolean initialized = false;
+    private FTPFile[] listed = null;        //  The listing the children were last updated from.
+    private Set listedNames = null;         //  The names of the children that came from that listing.
     //private boolean open = false;
     //private File dir = null;               //  The remote directory being modeled.
     
@@ -164,12 +167,18 @@ public class RemoteCabinet extends RemoteCabinetEntry implements osid.filing.Cab
         RemoteCabinet entry = new RemoteCabinet(displayName, agentOwner, this,rc);
         
         //  Make a directory on the remote file system.
+        FTPClient client = rc.borrowClient();
+        boolean ok = false;
         try {
-            FTPClient client = rc.getClient();
-            if (!client.makeDirectory(entry.getFullName()))
+            boolean made = client.makeDirectory(entry.getFullName());
+            ok = true;
+            if (!made)
                 throw new osid.filing.FilingException(osid.filing.FilingException.ITEM_ALREADY_EXISTS);
         } catch (java.io.IOException ex) {
             throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        } finally {
+            rc.returnClient(client, ok);
+            rc.invalidate(getListingPath());
         }
         
         /*  Add the element to the Vector array.  */
@@ -181,7 +190,8 @@ public class RemoteCabinet extends RemoteCabinetEntry implements osid.filing.Cab
     /**
      *   Creates an iterator which lists the entries in this cabinet. A check is made to
      *   see if this cabinet was previously opened.  If not, it is opened and initialized
-     *   with the entries contained in it.
+     *   with the entries contained in it.  If it was, and the cached listing it was opened
+     *   from has expired, the entries are brought up to date with the remote directory.
      *
      *   @author Mark Norton
      *
@@ -191,42 +201,85 @@ public class RemoteCabinet extends RemoteCabinetEntry implements osid.filing.Cab
         //  Check to see if this cabinet is unopened.  If not, intialize it.
         if (!initialized) {
             //  Initialize the directory by getting all entries contained in it.
-            FTPFile[] files = null;
-            try {
-                String rootBase = rc.getRootBase();
-                RemotePath path = new RemotePath(rootBase, this);
-                String pathname = path.getPathString();
-                //System.out.println("PATHNAME:"+pathname);
-                FTPClient client = rc.getClient();
-                
-                files = client.listFiles(pathname);    // Executes an FTP LIST command.
-                osid.shared.Agent agentOwner = super.getCabinetEntryAgent();
-                
-                // Iterate over the files returned and create CabinetEntries for them.
-                // Note that there is a lot of other information in the FTPFile objects which
-                // could be added to the entries being created here.  In particular, creation
-                // date.
-                for (int i = 0;files != null && i < files.length; i++) {
-                    if (files[i].isDirectory()) {
-                        //System.out.println ("\tDir " + i + ": " + files[i].getName());
-                        //RemoteCabinet cab = (RemoteCabinet) this.createCabinet (files[i].getName());
-                        add(new RemoteCabinet(files[i].getName(), agentOwner, this,rc));
-                    } else if (files[i].isFile()) {
-                        //System.out.println ("\tFile " + i + ": " + files[i].getName());
-                        //RemoteByteStore store = (RemoteByteStore) this.createByteStore (files[i].getName());
-                        add(new RemoteByteStore(files[i].getName(), this,rc));
-                    }
-                    //  Unknown cases are ignored.
-                }
-            } catch (java.io.IOException ex1) {
-                throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
-            }
+            update(rc.listFiles(getListingPath()));
             
             //  The current working directory is now intialized.
             initialized = true;
+        } else {
+            try {
+                FTPFile[] files = rc.listFiles(getListingPath());
+                if (files != listed)
+                    update(files);
+            } catch (osid.filing.FilingException ex) {
+                //  Keep the entries we have.
+                Log.warn(getFullName() + ": failed to update entries; " + ex);
+            }
         }
         return (osid.filing.CabinetEntryIterator) new RemoteCabinetEntryIterator(children);
     }
+
+    /**
+     *  Bring the children up to date with the given listing.  Existing entries are kept,
+     *  so they keep their Ids, new files get new entries, and entries from the last listing
+     *  that have since gone are removed.  Entries that were added locally are left alone.
+     */
+    private void update(FTPFile[] files) throws osid.filing.FilingException {
+        Map existing = new HashMap();
+        for (int i = 0; i < children.size(); i++) {
+            RemoteCabinetEntry entry = (RemoteCabinetEntry) children.elementAt(i);
+            existing.put(entry.getDisplayName(), entry);
+        }
+        osid.shared.Agent agentOwner = super.getCabinetEntryAgent();
+        Set names = new HashSet();
+        
+        // Iterate over the files returned and create CabinetEntries for them.
+        // Note that there is a lot of other information in the FTPFile objects which
+        // could be added to the entries being created here.  In particular, creation
+        // date.
+        for (int i = 0;files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (files[i].isDirectory()) {
+                names.add(name);
+                if (!existing.containsKey(name))
+                    add(new RemoteCabinet(name, agentOwner, this,rc));
+            } else if (files[i].isFile()) {
+                names.add(name);
+                if (!existing.containsKey(name))
+                    add(new RemoteByteStore(name, this,rc));
+            }
+            //  Unknown cases are ignored.
+        }
+        if (listedNames != null) {
+            for (Iterator i = children.iterator(); i.hasNext();) {
+                String name = ((RemoteCabinetEntry) i.next()).getDisplayName();
+                if (listedNames.contains(name) && !names.contains(name))
+                    i.remove();
+            }
+        }
+        listed = files;
+        listedNames = names;
+    }
+
+    /**
+     *  Get the path of this directory as it's listed, including the root base.
+     */
+    String getListingPath() throws osid.filing.FilingException {
+        return new RemotePath(rc.getRootBase(), this).getPathString();
+    }
+
+    /**
+     *  Get the file with the given name from the (cached) listing of this directory.
+     *
+     *  @return The FTPFile for the given name, or null if there isn't one.
+     */
+    FTPFile getListedFile(String name) throws osid.filing.FilingException {
+        FTPFile[] files = rc.listFiles(getListingPath());
+        for (int i = 0; i < files.length; i++) {
+            if (name.equals(files[i].getName()))
+                return files[i];
+        }
+        return null;
+    }
     
     /**
      *  Get a cabinet entry given its name.
@@ -435,14 +488,20 @@ public class RemoteCabinet extends RemoteCabinetEntry implements osid.filing.Cab
      */
     public void rename(String newName) throws osid.filing.FilingException {
         //  Check the name of the directory on the remote file system.
+        FTPClient client = rc.borrowClient();
+        boolean ok = false;
         try {
-            FTPClient client = rc.getClient();
             if (getParent() == null)
                 client.rename(getFullName(), rc.getRootBase() + "/" + newName);
             else
                 client.rename(getFullName(), ((RemoteCabinet)getParent()).getFullName() + "/" + newName);
+            ok = true;
         } catch (java.io.IOException ex) {
             throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        } finally {
+            rc.returnClient(client, ok);
+            //  The paths of everything below have changed too.
+            rc.invalidateAll();
         }
         
         //  Change the name of the Cabinet.
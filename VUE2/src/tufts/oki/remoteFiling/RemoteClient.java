@@ -21,78 +21,290 @@
 
 package tufts.oki.remoteFiling;
 import org.apache.commons.net.ftp.*;
+import org.apache.commons.net.io.CopyStreamListener;
 import java.io.*;
 import java.util.*;
 
 /**
- *  The RemoteClient class encapsulates an FTP-client session.  A host name, username,
- *  and password is required to establish the connection.  checkClient() can be used
- *  to check to see if the connection is still present, and if not, re-establish it.
+ *  The RemoteClient class encapsulates the FTP sessions to one server.  A host name, username,
+ *  and password is required to establish the connections.  These are cached in order to
+ *  re-establish connections that have been dropped.
  *  <p>
- *  Since RemoteClient uses  variables and methods, only one FTP session can be
- *  active at a particular time.  Usually, this is not a limitation.
+ *  Connections are kept in a bounded pool: borrowClient() hands out an idle connection
+ *  (or opens a new one, up to remote.ftp.max_connections, waiting for one to be returned
+ *  beyond that), and returnClient() puts it back for re-use.  Idle connections are kept
+ *  alive with a NOOP, and closed once they've been idle for remote.ftp.idle_seconds.
+ *  Transfers on different connections run at the same time, so a download doesn't hold
+ *  up browsing.
+ *  <p>
+ *  Directory listings are cached for remote.ftp.listing_ttl_seconds, so expanding a
+ *  directory, or getting the length of the files in it, doesn't cost a LIST each time.
+ *  Any change made through this client invalidates the listing of the affected directory.
  *
  *  @author  Mark Norton
  */
 public class RemoteClient {
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(RemoteClient.class);
+
+    private static final int MaxConnections = tufts.vue.VueResources.getInt("remote.ftp.max_connections", 4);
+    private static final long KeepAlive = tufts.vue.VueResources.getInt("remote.ftp.keepalive_seconds", 60) * 1000L;
+    private static final long IdleTimeout = tufts.vue.VueResources.getInt("remote.ftp.idle_seconds", 300) * 1000L;
+    private static final long BorrowTimeout = tufts.vue.VueResources.getInt("remote.ftp.borrow_timeout_seconds", 60) * 1000L;
+    private static final long ListingTTL = tufts.vue.VueResources.getInt("remote.ftp.listing_ttl_seconds", 60) * 1000L;
+    private static final int ListingCacheSize = tufts.vue.VueResources.getInt("remote.ftp.listing_cache_size", 500);
+    private static final int TransferRetries = tufts.vue.VueResources.getInt("remote.ftp.transfer_retries", 3);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** keeps the idle connections of all clients alive */
+    private static final Timer KeepAliveTimer = new Timer("VUE-FTP-KeepAlive", true);
+
     private  String server = null;        //  Cached remote server name.
     private  String username = null;      //  Cached user name for remote server.
     private  String password = null;      //  Cached password for remote server.
     private  String rootBase = null;      //  Cached root base.
-    private  FTPClient client = null;     //  Current FTP client and session.
+    private  FTPClient client = null;     //  The FTP client handed out by getClient().
+
+    /** idle pooled connections, most recently used first */
+    private final LinkedList idle = new LinkedList();
+    /** number of pooled connections open, idle or borrowed */
+    private int open = 0;
+    private boolean closed = false;
+    private final TimerTask keepAliveTask;
+
+    /** cached directory listings by path, least recently used first */
+    private final Map listings = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > ListingCacheSize;
+            }
+        };
+
+    private static final class IdleConnection {
+        final FTPClient client;
+        final long lastUsed;
+        long lastChecked;
+        IdleConnection(FTPClient client) {
+            this.client = client;
+            this.lastUsed = this.lastChecked = System.currentTimeMillis();
+        }
+    }
+
+    private static final class Listing {
+        final FTPFile[] files;
+        final long fetched = System.currentTimeMillis();
+        Listing(FTPFile[] files) {
+            this.files = files;
+        }
+        boolean isFresh() {
+            return System.currentTimeMillis() - fetched < ListingTTL;
+        }
+    }
     
     /**
-     *  Creates a new instance of RemoteClient.  Client is opened based on host, username,
-     *  and password provided.  These are cached in order to re-establishe the connection
-     *  should it be dropped.
+     *  Creates a new instance of RemoteClient.  The first connection is opened based on host,
+     *  username, and password provided, to check them and find the root base.
      */
     public RemoteClient(String host, String username, String password) throws osid.filing.FilingException {
+        server = host;             //  Cache the server name.
+        this.username = username;       //  Cache the user name.
+        this.password = password;       //  Cache the password.
+        FTPClient first = null;
         try {
-            FTPClientFactory factory = new FTPClientFactory(host,username,password);
-            this.client = factory.createClient();
-            this.rootBase = client.printWorkingDirectory();
+            first = connect();
+            this.rootBase = first.printWorkingDirectory();
+            open = 1;
+            idle.addFirst(new IdleConnection(first));
         }
         catch (java.io.IOException ex1) {
+            close(first);
             throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
         }
         catch (osid.filing.FilingException ex2) {
             throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
         }
-        server = host;             //  Cache the server name.
-        this.username = username;       //  Cache the user name.
-        this.password = password;       //  Cache the password.
+        keepAliveTask = new TimerTask() {
+                public void run() {
+                    keepAlive();
+                }
+            };
+        KeepAliveTimer.schedule(keepAliveTask, KeepAlive, KeepAlive);
+    }
+
+    /**
+     *  Open a new connection, in passive, binary mode.  Binary mode is needed for
+     *  transfers to be byte for byte, and so they can be resumed from an offset.
+     */
+    private FTPClient connect() throws osid.filing.FilingException {
+        FTPClient c = new FTPClientFactory(server, username, password).createClient();
+        try {
+            c.setFileType(FTP.BINARY_FILE_TYPE);
+        } catch (IOException e) {
+            close(c);
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        }
+        if (Log.isDebugEnabled()) Log.debug(this + "; connected");
+        return c;
+    }
+
+    private static void close(FTPClient c) {
+        try {
+            if (c.isConnected()) {
+                c.logout();
+                c.disconnect();
+            }
+        } catch (IOException e) {
+            try { c.disconnect(); } catch (IOException e2) {}
+        }
     }
     
     /**
-     *  Close the client connection.
+     *  Close all the client connections.
      */
     public  void disconnect() throws osid.filing.FilingException {
-        if (client != null) {
-            try {
-                client.disconnect();
-                client = null;
-            }
-            catch (java.io.IOException ex2) {
-                throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        final List toClose = new ArrayList();
+        synchronized (this) {
+            closed = true;
+            for (Iterator i = idle.iterator(); i.hasNext();) {
+                toClose.add(((IdleConnection) i.next()).client);
+                open--;
             }
+            idle.clear();
+            if (client != null)
+                toClose.add(client);
+            client = null;
+            notifyAll();
         }
+        keepAliveTask.cancel();
+        synchronized (listings) {
+            listings.clear();
+        }
+        for (Iterator i = toClose.iterator(); i.hasNext();)
+            close((FTPClient) i.next());
     }
     
     /**
-     *  Checks if the filing manager has an ftp client.
+     *  Checks if this remote client is still connected.
      */
-    public  boolean hasClient() {
-        return (client != null);
+    public synchronized boolean hasClient() {
+        return !closed;
+    }
+
+    /**
+     *  Borrow a connection from the pool.  It must be given back with returnClient() when
+     *  done, usually in a finally block.  If all connections are in use, this waits for
+     *  one to be returned.
+     */
+    public FTPClient borrowClient() throws osid.filing.FilingException {
+        final long deadline = System.currentTimeMillis() + BorrowTimeout;
+        while (true) {
+            IdleConnection candidate = null;
+            synchronized (this) {
+                while (candidate == null) {
+                    if (closed)
+                        throw new osid.filing.FilingException(osid.filing.FilingException.ITEM_DOES_NOT_EXIST);
+                    if (!idle.isEmpty()) {
+                        candidate = (IdleConnection) idle.removeFirst();
+                    } else if (open < MaxConnections) {
+                        open++;
+                        break;
+                    } else {
+                        final long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0)
+                            throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
+                        }
+                    }
+                }
+            }
+            if (candidate == null) {
+                // we've reserved a new connection
+                try {
+                    return connect();
+                } catch (osid.filing.FilingException e) {
+                    released();
+                    throw e;
+                }
+            }
+            if (isAlive(candidate))
+                return candidate.client;
+            // it's been dropped by the server: try the next one
+            close(candidate.client);
+            released();
+        }
+    }
+
+    /**
+     *  Give back a connection from borrowClient().  If reusable is false (an I/O error
+     *  occured, or a transfer was abandoned part way), the connection is closed instead
+     *  of being put back in the pool.
+     */
+    public void returnClient(FTPClient c, boolean reusable) {
+        if (c == null)
+            return;
+        synchronized (this) {
+            if (reusable && !closed && c.isConnected()) {
+                idle.addFirst(new IdleConnection(c));
+                notifyAll();
+                return;
+            }
+        }
+        close(c);
+        released();
+    }
+
+    private synchronized void released() {
+        open--;
+        notifyAll();
+    }
+
+    /** check that the given idle connection is still there, if it's not been used for a while */
+    private static boolean isAlive(IdleConnection c) {
+        if (!c.client.isConnected())
+            return false;
+        if (System.currentTimeMillis() - c.lastChecked < KeepAlive)
+            return true;
+        try {
+            if (c.client.sendNoOp()) {
+                c.lastChecked = System.currentTimeMillis();
+                return true;
+            }
+        } catch (IOException e) {}
+        return false;
+    }
+
+    /** close connections idle for too long, and NOOP the rest so the server doesn't drop them */
+    private void keepAlive() {
+        final List toCheck = new ArrayList();
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            // take them out of the pool while we check them, so no one else uses them
+            toCheck.addAll(idle);
+            idle.clear();
+        }
+        for (Iterator i = toCheck.iterator(); i.hasNext();) {
+            final IdleConnection c = (IdleConnection) i.next();
+            boolean keep = now - c.lastUsed < IdleTimeout && isAlive(c);
+            synchronized (this) {
+                if (keep && !closed) {
+                    idle.addLast(c); // keep the most recently used first
+                    notifyAll();
+                    continue;
+                }
+            }
+            if (Log.isDebugEnabled()) Log.debug(this + "; closing idle connection");
+            close(c.client);
+            released();
+        }
     }
-    
     
     /**
-     *  Gets an FTP client.
-     *  Why would classes outside of the FTPFilingManager need access to this?  All FTP
-     *  Functions should be encapsulated in the FTPFilingManager.  This is a candidate for
-     *  removal, but is left in place for testing purposes.
+     *  Gets an FTP client, outside of the pool, for callers that drive an FTP session of
+     *  their own.  The same client is returned each time, as long as it's still connected.
+     *  All FTP functions in this package use borrowClient() / returnClient() instead.
      */
-    public  FTPClient getClient() throws osid.filing.FilingException {
+    public synchronized FTPClient getClient() throws osid.filing.FilingException {
         checkClient();  //  Check to make sure connection is still active.
         return client;
     }
@@ -115,24 +327,194 @@ public class RemoteClient {
      *
      */
     private  void checkClient() throws osid.filing.FilingException {
-        if (client == null)
+        if (closed)
             throw new osid.filing.FilingException(osid.filing.FilingException.ITEM_DOES_NOT_EXIST);
         
         //  Check the status to see if connection is still active.
-      //  try {
-            FTPClientFactory factory = new FTPClientFactory(server,username,password);
-            client = factory.createClient();
-           // client.getStatus();
-       // }catch (java.io.IOException ex1) {
-            //  If there is no status, then re-establish the connection based on cached names.
+        if (client != null) {
             try {
-                FTPClientFactory fac = new FTPClientFactory(server,username,password);
-                client = fac.createClient();
-            }
-            catch (osid.filing.FilingException ex2) {
-                throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
+                if (client.isConnected() && client.sendNoOp())
+                    return;
+            } catch (java.io.IOException ex1) {}
+            close(client);
+        }
+        //  If there is no status, then re-establish the connection based on cached names.
+        try {
+            client = connect();
+        }
+        catch (osid.filing.FilingException ex2) {
+            client = null;
+            throw new osid.filing.FilingException(osid.filing.FilingException.OPERATION_FAILED);
+        }
+    }
+
+    /**
+     *  List the given directory.  The listing is fetched with an FTP LIST command the
+     *  first time, and then cached until it's older than remote.ftp.listing_ttl_seconds.
+     *
+     *  @return The files in the directory, which may be empty, but never null.
+     */
+    public FTPFile[] listFiles(String path) throws osid.filing.FilingException {
+        synchronized (listings) {
+            final Listing cached = (Listing) listings.get(path);
+            if (cached != null && cached.isFresh())
+                return cached.files;
+        }
+        FTPFile[] files = null;
+        final FTPClient c = borrowClient();
+        boolean ok = false;
+        try {
+            files = c.listFiles(path);    // Executes an FTP LIST command.
+            ok = true;
+        } catch (IOException e) {
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        } finally {
+            returnClient(c, ok);
+        }
+        if (files == null)
+            files = new FTPFile[0];
+        synchronized (listings) {
+            listings.put(path, new Listing(files));
+        }
+        if (Log.isDebugEnabled()) Log.debug(this + "; listed " + path + ": " + files.length + " entries");
+        return files;
+    }
+
+    /**
+     *  Discard any cached listing of the given directory, so the next listFiles() goes to
+     *  the server.  Call after anything is changed in that directory.
+     */
+    public void invalidate(String path) {
+        synchronized (listings) {
+            listings.remove(path);
+        }
+    }
+
+    /**
+     *  Discard all cached listings.
+     */
+    public void invalidateAll() {
+        synchronized (listings) {
+            listings.clear();
+        }
+    }
+
+    /**
+     *  Copy the given remote file to out, starting at the given offset.  If the connection
+     *  fails part way through, the transfer is resumed where it left off on a new
+     *  connection, up to remote.ftp.transfer_retries times.  The listener, if any, is
+     *  told of the progress after each chunk, counting from the offset: the total is
+     *  offset plus the bytes written so far.
+     *
+     *  @param length The total length of the remote file, or -1 if unknown, for progress.
+     *  @return The number of bytes written to out.
+     */
+    public long retrieve(String path, OutputStream out, long offset, long length, CopyStreamListener listener)
+        throws osid.filing.FilingException
+    {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        long written = 0;
+        for (int attempt = 0; ; attempt++) {
+            final FTPClient c = borrowClient();
+            boolean ok = false;
+            boolean outputFailed = false;
+            try {
+                // FTPClient only sends the REST for a restart offset in active mode, so send it ourselves.
+                // That puts a PASV between the REST and the RETR, so if the RETR then fails, the
+                // server may still hold the restart marker: the connection must not be re-used.
+                final long start = offset + written;
+                if (start > 0 && !FTPReply.isPositiveIntermediate(c.rest(Long.toString(start)))) {
+                    ok = true;
+                    throw new osid.filing.FilingException(osid.filing.FilingException.UNSUPPORTED_OPERATION);
+                }
+                final InputStream in = c.retrieveFileStream(path);
+                if (in == null) {
+                    // the server refused: the file is gone, or can't be restarted at the offset
+                    ok = start == 0;
+                    throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+                }
+                try {
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        outputFailed = true;
+                        out.write(buf, 0, n);
+                        outputFailed = false;
+                        written += n;
+                        if (listener != null)
+                            listener.bytesTransferred(offset + written, n, length);
+                    }
+                } finally {
+                    in.close();
+                }
+                ok = c.completePendingCommand();
+                if (!ok)
+                    throw new IOException("transfer failed: " + c.getReplyString());
+                if (attempt > 0 && Log.isDebugEnabled()) Log.debug(this + "; retrieved " + path + " after " + attempt + " retries");
+                return written;
+            } catch (IOException e) {
+                if (outputFailed || attempt >= TransferRetries) {
+                    Log.warn(this + "; retrieve " + path + " failed at " + (offset + written), e);
+                    throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+                }
+                Log.info(this + "; retrieve " + path + " interrupted at " + (offset + written) + ", resuming: " + e);
+            } finally {
+                returnClient(c, ok);
             }
-        //}
+        }
+    }
+
+    /**
+     *  Open a stream over the contents of the given remote file.  The stream holds a
+     *  pooled connection until it's closed, which must always be done.  The bytes are
+     *  transferred as the stream is read, so the caller can start work on the first
+     *  of them while the rest are still coming.
+     */
+    public InputStream openInputStream(String path) throws osid.filing.FilingException {
+        final FTPClient c = borrowClient();
+        final InputStream in;
+        try {
+            in = c.retrieveFileStream(path);
+        } catch (IOException e) {
+            returnClient(c, false);
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        }
+        if (in == null) {
+            returnClient(c, true);
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        }
+        return new FilterInputStream(new BufferedInputStream(in, BUFFER_SIZE)) {
+                private boolean done;
+                public void close() throws IOException {
+                    if (done)
+                        return;
+                    done = true;
+                    boolean ok = false;
+                    try {
+                        super.close();
+                        ok = c.completePendingCommand();
+                    } finally {
+                        returnClient(c, ok);
+                    }
+                }
+            };
+    }
+
+    /**
+     *  Store the contents of the given stream as the given remote file.  The caller should
+     *  invalidate the listing of it's directory.
+     */
+    public void store(String path, InputStream in) throws osid.filing.FilingException {
+        final FTPClient c = borrowClient();
+        boolean ok = false;
+        try {
+            ok = c.storeFile(path, in);
+            if (!ok)
+                throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        } catch (IOException e) {
+            throw new osid.filing.FilingException(osid.filing.FilingException.IO_ERROR);
+        } finally {
+            returnClient(c, ok);
+        }
     }
     
     public  String getServerName() {
@@ -146,5 +528,9 @@ public class RemoteClient {
     public  String getPassword() {
         return password;
     }
+
+    public String toString() {
+        return "RemoteClient[" + username + "@" + server + "; " + open + " open, " + idle.size() + " idle]";
+    }
     
 }
@@ -68,7 +68,6 @@ public class RemoteFilingManager extends tufts.oki.OsidManager implements osid.f
     public void createClient(String host, String username, String password) throws osid.filing.FilingException {
         try {
             RemoteClient rc = new RemoteClient (host, username, password);
-            FTPClient client = rc.getClient();
             tufts.oki.shared.Agent agent = new tufts.oki.shared.Agent(username, new tufts.oki.shared.AgentPersonType());
             this.root = new RemoteCabinet("/", agent, null,rc);
             this.cwd = this.root;           //  Set the root as current working directory.
@@ -22,13 +22,27 @@
 package tufts.oki.remoteFiling;
 import java.io.*;
 import org.apache.commons.net.ftp.*;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
 
 /**
+ *  Tests of the remote filing classes against an FTP server.  The account must be
+ *  writable for tests 2 and 3, which create, and then remove, a directory and a file
+ *  in it's root.
+ *  <p>
+ *  The following tests are implemented:<br>
+ *  0.  Walk the remote directories, and download a file.<br>
+ *  1.  Connection pool: borrowing beyond remote.ftp.max_connections waits for a return.<br>
+ *  2.  Listing cache: listings are re-used until something is changed in the directory.<br>
+ *  3.  Resumed download: a download that's interrupted resumes at the partial file's length.
  *
  * @author  Mark Norton
  */
 public class RemoteFilingTest {
     private static RemoteFilingManager fm = null; //  The FTP filing manager.
+    private static String server = "ftp.org";     //  Name of the FTP server.
+    private static String username = "ftpUser";   //  User name.
+    private static String password = "password";  //  Password.
     
     /** Creates a new instance of FTPFilingTest3 */
     public RemoteFilingTest() {
@@ -61,31 +75,16 @@ public class RemoteFilingTest {
         }
     }
 
+    private static void check(boolean ok, String what) {
+        System.out.println ((ok ? "\tok:     " : "\tFAILED: ") + what);
+    }
+
     /**
-     * @param args the command line arguments
+     *  Walk the remote directories, and download a file.
      */
-    public static void main(String[] args) throws java.io.IOException, osid.filing.FilingException {
-        String server = null;       //  Name of the FTP server.
-        String username = null;     //  User name.
-        String password = null;     //  Password.
-        
-        System.out.println ("Remote Filing System Test using FTP");
-        System.out.println ("-----------------------------------");
-        System.out.println ("");
-        
-        //  Get the server name, user name, and password.
-        /*
-        System.out.print ("Enter FTP server name: ");
-        server = readline();
-        System.out.print ("Enter user name: ");
-        username = readline();
-        System.out.print ("Enter password: ");
-        password = readline();
-         */
-        server = "ftp.org";
-        username = "ftpUser";
-        password = "password";
-        
+    public static void test0 () throws java.io.IOException, osid.filing.FilingException {
+        System.out.println ("Test 0:  Walk and download.\n");
+
         //  Create a filing manager and make an FTP client.
 
         fm = new RemoteFilingManager();
@@ -124,6 +123,247 @@ public class RemoteFilingTest {
         System.out.println ("Contents of file - size is: " + buf.length);
         for (int i=0; i<buf.length; i++)
             System.out.print ((char)buf[i]);
+        System.out.println ("");
+    }
+
+    /**
+     *  Borrow every connection the pool allows, and check that one more borrow waits until
+     *  a connection is returned, and then gets that one.  A connection returned as not
+     *  reusable is closed, making room for a new one.
+     */
+    public static void test1 () throws Exception {
+        System.out.println ("Test 1:  Connection pool.\n");
+
+        final RemoteClient rc = new RemoteClient (server, username, password);
+        final int max = tufts.vue.VueResources.getInt("remote.ftp.max_connections", 4);
+        try {
+            FTPClient[] borrowed = new FTPClient[max];
+            for (int i = 0; i < max; i++)
+                borrowed[i] = rc.borrowClient();
+            System.out.println ("Borrowed " + max + ": " + rc);
+            check(new java.util.HashSet(java.util.Arrays.asList(borrowed)).size() == max, "each borrow gets a different connection");
+
+            //  One more must wait for a return.
+            final FTPClient[] extra = new FTPClient[1];
+            final long[] waited = new long[1];
+            Thread t = new Thread("borrower") {
+                    public void run() {
+                        long start = System.currentTimeMillis();
+                        try {
+                            extra[0] = rc.borrowClient();
+                        } catch (osid.filing.FilingException ex) {
+                            System.out.println ("\tborrow failed: " + ex);
+                        }
+                        waited[0] = System.currentTimeMillis() - start;
+                    }
+                };
+            t.start();
+            Thread.sleep(2000);
+            check(t.isAlive(), "borrow number " + (max + 1) + " waits while all are in use");
+            rc.returnClient(borrowed[0], true);
+            t.join(5000);
+            System.out.println ("\tWaited " + waited[0] + "ms");
+            check(extra[0] == borrowed[0], "the waiting borrow gets the connection that was returned");
+
+            //  A connection that isn't reusable is closed, and a new one can be opened in it's place.
+            rc.returnClient(extra[0], false);
+            check(!extra[0].isConnected(), "a connection returned as not reusable is closed");
+            FTPClient fresh = rc.borrowClient();
+            check(fresh != extra[0] && fresh.isConnected(), "a new connection is opened in it's place");
+            borrowed[0] = fresh;
+
+            for (int i = 0; i < max; i++)
+                rc.returnClient(borrowed[i], true);
+            System.out.println ("Returned " + max + ": " + rc);
+        } finally {
+            rc.disconnect();
+        }
+        check(!rc.hasClient(), "disconnected");
+    }
+
+    /**
+     *  List a directory twice, and check that the second listing comes from the cache.  Then
+     *  check that making a directory, or writing a file, in it invalidates the cached listing,
+     *  so the new entries show up.
+     */
+    public static void test2 () throws Exception {
+        System.out.println ("Test 2:  Listing cache.\n");
+
+        RemoteClient rc = new RemoteClient (server, username, password);
+        try {
+            tufts.oki.shared.Agent agent = new tufts.oki.shared.Agent (username, new tufts.oki.shared.AgentPersonType());
+            RemoteCabinet root = new RemoteCabinet ("/", agent, null, rc);
+            String path = root.getListingPath();
+            System.out.println ("Listing path: " + path);
+
+            FTPFile[] first = rc.listFiles(path);
+            check(rc.listFiles(path) == first, "a second listing is the cached one");
+            rc.invalidate(path);
+            FTPFile[] second = rc.listFiles(path);
+            check(second != first, "invalidate() causes a new LIST");
+            check(second.length == first.length, "with the same entries (" + first.length + ")");
+
+            root.entries();
+            RemoteCabinet dir = (RemoteCabinet) root.createCabinet("vue-listing-test");
+            check(rc.listFiles(path) != second, "createCabinet() invalidates the parent's listing");
+            check(containsEntry(root, "vue-listing-test"), "the new directory is an entry");
+
+            FTPFile[] inDir = rc.listFiles(dir.getListingPath());
+            RemoteByteStore bs = (RemoteByteStore) dir.createByteStore("new.txt");
+            bs.write("listing test".getBytes());
+            check(rc.listFiles(dir.getListingPath()) != inDir, "write() invalidates the directory's listing");
+            check(containsEntry(dir, "new.txt"), "the new file is an entry");
+            check(bs.length() == 12, "it's length is from the new listing: " + bs.length());
+
+            delete(rc, bs.getFullName(), true);
+            delete(rc, dir.getFullName(), false);
+            rc.invalidate(path);
+            check(!containsEntry(root, "vue-listing-test"), "the removed directory is gone from the entries");
+        } finally {
+            rc.disconnect();
+        }
+    }
+
+    /**
+     *  Upload a file, and download it with a listener that stops the transfer part way.
+     *  Then download it again, and check that the second download starts at the length of
+     *  the partial file, and that the result is the same as what was uploaded.
+     */
+    public static void test3 () throws Exception {
+        System.out.println ("Test 3:  Resumed download.\n");
+
+        RemoteClient rc = new RemoteClient (server, username, password);
+        File dest = new File (System.getProperty("java.io.tmpdir"), "vue-resume-test.bin");
+        try {
+            tufts.oki.shared.Agent agent = new tufts.oki.shared.Agent (username, new tufts.oki.shared.AgentPersonType());
+            RemoteCabinet root = new RemoteCabinet ("/", agent, null, rc);
+            root.entries();
+
+            byte[] contents = new byte[1024 * 1024];
+            new java.util.Random(25).nextBytes(contents);
+            RemoteByteStore bs = (RemoteByteStore) root.createByteStore(dest.getName());
+            bs.write(contents);
+
+            dest.delete();
+            long offset = resumeDownload(bs, dest, contents.length / 3);
+            check(offset >= contents.length / 3 && offset < contents.length, "resumed at " + offset + " of " + contents.length);
+            check(dest.length() == contents.length, "downloaded " + dest.length() + " bytes");
+            check(java.util.Arrays.equals(contents, readFile(dest)), "the contents are the same as uploaded");
+
+            //  Once it's complete, there's nothing to resume from.
+            check(download(bs, dest, -1) == 0, "a complete download isn't resumed");
+
+            delete(rc, bs.getFullName(), true);
+        } finally {
+            dest.delete();
+            rc.disconnect();
+        }
+    }
+
+    /** the interruption of a download by the test listener */
+    private static final class Stopped extends RuntimeException {
+        Stopped(long at) {
+            super("stopped at " + at);
+        }
+    }
+
+    /**
+     *  Download the given byte store to dest, stopping once at least stopAt bytes have been
+     *  transferred, then download it again to resume.
+     *
+     *  @return The offset the second download started at, which is the length the partial
+     *  file was left at by the first.
+     */
+    public static long resumeDownload (RemoteByteStore bs, File dest, long stopAt) throws osid.filing.FilingException {
+        try {
+            download(bs, dest, stopAt);
+            System.out.println ("\tdownload wasn't stopped: the file is smaller than " + stopAt);
+            return 0;
+        } catch (Stopped ex) {
+            System.out.println ("\t" + ex.getMessage());
+        }
+        return download(bs, dest, -1);
+    }
+
+    /**
+     *  Download the given byte store to dest, stopping once at least stopAt bytes have been
+     *  transferred if stopAt isn't -1.
+     *
+     *  @return The offset the download started at.
+     */
+    public static long download (RemoteByteStore bs, File dest, final long stopAt) throws osid.filing.FilingException {
+        final long[] offset = { -1 };
+        bs.download(dest, new CopyStreamListener() {
+                public void bytesTransferred(CopyStreamEvent event) {
+                    bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+                }
+                public void bytesTransferred(long total, int bytes, long size) {
+                    if (offset[0] < 0)
+                        offset[0] = total - bytes;
+                    if (stopAt >= 0 && total >= stopAt)
+                        throw new Stopped(total);
+                }
+            });
+        return offset[0] < 0 ? 0 : offset[0];
+    }
+
+    private static boolean containsEntry(RemoteCabinet cab, String name) throws osid.filing.FilingException {
+        osid.filing.CabinetEntryIterator it = cab.entries();
+        while (it.hasNext()) {
+            if (name.equals(((RemoteCabinetEntry) it.next()).getDisplayName()))
+                return true;
+        }
+        return false;
+    }
+
+    private static void delete(RemoteClient rc, String path, boolean file) throws osid.filing.FilingException, IOException {
+        FTPClient c = rc.borrowClient();
+        try {
+            if (!(file ? c.deleteFile(path) : c.removeDirectory(path)))
+                System.out.println ("\tcouldn't remove " + path + ": " + c.getReplyString());
+        } finally {
+            rc.returnClient(c, true);
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param args the command line arguments: the test number, and optionally the server,
+     * user name and password.
+     */
+    public static void main(String[] args) throws Exception {
+        int testNo = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        if (args.length > 3) {
+            server = args[1];
+            username = args[2];
+            password = args[3];
+        }
+        
+        System.out.println ("Remote Filing System Test using FTP");
+        System.out.println ("-----------------------------------");
+        System.out.println ("");
+
+        if (testNo == 0)
+            test0();
+        if (testNo == 1)
+            test1();
+        if (testNo == 2)
+            test2();
+        if (testNo == 3)
+            test3();
         
         System.out.println ("Done!");
     }
@@ -22,6 +22,9 @@
 package tufts.oki.remoteFiling;
 
 /**
+ *  Tests RemotePath, which doesn't need a server.  The path of a cabinet is also the key
+ *  it's listing is cached under by RemoteClient, so it must be the same each time it's
+ *  made, and different for each directory.
  *
  * @author  Mark Norton
  */
@@ -64,6 +67,37 @@ public class RemotePathTest {
         
         //  Print the path name string.
         System.out.println ("Resultant path: " + path.getPathString());
+        check("/trueroot/dir1/dir2/readme.txt".equals(path.getPathString()), "path to the byte store");
+
+        //  Listing keys.
+        System.out.println ("\nListing keys");
+        String rootKey = new RemotePath ("/trueroot", root).getPathString();
+        String key1 = new RemotePath ("/trueroot", cab1).getPathString();
+        String key2 = new RemotePath ("/trueroot", cab2).getPathString();
+        System.out.println ("\t" + rootKey + "\n\t" + key1 + "\n\t" + key2);
+        check("/trueroot/".equals(rootKey), "the root is listed at the root base");
+        check("/trueroot/dir1/dir2/".equals(key2), "a sub-directory is listed under it's parents");
+        check(key2.equals(new RemotePath ("/trueroot", cab2).getPathString()), "the key is the same each time");
+
+        //  A directory of the same name somewhere else must have a different key, or it
+        //  would be given the other's cached listing.
+        RemoteCabinet other = new RemoteCabinet ("dir2", agent, root, null);
+        root.add (other);
+        String otherKey = new RemotePath ("/trueroot", other).getPathString();
+        check(!otherKey.equals(key2), "a directory of the same name elsewhere has it's own key: " + otherKey);
+
+        //  The parent of a byte store gives the listing it's length is taken from.
+        String parentKey = new RemotePath ("/trueroot", (RemoteCabinet) store.getParent()).getPathString();
+        check(path.getPathString().equals(parentKey + store.getDisplayName()), "a byte store is in it's parent's listing");
+
+        //  Renaming a directory changes the keys of everything below it, which is why
+        //  RemoteCabinet.rename() invalidates all listings.
+        cab1.updateDisplayName ("renamed");
+        check(!key2.equals(new RemotePath ("/trueroot", cab2).getPathString()), "renaming a parent changes the key");
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println ((ok ? "\tok:     " : "\tFAILED: ") + what);
     }
     
 }
@@ -0,0 +1,126 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.oki.shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ *  A ByteValueIterator that streams it's bytes from a channel a chunk at a time, or
+ *  iterates over an existing ByteBuffer (e.g., a memory-mapped file), instead of
+ *  requiring all the bytes to be read into an array first.  The channel is closed when
+ *  the last byte has been read, or on any error.
+ *
+ *  Besides the byte at a time next() required by osid.shared.ByteValueIterator,
+ *  next(byte[],int,int) reads as many bytes as are available in bulk.
+ */
+public class ChunkedByteValueIterator implements osid.shared.ByteValueIterator {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean eof;
+
+    /**
+     *  @return A ByteValueIterator over the contents of the given channel, read chunkSize bytes at a time.
+     */
+    public ChunkedByteValueIterator(ReadableByteChannel channel, int chunkSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(chunkSize);
+        this.buffer.flip(); // start empty
+    }
+
+    public ChunkedByteValueIterator(ReadableByteChannel channel) {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     *  @return A ByteValueIterator over the remaining bytes in the given buffer.
+     */
+    public ChunkedByteValueIterator(ByteBuffer contents) {
+        this.channel = null;
+        this.buffer = contents;
+        this.eof = true;
+    }
+
+    /**
+     *  @return True if there is another byte to be returned.
+     */
+    public boolean hasNext() throws osid.shared.SharedException {
+        if (buffer.hasRemaining())
+            return true;
+        if (eof)
+            return false;
+        fill();
+        return buffer.hasRemaining();
+    }
+
+    /**
+     *  @return The next byte.
+     */
+    public byte next() throws osid.shared.SharedException {
+        if (!hasNext())
+            throw new osid.shared.SharedException(osid.shared.SharedException.NO_MORE_ITERATOR_ELEMENTS);
+        return buffer.get();
+    }
+
+    /**
+     *  Read up to len of the next bytes into b at off.
+     *
+     *  @return The number of bytes read, or -1 if there are no more.
+     */
+    public int next(byte[] b, int off, int len) throws osid.shared.SharedException {
+        if (!hasNext())
+            return -1;
+        final int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    /**
+     *  Stop iterating, closing any channel.
+     */
+    public void close() {
+        eof = true;
+        buffer.position(buffer.limit());
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void fill() throws osid.shared.SharedException {
+        buffer.clear();
+        try {
+            int count;
+            do {
+                count = channel.read(buffer);
+            } while (count == 0 && buffer.hasRemaining());
+            buffer.flip();
+            if (count < 0) {
+                eof = true;
+                channel.close();
+            }
+        } catch (IOException e) {
+            buffer.limit(0);
+            close();
+            throw new osid.shared.SharedException(osid.shared.SharedException.OPERATION_FAILED);
+        }
+    }
+}
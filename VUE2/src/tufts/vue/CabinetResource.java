@@ -344,9 +344,7 @@ public class CabinetResource extends URLResource
         RemoteByteStore rbs = (RemoteByteStore)this.entry;
         String fileName = rbs.getFullName();
         File tempFile = new File( VUE.getSystemProperty("java.io.tmpdir"),rbs.getDisplayName());
-        FileOutputStream fos = new FileOutputStream(tempFile);
-        fos.write(rbs.getBytes());
-        fos.close();
+        rbs.download(tempFile, null);
         VueUtil.openURL(tempFile.getAbsolutePath());
         
     }
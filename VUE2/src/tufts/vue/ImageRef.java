@@ -64,6 +64,19 @@ public class ImageRef
 
     private volatile ImageRep _full = ImageRep.UNAVAILABLE;
     private volatile ImageRep _icon = ImageRep.UNAVAILABLE;
+
+    /**
+     * Reduced resolution "pyramid" levels between the icon and the full rep, created
+     * as needed.  Level i has a max dimension of (FIRST_LEVEL_SIZE << i).  We never
+     * create a level unless it's at most half the size of the full rep.
+     */
+    private volatile ImageRep[] _levels;
+    private static final int FIRST_LEVEL_SIZE = DEFAULT_ICON_SIZE * 4;
+    private static final int MAX_LEVELS = 8;
+    /** set once we've asked for the full pixel size to be read from the header of a local source file */
+    private volatile boolean _probedFullSize;
+    /** set while the header is being read: don't start loading anything until we know what to load */
+    private volatile boolean _probing;
     
     //private volatile Object _desired = SIZE_UNKNOWN;
     // _desired not used at moment -- would be easy to have one global instance of an ImageRef per image w/out it,
@@ -202,7 +215,112 @@ public class ImageRef
     private static final java.awt.Color DebugYellow = new java.awt.Color(255,255,0,128);
 
     private ImageRep pickRepToDraw(final ImageRep ideal) {
-        return pickRepToDraw(ideal, ideal == _full ? _icon : _full);
+        if (ideal == _full || ideal == _icon)
+            return pickRepToDraw(ideal, ideal == _full ? _icon : _full);
+        else // a pyramid level
+            return pickRepToDraw(ideal, _full.available() ? _full : _icon);
+    }
+
+    /**
+     * @return the smallest pyramid level that covers the given on-screen pixel size, or the
+     * full rep if there's no such level (or we can't create one).
+     */
+    private ImageRep getLevelRep(int onDisplayMaxDim)
+    {
+        if (_full.size() == ZERO_SIZE && !_full.available() && !_probedFullSize)
+            probeFullPixelSize();
+        
+        final int[] fullSize = _full.size();
+        final int fullMaxDim = Math.max(fullSize[0], fullSize[1]);
+
+        int index = 0;
+        int levelSize = FIRST_LEVEL_SIZE;
+        while (levelSize < onDisplayMaxDim) {
+            levelSize *= 2;
+            index++;
+        }
+        if (index >= MAX_LEVELS || levelSize * 2 > fullMaxDim) {
+            // also the case if the full pixel size is still unknown (e.g., a network image
+            // w/out a cached icon), in which case we have to load the full rep anyway
+            return _full;
+        }
+
+        ImageRep[] levels = _levels;
+        if (levels == null)
+            _levels = levels = new ImageRep[MAX_LEVELS];
+        if (levels[index] == null) {
+            final ImageRep level = createLevelRep(levelSize);
+            if (level == null)
+                return _full;
+            levels[index] = level;
+        }
+        return levels[index];
+    }
+
+    /**
+     * If our source is a local file, and we don't yet know it's full pixel size (no icon has been
+     * cached for it yet), have it read from the image header on an image thread, so that the first
+     * load of a zoomed out image can be a subsampled level instead of the full raster.  Nothing is
+     * loaded until the header has been read: we repaint once it has.
+     */
+    private void probeFullPixelSize()
+    {
+        _probedFullSize = true;
+
+        if (!(_source.readable instanceof java.io.File))
+            return;
+        final java.io.File file = (java.io.File) _source.readable;
+        if (!file.isAbsolute())
+            return;
+
+        _probing = true;
+        Images.runHeaderTask(new Runnable() { public void run() {
+            try {
+                final int[] size = file.canRead() ? Images.readImageSize(file) : null;
+                if (size != null && _full.size() == ZERO_SIZE) {
+                    if (DEBUG.IMAGE) debug("read full pixel size " + size[0] + "x" + size[1] + " from " + file);
+                    _full.takeSize(size);
+                    if (_aspect == 0)
+                        _aspect = _full.aspect();
+                }
+            } finally {
+                _probing = false;
+                repaint();
+            }
+        }});
+    }
+
+    private ImageRep createLevelRep(int size)
+    {
+        final java.net.URI levelKey = _source.key == null ? null : _source.getIconKey(size);
+        if (levelKey == null)
+            return null;
+
+        if (Images.hasCacheEntry(levelKey)) {
+            // already generated, this runtime or a prior one
+            return ImageRep.create(this, ImageSource.create(levelKey));
+        }
+
+        // A level is generated by reading our source from a local file with subsampling,
+        // which can be either the original, or our cached copy of a network image once we
+        // have it entirely (the full rep has loaded).
+        
+        final Object readable = _source.readable;
+        final java.io.File sourceFile;
+        
+        if (readable instanceof java.io.File)
+            sourceFile = (java.io.File) readable;
+        else if (_full.available() && _source.hasCacheFile())
+            sourceFile = _source.getCacheFile();
+        else
+            sourceFile = null;
+        
+        if (sourceFile == null || !sourceFile.isAbsolute() || !sourceFile.canRead())
+            return null;
+        
+        if (DEBUG.IMAGE) debug("creating level " + size + " from " + sourceFile);
+        
+        return ImageRep.create(this, ImageSource.createLevelSource(_source, sourceFile, size));
     }
     
     private ImageRep pickRepToDraw(final ImageRep desired, final ImageRep backup)
@@ -298,7 +416,7 @@ public class ImageRef
         } else {
             //debug("onScreenMaxDim ABOVE thresh " + PIXEL_THRESHOLD_FOR_ICON_DRAWING + " at " + onScreenMaxDim);
             //_desired = SIZE_FULL;
-            idealRep = _full;
+            idealRep = getLevelRep(onDisplayMaxDim);
             //backupRep = _icon;
         }
 
@@ -351,7 +469,7 @@ public class ImageRef
                 debug(" drawable " + drawable);
             }
 
-            if (!dc.isAnimating()) {
+            if (!dc.isAnimating() && !_probing) {
                 // We never kick image data loading during animations, as the desired representation
                 // may only be a momentary need (and it could suddenly slow down the animation to boot).
                 // Note: ideal may already be loading -- kickLoad handles all that.
@@ -481,8 +599,9 @@ public class ImageRef
             } // else _icon left as ImageRep.UNAVAILABLE
              
         }
-        else if (freshRep == _icon && (_full == UNAVAILABLE || _full.size() == ZERO_SIZE)) {
-            // We don't have a full rep loaded -- pull it from meta-data stored with the icon.
+        else if (freshRep != _full && (_full == UNAVAILABLE || _full.size() == ZERO_SIZE)) {
+            // We don't have a full rep loaded -- pull it from meta-data stored with the icon
+            // (or pyramid level, which carries the same meta-data).
             // There are several reasons this is important: (1) We may need to know the full
             // pixel size before the full representation is available (e.g., set to natural size).
             // (2) We want to know our "perfect" aspect even if we don't have the full image.
@@ -704,6 +823,7 @@ public class ImageRef
     public void reload() {
         _full = ImageRep.UNAVAILABLE;
         _icon = ImageRep.UNAVAILABLE;
+        _levels = null;
         repaint();
     }
     
@@ -494,6 +494,8 @@ public abstract class ImageRep implements /*ImageRef.Rep,*/ Images.Listener
             
         } else {
             ImageRef.renderImage(g, image, toWidth, toHeight);
+            if (handle instanceof SoftRef)
+                Images.markDrawn(_data);
         }
     }
 
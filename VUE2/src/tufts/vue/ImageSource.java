@@ -66,6 +66,15 @@ class ImageSource {
     public static ImageSource createIconSource(ImageSource is, ImageRep fullRep, java.awt.Image hardFullImage, int size) {
         return new ImageSource(is, fullRep, hardFullImage, size);
     }
+
+    /**
+     * @return a source for a reduced resolution level of the given image, to be generated by
+     * reading the given file (the original image, or our disk cache of it) with subsampling.
+     * Levels are cached in the same way as icons, and share the icon key format.
+     */
+    public static ImageSource createLevelSource(ImageSource is, File sourceFile, int size) {
+        return new ImageSource(is, sourceFile, size);
+    }
         
     /** @return a key that could be used for an icon version of this image */
     URI getIconKey(int size) {
@@ -125,6 +134,18 @@ class ImageSource {
         this._cacheFile = new File(Images.keyToCacheFileName(this.key));
     }
     
+    /** create a pyramid level entry */
+    private ImageSource(ImageSource is, File sourceFile, int levelSize) {
+        if (levelSize <= 0)
+            throw new IllegalArgumentException("bad level size " + levelSize);
+        this.original = is.original;
+        this.iconSize = levelSize;
+        this.readable = sourceFile;
+        this.key = makeIconKey(is.key, levelSize);
+        this.resource = null;
+        this._cacheFile = new File(Images.keyToCacheFileName(this.key));
+    }
+    
     // todo: would be better to use the actual CacheEntry.file to create
     // this, but we may not have that if there's a Loader in the Cache.
     private ImageSource(URI cacheKey, int iconSize) {
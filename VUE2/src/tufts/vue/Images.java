@@ -34,6 +34,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
 import javax.swing.ImageIcon;
 import javax.imageio.*;
@@ -48,8 +49,9 @@ import org.w3c.dom.NodeList;
  *
  * Handle the loading of images in background threads, making callbacks to deliver
  * results to multiple listeners that can be added at any time during the image fetch,
- * and caching (memory and disk) with a URI key, using a HashMap with SoftReference's
- * for the BufferedImage's so if we run low on memory they just drop out of the cache.
+ * and caching (memory and disk) with a URI key.  The memory cache holds the most recently
+ * used images up to a memory budget, and beyond that only via SoftReference's, so if we run
+ * low on memory they just drop out of the cache.
  *
  * @version $Revision: 1.85 $ / $Date: 2010-02-03 19:17:40 $ / $Author: mike $
  * @author Scott Fraize
@@ -70,6 +72,7 @@ public class Images
     static final boolean DELAYED_ICONS = false;
 
     public static void setLowMemory(Object cause) {
+        final boolean first;
         synchronized (Images.class) {
             if (LOW_MEMORY_COUNT == 0) {
                 Log.info(Util.TERM_PURPLE + "entering low-memory conditions, cause=" + Util.tags(cause) + Util.TERM_CLEAR);
@@ -78,10 +81,16 @@ public class Images
                                              + Util.TERM_CLEAR 
                                              + Util.tags(cause));
             }
-            final boolean first = (LOW_MEMORY_COUNT == 0);
+            first = (LOW_MEMORY_COUNT == 0);
             LOW_MEMORY_COUNT++;
             ProcessingPool.shrinkIfPossible(first);
         }
+        if (first) {
+            // Done outside the sync as it obtains the cache lock.  We only do this
+            // once: it's called repeatedly as rep's are GC'd, and the budget is already
+            // what keeps the images we're using from being GC'd.
+            RawCache.reduceBudget();
+        }
         // we do this out side of the sync just in case, as
         // below will obtain it's own sync
         //TaskQueue.flushCachingRequests(); // needs testing
@@ -265,6 +274,12 @@ public class Images
         private final Reference<Image> ref;
         private final Map<String,?> data;
         private final File file;
+        /** estimated memory size of the image, if we have one */
+        private final long bytes;
+        /** non-null while this entry is within the memory budget of the cache -- see CacheMap */
+        private volatile Image hard;
+        /** last time the image was drawn (see markDrawn) */
+        private volatile long drawn;
         // Loader loader;
         // todo: add loader here so we can always have CacheEntry's in the cache, and
         // so file is information always available, tho that could be extracted from the
@@ -277,10 +292,13 @@ public class Images
         {
             if (image == null && cacheFile == null)
                 throw new IllegalArgumentException("CacheEntry: at least one of image or file must be non null");
-            if (image != null)
+            if (image != null) {
                 this.ref = new SoftReference(image);
-            else
+                this.bytes = estimateBytes(image);
+            } else {
                 this.ref = null;
+                this.bytes = 0;
+            }
             this.file = cacheFile;
             this.data = props;
             if (DEBUG.IMAGE) out("new " + this);
@@ -311,6 +329,10 @@ public class Images
             if (ref == null)
                 return null;
 
+            final Image hardImage = hard;
+            if (hardImage != null)
+                return hardImage;
+
             Image image = ref.get();
             // will be null if was cleared
             if (image == null) {
@@ -334,15 +356,50 @@ public class Images
         }
 
         void clear() {
+            hard = null;
             if (ref != null)
                 ref.clear();
         }
 
         public String toString() {
-            return "CacheEntry[" + tag(getCachedImage()) + "; file=" + file + "]";
+            return "CacheEntry[" + tag(getCachedImage()) + (hard == null ? "" : " HARD")+ "; file=" + file + "]";
+        }
+    }
+
+    private static long estimateBytes(Image image) {
+        if (image instanceof BufferedImage) {
+            final DataBuffer buf = ((BufferedImage)image).getRaster().getDataBuffer();
+            return (long) buf.getSize() * buf.getNumBanks() * DataBuffer.getDataTypeSize(buf.getDataType()) / 8;
+        } else {
+            final int w = image.getWidth(null);
+            final int h = image.getHeight(null);
+            return w > 0 && h > 0 ? (long) w * h * 4 : 0;
+        }
+    }
+
+    /**
+     * Note that the given image source has just been drawn.  The cache won't drop it's hard
+     * reference to an image drawn within the last PINNED_MILLIS, even if it's over budget.
+     */
+    static void markDrawn(ImageSource imageSRC) {
+        if (imageSRC == null || imageSRC.key == null)
+            return;
+        synchronized (RawCache) {
+            final Object entry = RawCache.get(imageSRC.key); // also moves it to the most-recently-used end
+            if (entry instanceof CacheEntry) {
+                final CacheEntry ce = (CacheEntry) entry;
+                ce.drawn = System.currentTimeMillis();
+                if (ce.hard == null)
+                    RawCache.hold(ce);
+            }
         }
     }
 
+    /** @return a description of the memory cache's budget, usage and hit/miss/eviction counts */
+    public static String getCacheStatistics() {
+        return RawCache.toString();
+    }
+
     private static final CacheMap RawCache = new CacheMap();
     //private static final NewCache RefCache = new NewCache();
     //private static final NewCache<URI,ImageRef> RefCache = new NewCache();
@@ -415,7 +472,26 @@ public class Images
      * Not all HashMap methods covered: only safe to use
      * the ones explicity implemented here.
      */
-    private static class CacheMap extends HashMap {
+    private static class CacheMap extends LinkedHashMap {
+
+        /** images drawn within this many ms are never dropped from the budget */
+        private static final long PINNED_MILLIS = 10 * 1000;
+
+        /** budget in bytes for images we keep a hard reference to */
+        private long budget;
+        /** total bytes of images we currently hold a hard reference to */
+        private long used;
+        
+        private long hits, misses, evictions;
+
+        CacheMap() {
+            super(256, 0.75f, true); // access-order: iteration is least-recently-used first
+            final int mb = VueResources.getInt("images.memoryCacheMB", 0);
+            if (mb > 0)
+                budget = mb * 1024L * 1024L;
+            else
+                budget = Runtime.getRuntime().maxMemory() / 4;
+        }
 
         public synchronized Object get(Object key) {
             return super.get(key);
@@ -426,16 +502,82 @@ public class Images
         }
         
         public synchronized Object put(Object key, Object value) {
-            return super.put(key, value);
+            final Object old = super.put(key, value);
+            if (old instanceof CacheEntry && old != value)
+                release((CacheEntry) old);
+            if (value instanceof CacheEntry)
+                hold((CacheEntry) value);
+            return old;
         }
 
         public synchronized Object remove(Object key) {
-            return super.remove(key);
+            final Object old = super.remove(key);
+            if (old instanceof CacheEntry)
+                release((CacheEntry) old);
+            return old;
+        }
+
+        synchronized void recordHit(CacheEntry ce) {
+            hits++;
+            if (ce.hard == null)
+                hold(ce);
         }
         
+        synchronized void recordMiss() {
+            misses++;
+        }
+
+        /** hard-reference the image in the given entry, if it's still available, and trim us back to our budget */
+        synchronized void hold(CacheEntry ce) {
+            if (ce.hard != null || ce.ref == null)
+                return;
+            final Image image = ce.ref.get();
+            if (image == null)
+                return;
+            ce.hard = image;
+            used += ce.bytes;
+            if (used > budget)
+                trim();
+        }
+
+        private void release(CacheEntry ce) {
+            if (ce.hard != null) {
+                ce.hard = null;
+                used -= ce.bytes;
+            }
+        }
+
+        /**
+         * Drop hard references to the least recently used images until we're back within
+         * budget.  Their images are still available via their SoftReference's until the GC
+         * actually needs the memory.
+         */
+        private void trim() {
+            final long now = System.currentTimeMillis();
+            final Iterator i = values().iterator();
+            while (used > budget && i.hasNext()) {
+                final Object entry = i.next();
+                if (entry instanceof CacheEntry) {
+                    final CacheEntry ce = (CacheEntry) entry;
+                    if (ce.hard != null && now - ce.drawn > PINNED_MILLIS) {
+                        release(ce);
+                        evictions++;
+                    }
+                }
+            }
+            if (DEBUG.IMAGE && used > budget) out("over budget with pinned images: " + this);
+        }
+
+        /** called when we've run low on memory: halve our budget */
+        synchronized void reduceBudget() {
+            budget /= 2;
+            trim();
+            Log.info("reduced image memory budget: " + this);
+        }
 
         // for now, only clears memory cache
         public synchronized void clear() {
+            if (DEBUG.Enabled) Log.debug("clearing " + this);
             final Iterator i = values().iterator();
             while (i.hasNext()) {
                 Object entry = i.next();
@@ -450,6 +592,7 @@ public class Images
                 
                 if (entry instanceof CacheEntry) {
                     CacheEntry ce = (CacheEntry) entry;
+                    release(ce);
                     ce.clear();
                     if (ce.getFile() == null)
                         i.remove();
@@ -472,6 +615,14 @@ public class Images
 
             //super.clear();
         }
+
+        public synchronized String toString() {
+            return String.format("ImageCache[%d entries; %.1fMB/%.1fMB held; hits=%d misses=%d evictions=%d]",
+                                 size(),
+                                 used / (1024f * 1024f),
+                                 budget / (1024f * 1024f),
+                                 hits, misses, evictions);
+        }
         
     }
 
@@ -2065,8 +2216,10 @@ public class Images
         
         final Object entry = RawCache.get(imageSRC.key);
 
-        if (entry == null)
+        if (entry == null) {
+            RawCache.recordMiss();
             return null;
+        }
         
         if (DEBUG.IMAGE) out("found cache entry for key " + tag(imageSRC.key) + ": " + entry);
                 
@@ -2116,10 +2269,13 @@ public class Images
             RawCache.remove(imageSRC.key);
         }
 
-        if (cachedImage == null)
+        if (cachedImage == null) {
+            RawCache.recordMiss();
             return null;
-        else
+        } else {
+            RawCache.recordHit(ce);
             return new Handle(cachedImage, ce.data);
+        }
         
         //return cachedImage;
 
@@ -2150,9 +2306,39 @@ public class Images
     private static Handle createAndCacheIcon(Listener listener, ImageSource iconSource)
     {
         final Image hardImage;
+        Dimension sourceSize = null;
         boolean badReadable = false;
 
-        if (iconSource.readable instanceof Image) {
+        if (iconSource.readable instanceof File) {
+            
+            // This is a pyramid level (see ImageSource.createLevelSource).  If we've already
+            // generated it, the cache lookup will have pointed us at the cache file, and
+            // we just load it.  Otherwise, decode the original at reduced resolution,
+            // so the full size raster never needs to be in memory.
+            
+            final File cacheFile = iconSource.getCacheFile();
+            if (cacheFile != null && cacheFile.isAbsolute() && cacheFile.length() > 0)
+                return loadImageAndCache(iconSource, listener);
+
+            sourceSize = new Dimension();
+            try {
+                hardImage = readSubsampled((File) iconSource.readable, iconSource.iconSize, sourceSize);
+            } catch (Throwable t) {
+                RawCache.remove(iconSource.key);
+                final String msg;
+                if (t instanceof OutOfMemoryError) {
+                    setLowMemory(t);
+                    msg = OUT_OF_MEMORY;
+                } else {
+                    Log.warn("reading level " + iconSource + ": " + t);
+                    msg = t.toString();
+                }
+                if (listener != null)
+                    listener.gotImageError(iconSource, msg);
+                return null;
+            }
+            
+        } else if (iconSource.readable instanceof Image) {
             hardImage = (Image) iconSource.readable;
             // lose hard reference to the original image so it can be GC'd,
             // and be sure do this before we're start creating the icon, so if we
@@ -2204,7 +2390,11 @@ public class Images
             }
         }
         
-        final Dimension originalSize = new Dimension(hardImage.getWidth(null), hardImage.getHeight(null));
+        final Dimension originalSize;
+        if (sourceSize != null)
+            originalSize = sourceSize;
+        else
+            originalSize = new Dimension(hardImage.getWidth(null), hardImage.getHeight(null));
         
         final Handle iconHandle =
             createIcon(hardImage, iconSource.iconSize);
@@ -2236,6 +2426,115 @@ public class Images
         return iconHandle;
     }
 
+    /**
+     * Read the image in the given file at reduced resolution, using ImageReadParam source
+     * subsampling, such that it's larger side is no less than minSide.  Most decoders (JPEG in
+     * particular) can then skip most of the work of decoding the full image.
+     *
+     * @param originalSize will be set to the full pixel size of the image
+     */
+    private static Image readSubsampled(File file, int minSide, Dimension originalSize)
+        throws IOException, ImageException
+    {
+        final ImageInputStream inputStream = createImageInputStream(file);
+        if (inputStream == null)
+            throw new ImageException("Can't Access [" + file + "]");
+        ImageReader reader = null;
+        try {
+            reader = getDecoder(inputStream, null);
+            if (reader == null)
+                throw new ImageException("Unreadable Image Stream");
+            reader.setInput(inputStream, true, true);
+            final int w = reader.getWidth(0);
+            final int h = reader.getHeight(0);
+            if (w == 0 || h == 0)
+                throw new ImageException("invalid size: width=" + w + "; height=" + h);
+            originalSize.setSize(w, h);
+            final int step = Math.max(1, Math.max(w, h) / minSide);
+            final ImageReadParam param = reader.getDefaultReadParam();
+            if (step > 1)
+                param.setSourceSubsampling(step, step, 0, 0);
+            if (DEBUG.IMAGE) out("reading " + file + " " + w + "x" + h + " subsampled by " + step);
+            return reader.read(0, param);
+        } finally {
+            if (reader != null)
+                reader.dispose();
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Files in a VUE package that haven't been unpacked are read straight out of the
+     * package.  Everything else is left to ImageIO.
+     */
+    private static ImageInputStream createImageInputStream(Object readable)
+        throws IOException
+    {
+        if (readable instanceof tufts.vue.action.Archive.PackagedFile) {
+            final tufts.vue.action.Archive.PackagedFile file = (tufts.vue.action.Archive.PackagedFile) readable;
+            if (!file.isUnpacked()) {
+                final InputStream in = file.openStream();
+                return new MemoryCacheImageInputStream(new BufferedInputStream(in)) {
+                    @Override public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            in.close(); // the ImageInputStream won't close the archive for us
+                        }
+                    }
+                };
+            }
+        }
+        return ImageIO.createImageInputStream(readable);
+    }
+
+    /**
+     * Read only the header of the image in the given file to find it's full pixel size.
+     * This doesn't decode any of the image data.  The file may be a file in a VUE package
+     * that hasn't been unpacked.
+     *
+     * @return the pixel width and height, or null if they couldn't be determined
+     */
+    static int[] readImageSize(File file)
+    {
+        ImageInputStream inputStream = null;
+        ImageReader reader = null;
+        try {
+            inputStream = createImageInputStream(file);
+            if (inputStream == null)
+                return null;
+            reader = getDecoder(inputStream, null);
+            if (reader == null)
+                return null;
+            reader.setInput(inputStream, true, true);
+            final int w = reader.getWidth(0);
+            final int h = reader.getHeight(0);
+            if (w <= 0 || h <= 0)
+                return null;
+            return new int[] { w, h };
+        } catch (Throwable t) {
+            Log.warn("reading image size from " + file + ": " + t);
+            return null;
+        } finally {
+            if (reader != null)
+                reader.dispose();
+            if (inputStream != null) {
+                try { inputStream.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * A single image thread for quick jobs that shouldn't have to wait behind full image
+     * loads in the processing pool, such as reading image headers.
+     */
+    private static final ExecutorService HeaderThread = Executors.newSingleThreadExecutor(ImageThreadFactory);
+
+    /** Run the given task on an image thread, after any other such tasks already requested. */
+    static void runHeaderTask(Runnable task) {
+        HeaderThread.execute(task);
+    }
+
     private static boolean cacheIconToDisk(URI iconKey, RenderedImage image, File cacheFile, Dimension originalSize)
     {
         final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
@@ -2919,7 +3218,7 @@ public class Images
             inputStream = (ImageInputStream) imageSRC.readable;
         } else if (imageSRC.readable != null) {
             //if (DEBUG.IMAGE) out("ImageIO converting " + tag(imageSRC.readable) + " to InputStream...");
-            inputStream = ImageIO.createImageInputStream(imageSRC.readable);
+            inputStream = createImageInputStream(imageSRC.readable);
         } else {
             throw new ImageException(NO_READABLE_FOUND);
             //Log.warn("not readable: " + imageSRC);
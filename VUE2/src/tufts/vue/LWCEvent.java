@@ -16,6 +16,10 @@
 package tufts.vue;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Collection;
+import java.util.Collections;
 import static tufts.Util.*;
 
 /**
@@ -236,6 +240,72 @@ public class LWCEvent
     }
 
 
+    /**
+     * A single event standing in for all the events that happened during an event batch
+     * (see LWMap.beginEventBatch).  Listeners that care about the particulars can check
+     * which keys were involved, which components each effected, and the union of the
+     * paint bounds of everything effected.  getComponents() returns every component
+     * effected by anything.
+     */
+    public static final class Batch extends LWCEvent
+    {
+        private final Map<Object,Collection<LWComponent>> changes;
+        private final int eventCount;
+        private java.awt.geom.Rectangle2D repaintBounds;
+
+        Batch(Object source, List<LWComponent> effected, Map<Object,Collection<LWComponent>> changes, int eventCount) {
+            super(source, effected, LWKey.EventBatch);
+            this.changes = changes;
+            this.eventCount = eventCount;
+        }
+
+        /** @return the keys of all the events in the batch, in the order first seen */
+        public Set<Object> getKeys() {
+            return changes.keySet();
+        }
+
+        public boolean hasKey(Object key) {
+            return changes.containsKey(key);
+        }
+
+        /** @return true if the batch contains any event who's key name begins with the given prefix (e.g. "hier.") */
+        public boolean hasKeyPrefix(String prefix) {
+            for (Object key : changes.keySet()) {
+                final String name = key instanceof LWComponent.Key ? ((LWComponent.Key)key).name : (String) key;
+                if (name.startsWith(prefix))
+                    return true;
+            }
+            return false;
+        }
+
+        /** @return the components effected by events with the given key, which will be empty if there were none */
+        public Collection<LWComponent> getComponents(Object key) {
+            final Collection<LWComponent> effected = changes.get(key);
+            return effected == null ? Collections.EMPTY_LIST : effected;
+        }
+
+        /** @return the number of events that were collected into this batch */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /** @return the union of the current paint bounds of all effected components, or null if there were none */
+        public java.awt.geom.Rectangle2D getRepaintBounds() {
+            if (repaintBounds == null) {
+                final java.awt.geom.Rectangle2D.Float bounds = new java.awt.geom.Rectangle2D.Float();
+                LWMap.accruePaintBounds(getComponents(), bounds);
+                if (!bounds.isEmpty())
+                    repaintBounds = bounds;
+            }
+            return repaintBounds;
+        }
+
+        @Override
+        public String toString() {
+            return "LWCEvent.Batch[" + eventCount + " events; keys=" + changes.keySet() + "; components=" + getComponents().size() + "]";
+        }
+    }
+
     /** for null masking */
     public static final String NO_OLD_VALUE = "no_old_value";
 }
@@ -22,6 +22,11 @@ import java.util.List;
 import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
 /**
  * Handle dispatching of LWCEvents, mainly for LWComponents, but any client
@@ -34,46 +39,120 @@ import java.util.Arrays;
 public class LWChangeSupport
 {
     private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(LWChangeSupport.class);
+
+    /** event delivery depth, per thread, for detecting event loops */
+    private static final ThreadLocal<int[]> EventDepth = new ThreadLocal<int[]>() {
+        protected int[] initialValue() { return new int[1]; }
+    };
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
     
-    private static int sEventDepth = 0;
-    
-    private List listeners;
+    /**
+     * The listeners.  This array is never modified: adding or removing a listener
+     * replaces it with a new copy, so dispatch can run thru it without any locking, and
+     * without worrying about listeners coming or going during delivery.  A listener
+     * removed during delivery of an event may still get that event, which has never
+     * been a problem: it was either getting it already, or had just had it.
+     */
+    private volatile Listener[] listeners = NO_LISTENERS;
     private Object mClient;
-    private boolean mEventsDisabled = false;
+    private volatile boolean mEventsDisabled = false;
     private int mEventSuspensions = 0;
     
     LWChangeSupport(Object client) {
         mClient = client;
     }
-    private static class LWCListenerProxy implements LWComponent.Listener
+
+    //-----------------------------------------------------------------------------
+    // Event key masks: every event key that any listener has ever asked to filter for
+    // is assigned a bit, so that most filtering is a single mask test.  If we ever run
+    // out of bits, we fall back to scanning the desired keys.
+    //-----------------------------------------------------------------------------
+
+    private static final Map<Object,Long> KeyBits = new java.util.concurrent.ConcurrentHashMap();
+    private static int NextKeyBit = 0;
+    private static final long ALL_KEYS = -1L;
+
+    /** @return the bit for the given key, allocating one if needed, or 0 if we've run out of bits */
+    private static synchronized long allocateKeyBit(Object key) {
+        final Long bit = KeyBits.get(key);
+        if (bit != null)
+            return bit;
+        if (NextKeyBit >= 64) {
+            if (DEBUG.EVENTS) Log.debug("out of event key bits for " + key);
+            return 0;
+        }
+        final long newBit = 1L << NextKeyBit++;
+        KeyBits.put(key, newBit);
+        return newBit;
+    }
+
+    /** @return the bit for the given key, or 0 if it doesn't have one */
+    private static long keyBit(Object key) {
+        if (key == null)
+            return 0;
+        final Long bit = KeyBits.get(key);
+        return bit == null ? 0 : bit;
+    }
+
+    /** A listener, and the event keys it's listening for */
+    private static final class Listener
     {
         private final LWComponent.Listener listener;
         private final Object eventMask;
+        /** bits for all desired event keys we have bits for, or ALL_KEYS if the listener isn't filtering */
+        private final long keyBits;
+        /** desired keys that we didn't have bits for, or null */
+        private final Object[] unmappedKeys;
+        /** if true, this listener gets every event as it happens, even during a batch */
+        private final boolean unbatched;
 
-        public LWCListenerProxy(LWComponent.Listener listener, Object eventsDesired) {
+        Listener(LWComponent.Listener listener, Object eventsDesired, boolean unbatched) {
             this.listener = listener;
             this.eventMask = eventsDesired;
+            this.unbatched = unbatched;
+
+            if (eventsDesired == null) {
+                keyBits = ALL_KEYS;
+                unmappedKeys = null;
+            } else {
+                final Object[] keys;
+                if (eventsDesired instanceof Object[])
+                    keys = (Object[]) eventsDesired;
+                else
+                    keys = new Object[] { eventsDesired };
+                long bits = 0;
+                List unmapped = null;
+                for (Object key : keys) {
+                    final long bit = key == null ? 0 : allocateKeyBit(key);
+                    if (bit == 0) {
+                        if (unmapped == null)
+                            unmapped = new ArrayList();
+                        unmapped.add(key);
+                    } else
+                        bits |= bit;
+                }
+                keyBits = bits;
+                unmappedKeys = unmapped == null ? null : unmapped.toArray();
+            }
         }
 
-        /** this should never actually get used, as we pluck the real listener
-            out of the proxy in dispatch */
-        public void LWCChanged(LWCEvent e) {
-            listener.LWCChanged(e);
+        boolean isFiltering() {
+            return keyBits != ALL_KEYS;
         }
 
-        public boolean isListeningFor(LWCEvent e)
+        /** @param keyBit - the bit for the key, as returned by keyBit() */
+        boolean isListeningFor(Object key, long keyBit)
         {
-            if (eventMask instanceof Object[]) {
-                for (Object desiredKey : (Object[]) eventMask) {
-                    if (e.key == desiredKey)
+            if ((keyBits & keyBit) != 0)
+                return true;
+            if (unmappedKeys != null) {
+                for (Object desiredKey : unmappedKeys)
+                    if (key == desiredKey)
                         return true;
-                }
-                return false;
-            } else {
-                return eventMask == e.key;
             }
+            return false;
         }
-        
 
         public String toString() {
             String s = listener.toString();
@@ -94,26 +173,12 @@ public class LWChangeSupport
         }
     }
 
-    private class LWCListenerList extends java.util.Vector {
-        public synchronized int indexOf(Object elem, int index) {
-            if (elem == null) {
-                for (int i = index ; i < elementCount ; i++)
-                    if (elementData[i]==null)
-                        return i;
-            } else {
-                for (int i = index ; i < elementCount ; i++) {
-                    Object ed = elementData[i];
-                    if (elem.equals(ed))
-                        return i;
-                    if (ed instanceof LWCListenerProxy && ((LWCListenerProxy)ed).listener == elem)
-                        return i;
-                }
-            }
-            return -1;
-        }
-        public synchronized int lastIndexOf(Object elem, int index) {
-            throw new UnsupportedOperationException("lastIndexOf");
-        }
+    private int indexOf(LWComponent.Listener listener) {
+        final Listener[] list = listeners;
+        for (int i = 0; i < list.length; i++)
+            if (listener.equals(list[i].listener))
+                return i;
+        return -1;
     }
 
     /**
@@ -127,22 +192,20 @@ public class LWChangeSupport
      */
     public synchronized void setPriorityListener(LWComponent.Listener listener) {
 
-        if (listeners == null) {
+        if (listeners.length == 0) {
             Log.error("Attempting to set priorty listener with no listeners at all for client " + mClient);
             return;
         }
         
-        int i = listeners.indexOf(listener);
+        final int i = indexOf(listener);
         
         if (i > 0) {
-            if (i == 1) {
-                // swap first two
-                listeners.set(1, listeners.set(0, listener));
-            } else {
-                // remove & add back at the front
-                listeners.remove(listener);
-                listeners.add(0, listener);
-            }
+            // move to the front
+            final Listener[] list = listeners.clone();
+            final Listener priority = list[i];
+            System.arraycopy(list, 0, list, 1, i);
+            list[0] = priority;
+            listeners = list;
         } else if (i == 0) {
             ; // already priority listener
         } else
@@ -153,11 +216,17 @@ public class LWChangeSupport
         addListener(listener, null);
     }
 
-    public synchronized void addListener(LWComponent.Listener listener, Object eventMask)
+    public synchronized void addListener(LWComponent.Listener listener, Object eventMask) {
+        addListener(listener, eventMask, false);
+    }
+
+    /**
+     * @param unbatched - if true, the listener will get every event as it happens, even during
+     * an event batch.  This is for listeners that need to see every change, such as the UndoManager.
+     */
+    public synchronized void addListener(LWComponent.Listener listener, Object eventMask, boolean unbatched)
     {
-        if (listeners == null)
-            listeners = new LWCListenerList();
-        if (listeners.contains(listener)) {
+        if (indexOf(listener) >= 0) {
             // do nothing (they're already listening to us)
             if (DEBUG.EVENTS) {
                 if (DEBUG.META) System.out.println("already listening to us: " + listener + " " + mClient);
@@ -169,27 +238,149 @@ public class LWChangeSupport
         } else {
             if (DEBUG.EVENTS && DEBUG.META)
                 outln("*** LISTENER " + listener + "\t+++ADDS " + mClient + (eventMask==null?"":(" eventMask=" + eventMask)));
-            if (eventMask == null) {
-                listeners.add(listener);
-            } else
-                listeners.add(new LWCListenerProxy(listener, eventMask));
+            final Listener[] list = new Listener[listeners.length + 1];
+            System.arraycopy(listeners, 0, list, 0, listeners.length);
+            list[listeners.length] = new Listener(listener, eventMask, unbatched);
+            listeners = list;
         }
     }
     public synchronized void removeListener(LWComponent.Listener listener)
     {
-        if (listeners == null)
+        final int i = indexOf(listener);
+        if (i < 0)
             return;
         if (DEBUG.EVENTS && DEBUG.META) System.out.println("*** LISTENER " + listener + "\tREMOVES " + mClient);
-        listeners.remove(listener);
+        final Listener[] list = new Listener[listeners.length - 1];
+        System.arraycopy(listeners, 0, list, 0, i);
+        System.arraycopy(listeners, i + 1, list, i, list.length - i);
+        listeners = list;
     }
     public synchronized void removeAllListeners()
     {
-        if (listeners != null) {
-            if (DEBUG.EVENTS) System.out.println(mClient + " *** CLEARING ALL LISTENERS " + listeners);
-            listeners.clear();
+        if (listeners.length > 0) {
+            if (DEBUG.EVENTS) System.out.println(mClient + " *** CLEARING ALL LISTENERS " + Arrays.asList(listeners));
+            listeners = NO_LISTENERS;
+        }
+    }
+
+    //-----------------------------------------------------------------------------
+    // Event batches: while a batch is open, events are still delivered as they happen
+    // to any unbatched listeners, but are otherwise just collected.  When the batch
+    // closes, each unfiltered listener gets a single LWCEvent.Batch summarizing
+    // everything that happened, and each filtered listener gets the original events
+    // for the keys it's listening for, in order, with repeats of the same key, source
+    // and component collapsed into the last one.
+    //-----------------------------------------------------------------------------
+
+    private static final class EventBatch {
+        final Map<Object,Collection<LWComponent>> changes = new LinkedHashMap();
+        final Set<LWComponent> effected = new LinkedHashSet();
+        /** the events, keyed to collapse repeats: see EventKey */
+        final Map<Object,LWCEvent> events = new LinkedHashMap();
+        int eventCount;
+
+        synchronized void add(LWCEvent e) {
+            eventCount++;
+            final Object eventKey = e.getComponents() == null ? new EventKey(e) : e; // never collapse multi-component events
+            events.remove(eventKey); // so the latest one goes to the end
+            events.put(eventKey, e);
+            Collection<LWComponent> keyEffected = changes.get(e.key);
+            if (keyEffected == null)
+                changes.put(e.key, keyEffected = new LinkedHashSet());
+            if (e.component != null) {
+                keyEffected.add(e.component);
+                effected.add(e.component);
+            } else if (e.getComponents() != null) {
+                keyEffected.addAll(e.getComponents());
+                effected.addAll(e.getComponents());
+            }
+        }
+    }
+
+    /** identifies single component events with the same key, source & component */
+    private static final class EventKey {
+        final LWCEvent e;
+        EventKey(LWCEvent e) { this.e = e; }
+        public boolean equals(Object o) {
+            final LWCEvent other = ((EventKey)o).e;
+            return other.key == e.key && other.source == e.source && other.component == e.component;
+        }
+        public int hashCode() {
+            return System.identityHashCode(e.key) ^ System.identityHashCode(e.source) ^ System.identityHashCode(e.component);
+        }
+    }
+
+    private int mBatchDepth = 0;
+    private volatile EventBatch mBatch;
+
+    /** Start collecting events.  Batches may nest: events are delivered when the outermost batch ends. */
+    synchronized void beginBatch() {
+        if (mBatchDepth++ == 0)
+            mBatch = new EventBatch();
+    }
+
+    /** End the current batch, delivering everything collected if this was the outermost batch. */
+    void endBatch() {
+        final EventBatch batch;
+        synchronized (this) {
+            if (mBatchDepth <= 0)
+                throw new IllegalStateException(mClient + " event batch begin/end unpaired");
+            if (--mBatchDepth > 0)
+                return;
+            batch = mBatch;
+            mBatch = null;
         }
+        deliverBatch(batch);
+    }
+
+    public boolean isBatching() {
+        return mBatch != null;
     }
 
+    /** deliver everything collected so far, and start collecting anew */
+    private void flushBatch() {
+        final EventBatch batch;
+        synchronized (this) {
+            batch = mBatch;
+            if (batch == null)
+                return;
+            mBatch = new EventBatch();
+        }
+        deliverBatch(batch);
+    }
+    
+    private void deliverBatch(EventBatch batch)
+    {
+        if (batch.eventCount == 0)
+            return;
+
+        final Listener[] listeners = this.listeners;
+        LWCEvent.Batch batchEvent = null;
+
+        if (DEBUG.EVENTS) eoutln(mClient + " delivering batch of " + batch.eventCount + " events, keys " + batch.changes.keySet());
+
+        for (Listener entry : listeners) {
+            if (entry.unbatched)
+                continue;
+            if (entry.isFiltering()) {
+                // Filtered listeners may not know about batches, and may depend on the
+                // source of an event (e.g., the parent for ChildrenAdded), so they get the
+                // original events.
+                for (LWCEvent e : batch.events.values()) {
+                    if (entry.isListeningFor(e.key, keyBit(e.key)))
+                        deliver(mClient, entry.listener, e);
+                }
+            } else {
+                if (batchEvent == null)
+                    batchEvent = new LWCEvent.Batch(mClient,
+                                                    new ArrayList(batch.effected),
+                                                    batch.changes,
+                                                    batch.eventCount);
+                deliver(mClient, entry.listener, batchEvent);
+            }
+        }
+    }
+    
     private void setEventsEnabled(boolean t) {
         if (DEBUG.EVENTS&&DEBUG.META) System.out.println(mClient + " *** EVENTS ENABLED: from " + !mEventsDisabled + " to " + t);
         mEventsDisabled = !t;
@@ -218,8 +409,10 @@ public class LWChangeSupport
      * This method for clients that are LWComponent's ONLY.  Otherwise call dispatchLWCEvent
      * directly.
      */
-    synchronized void notifyListeners(LWComponent client, LWCEvent e)
+    void notifyListeners(LWComponent client, LWCEvent e)
     {
+        final Listener[] listeners = this.listeners;
+        
         if (mEventsDisabled) {
             if (DEBUG.EVENTS) System.out.println(e + " (dispatch skipped: events disabled)");
             return;
@@ -230,7 +423,7 @@ public class LWChangeSupport
                 "FYI, ZOMBIE EVENT: notifyListeners; deleted component attempting event notification:"
                 + "\n\t        deleted client: " + client
                 + "\n\tattempting delivery of: " + e
-                + "\n\t     current listeners: " + listeners
+                + "\n\t     current listeners: " + Arrays.asList(listeners)
                 + "\n\tparent (ought be null): " + client.getParent()
                 + "\n"
                 ;
@@ -243,10 +436,10 @@ public class LWChangeSupport
         }
 
         //if (DEBUG.EVENTS && (DEBUG.META || !DEBUG.THREAD)) {
-        if (DEBUG.EVENTS && (DEBUG.META || e.isUndoable()) && (DEBUG.META || listeners != null))  {
-            final String ldesc = (listeners == null
+        if (DEBUG.EVENTS && (DEBUG.META || e.isUndoable()) && (DEBUG.META || listeners.length > 0))  {
+            final String ldesc = (listeners.length == 0
                                   ? " -> <no listeners>"
-                                  : ((listeners.size()>0?TERM_GREEN:"") + " => (" + listeners.size() + " listeners)" + TERM_CLEAR
+                                  : ((listeners.length>0?TERM_GREEN:"") + " => (" + listeners.length + " listeners)" + TERM_CLEAR
                                      //+ " " + Arrays.asList(listeners)
                                      ));
                                 //: (DELIVERY_ARROW + "(" + listeners.size() + " listeners)"));a
@@ -256,9 +449,17 @@ public class LWChangeSupport
                 eoutln(e + ldesc);
         }
         
-        if (listeners != null && listeners.size() > 0) {
+        final EventBatch batch = mBatch;
+        
+        if (batch != null && e.key == LWKey.UserActionCompleted) {
+            // listeners may depend on having seen everything by the time an action completes
+            flushBatch();
+            dispatchLWCEvent(client, listeners, e, false);
+        } else if (listeners.length > 0) {
             if (DEBUG.EVENTS && DEBUG.META) eoutln(e + " dispatching for client " + client + " to listeners " + Arrays.asList(listeners));
-            dispatchLWCEvent(client, listeners, e);
+            if (batch != null)
+                batch.add(e);
+            dispatchLWCEvent(client, listeners, e, batch != null);
         } else {
             //if (DEBUG.EVENTS && DEBUG.THREAD && (DEBUG.META || DEBUG.CONTAINMENT))
             if (DEBUG.EVENTS && DEBUG.THREAD)
@@ -279,11 +480,11 @@ public class LWChangeSupport
             }
             client.getParent().broadcastChildEvent(e);
         } else if (client.isOrphan() && !client.permitZombieEvent(e)) {
-            if (listeners != null && listeners.size() > 0) {
+            if (listeners.length > 0) {
                 Log.info("ORPHAN NODE w/LISTENERS DELIVERED EVENTS:"
                          + "\n\torphan=" + client
                          + "\n\tevent=" + e
-                         + "\n\tlisteners=" + listeners);
+                         + "\n\tlisteners=" + Arrays.asList(listeners));
                 if (DEBUG.PARENTING) new Throwable().printStackTrace();
             }
             /*else if (DEBUG.META && (DEBUG.EVENTS || DEBUG.PARENTING) && !(this instanceof LWGroup))
@@ -299,7 +500,7 @@ public class LWChangeSupport
             //if (DEBUG.THREAD) System.err.format("%-27s", Thread.currentThread().toString().substring(6));
             if (!javax.swing.SwingUtilities.isEventDispatchThread())
                 System.err.format("[%s]", Thread.currentThread().getName());
-            for (int x = 0; x < sEventDepth; x++) System.err.print("--->");
+            for (int x = EventDepth.get()[0]; x > 0; x--) System.err.print("--->");
             System.err.print(s);
         }
     }
@@ -312,74 +513,66 @@ public class LWChangeSupport
     }
     
     public void dispatchEvent(LWCEvent e) {
-        if (listeners != null)
-            dispatchLWCEvent(mClient, listeners, e);
+        final Listener[] listeners = this.listeners;
+        if (listeners.length > 0)
+            dispatchLWCEvent(mClient, listeners, e, false);
     }
 
     /**
-     * Deliver LWCEvent @param e to all the @param listeners
+     * Deliver LWCEvent @param e to all the @param listeners.  May be called from any
+     * thread: delivery happens in the calling thread.
+     * @param unbatchedOnly - if true, only deliver to unbatched listeners
      */
-    static synchronized void dispatchLWCEvent(Object source, List listeners, LWCEvent e)
+    private static void dispatchLWCEvent(Object source, Listener[] listeners, LWCEvent e, boolean unbatchedOnly)
     {
-        if (sEventDepth > 5) // guestimate max based on current architecture -- increase if you need to
-            throw new IllegalStateException("eventDepth=" + sEventDepth
+        final int[] eventDepth = EventDepth.get();
+        
+        if (eventDepth[0] > 5) // guestimate max based on current architecture -- increase if you need to
+            throw new IllegalStateException("eventDepth=" + eventDepth[0]
                                             + ", assumed looping on delivery of "
-                                            + e + " in " + source + " to " + listeners);
+                                            + e + " in " + source + " to " + Arrays.asList(listeners));
 
         if (source instanceof LWComponent) {
             final LWComponent client = (LWComponent) source;
-            if ((client.isDeleted() && !client.permitZombieEvent(e)) || listeners == null) {
-                System.err.println("ZOMBIE DISPATCH: deleted component or null listeners attempting event dispatch:"
+            if (client.isDeleted() && !client.permitZombieEvent(e)) {
+                System.err.println("ZOMBIE DISPATCH: deleted component attempting event dispatch:"
                                    + "\n\tsource=" + source
-                                   + "\n\tlisteners=" + listeners
+                                   + "\n\tlisteners=" + Arrays.asList(listeners)
                                    + "\n\tattempted notification=" + e);
                 new Throwable("ZOMBIE DISPATCH").printStackTrace();
                 return;
             }
         }
+
+        // the key bit is only looked up if there's a listener that's filtering
+        boolean haveKeyBit = false;
+        long keyBit = 0;
         
-        // todo perf: take array code out and see if can fix all
-        // concurrent mod exceptions (e.g., delete out from under a
-        // pathway was giving us some problems, tho I think that may
-        // have gone away) or: allow listener removes via nulling, tho
-        // that's not really a concern anyway in that a component that
-        // removes itself as a listener after having been notified of
-        // an event has already had it's notification and we don't
-        // need to make sure it doesn't get one further down the list.
-        
-        //int nlistener = listeners.size();
-        //Listener[] listener_array = (Listener[]) listeners.toArray(listener_buf);
-        //if (listener_array != listener_buf)
-        //    out("FYI: listener count " + nlistener + " exceeded performance buffer.");
-        // Of course, using a static buf of course doesn't work the second we have any event depth!
-        // and we can't make it a member as this is a static method...
-        // We could actually just only allocate a new array if there IS any event depth...
-
-        LWComponent.Listener[] listener_array = new LWComponent.Listener[listeners.size()];
-        listeners.toArray(listener_array);
-        for (int i = 0; i < listener_array.length; i++) {
+        for (int i = 0; i < listeners.length; i++) {
             if (DEBUG.EVENTS && DEBUG.META) {
                 if (e.getSource() != source)
                     eout(e + " " + i + " => " + source + " >> ");
                 else
                     eout(e + " " + i + " >> ");
             }
-            LWComponent.Listener target = listener_array[i];
-            //-------------------------------------------------------
-            // If a listener proxy, extract the real listener
-            //-------------------------------------------------------
-            if (target instanceof LWCListenerProxy) {
-                LWCListenerProxy lp = (LWCListenerProxy) target;
-                if (!lp.isListeningFor(e)) {
+            final Listener entry = listeners[i];
+            if (unbatchedOnly && !entry.unbatched) {
+                if (DEBUG.EVENTS && DEBUG.META)
+                    outln(entry + " (batched)");
+                continue;
+            }
+            if (entry.isFiltering()) {
+                if (!haveKeyBit) {
+                    keyBit = keyBit(e.key);
+                    haveKeyBit = true;
+                }
+                if (!entry.isListeningFor(e.key, keyBit)) {
                     if (DEBUG.EVENTS && DEBUG.META)
-                        outln(target + " (filtered)");
+                        outln(entry + " (filtered)");
                     continue;
                 }
-                target = lp.listener;
             }
-            //-------------------------------------------------------
-            // now we know we have the real listener
-            //-------------------------------------------------------
+            final LWComponent.Listener target = entry.listener;
             if (DEBUG.EVENTS && DEBUG.THREAD) {
                 if (DEBUG.META) {
                     if (e.getSource() == target)
@@ -393,28 +586,34 @@ public class LWChangeSupport
             }
             if (e.getSource() == target) // this prevents events from going back to their source
                 continue;
-            sEventDepth++;
-            try {
-                if (DEBUG.EVENTS && DEBUG.THREAD)
-                    outln(target + "");
-
-                //-------------------------------------------------------
-                // deliver the event
-                //-------------------------------------------------------
-
-                target.LWCChanged(e);
-
-            } catch (Throwable t) {
-                tufts.Util.printStackTrace
-                    (t,
-                     "dispatchLWCEvent: exception during LWCEvent notification:"
-                     + "\n\tnotifying component: " + source
-                     + "\n\t          event was: " + e
-                     + "\n\t   failing listener: " + target);
-            } finally {
-                sEventDepth--;
-            }
+            deliver(source, target, e);
             if (DEBUG.EVENTS && DEBUG.META) eoutln(e + " disptach returned from: " + target);
         }
     }
-}
\ No newline at end of file
+
+    private static void deliver(Object source, LWComponent.Listener target, LWCEvent e)
+    {
+        final int[] eventDepth = EventDepth.get();
+        eventDepth[0]++;
+        try {
+            if (DEBUG.EVENTS && DEBUG.THREAD)
+                outln(target + "");
+
+            //-------------------------------------------------------
+            // deliver the event
+            //-------------------------------------------------------
+
+            target.LWCChanged(e);
+
+        } catch (Throwable t) {
+            tufts.Util.printStackTrace
+                (t,
+                 "dispatchLWCEvent: exception during LWCEvent notification:"
+                 + "\n\tnotifying component: " + source
+                 + "\n\t          event was: " + e
+                 + "\n\t   failing listener: " + target);
+        } finally {
+            eventDepth[0]--;
+        }
+    }
+}
@@ -302,6 +302,12 @@ public class LWComponent
 
     /** cached affine transform for use by getZeroTransform() */
     private transient final AffineTransform _zeroTransform = new AffineTransform();
+    /** the MapGeometryEpoch at which _zeroTransform was last loaded */
+    private transient int mZeroTransformEpoch = NO_EPOCH;
+    /** cached absolute map location & scale -- see loadMapCache */
+    private transient double mCachedMapX, mCachedMapY, mCachedMapScale;
+    /** the MapGeometryEpoch at which the cached map location & scale were last loaded */
+    private transient int mMapCacheEpoch = NO_EPOCH;
     protected transient double scale = 1.0;
     private transient AffineTransform mTemporaryTransform;
 
@@ -1799,6 +1805,7 @@ public class LWComponent
         c.width = this.width;
         c.height = this.height;
         c.scale = this.scale;
+        c.mapGeometryChanged();
         c.stroke = this.stroke; // cached info only
 
         c.copyMetaData(this);
@@ -3167,6 +3174,8 @@ public class LWComponent
             y = 0;
             bad = true;
         }
+        if (bad)
+            mapGeometryChanged();
         if (Float.isNaN(width)) {
             Log.warn("bad width " + this);
             width = 0;
@@ -3433,6 +3442,7 @@ public class LWComponent
         //-----------------------------------------------------------------------------
 
         parent = newParent;
+        mapGeometryChanged();
 
         //layout(); // for preference change updates
 
@@ -4433,6 +4443,7 @@ public class LWComponent
     protected void takeScale(double newScale) {
         if (DEBUG.LAYOUT) out("takeScale " + newScale);
         this.scale = newScale;
+        mapGeometryChanged();
     }
 
     protected void setScale(double newScale)
@@ -4469,8 +4480,10 @@ public class LWComponent
     {
         if (getParent() == null)
             return getScale();
-        else
-            return getParent().getMapScale() * getScale();
+        final int epoch = MapGeometryEpoch.get();
+        if (mMapCacheEpoch != epoch)
+            loadMapCache(epoch);
+        return mCachedMapScale;
     }
 
     /** Convenience for returning float */ public final float getScaleF() { return (float) getScale(); }
@@ -4557,6 +4570,7 @@ public class LWComponent
             this.x = x;
             this.y = y;
         }
+        mapGeometryChanged();
     }
 
 //     public void userTranslate(float dx, float dy) {
@@ -4702,6 +4716,16 @@ public class LWComponent
 //     }
 
 
+    /**
+     * Our map bounds may have changed in a way that generates no LWCEvent (e.g., a link
+     * endpoint moved): let any spatial index we're in know that it needs to re-fetch them.
+     */
+    void notifyIndexedBoundsChanged() {
+        final LWMap.Layer layer = getLayer();
+        if (layer != null && layer != this)
+            layer.indexedBoundsChanged(this);
+    }
+
     /** a notification to the component that it's absolute map location has changed by the given absolute map dx / dy */
     // todo: may be better named ancestorMoved or ancestorTranslated or some such
     protected void notifyMapLocationChanged(LWComponent movingSrc, double mdx, double mdy) {
@@ -4891,9 +4915,9 @@ public class LWComponent
 //     }
 
     /** for XML restore only -- issues no event updates */
-    public void setX(float x) { this.x = x; }
+    public void setX(float x) { this.x = x; mapGeometryChanged(); }
     /** for XML restore only -- issues no event updates */
-    public void setY(float y) { this.y = y; }
+    public void setY(float y) { this.y = y; mapGeometryChanged(); }
     /** for castor restore -- will not trigger any events */
     public void setWidth(float w) { this.width = w; }
     /** for castor restore -- will not trigger any events */
@@ -4942,7 +4966,10 @@ public class LWComponent
             //    Util.printStackTrace("fetching mapX for unparented non-map: " + this);
             return getX();
         } else {
-            return parent.getMapXPrecise() + getX() * parent.getMapScale();
+            final int epoch = MapGeometryEpoch.get();
+            if (mMapCacheEpoch != epoch)
+                loadMapCache(epoch);
+            return mCachedMapX;
         }
     }
     protected double getMapYPrecise() {
@@ -4953,7 +4980,49 @@ public class LWComponent
                 Util.printStackTrace("PARENT LOOP " + this);
                 return getY();
             }
-            return parent.getMapYPrecise() + getY() * parent.getMapScale();
+            final int epoch = MapGeometryEpoch.get();
+            if (mMapCacheEpoch != epoch)
+                loadMapCache(epoch);
+            return mCachedMapY;
+        }
+    }
+
+    //-----------------------------------------------------------------------------
+    // Caching of absolute map geometry.
+    //
+    // Absolute map location, scale and the zero transform all depend on the location
+    // and scale of every ancestor, so computing them means walking the parent chain.
+    // As they're needed many times per paint and per pick, we cache them, stamped
+    // with the MapGeometryEpoch.  Any change to the location, scale or parent of a
+    // container (that may have children, or slides parented to it) advances the
+    // epoch, which invalidates every cached value everywhere.  A change to a
+    // component that can't have anything below it (e.g., a link or an image) only
+    // flushes that component's own cache.  Between changes -- e.g., for all the
+    // repaints and picks done while the mouse is just moving over a map -- each
+    // value is computed at most once, and each computation only ever has to go
+    // one level up, as the parent's values will have already been cached.
+    //-----------------------------------------------------------------------------
+
+    private static final int NO_EPOCH = -1;
+    private static final java.util.concurrent.atomic.AtomicInteger MapGeometryEpoch
+        = new java.util.concurrent.atomic.AtomicInteger();
+
+    private void loadMapCache(final int epoch) {
+        final LWContainer parent = this.parent;
+        final double parentScale = parent.getMapScale();
+        mCachedMapX = parent.getMapXPrecise() + getX() * parentScale;
+        mCachedMapY = parent.getMapYPrecise() + getY() * parentScale;
+        mCachedMapScale = parentScale * getScale();
+        mMapCacheEpoch = epoch;
+    }
+
+    /** Our location, scale, transform or parent has changed: flush any cached absolute map geometry that depends on it */
+    protected final void mapGeometryChanged() {
+        if (this instanceof LWContainer) {
+            MapGeometryEpoch.incrementAndGet();
+        } else {
+            mMapCacheEpoch = NO_EPOCH;
+            mZeroTransformEpoch = NO_EPOCH;
         }
     }
 
@@ -5396,10 +5465,18 @@ public class LWComponent
      * 0,0 will draw in the upper left hand corner of the component */
     //create and recursively set a transform to get from the Map to this object's coordinate space
     // note: structure is same in the different transform methods
-    // TODO OPT: can cache this transform: if track all ancestor hierarcy, location AND scale changes,
-    // can skip recomputing it each time.
+    // The returned transform is cached: it must never be modified by the caller.
     public final AffineTransform getZeroTransform() {
-        return loadZeroTransform(_zeroTransform);
+        final int epoch = MapGeometryEpoch.get();
+        if (mZeroTransformEpoch != epoch) {
+            if (parent == null)
+                _zeroTransform.setToIdentity();
+            else
+                _zeroTransform.setTransform(parent.getZeroTransform());
+            transformDownA(_zeroTransform);
+            mZeroTransformEpoch = epoch;
+        }
+        return _zeroTransform;
 //         final AffineTransform a;
 //         if (parent == null) {
 //             a = new AffineTransform();
@@ -5445,6 +5522,8 @@ public class LWComponent
     void setZoomedFocus(AffineTransform tx) {
 
          mTemporaryTransform = tx;
+         mapGeometryChanged();
+         notifyIndexedBoundsChanged();
 
         //linkNotificationDisabled = isZoomedFocus;
     }
@@ -7107,6 +7186,7 @@ public class LWComponent
             if (DEBUG.PARENTING||DEBUG.UNDO||DEBUG.EVENTS)
                 if (parent != null) out("parent not yet null in setDeleted true (ok for undo of creates)");
             this.parent = null;
+            mapGeometryChanged();
         } else
             clearFlag(Flag.DELETED);
     }
@@ -7643,7 +7723,7 @@ public class LWComponent
 
 
     /** @return the map bounds to use for rendering when generating an image of this LWComponent */
-    protected Rectangle2D.Float getImageBounds() {
+    public Rectangle2D.Float getImageBounds() {
         final Rectangle2D.Float bounds = (Rectangle2D.Float) getPaintBounds().clone();
 
         int growth = 1; // just in case / rounding errors
@@ -7955,6 +8035,60 @@ public class LWComponent
 
     }
 
+    /** @return the pixel size of the image createImage would produce at the given zoom */
+    public Dimension getImageSize(double zoom) {
+        final Rectangle2D.Float bounds = getImageBounds();
+        final Size imageSize = new Size(bounds);
+        computeZoomAndSize(bounds, null, zoom, imageSize);
+        return new Dimension(imageSize.pixelWidth(), imageSize.pixelHeight());
+    }
+
+    /**
+     * Draw one tile of the image createImage would produce at the given zoom: the region
+     * of that image at the tile's location (in image pixels) is drawn at 0,0 in the given
+     * GC.  An image of any size can be produced a tile at a time this way without ever
+     * needing memory for the whole image.  Unlike drawImage, only children that intersect
+     * the tile are drawn.
+     *
+     * @param fillColor -- if non-null, will be rendered as background for the tile
+     */
+    public void drawImageTile(Graphics2D g, Color fillColor, double zoom, Rectangle tile)
+    {
+        drawImageTile(g, fillColor, zoom, tile, getImageBounds());
+    }
+
+    /**
+     * As drawImageTile, given the result of getImageBounds(), which for a map means visiting
+     * every child.  Anyone drawing many tiles should get the bounds once and pass them in.
+     */
+    public void drawImageTile(Graphics2D g, Color fillColor, double zoom, Rectangle tile, Rectangle2D.Float bounds)
+    {
+        if (DEBUG.IMAGE) out("drawImageTile: " + fmt(tile) + " zoom " + zoom + " of mapBounds " + fmt(bounds));
+
+        final DrawContext dc = new DrawContext(g, this);
+
+        dc.setInteractive(false);
+        dc.setPrintQuality();
+        dc.setBackgroundFill(getRenderFillColor(null));
+        dc.setClipOptimized(true);
+
+        if (fillColor != null) {
+            g.setColor(fillColor);
+            g.fillRect(0, 0, tile.width, tile.height);
+        }
+
+        g.translate(-tile.x, -tile.y);
+        if (zoom != 1.0)
+            g.scale(zoom, zoom);
+        g.translate(-bounds.getX(), -bounds.getY());
+
+        dc.setMasterClip(new Rectangle2D.Double(bounds.getX() + tile.x / zoom,
+                                                bounds.getY() + tile.y / zoom,
+                                                tile.width / zoom,
+                                                tile.height / zoom));
+        draw(dc);
+    }
+
     private String cleanControlChars(String s) {
     	if (s == null)
     		return null;
@@ -1351,7 +1351,7 @@ public abstract class LWContainer extends LWComponent
 
     }
 
-    private void drawChildSafely(DrawContext _dc, LWComponent c)
+    final void drawChildSafely(DrawContext _dc, LWComponent c)
     {
         // todo opt: potentially use dc.push/pop that instead of creating & disposing
         // GC's, records/resets the transform.
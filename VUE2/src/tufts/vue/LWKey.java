@@ -83,6 +83,9 @@ public interface LWKey {
     public String RepaintAsync = "repaint.async"; // a repaint from an auxillary thread: all visual listeners need immediate repaint
     public String RepaintRegion = "repaint.region";
 
+    /** a single LWCEvent.Batch delivered in place of all the events of an event batch: see LWMap.beginEventBatch */
+    public String EventBatch = "event.batch";
+
     /** link arrow state: 0=none, 1=start arrow, 2=end arrow, 3=both arrows */
     //public String LinkArrows = "link.arrows";
     public LWComponent.Key LinkArrows = LWLink.KEY_LinkArrows;
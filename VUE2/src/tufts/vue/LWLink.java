@@ -1960,6 +1960,12 @@ public class LWLink extends LWComponent
             // inside a collective parent context (or we already marked)
         } else {
             mRecompute = true;
+            // we generate no event for this: let any spatial index know directly
+            notifyIndexedBoundsChanged();
+            // and have the map recompute us (once) before the next paint
+            final LWMap map = getMap();
+            if (map != null)
+                map.queueLinkRecompute(this);
         }
 
         if (DEBUG.CONTAINMENT) {
@@ -2142,6 +2148,12 @@ public class LWLink extends LWComponent
         }
     }
     
+    /** recompute the link now if an endpoint has moved since it was last computed -- see LWMap.recomputeQueuedLinks */
+    void recomputeIfNeeded() {
+        if (mRecompute && getParent() != null && !mXMLRestoreUnderway)
+            computeLink();
+    }
+
     /** @return the shape in it's local context (which for links, is it's parent)
      * note that mCurve/mLine are zero based within their parent: the upper-left x/y of this shape
      * is not actually guaranteed to be 0,0 for links.
@@ -2180,6 +2192,11 @@ public class LWLink extends LWComponent
     }
 
 
+    /** @return the map bounds of the link as of the last time it was computed: it is not re-computed if it's out of date */
+    Rectangle2D.Float getComputedMapBounds() {
+        return super.getMapBounds();
+    }
+
     /** @return getMapBounds() -- border (stroke) already included for links */
     public Rectangle2D.Float getBorderBounds() {
         return getMapBounds();
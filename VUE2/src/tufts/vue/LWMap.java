@@ -240,6 +240,8 @@ public class LWMap extends LWContainer
     }
     
     private UndoManager mUndoManager;
+    /** true if this map was restored from crash-recovery files, and so is modified from the moment it's opened */
+    private boolean mRecovered;
     @Override
     public UndoManager getUndoManager() {
         return mUndoManager;
@@ -249,9 +251,40 @@ public class LWMap extends LWContainer
         if (mUndoManager != null)
             throw new IllegalStateException(this + " already has undo manager " + mUndoManager);
         mUndoManager = um;
-        markAsSaved();
+        if (!mRecovered) // don't lose track of recovered changes
+            markAsSaved();
     }
     
+    /**
+     * Begin collecting the events of a bulk change to the map (e.g., creating thousands of
+     * data nodes, or applying a layout).  Until the matching endEventBatch, listeners on the
+     * map will only be notified of events if they were added with addUnbatchedLWCListener.
+     * At the end of the batch, each remaining listener gets a single LWCEvent.Batch
+     * describing everything that changed (or if the listener was only listening for
+     * certain keys, the original events with those keys, repeats collapsed).  Batches may
+     * be nested.  Every beginEventBatch must be paired with an endEventBatch, normally in a
+     * finally block.  A UserActionCompleted during a batch will deliver everything
+     * collected so far before the UserActionCompleted is delivered.
+     */
+    public void beginEventBatch() {
+        mChangeSupport.beginBatch();
+    }
+
+    /** @see #beginEventBatch */
+    public void endEventBatch() {
+        mChangeSupport.endBatch();
+        if (!mChangeSupport.isBatching()) {
+            // listeners have now seen the batch with any links where they were last
+            // drawn: bring them up to date
+            recomputeQueuedLinks();
+        }
+    }
+
+    /** add a listener that will be notified of every event as it happens, even during an event batch */
+    public synchronized void addUnbatchedLWCListener(Listener listener) {
+        mChangeSupport.addListener(listener, null, true);
+    }
+
     public File getFile() {
         return mFile;
     }
@@ -319,6 +352,14 @@ public class LWMap extends LWContainer
     public void markAsSaved() {
         if (DEBUG.Enabled && mChanges != 0) Log.debug("marking " + mChanges + " modifications as current: " + this);
         mChanges = 0;
+        mRecovered = false;
+        if (mUndoManager != null)
+            mUndoManager.mapSaved();
+    }
+    /** this map has been restored from crash-recovery files: see MapJournal */
+    public void markAsRecovered() {
+        mRecovered = true;
+        markAsModified();
     }
     public boolean isModified() {
         return mChanges > 0;
@@ -331,6 +372,36 @@ public class LWMap extends LWContainer
         return mChangeState;
     }
     
+    /**
+     * Links who's endpoints have moved and need recomputing.  Dragging a node used to
+     * recompute it's links every time anything asked for their bounds (e.g., the spatial
+     * index, on every mouse event), possibly many times per frame.  Now they're queued
+     * here, and all recomputed once, just before the next paint.  So the map doesn't
+     * depend on being painted to have current link geometry, they're also recomputed
+     * once each user action completes, at the end of an event batch, and before saving.
+     */
+    private final Set<LWLink> mLinksToRecompute = new LinkedHashSet();
+
+    void queueLinkRecompute(LWLink link) {
+        synchronized (mLinksToRecompute) {
+            mLinksToRecompute.add(link);
+        }
+    }
+
+    /** recompute any links queued since the last call -- links that have already been recomputed on demand are skipped */
+    public void recomputeQueuedLinks() {
+        final LWLink[] links;
+        synchronized (mLinksToRecompute) {
+            if (mLinksToRecompute.isEmpty())
+                return;
+            links = mLinksToRecompute.toArray(new LWLink[mLinksToRecompute.size()]);
+            mLinksToRecompute.clear();
+        }
+        if (DEBUG.LINK) Log.debug("recomputing " + links.length + " queued links");
+        for (LWLink link : links)
+            link.recomputeIfNeeded();
+    }
+    
     /** @deprecated this api / LWCFilter is no longer used -- always return false */
     public final boolean isCurrentlyFiltered() { return false; }
     /** @deprecated this api / LWCFilter is no longer used -- always return null */
@@ -987,6 +1058,197 @@ public class LWMap extends LWContainer
 //             return true;
 //         }
 
+        //-----------------------------------------------------------------------------
+        // Spatial indexing of the layer contents.  Layers share the map coordinate
+        // space, so the map bounds of our children only change when the children
+        // themselves (or something inside them) change, which we always hear about via
+        // broadcastChildEvent.  The index is built lazily on first use, entries are
+        // marked stale as events come in and re-fetched at the next query, and any
+        // change in the child list itself simply throws the index away.
+        //-----------------------------------------------------------------------------
+
+        /** layers with fewer children than this don't bother with an index: they just scan all their children */
+        static final int IndexThreshold = 64;
+
+        private transient SpatialIndex<LWComponent> mIndex;
+        /** z-order of each child at the time the index was built */
+        private transient Map<LWComponent,Integer> mIndexOrder;
+        private transient final Set<LWComponent> mIndexStale = new HashSet();
+
+        private final Comparator<LWComponent> IndexZOrder = new Comparator<LWComponent>() {
+                public int compare(LWComponent c1, LWComponent c2) {
+                    return mIndexOrder.get(c1) - mIndexOrder.get(c2);
+                }
+            };
+
+        /** @return true if we have enough children that queries should go through the spatial index */
+        boolean isIndexed() {
+            return mChildren.size() >= IndexThreshold;
+        }
+
+        private void flushIndex() {
+            if (mIndex != null && DEBUG.PICK) Log.debug("flushing index " + mIndex + " for " + this);
+            mIndex = null;
+            mIndexOrder = null;
+            synchronized (mIndexStale) {
+                mIndexStale.clear();
+            }
+        }
+
+        /** The map bounds of the given descendent may have changed: mark it's top-level ancestor in this layer stale */
+        void indexedBoundsChanged(LWComponent c) {
+            if (mIndex == null)
+                return;
+            while (c != null && c.getParent() != this)
+                c = c.getParent();
+            if (c != null) {
+                synchronized (mIndexStale) {
+                    mIndexStale.add(c);
+                }
+            }
+        }
+
+        private void indexChild(SpatialIndex<LWComponent> index, LWComponent c)
+        {
+            // Anything with pathway entries may have slide icons hanging off it that don't report
+            // their bounds in any reliable way, and a zoomed rollover is temporarily picked at a
+            // different scale, so these always need checking.  (See the matching "hasEntriesHack"
+            // in LWComponent.requiresPaintImpl)
+
+            if (c.isZoomedFocus() || c.hasEntries()) {
+                index.putUnbounded(c);
+                return;
+            }
+            final Rectangle2D.Float bounds = c.getPaintBounds();
+            if (c.hasChildren()) {
+                // children can stray outside the bounds of their parent (e.g., curved links)
+                for (LWComponent d : c.getAllDescendents(ChildKind.PROPER)) {
+                    if (d.isZoomedFocus() || d.hasEntries()) {
+                        index.putUnbounded(c);
+                        return;
+                    }
+                    accumulate(bounds, d.getPaintBounds(), d, "indexBounds");
+                }
+            }
+            index.put(c, bounds);
+        }
+
+        /** @return an up-to-date spatial index of our children */
+        private SpatialIndex<LWComponent> getSpatialIndex()
+        {
+            SpatialIndex<LWComponent> index = mIndex;
+
+            if (index == null || index.size() != mChildren.size()) {
+
+                // a size mismatch means the child list was changed out from under us with
+                // events turned off (e.g., during restore)
+
+                final long start = DEBUG.PERF ? System.nanoTime() : 0;
+
+                index = new SpatialIndex();
+                final Map<LWComponent,Integer> order = new HashMap(mChildren.size() * 2);
+                int z = 0;
+                for (LWComponent c : mChildren) {
+                    order.put(c, z++);
+                    indexChild(index, c);
+                }
+                synchronized (mIndexStale) {
+                    mIndexStale.clear();
+                }
+                mIndexOrder = order;
+                mIndex = index;
+
+                if (DEBUG.PERF) Log.debug(String.format("indexed %d children in %.1fms; %s",
+                                                        mChildren.size(), (System.nanoTime() - start) / 1e6, this));
+            } else {
+                final LWComponent[] stale;
+                synchronized (mIndexStale) {
+                    if (mIndexStale.isEmpty())
+                        return index;
+                    stale = mIndexStale.toArray(new LWComponent[mIndexStale.size()]);
+                    mIndexStale.clear();
+                }
+                for (LWComponent c : stale) {
+                    if (c.getParent() == this)
+                        indexChild(index, c);
+                    else
+                        index.remove(c);
+                }
+            }
+            return index;
+        }
+
+        /**
+         * @return those of our children that might be found within the given region, in z-order.
+         * The results are dumped into stored, which will be returned.
+         */
+        synchronized List<LWComponent> getChildrenInRegion(float x, float y, float width, float height, List<LWComponent> stored)
+        {
+            stored.clear();
+            getSpatialIndex().query(x, y, width, height, stored);
+            if (stored.size() > 1)
+                Collections.sort(stored, IndexZOrder);
+            return stored;
+        }
+
+        /** @return our children, filtered through our spatial index if we're large enough to have one */
+        @Override
+        public List<LWComponent> getPickList(PickContext pc, List<LWComponent> stored) {
+            if (isIndexed()) {
+                final float slop = pc.getMaxSlop();
+                return getChildrenInRegion(pc.x - slop,
+                                           pc.y - slop,
+                                           pc.width + slop * 2,
+                                           pc.height + slop * 2,
+                                           stored);
+            } else
+                return getChildren();
+        }
+
+        /**
+         * If we're large enough to be indexed, only visit those children that intersect the master clip
+         * rect, so that the cost of painting depends on what's visible, not on how big the map is.
+         */
+        @Override
+        protected void drawChildren(DrawContext dc)
+        {
+            if (!isIndexed() || !dc.isClipOptimized()) {
+                super.drawChildren(dc);
+                return;
+            }
+
+            final Rectangle2D clip = dc.getMasterClipRect();
+            final List<LWComponent> visible = getChildrenInRegion((float) clip.getX(),
+                                                                  (float) clip.getY(),
+                                                                  (float) clip.getWidth(),
+                                                                  (float) clip.getHeight(),
+                                                                  new ArrayList());
+            if (DEBUG.PAINT && DEBUG.META) Log.debug("drawing " + visible.size() + " of " + mChildren.size() + " in " + this);
+
+            for (LWComponent c : visible) {
+                // requiresPaint still needed: the index is only a conservative first cut, and
+                // doesn't know about hidden, filtered, etc.
+                if (c.requiresPaint(dc))
+                    drawChildSafely(dc, c);
+            }
+        }
+
+        @Override
+        void broadcastChildEvent(LWCEvent e) {
+            if (mIndex != null && e.component != null && e.component != this)
+                indexedBoundsChanged(e.component);
+            super.broadcastChildEvent(e);
+        }
+
+        @Override
+        protected void notifyLWCListeners(LWCEvent e) {
+            if (e.component == this && (e.key == LWKey.HierarchyChanging ||
+                                        e.key == LWKey.ChildrenAdded ||
+                                        e.key == LWKey.ChildrenRemoved))
+                flushIndex();
+            super.notifyLWCListeners(e);
+        }
+
         @Override
         protected boolean intersectsImpl(Rectangle2D mapRect) {
             // must always return FALSE otherwise can be picked via a region pick
@@ -1574,6 +1836,34 @@ public class LWMap extends LWContainer
         markAsSaved();
     }
 
+    /**
+     * Complete the restore of components that were restored on their own, rather than
+     * with the rest of the map (see MapJournal).  This is the portion of
+     * completeXMLRestore that applies to them: resources are initialized, everything is
+     * laid out, and we make sure no new ID we hand out will collide with theirs.
+     *
+     * @param restored all the restored components, in depth-first order (Order.DEPTH)
+     */
+    void completeFragmentRestore(Collection<LWComponent> restored)
+    {
+        final Collection<Resource> resources = new ArrayList();
+        for (LWComponent c : restored)
+            if (c.hasResource())
+                resources.add(c.getResource());
+
+        runResourceDeserializeInits(resources);
+        if (mSaveLocationURI != null)
+            restoreRelativeLocations(resources, mSaveLocationURI);
+        runResourceFinalInits(resources);
+        mResourceFactory.loadResources(resources);
+
+        layoutAllAfterRestore(restored, INIT_LAYOUT);
+
+        final int nextID = findGreatestID(restored) + 1;
+        if (nextID > mNextID.get())
+            mNextID.set(nextID);
+    }
+
     class ResourceFactory extends Resource.DefaultFactory {
 
         private final Map<String,Resource> resourceMap = new java.util.concurrent.ConcurrentHashMap();
@@ -1677,6 +1967,8 @@ public class LWMap extends LWContainer
      */
     public void makeReadyForSaving(File file) {
 
+        recomputeQueuedLinks(); // we may not have been painted since the last change
+
         if (file == null) {
             Log.debug("makeReadyForSaving: null file, must be archive");
             return;
@@ -2291,6 +2583,8 @@ public class LWMap extends LWContainer
         }
         super.notifyLWCListeners(e);
 
+        if (e.key == LWKey.UserActionCompleted)
+            recomputeQueuedLinks();
     }
 
     /** javac should be smart enough to automatically create a single instance of these closures
@@ -77,8 +77,18 @@ public abstract  class LayoutAction extends Actions.LWCAction
     }
     public void act(LWSelection selection, boolean autoFit) {
         if (DEBUG.Enabled) Log.debug(this + "; autoFit=" + autoFit);
+        final LWMap map = selection.size() > 0 ? selection.first().getMap() : null;
         try {
-            layout.layout(selection);
+            if (map != null) {
+                map.beginEventBatch();
+                try {
+                    layout.layout(selection);
+                } finally {
+                    map.endEventBatch();
+                }
+            } else {
+                layout.layout(selection);
+            }
             if (DEBUG.Enabled)Log.debug("autoFit: "+autoFit+" s.size "+selection.size()+" map.size:"+VUE.getActiveMap().getAllDescendents(LWContainer.ChildKind.PROPER).size());
             if (autoFit || (selection.size() == VUE.getActiveMap().getAllDescendents(LWContainer.ChildKind.PROPER).size())) {
             	 ZoomTool.setZoomOutFit();
@@ -105,6 +115,9 @@ public abstract  class LayoutAction extends Actions.LWCAction
     public static final LayoutAction force = new LayoutAction(new ForceLayout(),VueResources.getString("menu.format.layout.force"), KeyEvent.VK_QUOTE) {
         boolean supportsSingleMover() { return false; }
     };
+    public static final LayoutAction forceDirected = new LayoutAction(new ForceDirectedLayout(),VueResources.getString("menu.format.layout.forcedirected")) {
+        boolean supportsSingleMover() { return false; }
+    };
     public static final LayoutAction hierarchical = new LayoutAction(new HierarchicalLayout(),VueResources.getString("menu.format.layout.hierarchical"), KeyEvent.VK_BACK_SLASH) {
         boolean supportsSingleMover() { return false; }
         boolean enabledFor(LWSelection selection ) { return true;}
@@ -147,6 +160,7 @@ public abstract  class LayoutAction extends Actions.LWCAction
         hierarchical2,
         hierarchical3,
         force,
+        forceDirected,
         null,
         Actions.PullInLinked,
         Actions.PushOutLinked,
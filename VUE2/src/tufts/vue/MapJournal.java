@@ -0,0 +1,997 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import tufts.Util;
+
+import java.io.*;
+import java.util.*;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.geom.Point2D;
+
+/**
+ * A crash-recovery journal for a map that has a save file.  Fed the same LWCEvents the
+ * map's UndoManager sees, it records each change, and every second appends the changes
+ * from completed user actions to a journal file, on a background thread.
+ *
+ * Property changes are journaled as their new value, or if the value is of a type we
+ * can't encode, with the XML of the whole component, from which the value is taken on
+ * replay.  Components added to the map are journaled with their XML, so they can be
+ * re-created on replay, and removals & re-orderings are journaled by ID.
+ *
+ * The few changes that can't be journaled (e.g., to pathways) instead request a
+ * snapshot: a full save of the map to the recovery folder, after which a new journal is
+ * begun.  The map is marshalled into memory on the event thread, between events, so
+ * the snapshot is consistent, and then written out in the background.  These snapshots
+ * are never taken more often than every SNAPSHOT_INTERVAL.  When a journal grows larger
+ * than MAX_JOURNAL_BYTES, it's compacted on the background thread: a copy of the map is
+ * loaded from the last snapshot, the journal is replayed over it, and the copy is
+ * written out as the next snapshot.  Snapshot & journal files are numbered by
+ * generation: journal N holds the changes made after snapshot N, and generation 0 is
+ * the map's own save file.
+ *
+ * All recovery files are deleted whenever the map is saved, or the user closes it
+ * without saving.  If VUE exits without doing either, the next time the map file is
+ * opened, the user is offered the chance to recover it (see recover).
+ */
+public final class MapJournal
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapJournal.class);
+
+    private static final boolean ENABLED = "true".equalsIgnoreCase(VueResources.getString("journal.enabled", "true"));
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final long SNAPSHOT_INTERVAL = VueResources.getInt("journal.snapshotSeconds", 60) * 1000L;
+    /** if a journal gets bigger than this, we'll compact it to keep replay times down */
+    private static final long MAX_JOURNAL_BYTES = 4*1024*1024;
+
+    private static final int MAGIC = 0x56554A32; // "VUJ2"
+    private static final Timer JournalTimer = new Timer("MapJournal", true);
+
+    // entry type tags
+    private static final byte E_SET = 1, E_STATE = 2, E_ADD = 3, E_REMOVE = 4, E_ORDER = 5, E_CONNECT = 6;
+
+    // value type tags
+    private static final byte T_NULL = 0, T_STRING = 1, T_INT = 2, T_LONG = 3, T_FLOAT = 4, T_DOUBLE = 5,
+        T_BOOLEAN = 6, T_COLOR = 7, T_POINT = 8, T_SIZE = 9, T_FONT = 10, T_ENUM = 11;
+
+    // event keys that aren't LWComponent.Key's, but that we can still journal
+    private static final String KEY_AUTOSIZED = "node.autosized";
+    private static final String KEY_HEAD_CONNECT = "link.head.connect";
+    private static final String KEY_TAIL_CONNECT = "link.tail.connect";
+
+    private final LWMap mMap;
+
+    /** encoded changes for the user action underway: only touched on the event thread */
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private DataOutputStream mPendingOut = new DataOutputStream(mPending);
+    private int mPendingCount;
+
+    /**
+     * Encoded changes from completed user actions (byte[]), and snapshots of the map
+     * (Snapshot), in the order they happened, waiting to be written -- guarded by this
+     */
+    private final List<Object> mCommitted = new ArrayList();
+    private boolean mSnapshotRequested;
+    private boolean mSnapshotPosted;
+    private long mLastSnapshot;
+    private boolean mSaved;
+    private boolean mClosed;
+
+    // the remaining fields are only touched on the timer thread
+    private File mBaseFile; // the map file our recovery files are for
+    private int mGeneration;
+    private DataOutputStream mJournalOut;
+    private FileOutputStream mJournalStream;
+
+    private static final class Snapshot {
+        final byte[] bytes;
+        Snapshot(byte[] bytes) { this.bytes = bytes; }
+    }
+
+    private final TimerTask mFlushTask = new TimerTask() {
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    Log.warn("flush failed for " + mMap, t);
+                }
+            }
+        };
+
+    /** run on the event thread, so we never see the map part way through a change */
+    private final Runnable mSnapshotTask = new Runnable() {
+            public void run() {
+                synchronized (MapJournal.this) {
+                    mSnapshotPosted = false;
+                    if (mClosed || !mSnapshotRequested)
+                        return;
+                    mSnapshotRequested = false;
+                    mLastSnapshot = System.currentTimeMillis();
+                }
+                final byte[] bytes;
+                try {
+                    bytes = marshal(mMap);
+                } catch (Throwable t) {
+                    Log.warn("snapshot failed for " + mMap + "; " + t);
+                    requestSnapshot(); // try again later
+                    return;
+                }
+                synchronized (MapJournal.this) {
+                    if (!mClosed)
+                        mCommitted.add(new Snapshot(bytes));
+                }
+            }
+        };
+
+    MapJournal(LWMap map) {
+        mMap = map;
+        if (ENABLED)
+            JournalTimer.schedule(mFlushTask, FLUSH_INTERVAL, FLUSH_INTERVAL);
+        if (map.isModified()) // e.g., just recovered: we've nothing to replay over until we snapshot
+            requestSnapshot();
+    }
+
+    //-----------------------------------------------------------------------------
+    // Called on the event thread
+    //-----------------------------------------------------------------------------
+
+    /** note the given change to the map: see UndoManager.LWCChanged */
+    void record(LWCEvent e)
+    {
+        if (!ENABLED || mClosed)
+            return;
+
+        final Object key = e.key;
+
+        // HierarchyChanging always preceeds the change itself, which we'll journal, a
+        // new component is journaled when it's added to the map, and link add/remove
+        // events are informational only: the change is journaled from the link's own
+        // connect event.
+        if (key == LWKey.HierarchyChanging || key == LWKey.Created || key == LWKey.LinkAdded || key == LWKey.LinkRemoved)
+            return;
+
+        final int mark = mPending.size();
+        final int count = mPendingCount;
+        try {
+            if (key == LWKey.ChildrenAdded)
+                recordAdded(e.getSource(), e.getComponents());
+            else if (key == LWKey.ChildrenRemoved)
+                recordRemoved(e.getSource(), e.getComponents());
+            else if (e.getName().startsWith("hier."))
+                recordOrder(e.getSource());
+            else if (e.hasOldValue()) // an undoable model change
+                recordProperty(e.getComponent(), key);
+        } catch (Throwable t) {
+            Log.warn("journal record failed for " + e + "; requesting snapshot", t);
+            truncatePending(mark, count);
+            requestSnapshot();
+        }
+    }
+
+    private void recordProperty(LWComponent c, Object key)
+        throws Exception
+    {
+        if (c == null) {
+            requestSnapshot();
+            return;
+        }
+
+        if (key == KEY_HEAD_CONNECT || key == KEY_TAIL_CONNECT) {
+            recordConnect((LWLink) c, key == KEY_HEAD_CONNECT);
+            return;
+        }
+
+        final String keyName = keyName(key);
+        if (keyName == null) {
+            requestSnapshot();
+            return;
+        }
+
+        final int mark = mPending.size();
+        mPendingOut.writeByte(E_SET);
+        mPendingOut.writeUTF(c.getID());
+        mPendingOut.writeUTF(keyName);
+        if (writeValue(mPendingOut, valueOf(c, key))) {
+            mPendingCount++;
+        } else {
+            // can't represent the value: journal the whole component instead
+            truncatePending(mark, mPendingCount);
+            mPendingOut.writeByte(E_STATE);
+            mPendingOut.writeUTF(c.getID());
+            mPendingOut.writeUTF(keyName);
+            writeLongUTF(mPendingOut, tufts.vue.action.ActionUtil.marshallComponent(c));
+            mPendingCount++;
+        }
+    }
+
+    private void recordConnect(LWLink link, boolean head)
+        throws IOException
+    {
+        final LWComponent endpoint = head ? link.getHead() : link.getTail();
+        mPendingOut.writeByte(E_CONNECT);
+        mPendingOut.writeUTF(link.getID());
+        mPendingOut.writeBoolean(head);
+        mPendingOut.writeUTF(endpoint == null ? "" : endpoint.getID());
+        mPendingCount++;
+    }
+
+    private void recordAdded(Object source, List<LWComponent> added)
+        throws Exception
+    {
+        if (source instanceof LWContainer == false || source instanceof LWPathway) {
+            requestSnapshot();
+            return;
+        }
+        final LWContainer parent = (LWContainer) source;
+
+        final Map<LWComponent,Boolean> addedSet = new IdentityHashMap();
+        for (LWComponent c : added)
+            addedSet.put(c, Boolean.TRUE);
+
+        // Journal in order of their final position, so that on replay, inserting each
+        // at it's index puts them all back where they were.
+        final List<LWComponent> present = new ArrayList(added.size());
+        int index = 0;
+        for (LWComponent c : parent.getChildren()) {
+            if (addedSet.containsKey(c)) {
+                mPendingOut.writeByte(E_ADD);
+                mPendingOut.writeUTF(parent.getID());
+                mPendingOut.writeInt(index);
+                mPendingOut.writeUTF(c.getID());
+                writeLongUTF(mPendingOut, tufts.vue.action.ActionUtil.marshallComponent(c));
+                mPendingCount++;
+                present.add(c);
+            }
+            index++;
+        }
+
+        // A link may have been added ahead of an endpoint that was added with it, in
+        // which case it's endpoint won't be found when it's restored: connect them after.
+        for (LWComponent c : present) {
+            if (c instanceof LWLink) {
+                recordConnect((LWLink) c, true);
+                recordConnect((LWLink) c, false);
+            }
+        }
+    }
+
+    private void recordRemoved(Object source, List<LWComponent> removed)
+        throws IOException
+    {
+        if (source instanceof LWContainer == false || source instanceof LWPathway) {
+            requestSnapshot();
+            return;
+        }
+        final LWContainer parent = (LWContainer) source;
+        for (LWComponent c : removed) {
+            mPendingOut.writeByte(E_REMOVE);
+            mPendingOut.writeUTF(parent.getID());
+            mPendingOut.writeUTF(c.getID());
+            mPendingOut.writeBoolean(c.isDeleted());
+            mPendingCount++;
+        }
+    }
+
+    /** the children of the given container have been re-ordered (or restored by an undo) */
+    private void recordOrder(Object source)
+        throws IOException
+    {
+        if (source instanceof LWContainer == false || source instanceof LWPathway) {
+            requestSnapshot();
+            return;
+        }
+        final LWContainer parent = (LWContainer) source;
+        mPendingOut.writeByte(E_ORDER);
+        mPendingOut.writeUTF(parent.getID());
+        mPendingOut.writeInt(parent.numChildren());
+        for (LWComponent c : parent.getChildren())
+            mPendingOut.writeUTF(c.getID());
+        mPendingCount++;
+    }
+
+    /** the user action is complete: it's changes can now be written out */
+    void commit()
+    {
+        if (mPendingCount == 0)
+            return;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(mPending.size() + 4);
+        try {
+            new DataOutputStream(bytes).writeInt(mPendingCount);
+            mPending.writeTo(bytes);
+        } catch (IOException e) {
+            // can't happen for byte array streams
+            Log.error(e);
+        }
+        resetPending();
+        synchronized (this) {
+            mCommitted.add(bytes.toByteArray());
+        }
+    }
+
+    /** the map is saved: anything we have is now obsolete */
+    void mapSaved() {
+        resetPending();
+        synchronized (this) {
+            mCommitted.clear();
+            mSnapshotRequested = false;
+            mSaved = true;
+        }
+    }
+
+    /** stop journaling, and if discard is true, delete the recovery files */
+    void close(final boolean discard) {
+        synchronized (this) {
+            mClosed = true;
+            mCommitted.clear();
+        }
+        mFlushTask.cancel();
+        resetPending();
+        // all file handling happens on the timer thread
+        JournalTimer.schedule(new TimerTask() {
+                public void run() {
+                    closeJournal();
+                    if (discard)
+                        deleteRecoveryFiles();
+                }
+            }, 0);
+    }
+
+    /** may be called from any thread */
+    private synchronized void requestSnapshot() {
+        mSnapshotRequested = true;
+    }
+
+    private void resetPending() {
+        mPending = new ByteArrayOutputStream();
+        mPendingOut = new DataOutputStream(mPending);
+        mPendingCount = 0;
+    }
+
+    /** drop anything written to the pending changes after the given size & entry count */
+    private void truncatePending(int size, int count) {
+        final byte[] keep = mPending.toByteArray();
+        mPending = new ByteArrayOutputStream();
+        mPending.write(keep, 0, size);
+        mPendingOut = new DataOutputStream(mPending);
+        mPendingCount = count;
+    }
+
+    //-----------------------------------------------------------------------------
+    // Called on the timer thread
+    //-----------------------------------------------------------------------------
+
+    private void flush()
+        throws IOException
+    {
+        final List<Object> committed;
+        final boolean saved;
+        final boolean compactable;
+        synchronized (this) {
+            if (mClosed)
+                return;
+            if (mSnapshotRequested && !mSnapshotPosted && System.currentTimeMillis() - mLastSnapshot >= SNAPSHOT_INTERVAL) {
+                mSnapshotPosted = true;
+                javax.swing.SwingUtilities.invokeLater(mSnapshotTask);
+            }
+            saved = mSaved;
+            if (mCommitted.isEmpty() && !saved)
+                return;
+            committed = new ArrayList(mCommitted);
+            mCommitted.clear();
+            mSaved = false;
+            // if we're waiting on a snapshot, there's a change the journal doesn't have
+            compactable = !mSnapshotRequested;
+        }
+
+        if (saved)
+            deleteRecoveryFiles();
+
+        final File base = mMap.getFile();
+        if (base == null) // we've nothing to recover against
+            return;
+        if (!base.equals(mBaseFile)) {
+            // first time, or the map was saved elsewhere
+            closeJournal();
+            deleteRecoveryFiles();
+            mBaseFile = base;
+            mGeneration = 0;
+        }
+
+        int actions = 0;
+        for (Object item : committed) {
+            if (item instanceof Snapshot) {
+                if (mJournalOut != null)
+                    syncJournal();
+                if (!writeSnapshot(((Snapshot)item).bytes))
+                    requestSnapshot(); // try again later
+            } else {
+                if (mJournalOut == null)
+                    openJournal();
+                mJournalOut.write((byte[]) item);
+                actions++;
+            }
+        }
+
+        if (mJournalOut == null)
+            return;
+        syncJournal();
+
+        if (DEBUG.IO) Log.debug("journaled " + actions + " actions to generation " + mGeneration + " for " + mMap);
+
+        if (compactable && mJournalOut.size() > MAX_JOURNAL_BYTES)
+            compact();
+    }
+
+    private void syncJournal()
+        throws IOException
+    {
+        mJournalOut.flush();
+        mJournalStream.getFD().sync();
+    }
+
+    /**
+     * Replay the current journal over a copy of the map loaded from the current
+     * generation, and write that out as the next snapshot.  The map itself is never
+     * touched, so this can run entirely in the background.
+     */
+    private void compact()
+    {
+        closeJournal();
+        final File journal = recoveryFile("journal" + mGeneration);
+        final long start = System.currentTimeMillis();
+        try {
+            final LWMap copy = loadGeneration(mBaseFile, mGeneration);
+            replay(journal, copy);
+            if (!writeSnapshot(marshal(copy)))
+                requestSnapshot();
+            else if (DEBUG.IO) Log.debug("compacted " + journal + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Throwable t) {
+            // e.g., generation 0 is a map we can't re-load: fall back to a snapshot of the map itself
+            Log.warn("compaction failed for " + mMap + "; requesting snapshot; " + t);
+            requestSnapshot();
+        }
+    }
+
+    /** @return true if successful, in which case we've moved on to the next generation */
+    private boolean writeSnapshot(byte[] bytes)
+    {
+        final int generation = mGeneration + 1;
+        final File snapshot = recoveryFile("snapshot" + generation + VueUtil.VueExtension);
+        final File tmp = recoveryFile("snapshot" + generation + ".tmp");
+        try {
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(snapshot))
+                throw new IOException("failed to rename " + tmp + " to " + snapshot);
+        } catch (Throwable t) {
+            Log.warn("snapshot failed for " + mMap + "; " + t);
+            tmp.delete();
+            return false;
+        }
+        // only now that the snapshot is complete can the prior generation go
+        closeJournal();
+        deleteGeneration(mGeneration);
+        mGeneration = generation;
+        Log.info("recovery snapshot " + snapshot + " for " + mMap);
+        return true;
+    }
+
+    private static byte[] marshal(LWMap map)
+        throws Exception
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64*1024);
+        final Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+        tufts.vue.action.ActionUtil.marshallMapQuietly(map, writer);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    private void openJournal()
+        throws IOException
+    {
+        final File file = recoveryFile("journal" + mGeneration);
+        final boolean exists = file.exists() && file.length() > 0;
+        mJournalStream = new FileOutputStream(file, true);
+        mJournalOut = new DataOutputStream(new BufferedOutputStream(mJournalStream));
+        if (!exists) {
+            mJournalOut.writeInt(MAGIC);
+            mJournalOut.writeUTF(mBaseFile.getAbsolutePath());
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalOut == null)
+            return;
+        try {
+            mJournalOut.close();
+        } catch (IOException e) {
+            Log.warn("closing journal for " + mMap + ": " + e);
+        }
+        mJournalOut = null;
+        mJournalStream = null;
+    }
+
+    private File recoveryFile(String suffix) {
+        return recoveryFile(mBaseFile, suffix);
+    }
+
+    private void deleteGeneration(int generation) {
+        recoveryFile("journal" + generation).delete();
+        if (generation > 0)
+            recoveryFile("snapshot" + generation + VueUtil.VueExtension).delete();
+    }
+
+    private void deleteRecoveryFiles() {
+        if (mBaseFile == null)
+            mBaseFile = mMap.getFile();
+        if (mBaseFile == null)
+            return;
+        closeJournal();
+        for (File f : findRecoveryFiles(mBaseFile))
+            f.delete();
+        mGeneration = 0;
+    }
+
+    //-----------------------------------------------------------------------------
+    // Recovery
+    //-----------------------------------------------------------------------------
+
+    /**
+     * If there are recovery files for the given map file that are newer than it, offer to
+     * recover them, and if accepted, return the recovered map, otherwise the given map.  If
+     * declined, the recovery files are deleted.
+     */
+    public static LWMap recover(File file, LWMap map)
+    {
+        if (!ENABLED || file == null || map == null)
+            return map;
+
+        final Collection<File> files = findRecoveryFiles(file);
+        if (files.isEmpty())
+            return map;
+
+        final String prefix = recoveryPrefix(file);
+        int generation = -1;
+        for (File f : files) {
+            final int g = generationOf(f.getName().substring(prefix.length()));
+            if (g > generation && f.lastModified() >= file.lastModified())
+                generation = g;
+        }
+
+        if (generation < 0) {
+            // anything we found is older than the map file itself: it's been saved since (e.g., by another VUE)
+            for (File f : files)
+                f.delete();
+            return map;
+        }
+
+        final int response = VueUtil.confirm(VueResources.getFormatMessage(new Object[] { file.getName() }, "journal.recover.message"),
+                                             VueResources.getString("journal.recover.title"));
+        if (response != javax.swing.JOptionPane.YES_OPTION) {
+            for (File f : files)
+                f.delete();
+            return map;
+        }
+
+        try {
+            final LWMap recovered = generation == 0 ? map : loadGeneration(file, generation);
+            final File journal = recoveryFile(file, "journal" + generation);
+            if (journal.exists())
+                replay(journal, recovered);
+            recovered.markAsRecovered();
+            Log.info("recovered " + recovered + " from generation " + generation);
+            return recovered;
+        } catch (Throwable t) {
+            Log.error("recovery failed for " + file, t);
+            VueUtil.alert(VueResources.getString("journal.recover.failed") + "\n" + Util.formatLines(t.toString(), 80),
+                          VueResources.getString("journal.recover.title"));
+            return map;
+        }
+    }
+
+    /** load the map as of the start of the given generation: the map file itself for generation 0 */
+    private static LWMap loadGeneration(File base, int generation)
+        throws IOException
+    {
+        if (generation == 0)
+            return tufts.vue.action.ActionUtil.unmarshallMap(base);
+        final LWMap map = tufts.vue.action.ActionUtil.unmarshallMap(recoveryFile(base, "snapshot" + generation + VueUtil.VueExtension));
+        map.setFile(base);
+        return map;
+    }
+
+    private static void replay(File journal, LWMap map)
+        throws IOException
+    {
+        final Map<String,LWComponent> byID = new HashMap();
+        byID.put(map.getID(), map);
+        for (LWComponent c : map.getAllDescendents(LWComponent.ChildKind.ANY))
+            byID.put(c.getID(), c);
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        int actions = 0, changes = 0, skipped = 0;
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a VUE journal: " + journal);
+            in.readUTF(); // the original path
+            for (;;) {
+                // read an entire user action before applying any of it, so a partially written
+                // action at the end of the journal (e.g., we crashed mid-write) is skipped
+                final int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final List<Object[]> entries = new ArrayList(count);
+                try {
+                    for (int i = 0; i < count; i++)
+                        entries.add(readEntry(in));
+                } catch (EOFException e) {
+                    Log.info("journal " + journal + " ends in an incomplete action: ignored");
+                    break;
+                }
+                for (Object[] entry : entries) {
+                    try {
+                        if (apply(entry, map, byID))
+                            changes++;
+                        else
+                            skipped++;
+                    } catch (Throwable t) {
+                        Log.warn("replay failed on " + Arrays.asList(entry) + "; " + t);
+                        skipped++;
+                    }
+                }
+                actions++;
+            }
+        } finally {
+            in.close();
+        }
+        Log.info(String.format("replayed %d actions (%d changes, %d skipped) from %s", actions, changes, skipped, journal));
+    }
+
+    /** @return the entry as it's type tag followed by it's fields */
+    private static Object[] readEntry(DataInputStream in)
+        throws IOException
+    {
+        final byte type = in.readByte();
+        switch (type) {
+        case E_SET:
+            return new Object[] { type, in.readUTF(), in.readUTF(), readValue(in) };
+        case E_STATE:
+            return new Object[] { type, in.readUTF(), in.readUTF(), readLongUTF(in) };
+        case E_ADD:
+            return new Object[] { type, in.readUTF(), in.readInt(), in.readUTF(), readLongUTF(in) };
+        case E_REMOVE:
+            return new Object[] { type, in.readUTF(), in.readUTF(), in.readBoolean() };
+        case E_ORDER:
+            final String parentID = in.readUTF();
+            final Object[] entry = new Object[in.readInt() + 2];
+            entry[0] = type;
+            entry[1] = parentID;
+            for (int i = 2; i < entry.length; i++)
+                entry[i] = in.readUTF();
+            return entry;
+        case E_CONNECT:
+            return new Object[] { type, in.readUTF(), in.readBoolean(), in.readUTF() };
+        default:
+            throw new IOException("bad entry type in journal: " + type);
+        }
+    }
+
+    /** @return false if the entry no longer applies (e.g., what it changed can't be found) */
+    private static boolean apply(Object[] entry, LWMap map, Map<String,LWComponent> byID)
+        throws Exception
+    {
+        final byte type = (Byte) entry[0];
+        switch (type) {
+
+        case E_SET: {
+            final LWComponent c = byID.get(entry[1]);
+            final Object key = keyForName((String) entry[2]);
+            if (c == null || key == null)
+                return false;
+            setValue(c, key, entry[3]);
+            return true;
+        }
+
+        case E_STATE: {
+            final LWComponent c = byID.get(entry[1]);
+            final Object key = keyForName((String) entry[2]);
+            if (c == null || key == null)
+                return false;
+            // restore a throw-away copy of the component, with no references to
+            // anything in the map, just to get the value from it
+            final LWComponent copy = tufts.vue.action.ActionUtil.unmarshallComponent((String) entry[3], null);
+            map.completeFragmentRestore(restoredTree(copy));
+            setValue(c, key, copy.getPropertyValue(key));
+            return true;
+        }
+
+        case E_ADD: {
+            final LWComponent parentRef = byID.get(entry[1]);
+            if (parentRef instanceof LWContainer == false)
+                return false;
+            final LWContainer parent = (LWContainer) parentRef;
+            LWComponent c = byID.get(entry[3]);
+            Collection<LWComponent> restored = null;
+            if (c == null) {
+                c = tufts.vue.action.ActionUtil.unmarshallComponent((String) entry[4], byID);
+                restored = restoredTree(c);
+                for (LWComponent r : restored)
+                    byID.put(r.getID(), r);
+            } else if (c.getParent() == parent && parent.hasChild(c)) {
+                return true; // already here: e.g., the add is also in the snapshot we're replaying over
+            } else if (c.isDeleted()) {
+                c.restoreToModel();
+            }
+            final int index = Math.min((Integer) entry[2], parent.numChildren());
+            parent.addChildren(Collections.singletonList(c), Integer.valueOf(index));
+            if (restored != null)
+                map.completeFragmentRestore(restored);
+            return true;
+        }
+
+        case E_REMOVE: {
+            final LWComponent parentRef = byID.get(entry[1]);
+            final LWComponent c = byID.get(entry[2]);
+            if (parentRef instanceof LWContainer == false || c == null || c.getParent() != parentRef)
+                return false;
+            final LWContainer parent = (LWContainer) parentRef;
+            if ((Boolean) entry[3])
+                parent.deleteChildrenPermanently(Collections.singletonList(c));
+            else
+                parent.removeChildren(Collections.singletonList(c), null);
+            return true;
+        }
+
+        case E_ORDER: {
+            final LWComponent parentRef = byID.get(entry[1]);
+            if (parentRef instanceof LWContainer == false)
+                return false;
+            final LWContainer parent = (LWContainer) parentRef;
+            final Map<LWComponent,Boolean> placed = new IdentityHashMap();
+            final List<LWComponent> ordered = new ArrayList(parent.numChildren());
+            for (int i = 2; i < entry.length; i++) {
+                final LWComponent c = byID.get(entry[i]);
+                if (c != null && c.getParent() == parent && placed.put(c, Boolean.TRUE) == null)
+                    ordered.add(c);
+            }
+            for (LWComponent c : parent.getChildren()) {
+                // anything the journal didn't know about stays on top
+                if (placed.put(c, Boolean.TRUE) == null)
+                    ordered.add(c);
+            }
+            parent.getChildren().clear();
+            parent.getChildren().addAll(ordered);
+            parent.layout();
+            return true;
+        }
+
+        case E_CONNECT: {
+            final LWComponent link = byID.get(entry[1]);
+            if (link instanceof LWLink == false)
+                return false;
+            final String endpointID = (String) entry[3];
+            final LWComponent endpoint = endpointID.length() == 0 ? null : byID.get(endpointID);
+            if (endpoint == null && endpointID.length() > 0)
+                return false;
+            if ((Boolean) entry[2])
+                ((LWLink)link).setHead(endpoint);
+            else
+                ((LWLink)link).setTail(endpoint);
+            return true;
+        }
+        }
+        return false;
+    }
+
+    /** @return the given restored component and all it's descendents, in depth-first order */
+    private static Collection<LWComponent> restoredTree(LWComponent c) {
+        final Collection<LWComponent> tree = c.getAllDescendents(LWComponent.ChildKind.ANY,
+                                                                 new ArrayList(),
+                                                                 LWComponent.Order.DEPTH);
+        tree.add(c);
+        return tree;
+    }
+
+    private static File recoveryFolder() {
+        return new File(VueUtil.getDefaultUserFolder(), "recovery");
+    }
+
+    private static String recoveryPrefix(File base) {
+        return base.getName() + "-" + Integer.toHexString(base.getAbsolutePath().hashCode()) + ".";
+    }
+
+    private static File recoveryFile(File base, String suffix) {
+        final File folder = recoveryFolder();
+        if (!folder.exists())
+            folder.mkdirs();
+        return new File(folder, recoveryPrefix(base) + suffix);
+    }
+
+    private static Collection<File> findRecoveryFiles(File base) {
+        final String prefix = recoveryPrefix(base);
+        final File[] files = recoveryFolder().listFiles(new FileFilter() {
+                public boolean accept(File f) { return f.getName().startsWith(prefix); }
+            });
+        return files == null ? Collections.EMPTY_LIST : Arrays.asList(files);
+    }
+
+    /** @return the generation of a recovery file given the part of it's name after the prefix, or -1 if it isn't a complete one */
+    private static int generationOf(String name) {
+        String digits = null;
+        if (name.startsWith("journal"))
+            digits = name.substring("journal".length());
+        else if (name.startsWith("snapshot") && name.endsWith(VueUtil.VueExtension))
+            digits = name.substring("snapshot".length(), name.length() - VueUtil.VueExtension.length());
+        try {
+            return digits == null ? -1 : Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //-----------------------------------------------------------------------------
+    // Key & value encoding
+    //-----------------------------------------------------------------------------
+
+    private static Map<String,Object> KeysByName;
+
+    private static synchronized Object keyForName(String name) {
+        if (KeysByName == null) {
+            KeysByName = new HashMap();
+            for (LWComponent.Key k : LWComponent.Key.AllKeys)
+                if (!KeysByName.containsKey(k.name))
+                    KeysByName.put(k.name, k);
+            for (String key : new String[] { LWKey.Location, LWKey.Size, LWKey.Scale, LWKey.Resource, KEY_AUTOSIZED })
+                KeysByName.put(key, key);
+        }
+        return KeysByName.get(name);
+    }
+
+    /** @return the name to journal the given key under, or null if it can't be journaled */
+    private static String keyName(Object key) {
+        final String name;
+        if (key instanceof LWComponent.Key)
+            name = ((LWComponent.Key)key).name;
+        else if (key instanceof String)
+            name = (String) key;
+        else
+            return null;
+        // if two Key's share a name, we can't tell them apart on replay
+        return keyForName(name) == key ? name : null;
+    }
+
+    /** @return the current value of the given property, for the keys keyName accepts */
+    private static Object valueOf(LWComponent c, Object key) {
+        if (key == LWKey.Scale)
+            return c.getScale();
+        else if (key == KEY_AUTOSIZED)
+            return c.isAutoSized();
+        else
+            return c.getPropertyValue(key);
+    }
+
+    private static void setValue(LWComponent c, Object key, Object value) {
+        if (key == KEY_AUTOSIZED)
+            c.setAutoSized((Boolean) value);
+        else
+            c.setProperty(key, value);
+    }
+
+    /** @return false if the value couldn't be represented */
+    private static boolean writeValue(DataOutputStream out, Object v)
+        throws IOException
+    {
+        if (v == null) {
+            out.writeByte(T_NULL);
+        } else if (v instanceof String) {
+            out.writeByte(T_STRING);
+            writeLongUTF(out, (String) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(T_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(T_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(T_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Double) {
+            out.writeByte(T_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Color) {
+            out.writeByte(T_COLOR);
+            out.writeInt(((Color)v).getRGB());
+        } else if (v instanceof Point2D) {
+            out.writeByte(T_POINT);
+            out.writeFloat((float) ((Point2D)v).getX());
+            out.writeFloat((float) ((Point2D)v).getY());
+        } else if (v instanceof Size) {
+            out.writeByte(T_SIZE);
+            out.writeFloat(((Size)v).width);
+            out.writeFloat(((Size)v).height);
+        } else if (v instanceof Font) {
+            final Font f = (Font) v;
+            out.writeByte(T_FONT);
+            out.writeUTF(f.getName());
+            out.writeInt(f.getStyle());
+            out.writeInt(f.getSize());
+        } else if (v instanceof Enum) {
+            out.writeByte(T_ENUM);
+            out.writeUTF(((Enum)v).getDeclaringClass().getName());
+            out.writeUTF(((Enum)v).name());
+        } else
+            return false;
+        return true;
+    }
+
+    private static Object readValue(DataInputStream in)
+        throws IOException
+    {
+        final byte type = in.readByte();
+        switch (type) {
+        case T_NULL: return null;
+        case T_STRING: return readLongUTF(in);
+        case T_INT: return in.readInt();
+        case T_LONG: return in.readLong();
+        case T_FLOAT: return in.readFloat();
+        case T_DOUBLE: return in.readDouble();
+        case T_BOOLEAN: return in.readBoolean();
+        case T_COLOR: return new Color(in.readInt(), true);
+        case T_POINT: return new Point2D.Float(in.readFloat(), in.readFloat());
+        case T_SIZE: return new Size(in.readFloat(), in.readFloat());
+        case T_FONT: return new Font(in.readUTF(), in.readInt(), in.readInt());
+        case T_ENUM:
+            final String className = in.readUTF();
+            final String name = in.readUTF();
+            try {
+                return Enum.valueOf((Class<Enum>) Class.forName(className), name);
+            } catch (Exception e) {
+                Log.warn("can't restore " + className + "." + name + ": " + e);
+                return null;
+            }
+        default:
+            throw new IOException("bad value type in journal: " + type);
+        }
+    }
+
+    /** writeUTF is limited to 64k, and notes can be longer than that */
+    private static void writeLongUTF(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLongUTF(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override public String toString() {
+        return "MapJournal[" + mMap + " gen " + mGeneration + "]";
+    }
+}
@@ -0,0 +1,440 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * A cache of pre-rendered, fixed size square tiles of a MapViewer's focal, so that a
+ * repaint of the viewer that doesn't involve a change to the map itself (e.g., a
+ * rollover, a selection handle, the dragged selector box, a pan) only needs to copy
+ * cached images to the screen instead of re-drawing the entire visible map.
+ *
+ * Tiles are aligned to the zoomed map coordinate space, not the screen, so they stay
+ * valid as the viewer pans.  Tiles for several zoom levels may be cached at once, up to
+ * a maximum tile count, with the least recently drawn tiles discarded first.
+ *
+ * Any region of the viewer not covered by a cached tile is drawn directly by the
+ * viewer as usual (at draft quality if the tiles for it are on their way), and the
+ * missing tiles (plus a ring of tiles just outside the visible region, so that panning
+ * can reveal them without a direct draw) are rendered when the viewer goes idle, on a
+ * shared pool of low priority render threads.
+ *
+ * The map model is only really safe to draw from the AWT thread, so rendering off of
+ * it is optimistic: any change to the model discards the tiles of the region it
+ * changed (or all tiles), including any still being rendered.  A finished tile is only accepted (on the AWT thread) if it
+ * hasn't been discarded in the meantime, so a tile that may have seen a change half
+ * way through is always thrown away.  A render that fails outright (e.g., it ran into
+ * a list being modified) is simply dropped, and the tile requested again the next
+ * time the viewer needs it.
+ *
+ * Map events may come from other threads (e.g., image loaders), so discards requested
+ * off the AWT thread are passed on to it: the cache itself is only ever touched from
+ * the AWT thread.
+ */
+final class MapTileCache implements ActionListener
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(MapTileCache.class);
+
+    /** tile width & height, in screen pixels */
+    static final int TILE_SIZE = 256;
+    /** we'll always allow at least this many tiles to be cached, no matter how small the viewer */
+    private static final int MIN_TILES = 48;
+    /** how long the viewer must be idle (no paints) before we start rendering tiles (ms) */
+    private static final int IDLE_DELAY = 150;
+    /** how long to hold off rendering after running out of memory for tiles (ms) */
+    private static final int OUT_OF_MEMORY_BACKOFF = 5000;
+    /** extra region around anything invalidated to allow for selection strokes, handles, etc (screen pixels) */
+    private static final int INVALIDATE_PAD = 16;
+
+    private static final class Tile {
+        final double zoom;
+        final float fracX, fracY; // fractional part of the viewer origin when this tile was created
+        final int col, row;
+
+        BufferedImage image;
+        /** set if this tile has been discarded: it may still be rendering */
+        volatile boolean dead;
+        /** set once this tile has been handed to the render pool */
+        boolean rendering;
+
+        Tile(double zoom, float fracX, float fracY, int col, int row) {
+            this.zoom = zoom;
+            this.fracX = fracX;
+            this.fracY = fracY;
+            this.col = col;
+            this.row = row;
+        }
+
+        /** @return true if this tile overlaps the given map region */
+        boolean intersects(Rectangle2D mapRect) {
+            // the tile's region in zoomed map coordinates is [col*TILE_SIZE,col*TILE_SIZE+TILE_SIZE)+frac
+            final double x1 = mapRect.getX() * zoom - fracX - INVALIDATE_PAD;
+            final double y1 = mapRect.getY() * zoom - fracY - INVALIDATE_PAD;
+            final double x2 = mapRect.getMaxX() * zoom - fracX + INVALIDATE_PAD;
+            final double y2 = mapRect.getMaxY() * zoom - fracY + INVALIDATE_PAD;
+            final double tx = (double) col * TILE_SIZE;
+            final double ty = (double) row * TILE_SIZE;
+            return x1 < tx + TILE_SIZE && x2 > tx && y1 < ty + TILE_SIZE && y2 > ty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tile))
+                return false;
+            final Tile t = (Tile) o;
+            return col == t.col && row == t.row && zoom == t.zoom && fracX == t.fracX && fracY == t.fracY;
+        }
+
+        @Override
+        public int hashCode() {
+            final long z = Double.doubleToLongBits(zoom);
+            return (col * 31 + row) * 31 + (int) (z ^ (z >>> 32)) + Float.floatToIntBits(fracX) * 17 + Float.floatToIntBits(fracY);
+        }
+
+        @Override
+        public String toString() {
+            return "Tile[" + col + "," + row + " @" + (float) zoom + (image == null ? "" : " ready") + "]";
+        }
+    }
+
+    /** threads for rendering tiles, shared by all viewers */
+    private static final ExecutorService RenderPool;
+    /** the max number of tiles a viewer will have rendering at once */
+    private static final int MAX_RENDERING;
+
+    static {
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        MAX_RENDERING = threads * 2;
+        RenderPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+                public Thread newThread(Runnable r) {
+                    final Thread it = new Thread(r, "tileRenderer-" + (++count));
+                    it.setDaemon(true);
+                    it.setPriority(Thread.MIN_PRIORITY + 1);
+                    return it;
+                }
+            });
+    }
+
+    private final MapViewer mViewer;
+    private final javax.swing.Timer mIdleTimer;
+
+    /** the number of our tiles currently being rendered */
+    private int mRendering;
+    /** don't start rendering anything before this time */
+    private long mBackoffUntil;
+
+    private int mMaxTiles = MIN_TILES;
+    private final Map<Tile,Tile> mTiles = new LinkedHashMap<Tile,Tile>(MIN_TILES * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Tile,Tile> eldest) {
+                if (size() > mMaxTiles) {
+                    eldest.getValue().dead = true;
+                    return true;
+                } else
+                    return false;
+            }
+        };
+
+    /** tiles needed by the last paint, in the order they should be rendered */
+    private final List<Tile> mWanted = new ArrayList();
+
+    /** the focal the tiles are of */
+    private LWComponent mFocal;
+
+    // the viewer coordinate space as of the last paint, for mapping tiles to the screen
+    private double mZoom;
+    private int mFloorX, mFloorY;
+    private float mFracX, mFracY;
+
+    MapTileCache(MapViewer viewer) {
+        mViewer = viewer;
+        mIdleTimer = new javax.swing.Timer(IDLE_DELAY, this);
+        mIdleTimer.setRepeats(false);
+    }
+
+    /** discard all tiles */
+    void flush() {
+        if (!javax.swing.SwingUtilities.isEventDispatchThread()) {
+            javax.swing.SwingUtilities.invokeLater(new Runnable() { public void run() { flush(); }});
+            return;
+        }
+        if (mTiles.isEmpty())
+            return;
+        if (DEBUG.PAINT) Log.debug("flush " + mTiles.size() + " tiles");
+        for (Tile t : mTiles.values())
+            t.dead = true;
+        mTiles.clear();
+        mWanted.clear();
+    }
+
+    /**
+     * @return true if any region the last paint left to be drawn directly is already on it's
+     * way from the render pool, so it may be drawn at lower quality for now
+     */
+    boolean isRendering() {
+        return !mWanted.isEmpty() && System.currentTimeMillis() >= mBackoffUntil;
+    }
+
+    /** discard any tiles that may contain any part of the given region of the map */
+    void invalidate(final Rectangle2D mapRect) {
+        if (mapRect == null) {
+            flush();
+            return;
+        }
+        if (!javax.swing.SwingUtilities.isEventDispatchThread()) {
+            // the rect may be a component's live bounds: copy it now
+            final Rectangle2D region = (Rectangle2D) mapRect.clone();
+            javax.swing.SwingUtilities.invokeLater(new Runnable() { public void run() { invalidate(region); }});
+            return;
+        }
+        final Iterator<Tile> i = mTiles.values().iterator();
+        while (i.hasNext()) {
+            final Tile t = i.next();
+            if (t.intersects(mapRect)) {
+                t.dead = true;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Draw whatever cached tiles intersect the clip region of the given graphics, which must be in raw
+     * viewer coordinates, and reduce it's clip to the region that still needs to be drawn.  The
+     * reduced clip will be empty if the all of it was covered by tiles.
+     *
+     * @param originX, originY - the viewer origin: the location of the screen origin in zoomed map coordinates
+     * @param width, height - the size of the viewer
+     *
+     * @return false if we can't paint to the given graphics, in which case nothing has been
+     * drawn, and the clip is untouched.
+     */
+    boolean paint(Graphics2D g, LWComponent focal, double zoom, float originX, float originY, int width, int height)
+    {
+        if ((g.getTransform().getType() & ~java.awt.geom.AffineTransform.TYPE_TRANSLATION) != 0) {
+            // e.g., device scaling: the tiles would need to be rendered at device resolution
+            return false;
+        }
+
+        if (focal != mFocal) {
+            flush();
+            mFocal = focal;
+        }
+
+        mZoom = zoom;
+        mFloorX = (int) Math.floor(originX);
+        mFloorY = (int) Math.floor(originY);
+        mFracX = originX - mFloorX;
+        mFracY = originY - mFloorY;
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, width, height);
+
+        final int viewCols = width / TILE_SIZE + 2;
+        final int viewRows = height / TILE_SIZE + 2;
+        // enough for the visible region plus it's surrounding ring of tiles, twice over
+        mMaxTiles = Math.max(MIN_TILES, (viewCols + 2) * (viewRows + 2) * 2);
+
+        mWanted.clear();
+        Area gaps = null;
+
+        final int col1 = tileIndex(clip.x + mFloorX);
+        final int row1 = tileIndex(clip.y + mFloorY);
+        final int col2 = tileIndex(clip.x + clip.width - 1 + mFloorX);
+        final int row2 = tileIndex(clip.y + clip.height - 1 + mFloorY);
+
+        for (int row = row1; row <= row2; row++) {
+            for (int col = col1; col <= col2; col++) {
+                final Tile t = getTile(col, row);
+                final int sx = col * TILE_SIZE - mFloorX;
+                final int sy = row * TILE_SIZE - mFloorY;
+                if (t.image != null) {
+                    g.drawImage(t.image, sx, sy, null);
+                } else {
+                    mWanted.add(t);
+                    final Area gap = new Area(new Rectangle(sx, sy, TILE_SIZE, TILE_SIZE));
+                    if (gaps == null)
+                        gaps = gap;
+                    else
+                        gaps.add(gap);
+                }
+            }
+        }
+
+        // Also want anything in the viewer outside the clip region, and the ring of tiles just outside
+        // the viewer, so they're ready for any pan.  Anything already wanted was in the clip region.
+        final int ringCol1 = tileIndex(mFloorX) - 1;
+        final int ringRow1 = tileIndex(mFloorY) - 1;
+        final int ringCol2 = tileIndex(width - 1 + mFloorX) + 1;
+        final int ringRow2 = tileIndex(height - 1 + mFloorY) + 1;
+        for (int row = ringRow1; row <= ringRow2; row++) {
+            for (int col = ringCol1; col <= ringCol2; col++) {
+                if (row >= row1 && row <= row2 && col >= col1 && col <= col2)
+                    continue;
+                final Tile t = getTile(col, row);
+                if (t.image == null)
+                    mWanted.add(t);
+            }
+        }
+
+        if (gaps == null)
+            g.clipRect(0, 0, 0, 0);
+        else
+            g.clip(gaps);
+
+        if (mWanted.size() > 0)
+            mIdleTimer.restart();
+
+        if (DEBUG.PAINT) Log.debug("painted tiles " + col1 + "," + row1 + " - " + col2 + "," + row2 + "; wanted=" + mWanted.size());
+
+        return true;
+    }
+
+    /** find or create the tile at the given location at the current zoom & origin */
+    private Tile getTile(int col, int row) {
+        final Tile key = new Tile(mZoom, mFracX, mFracY, col, row);
+        final Tile t = mTiles.get(key);
+        if (t != null)
+            return t;
+        mTiles.put(key, key);
+        return key;
+    }
+
+    /** @return the index of the tile containing the given zoomed map coordinate pixel */
+    private static int tileIndex(int pixel) {
+        return pixel >= 0 ? pixel / TILE_SIZE : -((-pixel - 1) / TILE_SIZE) - 1;
+    }
+
+    /** idle timer: hand wanted tiles to the render pool, as many as we're allowed to have rendering */
+    public void actionPerformed(ActionEvent ae)
+    {
+        if (mWanted.isEmpty())
+            return;
+
+        if (!mViewer.canPaintFromTiles()) {
+            // the next paint will re-request anything we'll need
+            mWanted.clear();
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now < mBackoffUntil) {
+            mIdleTimer.setInitialDelay((int) (mBackoffUntil - now));
+            mIdleTimer.restart();
+            mIdleTimer.setInitialDelay(IDLE_DELAY);
+            return;
+        }
+
+        // whatever the tiles need drawn with is captured now, on the AWT thread
+        final LWComponent focal = mFocal;
+        final VueTool tool = mViewer.getCurrentTool();
+        int count = 0;
+
+        while (mRendering < MAX_RENDERING && !mWanted.isEmpty()) {
+            final Tile t = mWanted.remove(0);
+            if (t.dead || t.rendering || t.image != null)
+                continue;
+            t.rendering = true;
+            mRendering++;
+            count++;
+            RenderPool.execute(new Runnable() { public void run() { render(t, focal, tool); }});
+        }
+
+        if (DEBUG.PAINT) Log.debug("rendering " + count + " tiles; in progress=" + mRendering + "; remaining=" + mWanted.size());
+    }
+
+    /** Render the given tile.  Called on a render thread. */
+    private void render(final Tile t, LWComponent focal, VueTool tool)
+    {
+        BufferedImage image = null;
+        Throwable failure = null;
+
+        if (!t.dead) {
+            try {
+                image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+                final Graphics2D g = image.createGraphics();
+                try {
+                    g.setClip(0, 0, TILE_SIZE, TILE_SIZE);
+                    mViewer.drawFocalTile(g,
+                                          focal,
+                                          tool,
+                                          t.zoom,
+                                          -(t.col * (float) TILE_SIZE + t.fracX),
+                                          -(t.row * (float) TILE_SIZE + t.fracY),
+                                          new Rectangle(0, 0, TILE_SIZE, TILE_SIZE));
+                } finally {
+                    g.dispose();
+                }
+            } catch (Throwable x) {
+                image = null;
+                failure = x;
+            }
+        }
+
+        final BufferedImage rendered = image;
+        final Throwable failed = failure;
+        javax.swing.SwingUtilities.invokeLater(new Runnable() { public void run() { rendered(t, rendered, failed); }});
+    }
+
+    /** A render of the given tile has finished: keep it if it's still wanted.  Called on the AWT thread. */
+    private void rendered(Tile t, BufferedImage image, Throwable failure)
+    {
+        mRendering--;
+        t.rendering = false;
+
+        if (failure instanceof OutOfMemoryError) {
+            Log.warn("out of memory for tiles; flushing " + mTiles.size());
+            flush();
+            mBackoffUntil = System.currentTimeMillis() + OUT_OF_MEMORY_BACKOFF;
+            return;
+        }
+
+        if (t.dead || mTiles.get(t) != t) {
+            // discarded while we were rendering it: what we have may be out of date
+        } else if (image == null) {
+            // most likely the map changed under us: forget this tile so it's requested again
+            if (DEBUG.PAINT) Log.debug("failed to render " + t + "; " + failure);
+            mTiles.remove(t);
+        } else {
+            t.image = image;
+            if (t.zoom == mZoom && t.fracX == mFracX && t.fracY == mFracY) {
+                final Rectangle r = new Rectangle(t.col * TILE_SIZE - mFloorX,
+                                                  t.row * TILE_SIZE - mFloorY,
+                                                  TILE_SIZE, TILE_SIZE);
+                if (r.intersects(0, 0, mViewer.getWidth(), mViewer.getHeight()))
+                    mViewer.repaint(r);
+            }
+        }
+
+        if (!mWanted.isEmpty())
+            actionPerformed(null);
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileCache[" + mViewer + "; " + mTiles.size() + "/" + mMaxTiles + " tiles]";
+    }
+}
@@ -119,6 +119,13 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
     
     private Rectangle2D.Float RepaintRegion = null; // could handle in DrawContext
     private Rectangle paintedSelectionBounds = null;
+
+    /** pre-rendered tiles of the focal: see canPaintFromTiles */
+    private final MapTileCache mTileCache = new MapTileCache(this);
+    /** the map bounds of the selection as of the last selection change, for invalidating tiles */
+    private Rectangle2D mTiledSelectionBounds = null;
+    /** components that have changed since the last paint, who's new bounds are to be invalidated in the tile cache */
+    private final Set<LWComponent> mTileDirty = new LinkedHashSet();
     
     public static final class Event
     {
@@ -506,6 +513,12 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         
         activeTool.setTemporary(temporary);
         setMapCursor(activeTool.getCursor());
+
+        if (activeTool != oldTool) {
+            // the tiles were drawn with the old tool's DrawContext
+            mTileCache.flush();
+            repaint();
+        }
         
         if (isDraggingSelectorBox) // in case we change tool via kbd shortcut in the middle of a drag
             repaint();
@@ -1792,7 +1805,11 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
     }
     
     private boolean isAnimating;
-    protected void setAnimating(boolean animating) {
+    /**
+     * While animating, the viewer paints at animation quality, and never from the tile
+     * cache, which may be out of date with whatever the animation is changing.
+     */
+    public void setAnimating(boolean animating) {
         if (DEBUG.PRESENT) debug("animating = " + animating);
         isAnimating = animating;
     }
@@ -1967,6 +1984,14 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
                 VueSelection = VUE.ModelSelection;
             }
         }
+
+        // selected components draw differently: any tiles of the old or new selection are stale
+        if (mTiledSelectionBounds != null)
+            mTileCache.invalidate(mTiledSelectionBounds);
+        mTiledSelectionBounds = s.getBounds();
+        if (mTiledSelectionBounds != null)
+            mTileCache.invalidate(mTiledSelectionBounds);
+        
         repaintSelection();
     }
     
@@ -2445,6 +2470,8 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
 //             }
 //         }
 
+        invalidateTiles(e);
+
         if (e.key == LWKey.RepaintAsync) {
             setFastPaint("async paint request");
             repaint();
@@ -2542,6 +2569,9 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         if (e.key == LWKey.Deleting) {
             if (mRollover == e.getComponent())
                 clearRollover();
+        } else if (e instanceof LWCEvent.Batch) {
+            if (mRollover != null && ((LWCEvent.Batch)e).getComponents(LWKey.Deleting).contains(mRollover))
+                clearRollover();
 //         } else if (e.key == LWKey.FillColor && e.getComponent() == mMap && mFocal == mMap) {
 //             setBackground(mMap.getFillColor());
         }
@@ -3832,6 +3862,11 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         } else {
             g = (Graphics2D) incomingGC;
         }
+
+        // bring all the links who's endpoints have moved up to date in one pass before drawing
+        final LWMap map = getMap();
+        if (map != null)
+            map.recomputeQueuedLinks();
         
         /*
         Rectangle cb = g.getClipBounds();
@@ -3854,14 +3889,30 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
             }
         }
         
+        // If we can, copy what we can of the focal from the tile cache, which will leave the clip
+        // at whatever region still needs drawing, which is often nothing at all.
+        final Shape fullClip = g.getClip();
+        invalidateDirtyTiles();
+        final boolean tiled =
+            canPaintFromTiles() &&
+            mTileCache.paint(g, mFocal, mZoomFactor, getOriginX(), getOriginY(), getWidth(), getHeight());
+        
         final DrawContext dc = activeTool.getDrawContext(getDrawContext(g));
         this.mDC = dc;
 
+        if (tiled && mTileCache.isRendering()) {
+            // whatever we draw directly will be replaced by the tiles as soon as they're ready
+            dc.setDraftQuality();
+        }
+
         //-------------------------------------------------------
         // DRAW THE THE CURRENT FOCAL (usually the MAP)
         //-------------------------------------------------------
 
-        drawFocal(dc);
+        if (tiled)
+            drawFocalOverTiles(dc, fullClip);
+        else
+            drawFocal(dc);
         
         //-------------------------------------------------------
         
@@ -4119,6 +4170,162 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
         activeTool.handlePostDraw(dc, this);
     }
 
+    /**
+     * Draw the focal over what the tile cache has already painted: only the current clip of the
+     * dc needs drawing.  The clip is then restored to the given full clip for drawing
+     * everything that goes on top of the focal.
+     */
+    private void drawFocalOverTiles(DrawContext dc, Shape fullClip)
+    {
+        activeTool.handlePreDraw(dc, this);
+
+        if (dc.getMasterClipRect().isEmpty())
+            dc.setBackgroundFill(getBackgroundFillColor(dc));
+        else
+            drawFocalImpl(dc);
+
+        dc.setRawDrawing();
+        dc.g.setClip(fullClip);
+        dc.setMapDrawing();
+        dc.setMasterClip(dc.g.getClip());
+        
+        activeTool.handlePostDraw(dc, this);
+    }
+
+    /**
+     * Discard any tiles that may show what changed in the given event.  A change to a single
+     * component only discards the tiles of it's bounds, and the bounds of any links to it or
+     * inside it, as they were drawn before the change, and as they'll be drawn after it: see
+     * invalidateDirtyTiles.  Anything with a wider reach (e.g., a change to the map or a
+     * layer, anything on a pathway) discards all the tiles.
+     */
+    private void invalidateTiles(LWCEvent e)
+    {
+        final Object key = e.key;
+
+        if (key == LWKey.UserActionCompleted || key == LWKey.HierarchyChanging) {
+            // nothing has been drawn differently yet
+            return;
+        }
+
+        if (key == LWKey.ChildrenAdded || key == LWKey.ChildrenRemoved) {
+            if (e.getComponents() == null) {
+                mTileCache.flush();
+                return;
+            }
+            for (LWComponent c : e.getComponents()) {
+                if (!invalidateTiles(c, e))
+                    return;
+            }
+        } else if (key == LWKey.Scale || key == LWKey.HierarchyChanged || e.component == null) {
+            mTileCache.flush();
+        } else {
+            invalidateTiles(e.component, e);
+        }
+    }
+
+    /** @return false if we had to flush all the tiles */
+    private boolean invalidateTiles(LWComponent c, LWCEvent e)
+    {
+        if (c == mFocal || c instanceof LWMap || c instanceof LWMap.Layer || c instanceof LWPathway || c.hasEntries()) {
+            mTileCache.flush();
+            return false;
+        }
+
+        // Links moved by this change haven't been recomputed yet, so their computed bounds are
+        // still where they were last drawn.  The component itself has already changed, so undo
+        // any move or resize.
+
+        final Rectangle2D.Float bounds = c instanceof LWLink ? ((LWLink)c).getComputedMapBounds() : c.getPaintBounds();
+        final Object old = e.getOldValue();
+
+        if (e.key == LWKey.Location && old instanceof Point2D && c.getParent() != null) {
+            final double scale = c.getParent().getMapScale();
+            bounds.x += (((Point2D)old).getX() - c.getX()) * scale;
+            bounds.y += (((Point2D)old).getY() - c.getY()) * scale;
+        } else if (e.key == LWKey.Size && old instanceof Size) {
+            final double scale = c.getMapScale();
+            bounds.add(bounds.x + ((Size)old).width * scale, bounds.y + ((Size)old).height * scale);
+        }
+        mTileCache.invalidate(bounds);
+
+        for (LWLink link : getTiledLinks(c))
+            mTileCache.invalidate(link.getComputedMapBounds());
+
+        synchronized (mTileDirty) {
+            mTileDirty.add(c);
+        }
+        return true;
+    }
+
+    /** @return the links connected to the given component or anything in it, and the links inside it */
+    private static Collection<LWLink> getTiledLinks(LWComponent c)
+    {
+        if (!c.hasChildren())
+            return c.getLinks();
+        final Collection<LWLink> links = new HashSet(c.getLinks());
+        for (LWComponent d : c.getAllDescendents(LWComponent.ChildKind.PROPER)) {
+            if (d instanceof LWLink)
+                links.add((LWLink) d);
+            links.addAll(d.getLinks());
+        }
+        return links;
+    }
+
+    /**
+     * Discard any tiles showing the current bounds of anything that's changed since the last
+     * paint.  Any out of date links are re-computed here: the paint would be doing that anyway.
+     */
+    private void invalidateDirtyTiles()
+    {
+        final LWComponent[] dirty;
+        synchronized (mTileDirty) {
+            if (mTileDirty.isEmpty())
+                return;
+            dirty = mTileDirty.toArray(new LWComponent[mTileDirty.size()]);
+            mTileDirty.clear();
+        }
+        for (LWComponent c : dirty) {
+            mTileCache.invalidate(c.getPaintBounds());
+            for (LWLink link : getTiledLinks(c))
+                mTileCache.invalidate(link.getPaintBounds());
+        }
+    }
+
+    /**
+     * @return true if the focal can currently be painted from the tile cache: the focal must be
+     * the map, and nothing may be going on that changes how the map itself is drawn from paint
+     * to paint (animations, a zoomed rollover, a text edit, etc).
+     */
+    boolean canPaintFromTiles() {
+        return TILED_PAINT
+            && mFocal != null
+            && mFocal == mMap
+            && !isAnimating
+            && mRollover == null
+            && !hasActiveTextEdit()
+            && !(activeTool instanceof ZoomTool)
+            && !(activeTool instanceof PresentationTool)
+            && !DEBUG.PAINT
+            && !DEBUG.BOXES;
+    }
+
+    /**
+     * Draw the given focal into an offscreen tile for the MapTileCache.  This is called on a
+     * tile render thread, not the AWT thread, so the focal and the tool to draw with are
+     * passed in.
+     */
+    void drawFocalTile(Graphics2D g, LWComponent focal, VueTool tool, double zoom, float offsetX, float offsetY, Rectangle frame)
+    {
+        // tools may draw the map differently (e.g., browse mode): see activateTool, which flushes the tiles
+        final DrawContext dc = tool.getDrawContext(new DrawContext(g, zoom, offsetX, offsetY, frame, focal, true));
+        dc.setInteractive(true);
+        dc.setInteractiveQuality();
+        dc.setDrawPathways(true);
+        dc.fillBackground(getBackgroundFillColor(dc));
+        focal.draw(dc);
+    }
+
     protected void drawFocalImpl(DrawContext dc)
     {
         if (mFocal != mMap) {
@@ -6399,6 +6606,7 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
                 //else if (c == '~') { if (e.isMetaDown()) { out("debug abort."); System.exit(-1);} }
                 else if (c == '_') { DEBUG.DYNAMIC_UPDATE = !DEBUG.DYNAMIC_UPDATE; }
                 else if (c == '*') { OPTIMIZED_REPAINT = !OPTIMIZED_REPAINT; }
+                else if (c == '#') { TILED_PAINT = !TILED_PAINT; mTileCache.flush(); }
                 //else if (c == '\\') { VUE.toggleFullScreen(); }
                 //else if (c == '|') { VUE.toggleFullScreen(true); // native full screen mode }
                 else if (c == '!') {
@@ -8698,6 +8906,7 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
             repaint();
         } else {
             setFocusable(false);
+            mTileCache.flush();
             fireViewerEvent(Event.HIDDEN, "setVisible");
         }
     }
@@ -8924,6 +9133,7 @@ public class MapViewer extends TimedASComponent//javax.swing.JComponent
     private boolean DEBUG_FINDPARENT_OFF = false;
     //protected boolean DEBUG_TIMER_ROLLOVER = true; // todo: preferences
     private boolean OPTIMIZED_REPAINT = false;
+    private boolean TILED_PAINT = true;
     
     private Point _mouse = new Point();
     
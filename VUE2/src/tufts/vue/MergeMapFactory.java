@@ -25,6 +25,8 @@
 package tufts.vue;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 
@@ -198,31 +200,41 @@ public class MergeMapFactory {
         
         final ConnectivityMatrixList cms = new ConnectivityMatrixList();
 
-        //-----------------------------------------------------------------------------
-        // Create a connectivity matrix for each active map to be fed to the Aggregate
-        //-----------------------------------------------------------------------------
-        if (excludeNodesOnBaseMap) {
-            // generate the key set that will be used to exclude any keys
-            // that were found on the base map.
-            this.baseMapKeys = hashMergeKeys(baseMap);
-        }
+        // The input maps are only read from while we build the matrices and the
+        // aggregate, so those can be done in parallel, one map per task.
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        long start = System.currentTimeMillis();
         
-        for (LWMap map : activeMaps) {
+        try {
+            //-----------------------------------------------------------------------------
+            // Create a connectivity matrix for each active map to be fed to the Aggregate
+            //-----------------------------------------------------------------------------
+            if (excludeNodesOnBaseMap) {
+                // generate the key set that will be used to exclude any keys
+                // that were found on the base map.
+                this.baseMapKeys = hashMergeKeys(baseMap);
+            }
+
             // if (map != getBaseMap()) // TODO: check -- really add baseMap matrix if ignoring baseMap?
             // old comment had commented out check to skip baseMap...
-            cms.add(new ConnectivityMatrix(map));
-        }
-        //-----------------------------------------------------------------------------
-        // Create the desired aggregate
-        //-----------------------------------------------------------------------------
-        if (clazz == VoteAggregate.class) {
-            double nodeThresh = (double) getNodeThresholdSliderValue() / 100.0;
-            double linkThresh = (double) getLinkThresholdSliderValue() / 100.0;
-            weightAggregate = null;
-            voteAggregate = VoteAggregate.create(cms, nodeThresh, linkThresh);
-        } else {
-            weightAggregate = WeightAggregate.create(cms);
-            voteAggregate = null;
+            cms.addAll(ConnectivityMatrix.createAll(activeMaps, executor));
+            start = logPhase("connectivity matrices for " + activeMaps.size() + " maps", start);
+            
+            //-----------------------------------------------------------------------------
+            // Create the desired aggregate
+            //-----------------------------------------------------------------------------
+            if (clazz == VoteAggregate.class) {
+                double nodeThresh = (double) getNodeThresholdSliderValue() / 100.0;
+                double linkThresh = (double) getLinkThresholdSliderValue() / 100.0;
+                weightAggregate = null;
+                voteAggregate = VoteAggregate.create(cms, nodeThresh, linkThresh, executor);
+            } else {
+                weightAggregate = WeightAggregate.create(cms, executor);
+                voteAggregate = null;
+            }
+            start = logPhase("aggregate " + (voteAggregate != null ? voteAggregate : weightAggregate), start);
+        } finally {
+            executor.shutdown();
         }
         //-----------------------------------------------------------------------------
 
@@ -231,6 +243,8 @@ public class MergeMapFactory {
         // key will be the nodes that are duplicated to the final merge map.  Thus, the base-map
         // also serves as a kind of priority template map.
         
+        // The rest modifies the output map, and so is done on this thread.
+        
         if (excludeNodesOnBaseMap || baseMapInactive) {
             if (DEBUG.MERGE) Log.debug("excluding base-map nodes from merge; active=" + !baseMapInactive);
         } else
@@ -262,11 +276,20 @@ public class MergeMapFactory {
             if (isMergeSkipped(c)) Log.warn("unexpected content in merge results: " + c);
         
         Log.info("pre-link content: " + tufts.Util.tags(allMergedNodes));
+        start = logPhase("merged nodes", start);
         
         if (voteAggregate != null)
             installLinksForVotes(allMergedNodes, cms, voteAggregate);
         else
             installLinksAndStylesForWeights(allMergedNodes, cms, weightAggregate);
+        logPhase("merged links", start);
+    }
+
+    /** log the time taken by a merge phase that started at the given time, and return the current time */
+    private static long logPhase(String phase, long start) {
+        final long now = System.currentTimeMillis();
+        Log.info("merge phase: " + phase + ": " + (now - start) + "ms");
+        return now;
     }
 
     private static boolean isMergeSkipped(LWComponent c)
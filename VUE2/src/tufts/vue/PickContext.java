@@ -104,6 +104,15 @@ public class PickContext
         return width > 0 && height > 0;
     }
 
+    /**
+     * @return the farthest distance, in map coordinates, that anything could be from the pick
+     * location and still be picked as a near-miss (see LWTraversal.PointPick).  Spatial indexes
+     * use this to expand the region they search.
+     */
+    public float getMaxSlop() {
+        return zoom < 1 ? 8 / zoom : 8;
+    }
+
     public String toString() {
         return String.format("PickContext[%.1f,%.1f", x, y)
             + " root=" + root
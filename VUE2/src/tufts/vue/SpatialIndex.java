@@ -0,0 +1,282 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.*;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A quadtree of rectangular bounds, for quickly finding the items near a point or inside a
+ * region without visiting every item.  Each item is stored in the smallest quadrant that fully
+ * contains it, so an item is always in exactly one place, and re-indexing it after it moves or
+ * changes size is just a remove & re-insert.  The root quadrant grows as needed to cover
+ * anything added, so there's no need to know the extent of the content in advance.
+ *
+ * Items may also be added as "unbounded", in which case they're returned by every query.  This
+ * is for items who's extent can't be cheaply known (or that can change without notice).
+ *
+ * This class is not synchronized.
+ */
+public final class SpatialIndex<T>
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(SpatialIndex.class);
+
+    /** a quadrant holding more than this many items will split into four if it can */
+    private static final int SPLIT_COUNT = 8;
+    /** quadrants are never split below this size (in the coordinate space of the bounds) */
+    private static final float MIN_QUADRANT = 32;
+
+    private static final class Entry<T> {
+        final T item;
+        float x1, y1, x2, y2;
+        Quad<T> quad; // null if unbounded
+
+        Entry(T item) { this.item = item; }
+
+        boolean intersects(float qx1, float qy1, float qx2, float qy2) {
+            return x1 <= qx2 && x2 >= qx1 && y1 <= qy2 && y2 >= qy1;
+        }
+    }
+
+    private static final class Quad<T> {
+        final float x, y, size;
+        List<Entry<T>> entries;
+        Quad<T>[] kids;
+
+        Quad(float x, float y, float size) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        boolean contains(Entry e) {
+            return e.x1 >= x && e.y1 >= y && e.x2 <= x + size && e.y2 <= y + size;
+        }
+
+        boolean intersects(float qx1, float qy1, float qx2, float qy2) {
+            return x <= qx2 && x + size >= qx1 && y <= qy2 && y + size >= qy1;
+        }
+
+        /** @return the kid quadrant fully containing e, or null if none does */
+        Quad<T> kidFor(Entry e) {
+            for (Quad<T> q : kids)
+                if (q.contains(e))
+                    return q;
+            return null;
+        }
+
+        void add(Entry<T> e) {
+            if (entries == null)
+                entries = new ArrayList(SPLIT_COUNT);
+            entries.add(e);
+            e.quad = this;
+        }
+
+        void split() {
+            final float half = size / 2;
+            // quadrant order is: upper-left, upper-right, lower-left, lower-right
+            kids = new Quad[] {
+                new Quad(x,        y,        half),
+                new Quad(x + half, y,        half),
+                new Quad(x,        y + half, half),
+                new Quad(x + half, y + half, half),
+            };
+            final Iterator<Entry<T>> i = entries.iterator();
+            while (i.hasNext()) {
+                final Entry<T> e = i.next();
+                final Quad<T> kid = kidFor(e);
+                if (kid != null) {
+                    i.remove();
+                    kid.add(e);
+                }
+            }
+        }
+    }
+
+    private final Map<T,Entry<T>> mEntries = new HashMap();
+    private final List<Entry<T>> mUnbounded = new ArrayList();
+    private Quad<T> mRoot;
+
+    /** @return the number of items in the index */
+    public int size() {
+        return mEntries.size();
+    }
+
+    public boolean contains(T item) {
+        return mEntries.containsKey(item);
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mUnbounded.clear();
+        mRoot = null;
+    }
+
+    /** Add the given item with the given bounds, or if it's already in the index, update it's bounds. */
+    public void put(T item, Rectangle2D r) {
+        if (r == null)
+            putUnbounded(item);
+        else
+            put(item, (float) r.getX(), (float) r.getY(), (float) r.getWidth(), (float) r.getHeight());
+    }
+
+    /** Add the given item with the given bounds, or if it's already in the index, update it's bounds. */
+    public void put(T item, float x, float y, float width, float height)
+    {
+        if (!isFinite(x) || !isFinite(y) || !isFinite(width) || !isFinite(height)) {
+            // NaN's or infinities can't be placed in the tree
+            putUnbounded(item);
+            return;
+        }
+        final Entry<T> e = detach(item);
+        e.x1 = x;
+        e.y1 = y;
+        e.x2 = x + width;
+        e.y2 = y + height;
+        mEntries.put(item, e);
+        insert(e);
+    }
+
+    /** Add the given item such that it will be returned by every query. */
+    public void putUnbounded(T item) {
+        final Entry<T> e = detach(item);
+        mEntries.put(item, e);
+        mUnbounded.add(e);
+    }
+
+    /** @return true if the item was found and removed */
+    public boolean remove(T item) {
+        final Entry<T> e = mEntries.remove(item);
+        if (e == null)
+            return false;
+        unlink(e);
+        return true;
+    }
+
+    /**
+     * Add to the given bag every item who's bounds intersect the given region, as well as all unbounded
+     * items.  Items will be added in no particular order, and an item will never be added more
+     * than once.
+     * @return the bag
+     */
+    public <C extends Collection<? super T>> C query(float x, float y, float width, float height, C bag)
+    {
+        for (Entry<T> e : mUnbounded)
+            bag.add(e.item);
+        if (mRoot != null)
+            query(mRoot, x, y, x + width, y + height, bag);
+        return bag;
+    }
+
+    public <C extends Collection<? super T>> C query(Rectangle2D r, C bag) {
+        return query((float) r.getX(), (float) r.getY(), (float) r.getWidth(), (float) r.getHeight(), bag);
+    }
+
+    private static <T> void query(Quad<T> q, float x1, float y1, float x2, float y2, Collection<? super T> bag)
+    {
+        if (q.entries != null) {
+            for (Entry<T> e : q.entries)
+                if (e.intersects(x1, y1, x2, y2))
+                    bag.add(e.item);
+        }
+        if (q.kids != null) {
+            for (Quad<T> kid : q.kids)
+                if (kid.intersects(x1, y1, x2, y2))
+                    query(kid, x1, y1, x2, y2, bag);
+        }
+    }
+
+    private static boolean isFinite(float f) {
+        return f == f && !Float.isInfinite(f);
+    }
+
+    /** @return a fresh or recycled entry for the given item, not currently stored anywhere in the tree */
+    private Entry<T> detach(T item) {
+        final Entry<T> e = mEntries.get(item);
+        if (e == null)
+            return new Entry(item);
+        unlink(e);
+        return e;
+    }
+
+    private void unlink(Entry<T> e) {
+        if (e.quad == null)
+            mUnbounded.remove(e);
+        else
+            e.quad.entries.remove(e);
+        e.quad = null;
+    }
+
+    private void insert(Entry<T> e)
+    {
+        if (mRoot == null) {
+            float size = MIN_QUADRANT;
+            while (size < e.x2 - e.x1 || size < e.y2 - e.y1)
+                size *= 2;
+            mRoot = new Quad(e.x1, e.y1, size);
+        }
+
+        while (!mRoot.contains(e))
+            growRootToward(e);
+
+        Quad<T> q = mRoot;
+        for (;;) {
+            if (q.kids == null) {
+                q.add(e);
+                if (q.entries.size() > SPLIT_COUNT && q.size / 2 >= MIN_QUADRANT)
+                    q.split();
+                return;
+            }
+            final Quad<T> kid = q.kidFor(e);
+            if (kid == null) {
+                q.add(e);
+                return;
+            }
+            q = kid;
+        }
+    }
+
+    /** double the size of the root, such that the old root becomes one of it's quadrants */
+    private void growRootToward(Entry e)
+    {
+        final Quad<T> old = mRoot;
+        final boolean left = e.x1 < old.x;
+        final boolean up = e.y1 < old.y;
+        final Quad<T> root = new Quad(left ? old.x - old.size : old.x,
+                                      up   ? old.y - old.size : old.y,
+                                      old.size * 2);
+        if (old.entries != null || old.kids != null) {
+            // quadrant order is: upper-left, upper-right, lower-left, lower-right
+            final int oldSlot = (up ? 2 : 0) + (left ? 1 : 0);
+            root.kids = new Quad[4];
+            for (int i = 0; i < 4; i++) {
+                if (i == oldSlot)
+                    root.kids[i] = old;
+                else
+                    root.kids[i] = new Quad(root.x + (i & 1) * old.size,
+                                            root.y + (i >> 1) * old.size,
+                                            old.size);
+            }
+        }
+        if (DEBUG.PICK && DEBUG.META) Log.debug("grew root to " + root.size + " at " + root.x + "," + root.y);
+        mRoot = root;
+    }
+
+    @Override
+    public String toString() {
+        return "SpatialIndex[" + mEntries.size() + " items; " + mUnbounded.size() + " unbounded]";
+    }
+}
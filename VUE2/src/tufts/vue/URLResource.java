@@ -1332,6 +1332,8 @@ public class URLResource extends Resource implements XMLUnmarshalListener
         
         try {
             markAccessAttempt();
+            if (contentRef instanceof tufts.vue.action.Archive.PackagedFile)
+                ((tufts.vue.action.Archive.PackagedFile)contentRef).unpack(); // the OS will need an actual file
             VueUtil.openURL(systemSpec);
             // access successful is not currently very meaningful,
             // as we don't know if the openURL failed or not.
@@ -47,10 +47,13 @@ public class UndoManager
     private boolean mRedoUnderway = false;
     private boolean mCleanupUnderway = false;
 
+    /** Approximate limit on the memory used by the undo history of a single map.  Oldest undo actions are dropped beyond this. */
+    private static final long HISTORY_BYTES = VueResources.getInt("undo.memoryLimitMB", 24) * 1024L * 1024L;
+
     /** The list of undo actions (named groups of property changes) */
-    private UndoActionList UndoList = new UndoActionList(VueResources.getString("menu.edit.undo")); 
+    private UndoActionList UndoList = new UndoActionList(VueResources.getString("menu.edit.undo"), HISTORY_BYTES); 
     /** The list of redo actions (named groups of property changes generated from Undo's) */
-    private UndoActionList RedoList = new UndoActionList(VueResources.getString("menu.edit.redo")); 
+    private UndoActionList RedoList = new UndoActionList(VueResources.getString("menu.edit.redo"), 0); 
     
     /** The map who's modifications we're tracking. */
     protected LWMap mMap; 
@@ -77,12 +80,16 @@ public class UndoManager
     //private static Map ThreadsToIgnore = Collections.synchronizedMap(new HashMap());
     
     private boolean isSuspended = false;
+
+    /** crash-recovery journal for our map, fed the same events we see */
+    private final MapJournal mJournal;
     
     public UndoManager(LWMap map)
     {
         mMap = map;
+        mJournal = new MapJournal(map);
         mCurrentUndo = new UndoAction();
-        map.addLWCListener(this);
+        map.addUnbatchedLWCListener(this);
         //VUE.addActiveListener(LWMap.class, this);
         updateGlobalActionLabels(); // make sure actions disabled at start
     }
@@ -99,6 +106,8 @@ public class UndoManager
     private static class UndoAction {
         private String name = null;
         private List undoSequence; // list of UndoItem's -- will be sorted by sequence index before first use
+        /** once we're no longer the most recent action, our changes are moved here -- see compact() */
+        private PackedChanges packed;
         /** The total number of recorded or compressed changes that happened on our watch (will be >= undoSequence.size()) */
         private int eventCount = 0;
         private boolean sorted = false;
@@ -121,10 +130,54 @@ public class UndoManager
         }
 
         int changeCount() {
-            return undoSequence.size();
+            return size();
+        }
+
+        int size() {
+            return packed == null ? undoSequence.size() : packed.size() + undoSequence.size();
+        }
+
+        /**
+         * Move our changes into packed storage.  Any changes that arrive after this (e.g., from an
+         * UndoableThread still attached to us) go into the undoSequence as usual, and are
+         * merged back in if we're ever undone.
+         */
+        synchronized void compact() {
+            if (undoSequence.isEmpty())
+                return;
+            final List<UndoItem> items = items();
+            packed = new PackedChanges(items);
+            undoSequence = new ArrayList(0);
+            sorted = true;
+            if (DEBUG.UNDO) Log.debug(this + " compacted to " + packed);
+        }
+
+        /** @return all our changes as UndoItem's, in order */
+        private List<UndoItem> items() {
+            if (packed == null) {
+                if (!sorted) {
+                    Collections.sort(undoSequence);
+                    sorted = true;
+                }
+                return undoSequence;
+            }
+            final List<UndoItem> items = packed.expand(undoSequence.size());
+            if (undoSequence.size() > 0) {
+                items.addAll(undoSequence);
+                Collections.sort(items);
+            }
+            return items;
         }
 
-        int size() { return undoSequence.size(); }
+        /** @return a rough estimate, in bytes, of the memory held by this action */
+        long memoryEstimate() {
+            long bytes = 64;
+            if (packed != null)
+                bytes += packed.bytes;
+            for (Object o : undoSequence.toArray())
+                bytes += 48 + estimateBytes(((UndoItem)o).oldValue);
+            return bytes;
+        }
 
         void mark(String name) {
             this.name = name;
@@ -172,14 +225,12 @@ public class UndoManager
                 attachedThreads = null;
             }
 
-            if (!sorted) {
-                Collections.sort(undoSequence);
-                sorted = true;
-                if (DEBUG.UNDO){
-                    System.out.println("=======================================================");
-                    VueUtil.dumpCollection(undoSequence);
-                    System.out.println("-------------------------------------------------------");
-                }
+            final List<UndoItem> undoSequence = items();
+            
+            if (DEBUG.UNDO){
+                System.out.println("=======================================================");
+                VueUtil.dumpCollection(undoSequence);
+                System.out.println("-------------------------------------------------------");
             }
 
             //boolean hierarchyChanged = false; // now handled in fireUserActionCompleted
@@ -270,7 +321,7 @@ public class UndoManager
     /**
      * A single property change on a single component.
      */
-    private static class UndoItem implements Comparable
+    static class UndoItem implements Comparable
     {
         LWComponent component;
         Object propKey;
@@ -588,13 +639,184 @@ public class UndoManager
 
     }
 
+    /**
+     * The changes of an UndoAction, packed into parallel arrays.  This is the storage for
+     * every action except the most recent one, which is where nearly all undo's happen,
+     * and which is still subject to change compression.  Old values of the common geometric
+     * and numeric types are stored unboxed, two slots per change in the nums array, and
+     * are re-created only if the action is actually undone.  Repeated changes to the same
+     * component:propertyKey pair (which are only possible if they came in from threads
+     * exempt from compression) are coalesced here in the same way recordUndoableChangeEvent
+     * would have.
+     */
+    static final class PackedChanges
+    {
+        private static final byte REF = 0, FLOAT = 1, DOUBLE = 2, INT = 3, COLOR = 4,
+            POINT = 5, POINT2D_FLOAT = 6, POINT2D_DOUBLE = 7, SIZE = 8;
+        
+        final LWComponent[] components;
+        final Object[] keys;
+        final int[] order;
+        final byte[] kinds;
+        /** old values that can't be packed -- null if there are none */
+        final Object[] refs;
+        /** packed old values -- null if there are none */
+        final double[] nums;
+        final long bytes;
+
+        PackedChanges(List<UndoItem> items)
+        {
+            items = coalesce(items);
+            
+            final int n = items.size();
+            components = new LWComponent[n];
+            keys = new Object[n];
+            order = new int[n];
+            kinds = new byte[n];
+
+            int refCount = 0;
+            for (int i = 0; i < n; i++) {
+                final UndoItem item = items.get(i);
+                components[i] = item.component;
+                keys[i] = item.propKey;
+                order[i] = item.order;
+                kinds[i] = kindOf(item.oldValue);
+                if (kinds[i] == REF)
+                    refCount++;
+            }
+            
+            refs = refCount > 0 ? new Object[n] : null;
+            nums = refCount < n ? new double[n * 2] : null;
+
+            long size = 64 + n * (4 + 4 + 4 + 1);
+            if (refs != null) size += n * 4;
+            if (nums != null) size += n * 16;
+
+            for (int i = 0; i < n; i++) {
+                final Object v = items.get(i).oldValue;
+                final int x = i * 2, y = x + 1;
+                switch (kinds[i]) {
+                case FLOAT:         nums[x] = ((Float)v).floatValue(); break;
+                case DOUBLE:        nums[x] = ((Double)v).doubleValue(); break;
+                case INT:           nums[x] = ((Integer)v).intValue(); break;
+                case COLOR:         nums[x] = ((Color)v).getRGB(); break;
+                case POINT:         nums[x] = ((Point)v).x;         nums[y] = ((Point)v).y; break;
+                case POINT2D_FLOAT: nums[x] = ((Point2D.Float)v).x; nums[y] = ((Point2D.Float)v).y; break;
+                case POINT2D_DOUBLE:nums[x] = ((Point2D.Double)v).x;nums[y] = ((Point2D.Double)v).y; break;
+                case SIZE:          nums[x] = ((Size)v).width;      nums[y] = ((Size)v).height; break;
+                default:
+                    refs[i] = v;
+                    size += estimateBytes(v);
+                }
+            }
+            bytes = size;
+        }
+
+        int size() {
+            return order.length;
+        }
+
+        /** @return our changes re-constituted as UndoItem's, with room for the given number of additional items */
+        List<UndoItem> expand(int extra)
+        {
+            final int n = order.length;
+            final List<UndoItem> items = new ArrayList(n + extra);
+            for (int i = 0; i < n; i++) {
+                final double x = nums == null ? 0 : nums[i * 2];
+                final double y = nums == null ? 0 : nums[i * 2 + 1];
+                final Object v;
+                switch (kinds[i]) {
+                case FLOAT:         v = new Float((float) x); break;
+                case DOUBLE:        v = new Double(x); break;
+                case INT:           v = Integer.valueOf((int) x); break;
+                case COLOR:         v = new Color((int) x, true); break;
+                case POINT:         v = new Point((int) x, (int) y); break;
+                case POINT2D_FLOAT: v = new Point2D.Float((float) x, (float) y); break;
+                case POINT2D_DOUBLE:v = new Point2D.Double(x, y); break;
+                case SIZE:          v = new Size((float) x, (float) y); break;
+                default:            v = refs[i];
+                }
+                items.add(new UndoItem(components[i], keys[i], v, order[i]));
+            }
+            return items;
+        }
+
+        private static byte kindOf(Object v) {
+            if (v == null)
+                return REF;
+            // exact class matches only: a subclass may carry more state than we'd re-create
+            final Class c = v.getClass();
+                 if (c == Float.class)          return FLOAT;
+            else if (c == Double.class)         return DOUBLE;
+            else if (c == Integer.class)        return INT;
+            else if (c == Color.class)          return COLOR;
+            else if (c == Point.class)          return POINT;
+            else if (c == Point2D.Float.class)  return POINT2D_FLOAT;
+            else if (c == Point2D.Double.class) return POINT2D_DOUBLE;
+            else if (c == Size.class)           return SIZE;
+            else
+                return REF;
+        }
+
+        /**
+         * @return the given items, sorted, with only the oldest value kept for
+         * each component:propertyKey pair, at the order of the most recent change to that pair
+         */
+        private static List<UndoItem> coalesce(List<UndoItem> items)
+        {
+            final Map<LWComponent,Map<Object,UndoItem>> seen = new HashMap();
+            final List<UndoItem> kept = new ArrayList(items.size());
+            boolean reordered = false;
+            
+            for (UndoItem item : items) {
+                Map<Object,UndoItem> changes = seen.get(item.component);
+                if (changes == null) {
+                    changes = new HashMap(4);
+                    seen.put(item.component, changes);
+                }
+                final UndoItem first = changes.get(item.propKey);
+                if (first == null) {
+                    changes.put(item.propKey, item);
+                    kept.add(item);
+                } else {
+                    first.order = item.order;
+                    reordered = true;
+                }
+            }
+            if (reordered) {
+                if (DEBUG.UNDO) Log.debug("coalesced " + items.size() + " changes to " + kept.size());
+                Collections.sort(kept);
+            }
+            return kept;
+        }
+
+        public String toString() {
+            return "PackedChanges[" + order.length + " changes, ~" + bytes + " bytes]";
+        }
+    }
+
+    /** @return a rough estimate, in bytes, of the memory held by the given old value, beyond the reference to it */
+    private static long estimateBytes(Object v) {
+        if (v == null || v instanceof Boolean || v == LWComponent.NO_CHILDREN)
+            return 0;
+        else if (v instanceof String)
+            return 40 + ((String)v).length() * 2;
+        else if (v instanceof Collection)
+            return 40 + ((Collection)v).size() * 4;
+        else
+            return 32;
+    }
+
     private static class UndoActionList extends ArrayList
     {
         private final String name;
+        private final long maxBytes;
         private int current = -1;
 
-        UndoActionList(String name) {
+        /** @param maxBytes if > 0, the oldest actions are dropped once our estimated memory use goes beyond this */
+        UndoActionList(String name, long maxBytes) {
             this.name = name;
+            this.maxBytes = maxBytes;
         }
         
         public boolean add(Object o) {
@@ -606,10 +828,34 @@ public class UndoManager
                 removeRange(s, e);
             }
             if (DEBUG.UNDO) out("adding: " + o);
+            // The prior action is no longer the most recent: it's changes can be packed.
+            // The most recent is left alone, as it's the most likely to be undone.
+            if (size() > 0)
+                ((UndoAction) get(size() - 1)).compact();
             super.add(o);
             current = size() - 1;
+            if (maxBytes > 0)
+                trimToMemoryLimit();
             return true;
         }
+
+        /** drop the oldest actions until we're under our memory limit -- the most recent action is always kept */
+        private void trimToMemoryLimit() {
+            int oldestKept = size() - 1;
+            long total = ((UndoAction) get(oldestKept)).memoryEstimate();
+            while (oldestKept > 0) {
+                final long bytes = ((UndoAction) get(oldestKept - 1)).memoryEstimate();
+                if (total + bytes > maxBytes)
+                    break;
+                total += bytes;
+                oldestKept--;
+            }
+            if (oldestKept > 0) {
+                if (DEBUG.Enabled) Log.debug(this + " dropping " + oldestKept + " oldest actions; ~" + total + " bytes remain in history");
+                removeRange(0, oldestKept);
+                current -= oldestKept;
+            }
+        }
         UndoAction pop() {
             if (current < 0)
                 return null;
@@ -1264,6 +1510,7 @@ public class UndoManager
     }
     
     private void fireUserActionCompleted() {
+        mJournal.commit();
         checkAndHandleSelectionCleanups();
         mMap.notify(this, LWKey.UserActionCompleted);        
     }
@@ -1272,6 +1519,16 @@ public class UndoManager
         isSuspended = suspend;
     }
 
+    /** our map has been saved (or is otherwise the same as it's save file) */
+    void mapSaved() {
+        mJournal.mapSaved();
+    }
+
+    /** our map is going away: stop journaling it, and if discard is true, delete the recovery files */
+    void closeJournal(boolean discard) {
+        mJournal.close(discard);
+    }
+
     /**
      * Every event anywhere in the map we're listening to, including events as a result of
      * an Undo or Redo, will get delivered to us here.  If the event has an old value in
@@ -1287,6 +1544,8 @@ public class UndoManager
             return;
         }
 
+        mJournal.record(e);
+
         if (e.key == LWKey.Hidden || e.key == LWKey.Collapsed) {
             // technically, we only need to flag this if the LWComponent in the event is
             // also currently selected, tho theoretically there could be a list of
@@ -1552,8 +1811,10 @@ public class UndoManager
             }
             if (allChangesToComponent != null)
                 allChangesToComponent.put(propertyKey, new TaggedPropertyValue(undoAction.size(), oldValue));
-            undoAction.undoSequence.add(new UndoItem(component, propertyKey, oldValue, undoAction.eventCount));
-            undoAction.eventCount++;
+            synchronized (undoAction) { // an older action may be concurrently compacting: see UndoAction.compact
+                undoAction.undoSequence.add(new UndoItem(component, propertyKey, oldValue, undoAction.eventCount));
+                undoAction.eventCount++;
+            }
             if (DEBUG.UNDO) {
                 System.out.println(" (stored: " + oldValue + ")");
                 //if (DEBUG.META) 
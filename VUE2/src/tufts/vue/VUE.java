@@ -3268,6 +3268,8 @@ public class VUE
             return SaveAction.saveMap(map);
         } else if (response == JOptionPane.NO_OPTION) { // Don't Save
             // don't save -- just close
+            if (map.getUndoManager() != null)
+                map.getUndoManager().closeJournal(true);
             return true;
         } else // anything else (Cancel or dialog window closed)
             return false;
@@ -3282,6 +3284,8 @@ public class VUE
     	if (!reverting)
     	{
     		if (askSaveIfModified(map)) {
+    			if (map.getUndoManager() != null)
+    				map.getUndoManager().closeJournal(true);
     			 try{
     		 
     			mMapTabsLeft.closeMap(map);
@@ -3299,6 +3303,8 @@ public class VUE
     	else
     	{
     		if (askIfRevertOK(map)) {
+    			if (map.getUndoManager() != null)
+    				map.getUndoManager().closeJournal(true);
     			mMapTabsLeft.closeMap(map);
     			if (mMapTabsRight != null)
     				mMapTabsRight.closeMap(map);
@@ -316,6 +316,143 @@ public class VueUtil extends tufts.Util
     }
 
 
+    /**
+     * Compute the first intersection of a line segment with one of the standard node
+     * shapes (rectangles, round-rects, ellipses, and the tufts.vue.shape polygons) in closed
+     * form, instead of walking a flattened path.  The segment is taken into the local
+     * coordinates of the shape, and the intersection is found there as a distance along
+     * the segment, which is the same in both coordinate spaces.
+     *
+     * @return true if the shape was handled, in which case result holds the x/y of the
+     * intersection, or NaN's if there wasn't one.  false if the general case is needed.
+     */
+    private static boolean computeShapeIntersection(float segX1, float segY1,
+                                                    float segX2, float segY2,
+                                                    java.awt.Shape shape, AffineTransform shapeTransform,
+                                                    float[] result)
+    {
+        if (!(shape instanceof java.awt.geom.RectangularShape || shape instanceof tufts.vue.shape.RectangularPoly2D))
+            return false;
+        
+        final double[] p = { segX1, segY1, segX2, segY2 };
+        if (shapeTransform != null && !shapeTransform.isIdentity()) {
+            try {
+                shapeTransform.inverseTransform(p, 0, p, 0, 2);
+            } catch (java.awt.geom.NoninvertibleTransformException e) {
+                return false;
+            }
+        }
+        final double x = p[0], y = p[1], dx = p[2] - p[0], dy = p[3] - p[1];
+        final double t;
+
+        if (shape instanceof tufts.vue.shape.RectangularPoly2D) {
+            final tufts.vue.shape.RectangularPoly2D poly = (tufts.vue.shape.RectangularPoly2D) shape;
+            final int sides = poly.getSides();
+            double hit = Double.NaN;
+            for (int v = 0; v < sides && Double.isNaN(hit); v++) {
+                final int next = (v + 1) % sides;
+                hit = segmentCrossing(x, y, dx, dy, poly.getVertexX(v), poly.getVertexY(v), poly.getVertexX(next), poly.getVertexY(next));
+            }
+            t = hit;
+        } else if (shape instanceof java.awt.geom.Rectangle2D) {
+            final java.awt.geom.Rectangle2D r = (java.awt.geom.Rectangle2D) shape;
+            t = rectCrossing(x, y, dx, dy, r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY());
+        } else if (shape instanceof java.awt.geom.Ellipse2D) {
+            final java.awt.geom.Ellipse2D e = (java.awt.geom.Ellipse2D) shape;
+            t = ellipseCrossing(x, y, dx, dy, e.getCenterX(), e.getCenterY(), e.getWidth() / 2, e.getHeight() / 2, null);
+        } else if (shape instanceof java.awt.geom.RoundRectangle2D) {
+            final java.awt.geom.RoundRectangle2D r = (java.awt.geom.RoundRectangle2D) shape;
+            // RoundRectangle2D limits the arcs to the size of the rectangle
+            final double rx = Math.min(r.getWidth(), Math.abs(r.getArcWidth())) / 2;
+            final double ry = Math.min(r.getHeight(), Math.abs(r.getArcHeight())) / 2;
+            final double x1 = r.getMinX(), y1 = r.getMinY(), x2 = r.getMaxX(), y2 = r.getMaxY();
+            if (rx <= 0 || ry <= 0) {
+                t = rectCrossing(x, y, dx, dy, x1, y1, x2, y2);
+            } else {
+                // the straight edges, then each corner arc
+                double min = Double.NaN;
+                min = minCrossing(min, segmentCrossing(x, y, dx, dy, x1 + rx, y1, x2 - rx, y1));
+                min = minCrossing(min, segmentCrossing(x, y, dx, dy, x2, y1 + ry, x2, y2 - ry));
+                min = minCrossing(min, segmentCrossing(x, y, dx, dy, x2 - rx, y2, x1 + rx, y2));
+                min = minCrossing(min, segmentCrossing(x, y, dx, dy, x1, y2 - ry, x1, y1 + ry));
+                min = minCrossing(min, ellipseCrossing(x, y, dx, dy, x1 + rx, y1 + ry, rx, ry, new int[] { -1, -1 }));
+                min = minCrossing(min, ellipseCrossing(x, y, dx, dy, x2 - rx, y1 + ry, rx, ry, new int[] { +1, -1 }));
+                min = minCrossing(min, ellipseCrossing(x, y, dx, dy, x2 - rx, y2 - ry, rx, ry, new int[] { +1, +1 }));
+                min = minCrossing(min, ellipseCrossing(x, y, dx, dy, x1 + rx, y2 - ry, rx, ry, new int[] { -1, +1 }));
+                t = min;
+            }
+        } else {
+            return false; // some other RectangularShape, such as an Arc2D
+        }
+
+        if (Double.isNaN(t)) {
+            result[0] = result[1] = Float.NaN;
+            return true; // a miss: callers check for NoIntersection by identity
+        }
+        result[0] = (float) (segX1 + t * (segX2 - segX1));
+        result[1] = (float) (segY1 + t * (segY2 - segY1));
+        return true;
+    }
+
+    private static double minCrossing(double min, double t) {
+        return Double.isNaN(min) || t < min ? t : min;
+    }
+
+    /** @return the first crossing of the segment with the rectangle edges, in Rectangle2D path order */
+    private static double rectCrossing(double x, double y, double dx, double dy, double x1, double y1, double x2, double y2) {
+        double t = segmentCrossing(x, y, dx, dy, x1, y1, x2, y1);
+        if (Double.isNaN(t)) t = segmentCrossing(x, y, dx, dy, x2, y1, x2, y2);
+        if (Double.isNaN(t)) t = segmentCrossing(x, y, dx, dy, x2, y2, x1, y2);
+        if (Double.isNaN(t)) t = segmentCrossing(x, y, dx, dy, x1, y2, x1, y1);
+        return t;
+    }
+
+    /**
+     * @return the distance (0-1) along the segment at x,y + dx,dy where it crosses the
+     * edge ax,ay -> bx,by, or NaN if it doesn't
+     */
+    private static double segmentCrossing(double x, double y, double dx, double dy, double ax, double ay, double bx, double by) {
+        final double ex = bx - ax, ey = by - ay;
+        final double denom = dx * ey - dy * ex;
+        if (denom == 0)
+            return Double.NaN; // parallel
+        final double t = ((ax - x) * ey - (ay - y) * ex) / denom;
+        final double u = ((ax - x) * dy - (ay - y) * dx) / denom;
+        return t >= 0 && t <= 1 && u >= 0 && u <= 1 ? t : Double.NaN;
+    }
+
+    /**
+     * @return the distance (0-1) along the segment at x,y + dx,dy where it first crosses the
+     * ellipse, or NaN if it doesn't.  If quadrant is given (x & y signs relative to the center),
+     * only crossings in that quadrant of the ellipse count.
+     */
+    private static double ellipseCrossing(double x, double y, double dx, double dy,
+                                          double cx, double cy, double rx, double ry, int[] quadrant)
+    {
+        if (rx <= 0 || ry <= 0)
+            return Double.NaN;
+        final double ox = (x - cx) / rx, oy = (y - cy) / ry;
+        final double ux = dx / rx, uy = dy / ry;
+        final double a = ux * ux + uy * uy;
+        final double b = 2 * (ox * ux + oy * uy);
+        final double c = ox * ox + oy * oy - 1;
+        final double disc = b * b - 4 * a * c;
+        if (a == 0 || disc < 0)
+            return Double.NaN;
+        final double root = Math.sqrt(disc);
+        final double t0 = (-b - root) / (2 * a);
+        final double t1 = (-b + root) / (2 * a);
+        if (t0 >= 0 && t0 <= 1 && inQuadrant(ox + t0 * ux, oy + t0 * uy, quadrant))
+            return t0;
+        if (t1 >= 0 && t1 <= 1 && inQuadrant(ox + t1 * ux, oy + t1 * uy, quadrant))
+            return t1;
+        return Double.NaN;
+    }
+
+    private static boolean inQuadrant(double x, double y, int[] quadrant) {
+        return quadrant == null || (x * quadrant[0] >= 0 && y * quadrant[1] >= 0);
+    }
+
     /**
      * Compute the intersection of an arbitrary shape and a line segment
      * that is assumed to pass throught the shape.  Usually used
@@ -333,11 +470,12 @@ public class VueUtil extends tufts.Util
                                               java.awt.Shape shape, java.awt.geom.AffineTransform shapeTransform,
                                               float[] result, int max)
     {
+        if (max <= 1 && computeShapeIntersection(segX1, segY1, segX2, segY2, shape, shapeTransform, result))
+            return Float.isNaN(result[0]) ? NoIntersection : result;
+        
         java.awt.geom.PathIterator i = shape.getPathIterator(shapeTransform);
-        // todo performance: if this shape has no curves (CUBICTO or QUADTO)
-        // this flattener is redundant.  Also, it would be faster to
-        // actually do the math for arcs and compute the intersection
-        // of the arc and the line, tho we can save that for another day.
+        // This is the general case, for shapes computeShapeIntersection doesn't know about.
+        // If this shape has no curves (CUBICTO or QUADTO) this flattener is redundant.
         i = new java.awt.geom.FlatteningPathIterator(i, 0.5);
         
         float[] seg = new float[6];
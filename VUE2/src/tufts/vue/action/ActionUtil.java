@@ -32,6 +32,7 @@ import org.exolab.castor.xml.Unmarshaller;
 import org.exolab.castor.xml.UnmarshalListener;
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
+import org.exolab.castor.xml.XMLContext;
 
 import org.exolab.castor.mapping.Mapping;
 import org.exolab.castor.mapping.MappingException;
@@ -85,6 +86,8 @@ public class ActionUtil
     private final static String OUTPUT_ENCODING = "US-ASCII";
     private final static String DEFAULT_WINDOWS_ENCODING = "windows-1252"; // (a.k.a Cp1252) for reading pre ASCII enforced save files from Windows
     private final static String DEFAULT_MAC_ENCODING = "UTF-8"; // "MacRoman" not supported on Windows platform
+    private final static int READ_BUFFER_SIZE = 64*1024;
+    private final static int WRITE_BUFFER_SIZE = 64*1024;
 
 
     /**
@@ -130,6 +133,7 @@ public class ActionUtil
         { 
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.JPEG_DESCRIPTION));
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.PNG_DESCRIPTION));
+        	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.DZI_DESCRIPTION));
             saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.SVG_DESCRIPTION));        	
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.IMS_DESCRIPTION));
         	saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.IMAGEMAP_DESCRIPTION));
@@ -147,6 +151,7 @@ public class ActionUtil
             
             saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.JPEG_DESCRIPTION));
             saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.PNG_DESCRIPTION));
+            saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.DZI_DESCRIPTION));
             saveChooser.addChoosableFileFilter(new VueFileFilter(VueFileFilter.SVG_DESCRIPTION));
             //chooser.addChoosableFileFilter(new VueFileFilter("html"));
             
@@ -385,9 +390,8 @@ public class ActionUtil
         if (mapping == null)
             mapping = getDefaultMapping();
         
-        // todo: can cache this with it's mapping set (tho need to cache by mapping,
-        // as we still have different mapping files for old versions of the VUE save file)
-        Unmarshaller unmarshaller = new Unmarshaller();
+        final XMLContext context = getContext(mapping);
+        final Unmarshaller unmarshaller = context == null ? new Unmarshaller() : context.createUnmarshaller();
         
         unmarshaller.setIgnoreExtraAttributes(true);
         unmarshaller.setIgnoreExtraElements(true);
@@ -400,7 +404,8 @@ public class ActionUtil
         if (DEBUG.XML) unmarshaller.setDebug(true);
         
         unmarshaller.setUnmarshalListener(new MapUnmarshalHandler(sourceName, "DEFAULT("+sourceName + ")"));
-        unmarshaller.setMapping(mapping);
+        if (context == null)
+            unmarshaller.setMapping(mapping);
 
         if (DEBUG.CASTOR || DEBUG.XML || DEBUG.IO)
             Log.debug("got default unmarshaller for mapping " + mapping + " source " + sourceName);
@@ -418,6 +423,46 @@ public class ActionUtil
             return null;
     }
     
+    /** Castor contexts by Mapping: see getContext */
+    private static final HashMap<Mapping,XMLContext> MappingContexts = new HashMap();
+
+    /**
+     * @return a shared Castor context for the given mapping, or null if one couldn't be created.
+     *
+     * A Marshaller or Unmarshaller that's given a Mapping directly builds it's own
+     * class descriptors from it, by introspection of every mapped class, each time
+     * it's created.  Marshallers and Unmarshallers created from a shared context re-use
+     * it's descriptors.  We keep one per mapping, as old save files still need their own
+     * mappings.
+     *
+     * Note this only removes a fixed setup cost from each load & save.  The parse
+     * itself, and the reflective construction of every object in the map, still go
+     * through Castor, and still scale with the size of the map.  Cutting those would
+     * take a hand-written streaming (StAX) reader & writer for the current model
+     * version, which we don't have.
+     */
+    private static XMLContext getContext(Mapping mapping)
+    {
+        if (DEBUG.CASTOR) // mappings are re-loaded every time in this case
+            return null;
+        
+        synchronized (MappingContexts) {
+            if (MappingContexts.containsKey(mapping))
+                return MappingContexts.get(mapping);
+            XMLContext context = null;
+            try {
+                context = new XMLContext();
+                context.addMapping(mapping);
+                if (DEBUG.IO || DEBUG.INIT) Log.debug("created castor context for " + mapping);
+            } catch (Throwable t) {
+                Log.warn("no shared castor context for mapping " + mapping + "; will map on each use", t);
+                context = null;
+            }
+            MappingContexts.put(mapping, context);
+            return context;
+        }
+    }
+    
     private static HashMap LoadedMappings = new HashMap();
     /** return's a Mapping if successful, or an Exception if not.
      * Results are cached (if load was successful) for future calls.*/
@@ -611,7 +656,12 @@ public class ActionUtil
         // Marshall the map to the tmp file:
         // ---------------------------------
 
-        marshallMapToWriter(writer, map, targetFile, tmpFile);
+        // The serializer issues a great many tiny writes (often a character at a time),
+        // each of which would otherwise go through the charset encoder on it's own.
+        final Writer bufferedWriter = new BufferedWriter(writer, WRITE_BUFFER_SIZE);
+
+        marshallMapToWriter(bufferedWriter, map, targetFile, tmpFile);
+        bufferedWriter.flush();
         
         //=======================================================
 
@@ -651,12 +701,75 @@ public class ActionUtil
                org.exolab.castor.xml.ValidationException,
                org.exolab.castor.mapping.MappingException
     {
-        marshallMapToWriter(writer, map, null, null);
+        marshallMapToWriter(writer, map, null, null, true);
     }
     
     /**
-     * @param file - if null, map state is untouched, otherwise, map state is updated
+     * Marshall the given map to the given Writer without touching the map in any
+     * way, and without alerting the user on failure.  For saves the user didn't
+     * ask for, which may be running in the background.
+     */
+    public static void marshallMapQuietly(final LWMap map, final Writer writer)
+        throws java.io.IOException,
+               org.exolab.castor.xml.MarshalException,
+               org.exolab.castor.xml.ValidationException,
+               org.exolab.castor.mapping.MappingException
+    {
+        marshallMapToWriter(writer, map, null, null, false);
+    }
+
+    /**
+     * Marshall a single component (and any children) to an XML fragment, in the same
+     * form it would take in a save file, without touching it in any way.  Any
+     * references to other components (e.g., link endpoints) are written as their ID's.
+     */
+    public static String marshallComponent(final tufts.vue.LWComponent c)
+        throws java.io.IOException,
+               org.exolab.castor.xml.MarshalException,
+               org.exolab.castor.xml.ValidationException,
+               org.exolab.castor.mapping.MappingException
+    {
+        final StringWriter writer = new StringWriter(1024);
+        final XMLContext context = getContext(getDefaultMapping());
+        final Marshaller marshaller;
+        if (context == null) {
+            marshaller = new Marshaller(writer);
+            marshaller.setMapping(getDefaultMapping());
+        } else {
+            marshaller = context.createMarshaller();
+            marshaller.setWriter(writer);
+        }
+        marshaller.setMarshalAsDocument(false);
+        marshaller.setNoNamespaceSchemaLocation("none");
+        marshaller.setMarshalListener(new VueMarshalListener());
+        marshaller.setValidation(false); // see marshallMapToWriter
+        marshaller.marshal(c);
+        return writer.toString();
+    }
+
+    /**
+     * Restore a component from a fragment produced by marshallComponent.  The returned
+     * component has yet to complete it's restore: see LWMap.completeFragmentRestore.
+     *
+     * @param components where to find any components referenced by ID in the fragment.
+     * If null, or a component isn't found there, the reference is left empty.
      */
+    public static tufts.vue.LWComponent unmarshallComponent(final String xml,
+                                                            final java.util.Map<String,? extends tufts.vue.LWComponent> components)
+        throws java.io.IOException,
+               org.exolab.castor.xml.MarshalException,
+               org.exolab.castor.xml.ValidationException,
+               org.exolab.castor.mapping.MappingException
+    {
+        final Unmarshaller unmarshaller = getDefaultUnmarshaller("component fragment");
+        unmarshaller.setIDResolver(new org.exolab.castor.xml.IDResolver() {
+                public Object resolve(String id) {
+                    return components == null ? null : components.get(id);
+                }
+            });
+        return (tufts.vue.LWComponent) unmarshaller.unmarshal(new StringReader(xml));
+    }
+    
     private static void marshallMapToWriter(final Writer writer,
                                             final LWMap map,
                                             final File targetFile,
@@ -665,6 +778,22 @@ public class ActionUtil
                org.exolab.castor.xml.MarshalException,
                org.exolab.castor.xml.ValidationException,
                org.exolab.castor.mapping.MappingException
+    {
+        marshallMapToWriter(writer, map, targetFile, tmpFile, true);
+    }
+    
+    /**
+     * @param file - if null, map state is untouched, otherwise, map state is updated
+     */
+    private static void marshallMapToWriter(final Writer writer,
+                                            final LWMap map,
+                                            final File targetFile,
+                                            final File tmpFile,
+                                            final boolean alertOnError)
+        throws java.io.IOException,
+               org.exolab.castor.xml.MarshalException,
+               org.exolab.castor.xml.ValidationException,
+               org.exolab.castor.mapping.MappingException
     {
         map.makeReadyForSaving(targetFile);
         
@@ -706,7 +835,14 @@ public class ActionUtil
                      + " Saving version " + tufts.vue.Version.WhatString
                      + " -->\n");
         if (DEBUG.CASTOR || DEBUG.IO) Log.debug("Wrote VUE header to " + writer);
-        marshaller = new Marshaller(writer);
+        final XMLContext context = getContext(getDefaultMapping());
+        if (context == null) {
+            marshaller = new Marshaller(writer);
+            marshaller.setMapping(getDefaultMapping());
+        } else {
+            marshaller = context.createMarshaller();
+            marshaller.setWriter(writer);
+        }
         //marshaller.setDebug(DEBUG.CASTOR);
         marshaller.setEncoding(OUTPUT_ENCODING);
         // marshaller.setEncoding("UTF-8");
@@ -732,8 +868,6 @@ public class ActionUtil
         */
 
         //marshaller.setRootElement("FOOBIE"); // overrides name of root element
-            
-        marshaller.setMapping(getDefaultMapping());
 
         //----------------------------------------------------------------------------------------
         // 
@@ -789,6 +923,9 @@ public class ActionUtil
         } catch (Throwable t) {
             Log.error(tmpFile + "; " + map, t);
 
+            if (!alertOnError)
+                throw new WrappedMarshallException(t);
+
             //-----------------------------------------------------------------------------
             // This was a poor choice of message.  This describes just one of many,
             // many errors that may occur, and can be entirely misleading.
@@ -920,7 +1057,7 @@ public class ActionUtil
 
         Log.debug("got reader for " + Util.tags(url) + "; encoding=" + charsetEncoding + ": " + reader);
 
-        return new MapReader(new BufferedReader(reader), file);
+        return new MapReader(new BufferedReader(reader, READ_BUFFER_SIZE), file);
 
 
 // Anoop code as of 2008-03-12:
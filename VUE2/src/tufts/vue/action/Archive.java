@@ -19,6 +19,8 @@ import java.io.*;
 import java.net.URL;
 import java.util.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
+import java.security.MessageDigest;
 
 import tufts.Util;
 import tufts.vue.DEBUG;
@@ -109,13 +111,18 @@ public class Archive
 
     /**
      * @param zipFile should be a File pointing to a VUE Package -- a Zip Archive created by VUE
+     *
+     * Only the map itself is unpacked here.  The packaged resources are found in the
+     * zip file's central directory, and each is given a PackagedFile at the location it
+     * would have been unpacked to, which will serve it's data straight out of the archive
+     * when first needed (e.g., when an image is first drawn).
      */
 
     public static LWMap openVuePackage(final File zipFile)
         throws java.io.IOException,
                java.util.zip.ZipException
     {
-        Log.info("Unpacking VUE zip archive: " + zipFile);
+        Log.info("Opening VUE zip archive: " + zipFile);
         
         final String unpackingDir;
 
@@ -129,38 +136,49 @@ public class Archive
         
         Log.info("Unpacking location: " + unpackingDir);
 
-        final ZipInputStream zin = new ZipInputStream(new FileInputStream(zipFile));
-
-        final Map<String,String> packagedResources = new HashMap();
+        final Map<String,PackagedFile> packagedResources = new HashMap();
+        final Map<String,PackagedFile> packagedEntries = new HashMap(); // for finding manifest entries
 
-        ZipEntry entry;
         ZipEntry mapEntry = null;
-        String mapFile = null;
-        
-        while ( (entry = zin.getNextEntry()) != null ) {
+        PackagedFile mapFile = null;
 
-            final String location = unzipEntryToFile(zin, entry, unpackingDir);
-            final String comment = Archive.getComment(entry);
-
-            if (comment != null) {
-                if (comment.startsWith(MAP_ARCHIVE_KEY)) {
-                    mapEntry = entry;
-                    mapFile = location;
-                    Log.info("Identified map entry: " + comment + " (" + entry.getName() + ")");
-                    //Log.info("Found map: " + entry + "; at " + location);
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String comment = Archive.getComment(entry);
+
+                if (comment != null) {
+                    final PackagedFile location = new PackagedFile(unpackingDir, zipFile, entry);
+                    if (comment.startsWith(MAP_ARCHIVE_KEY)) {
+                        mapEntry = entry;
+                        mapFile = location;
+                        Log.info("Identified map entry: " + comment + " (" + entry.getName() + ")");
+                        //Log.info("Found map: " + entry + "; at " + location);
+                    } else {
+                        final String name = entry.getName();
+                        packagedEntries.put(name.substring(name.indexOf('/') + 1), location);
+                        String spec = comment.substring(comment.indexOf(SPEC_KEY) + SPEC_KEY_LEN);
+                        if (DEBUG.IO) Log.debug("             [" + spec + "]");
+                        if (packagedResources.put(spec, location) != null)
+                            Log.warn("repeated resource spec in archive! [" + spec + "]");
+                        //Log.debug("       spec= " + spec);
+                    }
                 } else {
-                    String spec = comment.substring(comment.indexOf(SPEC_KEY) + SPEC_KEY_LEN);
-                    Log.info("             [" + spec + "]"); // todo: revert to debug level eventually
-                    if (packagedResources.put(spec, location) != null)
-                        Log.warn("repeated resource spec in archive! [" + spec + "]");
-                    //Log.debug("       spec= " + spec);
+                    Log.warn("ENTRY WITH NO COMMENT: " + entry);
                 }
-            } else {
-                Log.warn("ENTRY WITH NO COMMENT: " + entry);
             }
+        } finally {
+            zip.close();
         }
 
-        zin.close();
+        if (mapFile == null)
+            throw new ZipException("no map found in VUE package " + zipFile);
+
+        Log.info("Found " + packagedResources.size() + " packaged resources");
+
+        mapFile.unpack();
            
         // If this package map is being unmarshalled on the same machine it was created
         // on, all the URLResource's will initialize themseleves normally to their
@@ -174,10 +192,11 @@ public class Archive
         // it should wait on attempting to initialize.
         
         final LWMap map =
-            ActionUtil.unmarshallMap(new File(mapFile),
+            ActionUtil.unmarshallMap(mapFile,
                                      new ArchiveMapUnmarshalHandler(zipFile + "(" + mapEntry + ")",
                                                                     zipFile,
-                                                                    packagedResources));
+                                                                    packagedResources,
+                                                                    packagedEntries));
 
         map.setFile(zipFile);
         map.markAsSaved();
@@ -185,14 +204,142 @@ public class Archive
         return map;
     }
 
+    /**
+     * A file packaged in a VUE archive, at the location it will be unpacked to if
+     * anything ever needs it as an actual file.  Until then, it reports the size and date
+     * of it's archive entry, and it's data can be read straight from the archive with
+     * openStream.  Any stale file already at the unpacking location is ignored, and will
+     * be overwritten if we do unpack.
+     */
+    public static final class PackagedFile extends File
+    {
+        private volatile File archive;
+        private volatile String entryName;
+        private volatile long entrySize;
+        private volatile long entryTime;
+        private volatile boolean unpacked;
+
+        PackagedFile(String unpackingDir, File archive, ZipEntry entry) {
+            // This will convert "/" from the zip-entry package name to "\" on Windows
+            // (ZipEntry pathnames always use '/', no matter what the platform).
+            super(unpackingDir, entry.getName());
+            this.archive = archive;
+            setEntry(entry);
+        }
+
+        private void setEntry(ZipEntry entry) {
+            entryName = entry.getName();
+            entrySize = entry.getSize();
+            entryTime = entry.getTime();
+        }
+
+        /** @return true if this file's data is currently available as an actual file */
+        public boolean isUnpacked() {
+            return unpacked;
+        }
+
+        /**
+         * @return a stream of this file's data, read from the archive if it hasn't
+         * been unpacked.  The caller must close the stream.
+         */
+        public InputStream openStream()
+            throws IOException
+        {
+            if (unpacked)
+                return new FileInputStream(this);
+            
+            final ZipFile zip = new ZipFile(archive);
+            final ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                zip.close();
+                throw new FileNotFoundException(entryName + " in " + archive);
+            }
+            if (DEBUG.IO) Log.debug("reading " + entryName + " from " + archive);
+            return new FilterInputStream(zip.getInputStream(entry)) {
+                @Override public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+        }
+
+        /** make sure this file's data is available as an actual file */
+        public synchronized PackagedFile unpack()
+            throws IOException
+        {
+            if (unpacked)
+                return this;
+
+            Log.info("Unpacking " + entryName + " to " + getPath());
+            
+            createFile(getPath());
+            final InputStream in = openStream();
+            boolean success = false;
+            try {
+                final OutputStream out = new FileOutputStream(this);
+                try {
+                    copy(in, out);
+                } finally {
+                    out.close();
+                }
+                success = true;
+            } finally {
+                in.close();
+                if (!success)
+                    delete();
+            }
+            if (entryTime > 0)
+                setLastModified(entryTime); // so the resource doesn't think it's data has changed
+            unpacked = true;
+            return this;
+        }
+
+        /** our data has been re-written to the given entry in the given archive */
+        void relocate(File archive, ZipEntry entry) {
+            if (unpacked)
+                return;
+            if (DEBUG.IO) Log.debug("relocating " + this + " to " + entry + " in " + archive);
+            this.archive = archive;
+            setEntry(entry);
+        }
+
+        @Override public boolean exists() {
+            return unpacked ? super.exists() : archive.exists();
+        }
+        @Override public boolean isFile() {
+            return unpacked ? super.isFile() : archive.isFile();
+        }
+        @Override public boolean isDirectory() {
+            return unpacked ? super.isDirectory() : false;
+        }
+        @Override public boolean canRead() {
+            return unpacked ? super.canRead() : archive.canRead();
+        }
+        @Override public long length() {
+            return unpacked || entrySize < 0 ? super.length() : entrySize;
+        }
+        @Override public long lastModified() {
+            return unpacked ? super.lastModified() : entryTime;
+        }
+    }
+
     private static class ArchiveMapUnmarshalHandler  extends MapUnmarshalHandler
     {
-        final Map<String,String> packagedResources;
+        final Map<String,PackagedFile> packagedResources;
+        final Map<String,PackagedFile> packagedEntries;
         final File archiveFile;
         
-        ArchiveMapUnmarshalHandler(Object source, File archiveFile, Map<String,String> resourcesFoundInPackage) {
+        ArchiveMapUnmarshalHandler(Object source,
+                                   File archiveFile,
+                                   Map<String,PackagedFile> resourcesFoundInPackage,
+                                   Map<String,PackagedFile> entriesByPackageName)
+        {
             super(source, Resource.MANAGED_UNMARSHALLING);
             this.packagedResources = resourcesFoundInPackage;
+            this.packagedEntries = entriesByPackageName;
             this.archiveFile = archiveFile;
         }
 
@@ -224,18 +371,23 @@ public class Archive
 
         private void patchResourcesForPackage() {
 
+            // Resources with the same content as another share it's package entry,
+            // and are found only through the manifest.
+            final Collection manifest = map.getArchiveManifest();
+            if (manifest != null) {
+                for (Object o : manifest) {
+                    final PropertyEntry e = (PropertyEntry) o;
+                    final PackagedFile file = packagedEntries.get(String.valueOf(e.getValue()));
+                    if (file != null && !packagedResources.containsKey(e.getKey()))
+                        packagedResources.put(e.getKey(), file);
+                }
+            }
+
             for (Resource r : map.getAllResources()) {
-                final String packageCacheFile = packagedResources.get(r.getSpec());
-                if (packageCacheFile != null) {
-                    //Log.debug("Found packaged resource: " + r + "; " + packageCacheFile);
-                    if (DEBUG.Enabled) Log.debug("patching packaged resource: " + packageCacheFile + "; into " + r);
-                
-                    // This will convert "/" from the zip-entry package name to "\" on Windows
-                    // (ZipEntry pathnames always use '/', no matter what the platform).
-                    final File localFile = new File(packageCacheFile);
-                    final String localPath = localFile.toString();
-                    if (DEBUG.RESOURCE && !localPath.equals(packageCacheFile))
-                        Log.info("       localized file path: " + localPath);
+                final PackagedFile localFile = packagedResources.get(r.getSpec());
+                if (localFile != null) {
+                    //Log.debug("Found packaged resource: " + r + "; " + localFile);
+                    if (DEBUG.Enabled) Log.debug("patching packaged resource: " + localFile + "; into " + r);
 
                     if (r instanceof URLResource) {
                         ((URLResource)r).setPackageFile(localFile, archiveFile);
@@ -638,13 +790,303 @@ public class Archive
         return packageName;
     }
 
+    private static final int SCAN_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /**
+     * Content no larger than this is read, and deflated if need be, on the worker pool, and
+     * kept in memory until it's written.  Larger content is streamed into the package by
+     * the writer thread.
+     */
+    private static final int MAX_BUFFERED = 8 * 1024 * 1024;
+    /** the most content, in KB, to have in memory at once waiting to be written */
+    private static final int BUFFER_BUDGET_KB = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /** how often, in bytes of resource data, progress is reported while streaming large content */
+    private static final int PROGRESS_STEP = 1024 * 1024;
+    private static final double MB = 1024 * 1024;
+
+    /** file types that are already compressed, and so are stored in a package as is */
+    private static final Set<String> CompressedTypes = new HashSet(Arrays.asList(new String[] {
+        "jpg", "jpeg", "png", "gif", "zip", "vpk", "gz", "tgz", "bz2", "jar",
+        "mp3", "m4a", "aac", "mp4", "m4v", "mov", "avi", "wmv", "flv", "swf",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp",
+    }));
+
+    private static boolean isCompressedType(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && CompressedTypes.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Reports progress while a package is written.  Calls are made on the thread writing
+     * the package, after each item, and every megabyte or so while copying large items.
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesDone the size of the resource data handled so far
+         * @param bytesTotal the size of all the resource data to be written
+         */
+        void packageProgress(int itemsDone, int itemsTotal, long bytesDone, long bytesTotal);
+    }
+
+    private static final class Progress {
+        final ProgressListener listener;
+        final int itemsTotal;
+        final long bytesTotal;
+        int itemsDone;
+        long bytesDone;
+        private long itemStart;
+        private long lastReport;
+
+        Progress(ProgressListener listener, int itemsTotal, long bytesTotal) {
+            this.listener = listener;
+            this.itemsTotal = itemsTotal;
+            this.bytesTotal = bytesTotal;
+        }
+
+        void bytes(int count) {
+            bytesDone += count;
+            if (bytesDone - lastReport >= PROGRESS_STEP)
+                report();
+        }
+
+        void itemDone(Item item) {
+            itemsDone++;
+            bytesDone = itemStart + item.length;
+            itemStart = bytesDone;
+            if (DEBUG.Enabled) Log.debug(String.format("wrote %d/%d items; %.1f of %.1f MB: %s",
+                                                       itemsDone, itemsTotal,
+                                                       bytesDone / MB, bytesTotal / MB,
+                                                       item.entry.getName()));
+            report();
+        }
+
+        private void report() {
+            lastReport = bytesDone;
+            if (listener != null)
+                listener.packageProgress(itemsDone, itemsTotal, bytesDone, bytesTotal);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new Error(e); // every JVM has SHA-1
+        }
+    }
+
+    /** @return a key for content with the given digest & size: equal keys mean identical content */
+    private static String digestKey(MessageDigest md, long size) {
+        return new java.math.BigInteger(1, md.digest()).toString(16) + ":" + size;
+    }
+
+    private static InputStream openData(File file)
+        throws IOException
+    {
+        if (file instanceof PackagedFile)
+            return ((PackagedFile)file).openStream();
+        else
+            return new FileInputStream(file);
+    }
+
+    /**
+     * The memory available for buffering content, in KB.  It's handed out in item order:
+     * content waits it's turn, and then for enough of the budget to come free.  Budget is
+     * only ever held by items before the one waiting, and the writer thread frees it as it
+     * writes them, in that same order, so no read can wait on budget that's held by content
+     * the writer won't get to until after it.
+     */
+    private static final class BufferBudget {
+        private int available;
+        /** the index of the next item to be given budget */
+        private int next;
+
+        BufferBudget(int kb) {
+            available = kb;
+        }
+
+        /**
+         * Wait until it's the given item's turn, and the given budget is free, and take it.
+         * Every item must take it's turn, even if it needs no budget, so the items after it
+         * can take theirs.
+         */
+        synchronized void acquire(int index, int kb) throws InterruptedIOException {
+            try {
+                while (next != index || available < kb)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("waiting for buffer space");
+            }
+            available -= kb;
+            next++;
+            notifyAll();
+        }
+
+        synchronized void release(int kb) {
+            available += kb;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A resource's data, read on the worker pool along with it's digest and CRC.  If it's to
+     * be compressed, it's deflated there as well, so all the writer thread has left to do
+     * is copy it into the package.
+     */
+    private static final class Content {
+        final String digest;
+        final long crc;
+        final long size;
+        /** ZipEntry.STORED or ZipEntry.DEFLATED */
+        final int method;
+        /** the entry data, as it's to be written to the package */
+        final byte[] data;
+        private int bufferPermits;
+
+        /**
+         * Stands in for content too large to keep in memory.  That isn't read on the
+         * worker pool at all, but streamed straight into the package by the writer thread,
+         * so no resource data is ever read twice.
+         */
+        static final Content STREAMED = new Content(null, 0, 0, ZipEntry.STORED, null, 0);
+
+        private Content(String digest, long crc, long size, int method, byte[] data, int bufferPermits) {
+            this.digest = digest;
+            this.crc = crc;
+            this.size = size;
+            this.method = method;
+            this.data = data;
+            this.bufferPermits = bufferPermits;
+        }
+
+        /**
+         * Read the given item's data, once it's turn comes, and there's room in the buffer
+         * budget for it.  Only content larger than MAX_BUFFERED is left to be streamed.
+         *
+         * @param index the item's position in the order they're to be written
+         */
+        static Content read(File file, boolean compress, BufferBudget bufferBudget, int index)
+            throws IOException
+        {
+            final long length = file.length();
+            if (length > MAX_BUFFERED) {
+                bufferBudget.acquire(index, 0);
+                return STREAMED;
+            }
+            final int permits = (int) ((length + 1023) / 1024);
+            bufferBudget.acquire(index, permits);
+
+            boolean success = false;
+            try {
+                final MessageDigest md = newDigest();
+                final CRC32 crc = new CRC32();
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+                final byte[] buf = new byte[8192];
+                final InputStream in = openData(file);
+                try {
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        md.update(buf, 0, len);
+                        crc.update(buf, 0, len);
+                        buffer.write(buf, 0, len);
+                    }
+                } finally {
+                    in.close();
+                }
+                final byte[] data = buffer.toByteArray();
+                final String digest = digestKey(md, data.length);
+                
+                if (compress) {
+                    final ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+                    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                    final DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater, 8192);
+                    try {
+                        out.write(data);
+                        out.finish();
+                    } finally {
+                        deflater.end();
+                    }
+                    if (deflated.size() < data.length) {
+                        success = true;
+                        return new Content(digest, crc.getValue(), data.length, ZipEntry.DEFLATED, deflated.toByteArray(), permits);
+                    }
+                    // it didn't shrink: store it as is
+                }
+                success = true;
+                return new Content(digest, crc.getValue(), data.length, ZipEntry.STORED, data, permits);
+                
+            } finally {
+                if (!success)
+                    bufferBudget.release(permits);
+            }
+        }
+
+        /** we're done with the data: let other content be buffered */
+        void release(BufferBudget bufferBudget) {
+            if (bufferPermits > 0) {
+                bufferBudget.release(bufferPermits);
+                bufferPermits = 0;
+            }
+        }
+    }
+
+    /**
+     * Copy the data of the item into the given package entry, reading it only once, and
+     * computing it's digest as we go.
+     *
+     * @return the content digest key, or null if the item's data couldn't be read, in which
+     * case the entry should be discarded.  An IOException means the package itself couldn't
+     * be written.
+     */
+    private static String streamData(Item item, OutputStream out, Progress progress)
+        throws IOException
+    {
+        final MessageDigest md = newDigest();
+        final byte[] buf = new byte[WRITE_BUFFER_SIZE];
+        long size = 0;
+        InputStream in = null;
+        try {
+            in = openData(item.dataFile);
+            for (;;) {
+                final int len;
+                try {
+                    len = in.read(buf);
+                } catch (IOException e) {
+                    Log.error("Failed to read item: " + item, e);
+                    return null;
+                }
+                if (len <= 0)
+                    break;
+                md.update(buf, 0, len);
+                out.write(buf, 0, len);
+                size += len;
+                progress.bytes(len);
+            }
+        } catch (IOException e) {
+            if (in != null)
+                throw e; // failed writing the package
+            Log.error("Failed to open item: " + item, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+        }
+        return digestKey(md, size);
+    }
+
     private static class Item {
         final ZipEntry entry;
         final Resource resource;
         final File dataFile;
-
-        Item(ZipEntry e, Resource r, File f) {
-            entry = e; resource = r; dataFile = f;
+        final String packageName;
+        final long length;
+        /** the entry the data actually went into: a duplicate of other content will share it's entry */
+        ZipEntry written;
+
+        Item(ZipEntry e, Resource r, File f, String name) {
+            entry = e; resource = r; dataFile = f; packageName = name;
+            length = f.length();
         }
 
         public String toString() {
@@ -664,6 +1106,17 @@ public class Archive
     
     public static void writeArchive(LWMap map, File archive)
         throws java.io.IOException
+    {
+        writeArchive(map, archive, null);
+    }
+
+    /**
+     * Write the map to the given file as a Zip archive, reporting progress to the given
+     * listener, if any.
+     * @see #writeArchive(LWMap,File)
+     */
+    public static void writeArchive(LWMap map, File archive, ProgressListener listener)
+        throws java.io.IOException
     {
         Log.info("Writing archive package " + archive);
 
@@ -689,7 +1142,6 @@ public class Archive
         //-----------------------------------------------------------------------------
         
         final Collection<Resource> uniqueResources = map.getAllUniqueResources();
-        final Collection<PropertyEntry> manifest = new ArrayList();
         final List<Item> items = new ArrayList();
         final Set<String> uniqueEntryNames = new HashSet();
 
@@ -720,12 +1172,11 @@ public class Archive
                 final ZipEntry entry = new ZipEntry(dirName + "/" + packageEntryName);
                 Archive.setComment(entry, "\t" + SPEC_KEY + r.getSpec());
 
-                final Item item = new Item(entry, r, sourceFile);
+                final Item item = new Item(entry, r, sourceFile, packageEntryName);
                 
                 //Log.info("created: " + entry + "; " + description);
 
                 items.add(item);
-                manifest.add(new PropertyEntry(r.getSpec(), packageEntryName));
                 
                 if (DEBUG.Enabled) Log.info("created: " + item);
 
@@ -737,61 +1188,172 @@ public class Archive
 
 
         //-----------------------------------------------------------------------------
-        // Write the map to the archive
+        // Read all the resource data in parallel: content digests let us store
+        // identical data only once, and compressible data is deflated by the worker
+        // pool, so the writer thread only has to copy it.  Content too large to keep
+        // in memory is left for the writer thread to stream into the package.
         //-----------------------------------------------------------------------------
 
-        final ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
-        final ZipEntry mapEntry = new ZipEntry(dirName + "/" + mapName + "$map.vue");
-        final String comment = MAP_ARCHIVE_KEY + "; VERSION: 2;"
-            + " Saved " + new Date() + " by " + VUE.getName() + " built " + Version.AllInfo + "; items=" + items.size() + ";"
-            + ">" // /usr/bin/what terminatior
-            //+ "\n\tmap-name(" + mapName + ")"
-            //+ "\n\tunique-resources(" + resources.size() + ")"
-            ;
-        Archive.setComment(mapEntry, comment);
-        zos.putNextEntry(mapEntry);
-
-        final Writer mapOut = new OutputStreamWriter(zos);
-
-        // TODO: need to handle a map marshalling failure, in which case we want to
-        // abandon writing the entire archive -- this will require a big reorg here --
-        // we need to write the entire archive to a tmp archive first, and only create
-        // the new file if everything succeeds.
-
-        try {
-            map.setArchiveManifest(manifest);
-            ActionUtil.marshallMapToWriter(map, mapOut);
-        } catch (Throwable t) {
-            Log.error(t);
-            throw new RuntimeException(t);
-        } finally {
-            // TODO: do NOT reset this if this map is already a packaged map...
-            map.setArchiveManifest(null);
+        final ExecutorService pool = Executors.newFixedThreadPool(SCAN_THREADS);
+        final BufferBudget bufferBudget = new BufferBudget(BUFFER_BUDGET_KB);
+        final List<Future<Content>> reads = new ArrayList(items.size());
+        long totalBytes = 0;
+        for (int i = 0; i < items.size(); i++) {
+            final Item item = items.get(i);
+            final int index = i;
+            totalBytes += item.length;
+            final boolean compress = !isCompressedType(item.packageName);
+            reads.add(pool.submit(new Callable<Content>() {
+                    public Content call() throws IOException {
+                        return Content.read(item.dataFile, compress, bufferBudget, index);
+                    }}));
         }
+        pool.shutdown(); // the threads exit once the reads are done
+
+        // The resources of a package map are read out of the package itself as they're
+        // written, so we can't start writing over it: write a new archive next to it, and
+        // replace the old one only once everything has been written.
+        
+        final File tmpArchive = new File(archive.getPath() + ".tmp");
+        final ZipWriter zip = new ZipWriter(tmpArchive, WRITE_BUFFER_SIZE);
 
         //-----------------------------------------------------------------------------
-        // Write the resources to the archive
+        // Write the resources to the archive, in order, as their reads complete.  A
+        // resource we can't read is skipped, but if we fail to write the package
+        // itself, the whole write fails, and the existing package is left as it was.
         //-----------------------------------------------------------------------------
+
+        final Map<String,Item> writtenContent = new HashMap(); // content digest -> first item with that content
+        final Collection<PropertyEntry> manifest = new ArrayList();
+        final Progress progress = new Progress(listener, items.size(), totalBytes);
+        int stored = 0, duplicates = 0;
+        boolean success = false;
         
-        for (Item item : items) {
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                final Item item = items.get(i);
+                
+                final Content content;
+                try {
+                    content = reads.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.error("Failed to read item: " + item, e.getCause());
+                    progress.itemDone(item);
+                    continue;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("writing " + archive);
+                }
+
+                try {
+                    final ZipWriter.EntryStream streamed;
+                    final String digest;
+                    if (content == Content.STREAMED) {
+                        if (DEBUG.Enabled) Log.debug("streaming: " + item);
+                        streamed = zip.openEntry(item.entry, !isCompressedType(item.packageName));
+                        digest = streamData(item, streamed, progress);
+                        if (digest == null) {
+                            streamed.abort();
+                            continue;
+                        }
+                    } else {
+                        streamed = null;
+                        digest = content.digest;
+                    }
+                    
+                    final Item original = writtenContent.get(digest);
+                    if (original != null) {
+                        // Same data as a resource we've already written: just point it's manifest entry at that one
+                        if (DEBUG.Enabled) Log.debug("duplicate content: " + item + "; same as " + original);
+                        if (streamed != null)
+                            streamed.abort();
+                        item.written = original.written;
+                        manifest.add(new PropertyEntry(item.resource.getSpec(), original.packageName));
+                        duplicates++;
+                        continue;
+                    }
+                    
+                    if (streamed != null) {
+                        streamed.close();
+                    } else {
+                        if (DEBUG.Enabled) Log.debug("writing: " + item);
+                        zip.putEntry(item.entry, content.method, content.crc, content.size, content.data, 0, content.data.length);
+                    }
+                    if (item.entry.getMethod() == ZipEntry.STORED)
+                        stored++;
+
+                    item.written = item.entry;
+                    writtenContent.put(digest, item);
+                    manifest.add(new PropertyEntry(item.resource.getSpec(), item.packageName));
+                    
+                } finally {
+                    content.release(bufferBudget);
+                    progress.itemDone(item);
+                }
+            }
+
+            //-----------------------------------------------------------------------------
+            // Write the map to the archive.  It's identified by it's entry comment, not
+            // it's position, so it can go last, once the manifest is complete.
+            //-----------------------------------------------------------------------------
+
+            final ZipEntry mapEntry = new ZipEntry(dirName + "/" + mapName + "$map.vue");
+            final String comment = MAP_ARCHIVE_KEY + "; VERSION: 2;"
+                + " Saved " + new Date() + " by " + VUE.getName() + " built " + Version.AllInfo + "; items=" + items.size() + ";"
+                + ">" // /usr/bin/what terminatior
+                //+ "\n\tmap-name(" + mapName + ")"
+                //+ "\n\tunique-resources(" + resources.size() + ")"
+                ;
+            Archive.setComment(mapEntry, comment);
+            final ZipWriter.EntryStream mapData = zip.openEntry(mapEntry, true);
+
+            final Writer mapOut = new OutputStreamWriter(mapData);
 
-            if (DEBUG.Enabled)
-                Log.debug("writing: " + item);
-            else
-                Log.info("writing: " + item.entry);
-            
             try {
-                zos.putNextEntry(item.entry);
-                copyBytesToZip(item.dataFile, zos);
+                map.setArchiveManifest(manifest);
+                ActionUtil.marshallMapToWriter(map, mapOut);
+                mapOut.flush();
             } catch (Throwable t) {
-                Log.error("Failed to archive item: " + item, t);
+                Log.error(t);
+                throw new RuntimeException(t);
+            } finally {
+                // TODO: do NOT reset this if this map is already a packaged map...
+                map.setArchiveManifest(null);
             }
-        }
         
-        zos.closeEntry();
-        zos.close();
+            mapData.close();
+            zip.close();
+            success = true;
+            
+        } finally {
+            pool.shutdownNow(); // in case we were aborted
+            if (!success) {
+                zip.abandon();
+                tmpArchive.delete();
+                for (Future<Content> read : reads) {
+                    // let go of any content that was buffered but never written
+                    if (read.isDone() && !read.isCancelled()) {
+                        try {
+                            read.get().release(bufferBudget);
+                        } catch (Throwable t) {}
+                    }
+                }
+            }
+        }
+
+        if (archive.exists() && !archive.delete()) {
+            tmpArchive.delete();
+            throw new IOException("couldn't replace " + archive);
+        }
+        if (!tmpArchive.renameTo(archive))
+            throw new IOException("couldn't rename " + tmpArchive + " to " + archive);
+
+        // Any resources still packed in the old archive are now to be found in the new one
+        for (Item item : items) {
+            if (item.dataFile instanceof PackagedFile && item.written != null)
+                ((PackagedFile)item.dataFile).relocate(archive, item.written);
+        }
 
-        Log.info("Wrote " + archive);
+        Log.info("Wrote " + archive + "; " + items.size() + " items, " + stored + " stored uncompressed, " + duplicates + " duplicates");
 
     }
 
@@ -985,20 +1547,15 @@ public class Archive
 
 //     }
 
-    private static void copyBytesToZip(File file, ZipOutputStream zos)
+    private static void copy(InputStream in, OutputStream out)
         throws java.io.IOException
     {
-        final BufferedInputStream fis = new BufferedInputStream(new FileInputStream(file));
-        byte[] buf = new byte[2048];
+        final byte[] buf = new byte[8192];
         int len;
-        int total = 0;
-        while ((len = fis.read(buf)) > 0) {
+        while ((len = in.read(buf)) > 0) {
             if (DEBUG.IO && DEBUG.META) System.err.print(".");
-            zos.write(buf, 0, len);
-            total += len;
+            out.write(buf, 0, len);
         }
-        //Log.debug("wrote " + total + " bytes for " + file);
-        fis.close();
     }
     
 
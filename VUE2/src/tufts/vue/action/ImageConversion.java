@@ -86,20 +86,32 @@ public class ImageConversion extends VueAction {
          return d;
     }
     
-    /**A method which sets up for converting the active viewer to a Jpeg file*/
+    /**A method which sets up for converting the active viewer to a Png file*/
     public static Dimension createActiveMapPng(File location,double zoomFactor)
     {
-    	BufferedImage bi = VUE.getActiveMap().getAsImage(zoomFactor);
-        convert(bi, location, PNG);
-        Dimension d = new Dimension(bi.getWidth(),bi.getHeight());
-        return d;
+        return createActiveMapPng(location, VUE.getActiveMap(), zoomFactor);
     }
+
+    /** PNG's are rendered & written a band at a time, so there's no limit on the image size */
     public static Dimension createActiveMapPng(File location,LWMap map,double zoomFactor)
     {
-    	BufferedImage bi = map.getAsImage(zoomFactor);
-        convert(bi, location, PNG);
-        Dimension d = new Dimension(bi.getWidth(),bi.getHeight());
-        return d;
+        try {
+            return TiledImageExport.writeImage(map, zoomFactor, location, PNG);
+        } catch (IOException e) {
+            System.out.println("Couldn't write to the file:" + e);
+            return map.getImageSize(zoomFactor);
+        }
+    }
+
+    /** write the active map as a Deep Zoom tile pyramid, for maps too large to be useful as a single image */
+    public static Dimension createActiveMapDeepZoom(File location, double zoomFactor)
+    {
+        try {
+            return TiledImageExport.writeDeepZoom(VUE.getActiveMap(), zoomFactor, location);
+        } catch (IOException e) {
+            System.out.println("Couldn't write the Deep Zoom image:" + e);
+            return null;
+        }
     }
     
     public void act() {
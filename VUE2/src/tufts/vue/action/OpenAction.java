@@ -216,6 +216,7 @@ public class OpenAction extends VueAction
         } else {
             
             map = ActionUtil.unmarshallMap(file);
+            map = tufts.vue.MapJournal.recover(file, map);
         }
 
         return map;
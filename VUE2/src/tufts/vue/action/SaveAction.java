@@ -170,6 +170,8 @@ public class SaveAction extends VueAction
                 ImageConversion.createActiveMapJpeg(file,VueResources.getDouble("imageExportFactor"));
             else if (name.endsWith(".png"))
                 ImageConversion.createActiveMapPng(file,VueResources.getDouble("imageExportFactor"));
+            else if (name.endsWith(TiledImageExport.DEEP_ZOOM_EXTENSION))
+                ImageConversion.createActiveMapDeepZoom(file,VueResources.getDouble("imageExportFactor"));
             else if (name.endsWith(".svg"))
                 SVGConversion.createSVG(file);
             
@@ -265,7 +267,12 @@ public class SaveAction extends VueAction
             }
             else if (name.endsWith(VueUtil.VueArchiveExtension))
             {
-                Archive.writeArchive(map, file);
+                final PackageProgress progress = new PackageProgress(file);
+                try {
+                    Archive.writeArchive(map, file, progress);
+                } finally {
+                    progress.dispose();
+                }
                 
             } else {
                 Log.warn("Unknown save type for filename extension: " + name);
@@ -318,6 +325,53 @@ public class SaveAction extends VueAction
     }
 
 
+    /**
+     * Shows the progress of writing a package.  The window is only shown if the write
+     * takes more than a moment.  As we're normally writing on the AWT thread, it's painted
+     * immediately on each update.
+     */
+    private static final class PackageProgress implements Archive.ProgressListener
+    {
+        private static final long SHOW_DELAY = 1000;
+        
+        private final long start = System.currentTimeMillis();
+        private final File file;
+        private JDialog dialog;
+        private JProgressBar bar;
+
+        PackageProgress(File file) {
+            this.file = file;
+        }
+
+        public void packageProgress(int itemsDone, int itemsTotal, long bytesDone, long bytesTotal) {
+            if (dialog == null) {
+                if (System.currentTimeMillis() - start < SHOW_DELAY || itemsDone >= itemsTotal)
+                    return;
+                bar = new JProgressBar(0, 1000);
+                bar.setStringPainted(true);
+                bar.setBorder(BorderFactory.createEmptyBorder(12,12,12,12));
+                dialog = new JDialog(VUE.getDialogParentAsFrame(),
+                                     String.format(VueResources.getString("saveaction.package.progress"), file.getName()),
+                                     false);
+                dialog.getContentPane().add(bar);
+                dialog.setSize(400, dialog.getPreferredSize().height);
+                dialog.setLocationRelativeTo(dialog.getOwner());
+                dialog.setVisible(true);
+            }
+            bar.setValue(bytesTotal > 0 ? (int) (bytesDone * 1000 / bytesTotal) : itemsDone * 1000 / itemsTotal);
+            bar.setString(String.format("%d/%d  %.1f/%.1f MB",
+                                        itemsDone, itemsTotal,
+                                        bytesDone / (1024.0*1024.0), bytesTotal / (1024.0*1024.0)));
+            if (SwingUtilities.isEventDispatchThread())
+                bar.paintImmediately(0, 0, bar.getWidth(), bar.getHeight());
+        }
+
+        void dispose() {
+            if (dialog != null)
+                dialog.dispose();
+        }
+    }
+
     private static void writeHTMLOutline(LWMap map, File file)
         throws IOException
     {
@@ -0,0 +1,255 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+import tufts.vue.DEBUG;
+import tufts.vue.LWMap;
+
+/**
+ * Exports images of maps of any size in constant memory, by rendering them a piece at
+ * a time with LWComponent.drawImageTile, instead of all at once into one BufferedImage.
+ *
+ * A single image file is written through a RenderedImage that renders a band of rows
+ * at a time as the image writer asks for them.  The PNG (and TIFF) writers read an
+ * image a row at a time, so only one band is ever in memory.
+ *
+ * A Deep Zoom image (a .dzi descriptor plus a pyramid of small tiles, as read by
+ * OpenSeadragon & friends) can also be written, for maps too big to be useful as a single
+ * image.  Each level of the pyramid is rendered directly from the map at that level's
+ * zoom.  Map rendering isn't thread-safe (labels are drawn with Swing text components),
+ * so tiles are rendered one at a time, but the encoding and writing of the tiles --
+ * most of the work -- is done in parallel.  A bounded queue holds the rendered tiles
+ * waiting to be written, so memory use stays constant.
+ */
+public class TiledImageExport
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(TiledImageExport.class);
+
+    public static final String DEEP_ZOOM_EXTENSION = ".dzi";
+
+    /** the Deep Zoom tile size and overlap: the usual defaults, as used by Deep Zoom Composer */
+    private static final int TILE_SIZE = 254;
+    private static final int TILE_OVERLAP = 1;
+    private static final String TILE_FORMAT = "png";
+
+    /** the max memory to use for one band of a banded image */
+    private static final int BAND_BYTES = 32 * 1024 * 1024;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * An image of a map at a given zoom that is only ever rendered a band of rows at a
+     * time, as they're asked for.
+     */
+    private static final class BandedImage implements RenderedImage
+    {
+        private final LWMap map;
+        private final double zoom;
+        private final java.awt.geom.Rectangle2D.Float bounds;
+        private final int width, height;
+        private final int bandHeight;
+        private final BufferedImage band;
+        private int bandY = -1;
+
+        BandedImage(LWMap map, double zoom) {
+            this.map = map;
+            this.zoom = zoom;
+            this.bounds = map.getImageBounds();
+            final Dimension size = map.getImageSize(zoom);
+            width = size.width;
+            height = size.height;
+            bandHeight = Math.max(1, Math.min(height, BAND_BYTES / 4 / Math.max(1, width)));
+            band = new BufferedImage(width, bandHeight, BufferedImage.TYPE_INT_RGB);
+        }
+
+        /** render the given region of the image into the given image, at 0,0 */
+        private void render(BufferedImage image, Rectangle region) {
+            final Graphics2D g = image.createGraphics();
+            try {
+                map.drawImageTile(g, map.getFillColor(), zoom, region, bounds);
+            } finally {
+                g.dispose();
+            }
+        }
+
+        public Raster getData(Rectangle r) {
+            r = r.intersection(new Rectangle(0, 0, width, height));
+            if (r.y < bandY || r.y + r.height > bandY + bandHeight || bandY < 0) {
+                if (r.height > bandHeight) {
+                    // asked for more than a band: render it on it's own
+                    final BufferedImage image = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+                    render(image, r);
+                    return image.getRaster().createTranslatedChild(r.x, r.y);
+                }
+                bandY = r.y;
+                if (DEBUG.IMAGE) Log.debug("rendering band at " + bandY + " of " + width + "x" + height);
+                render(band, new Rectangle(0, bandY, width, bandHeight));
+            }
+            final Raster source = band.getRaster().createChild(r.x, r.y - bandY, r.width, r.height, r.x, r.y, null);
+            final WritableRaster copy = source.createCompatibleWritableRaster(r.x, r.y, r.width, r.height);
+            copy.setRect(source);
+            return copy;
+        }
+
+        public Raster getData() { return getData(new Rectangle(0, 0, width, height)); }
+        public Raster getTile(int tileX, int tileY) { return getData(new Rectangle(0, tileY * bandHeight, width, bandHeight)); }
+        public WritableRaster copyData(WritableRaster raster) {
+            final Raster data = getData(raster == null ? new Rectangle(0, 0, width, height) : raster.getBounds());
+            if (raster == null)
+                raster = data.createCompatibleWritableRaster(0, 0, width, height);
+            raster.setRect(data);
+            return raster;
+        }
+
+        public Vector<RenderedImage> getSources() { return null; }
+        public Object getProperty(String name) { return Image.UndefinedProperty; }
+        public String[] getPropertyNames() { return null; }
+        public ColorModel getColorModel() { return band.getColorModel(); }
+        public SampleModel getSampleModel() { return band.getSampleModel(); }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public int getMinX() { return 0; }
+        public int getMinY() { return 0; }
+        public int getNumXTiles() { return 1; }
+        public int getNumYTiles() { return (height + bandHeight - 1) / bandHeight; }
+        public int getMinTileX() { return 0; }
+        public int getMinTileY() { return 0; }
+        public int getTileWidth() { return width; }
+        public int getTileHeight() { return bandHeight; }
+        public int getTileGridXOffset() { return 0; }
+        public int getTileGridYOffset() { return 0; }
+    }
+
+    /**
+     * Write an image of the given map at the given zoom to the given file, a band at a
+     * time.  The format must be one who's ImageIO writer reads images incrementally (png,
+     * tiff), or the whole image will be rendered at once after all.
+     * @return the size of the image written
+     */
+    public static Dimension writeImage(LWMap map, double zoom, File file, String format)
+        throws IOException
+    {
+        final BandedImage image = new BandedImage(map, zoom);
+        Log.info("writing " + format + " " + image.width + "x" + image.height + " in bands of " + image.bandHeight + " rows to " + file);
+        if (!ImageIO.write(image, format, file))
+            throw new IOException("no image writer for " + format);
+        return new Dimension(image.width, image.height);
+    }
+
+    /**
+     * Write a Deep Zoom image of the given map at the given zoom: the given .dzi file, and
+     * a directory of tiles next to it named the same, ending with _files.
+     * @return the size of the full resolution image
+     */
+    public static Dimension writeDeepZoom(final LWMap map, final double zoom, File dziFile)
+        throws IOException
+    {
+        final Dimension size = map.getImageSize(zoom);
+        final java.awt.geom.Rectangle2D.Float bounds = map.getImageBounds(); // computed once: it visits every node
+        final String baseName = dziFile.getName().replaceFirst("\\.[^.]*$", "");
+        final File tileDir = new File(dziFile.getParentFile(), baseName + "_files");
+        int maxLevel = 0;
+        while ((1L << maxLevel) < Math.max(size.width, size.height))
+            maxLevel++;
+
+        Log.info("writing Deep Zoom image " + size.width + "x" + size.height + ", " + (maxLevel + 1) + " levels, to " + dziFile);
+
+        final ThreadPoolExecutor writers =
+            new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue<Runnable>(THREADS * 2),
+                                   new ThreadPoolExecutor.CallerRunsPolicy()); // if the queue is full, the renderer helps out
+        final IOException[] failure = new IOException[1];
+
+        try {
+            for (int level = maxLevel; level >= 0; level--) {
+                final double scale = Math.pow(2, level - maxLevel);
+                final int levelWidth = (int) Math.ceil(size.width * scale);
+                final int levelHeight = (int) Math.ceil(size.height * scale);
+                final File levelDir = new File(tileDir, Integer.toString(level));
+                if (!levelDir.isDirectory() && !levelDir.mkdirs())
+                    throw new IOException("can't create " + levelDir);
+
+                for (int row = 0; row * TILE_SIZE < levelHeight; row++) {
+                    for (int col = 0; col * TILE_SIZE < levelWidth; col++) {
+                        synchronized (failure) {
+                            if (failure[0] != null)
+                                throw failure[0];
+                        }
+                        final Rectangle region = tileRegion(col, row, levelWidth, levelHeight);
+                        final BufferedImage tile = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+                        final Graphics2D g = tile.createGraphics();
+                        try {
+                            map.drawImageTile(g, map.getFillColor(), zoom * scale, region, bounds);
+                        } finally {
+                            g.dispose();
+                        }
+                        final File tileFile = new File(levelDir, col + "_" + row + "." + TILE_FORMAT);
+                        writers.execute(new Runnable() {
+                                public void run() {
+                                    try {
+                                        if (!ImageIO.write(tile, TILE_FORMAT, tileFile))
+                                            throw new IOException("no image writer for " + TILE_FORMAT);
+                                    } catch (IOException e) {
+                                        synchronized (failure) {
+                                            if (failure[0] == null)
+                                                failure[0] = e;
+                                        }
+                                    }
+                                }});
+                    }
+                }
+                if (DEBUG.IMAGE) Log.debug("rendered level " + level + ": " + levelWidth + "x" + levelHeight);
+            }
+        } finally {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Log.warn("interrupted waiting for tile writers", e);
+            }
+        }
+        if (failure[0] != null)
+            throw failure[0];
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(dziFile), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                      + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\""
+                      + " Format=\"" + TILE_FORMAT + "\" Overlap=\"" + TILE_OVERLAP + "\" TileSize=\"" + TILE_SIZE + "\">\n"
+                      + "  <Size Width=\"" + size.width + "\" Height=\"" + size.height + "\"/>\n"
+                      + "</Image>\n");
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    /** @return the pixel region of the given tile, including it's overlap with it's neighbors */
+    private static Rectangle tileRegion(int col, int row, int levelWidth, int levelHeight) {
+        final int x = col * TILE_SIZE - (col > 0 ? TILE_OVERLAP : 0);
+        final int y = row * TILE_SIZE - (row > 0 ? TILE_OVERLAP : 0);
+        final int right = Math.min(levelWidth, (col + 1) * TILE_SIZE + TILE_OVERLAP);
+        final int bottom = Math.min(levelHeight, (row + 1) * TILE_SIZE + TILE_OVERLAP);
+        return new Rectangle(x, y, right - x, bottom - y);
+    }
+}
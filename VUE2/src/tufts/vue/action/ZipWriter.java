@@ -0,0 +1,458 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A minimal zip file writer for VUE packages.  Unlike java.util.zip.ZipOutputStream, it
+ * can write entries whose data was already deflated elsewhere (e.g., on a worker
+ * thread), and it can stream an entry of unknown CRC and size straight from it's
+ * source, as it patches the entry header once the data has been written.  It can also
+ * discard the entry it just wrote.
+ *
+ * Entry comments and extra bytes are written the same way ZipOutputStream writes them,
+ * so packages can be read with java.util.zip.ZipFile as before.  Entries of 4GB or more,
+ * packages that large, and packages of more than 65535 entries, are written with the
+ * ZIP64 extensions, as ZipOutputStream writes them.
+ */
+final class ZipWriter
+{
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int LOCAL_VERSION_OFFSET = 4;
+    private static final int LOCAL_CRC_OFFSET = 14;
+    /** general purpose flag: entry name & comment are UTF-8 */
+    private static final int FLAG_UTF8 = 0x800;
+    /** the extra field ID of the ZIP64 extended information */
+    private static final int ZIP64_ID = 0x0001;
+    /** an unassigned extra field ID, which readers skip: it holds space for a ZIP64 field */
+    private static final int RESERVED_ID = 0x5650;
+    /** the size of a local header ZIP64 field: both sizes */
+    private static final int LOCAL_ZIP64_SIZE = 4 + 16;
+    private static final int VERSION_ZIP64 = 45;
+    /** sizes & offsets this large or larger are in the ZIP64 field: this value in the header says so */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private final RandomAccessFile file;
+    private final byte[] buffer;
+    private int buffered;
+    /** the position in the file of the next byte written */
+    private long position;
+    private final List<Entry> entries = new ArrayList();
+    private EntryStream openEntry;
+
+    private static final class Entry {
+        final ZipEntry entry;
+        final long offset;
+        final byte[] name;
+        final byte[] extra;
+        final byte[] comment;
+        final int flags;
+        final int dosTime;
+        /** true if the local header has room for a ZIP64 field after the extra bytes */
+        boolean reserved;
+
+        Entry(ZipEntry e, long offset) throws IOException {
+            this.entry = e;
+            this.offset = offset;
+            this.name = e.getName().getBytes("UTF-8");
+            this.extra = e.getExtra() == null ? new byte[0] : e.getExtra();
+            this.comment = e.getComment() == null ? new byte[0] : e.getComment().getBytes("UTF-8");
+            this.flags = isAscii(name) && isAscii(comment) ? 0 : FLAG_UTF8;
+            if (e.getTime() == -1)
+                e.setTime(System.currentTimeMillis());
+            this.dosTime = toDosTime(e.getTime());
+            if (name.length > 0xFFFF || extra.length > 0xFFFF || comment.length > 0xFFFF)
+                throw new ZipException("entry name, extra or comment too long: " + e.getName());
+        }
+
+        int version() {
+            if (isZip64(entry.getSize()) || isZip64(entry.getCompressedSize()))
+                return VERSION_ZIP64;
+            return entry.getMethod() == ZipEntry.STORED ? 10 : 20;
+        }
+
+        long dataStart() {
+            return offset + LOCAL_HEADER_SIZE + name.length + extra.length + (reserved ? LOCAL_ZIP64_SIZE : 0);
+        }
+    }
+
+    private static boolean isZip64(long value) {
+        return value >= ZIP64_MAGIC;
+    }
+
+    ZipWriter(File file, int bufferSize)
+        throws IOException
+    {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Write an entry whose data we already have in it's final form.
+     *
+     * @param method ZipEntry.STORED or ZipEntry.DEFLATED.  If DEFLATED, the data must be a
+     * raw deflate stream (e.g., from a Deflater created with nowrap)
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     */
+    void putEntry(ZipEntry e, int method, long crc, long size, byte[] data, int offset, int length)
+        throws IOException
+    {
+        ensureNoOpenEntry();
+        e.setMethod(method);
+        e.setCrc(crc);
+        e.setSize(size);
+        e.setCompressedSize(length);
+        final Entry entry = new Entry(e, position);
+        writeLocalHeader(entry, true);
+        write(data, offset, length);
+        entries.add(entry);
+    }
+
+    /**
+     * Start a new entry, to be written to the returned stream.  The CRC and sizes are
+     * computed as the data is written, and recorded when the stream is closed.  Only one
+     * entry may be open at a time.
+     */
+    EntryStream openEntry(ZipEntry e, boolean deflate)
+        throws IOException
+    {
+        ensureNoOpenEntry();
+        e.setMethod(deflate ? ZipEntry.DEFLATED : ZipEntry.STORED);
+        // CRC and sizes are patched later: ZipEntry won't take -1 for it's CRC when STORED
+        final Entry entry = new Entry(e, position);
+        entry.reserved = true;
+        writeLocalHeader(entry, false);
+        openEntry = new EntryStream(entry, deflate);
+        return openEntry;
+    }
+
+    /** The data for an entry opened with openEntry */
+    final class EntryStream extends OutputStream
+    {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private final Deflater deflater;
+        private final byte[] deflated;
+        private long size;
+        private boolean done;
+
+        private EntryStream(Entry entry, boolean deflate) {
+            this.entry = entry;
+            if (deflate) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                deflated = new byte[8192];
+            } else {
+                deflater = null;
+                deflated = null;
+            }
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if (done)
+                throw new IOException("entry closed: " + entry.entry.getName());
+            crc.update(b, off, len);
+            size += len;
+            if (deflater == null) {
+                ZipWriter.this.write(b, off, len);
+            } else {
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput())
+                    drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            final int len = deflater.deflate(deflated, 0, deflated.length);
+            if (len > 0)
+                ZipWriter.this.write(deflated, 0, len);
+        }
+
+        /** Finish the entry, and record it's CRC and sizes. */
+        @Override public void close() throws IOException {
+            if (done)
+                return;
+            done = true;
+            openEntry = null;
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished())
+                    drain();
+                deflater.end();
+            }
+            final long compressedSize = position - entry.dataStart();
+            entry.entry.setCrc(crc.getValue());
+            entry.entry.setSize(size);
+            entry.entry.setCompressedSize(compressedSize);
+            final boolean zip64 = isZip64(size) || isZip64(compressedSize);
+
+            flushBuffer();
+            file.seek(entry.offset + LOCAL_VERSION_OFFSET);
+            file.write(new byte[] { (byte) entry.version(), 0 });
+            file.seek(entry.offset + LOCAL_CRC_OFFSET);
+            final byte[] patch = new byte[12];
+            putInt(patch, 0, crc.getValue());
+            putInt(patch, 4, zip64 ? ZIP64_MAGIC : compressedSize);
+            putInt(patch, 8, zip64 ? ZIP64_MAGIC : size);
+            file.write(patch);
+            if (zip64) {
+                // turn the space we reserved into the ZIP64 field
+                file.seek(entry.dataStart() - LOCAL_ZIP64_SIZE);
+                final byte[] field = new byte[LOCAL_ZIP64_SIZE];
+                putShort(field, 0, ZIP64_ID);
+                putShort(field, 2, 16);
+                putLong(field, 4, size);
+                putLong(field, 12, compressedSize);
+                file.write(field);
+            }
+            file.seek(position);
+            entries.add(entry);
+        }
+
+        /** Discard this entry: everything written for it is removed from the file. */
+        void abort() throws IOException {
+            if (done)
+                return;
+            done = true;
+            openEntry = null;
+            if (deflater != null)
+                deflater.end();
+            flushBuffer();
+            position = entry.offset;
+            file.setLength(position);
+            file.seek(position);
+        }
+    }
+
+    /** Write the central directory and close the file.  Any open entry is discarded. */
+    void close()
+        throws IOException
+    {
+        try {
+            if (openEntry != null)
+                openEntry.abort();
+            final long directoryStart = position;
+            for (Entry e : entries)
+                writeCentralHeader(e);
+            final long directorySize = position - directoryStart;
+            final int count = entries.size();
+            final boolean zip64 = count >= ZIP64_MAGIC_COUNT || isZip64(directorySize) || isZip64(directoryStart);
+            if (zip64) {
+                final long zip64End = position;
+                writeInt(ZIP64_END_SIG);
+                writeLong(44); // the size of the rest of this record
+                writeShort(VERSION_ZIP64); // version made by
+                writeShort(VERSION_ZIP64);
+                writeInt(0);   // this disk
+                writeInt(0);   // disk where the central directory starts
+                writeLong(count);
+                writeLong(count);
+                writeLong(directorySize);
+                writeLong(directoryStart);
+                writeInt(ZIP64_LOCATOR_SIG);
+                writeInt(0);   // disk where the ZIP64 end record is
+                writeLong(zip64End);
+                writeInt(1);   // total disks
+            }
+            writeInt(END_SIG);
+            writeShort(0); // this disk
+            writeShort(0); // disk where the central directory starts
+            writeShort(zip64 ? ZIP64_MAGIC_COUNT : count);
+            writeShort(zip64 ? ZIP64_MAGIC_COUNT : count);
+            writeInt(zip64 ? ZIP64_MAGIC : directorySize);
+            writeInt(zip64 ? ZIP64_MAGIC : directoryStart);
+            writeShort(0); // no archive comment
+            flushBuffer();
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Close the file without finishing it, e.g., if we failed to write it. */
+    void abandon() {
+        try {
+            file.close();
+        } catch (IOException e) {}
+    }
+
+    private void ensureNoOpenEntry() throws IOException {
+        if (openEntry != null)
+            throw new IOException("entry still open: " + openEntry.entry.entry.getName());
+    }
+
+    /**
+     * @param known false if the CRC and sizes aren't known yet, and will be patched later, in
+     * which case the entry has room reserved for a ZIP64 field, in case it needs one
+     */
+    private void writeLocalHeader(Entry e, boolean known) throws IOException {
+        final ZipEntry ze = e.entry;
+        final boolean zip64 = known && (isZip64(ze.getSize()) || isZip64(ze.getCompressedSize()));
+        if (zip64)
+            e.reserved = true;
+        if (e.extra.length + (e.reserved ? LOCAL_ZIP64_SIZE : 0) > 0xFFFF)
+            throw new ZipException("entry extra too long: " + ze.getName());
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(e.version());
+        writeShort(e.flags);
+        writeShort(ze.getMethod());
+        writeInt(e.dosTime);
+        writeInt(known ? ze.getCrc() : 0);
+        writeInt(!known ? 0 : zip64 ? ZIP64_MAGIC : ze.getCompressedSize());
+        writeInt(!known ? 0 : zip64 ? ZIP64_MAGIC : ze.getSize());
+        writeShort(e.name.length);
+        writeShort(e.extra.length + (e.reserved ? LOCAL_ZIP64_SIZE : 0));
+        write(e.name, 0, e.name.length);
+        write(e.extra, 0, e.extra.length);
+        if (e.reserved) {
+            writeShort(zip64 ? ZIP64_ID : RESERVED_ID);
+            writeShort(16);
+            writeLong(zip64 ? ze.getSize() : 0);
+            writeLong(zip64 ? ze.getCompressedSize() : 0);
+        }
+    }
+
+    private void writeCentralHeader(Entry e) throws IOException {
+        final ZipEntry ze = e.entry;
+        // The ZIP64 field holds only the values too large for the header, in this order
+        final ByteArrayOutputStream zip64 = new ByteArrayOutputStream(24);
+        final byte[] b = new byte[8];
+        for (long value : new long[] { ze.getSize(), ze.getCompressedSize(), e.offset }) {
+            if (isZip64(value)) {
+                putLong(b, 0, value);
+                zip64.write(b, 0, 8);
+            }
+        }
+        final int zip64Length = zip64.size() > 0 ? 4 + zip64.size() : 0;
+        if (e.extra.length + zip64Length > 0xFFFF)
+            throw new ZipException("entry extra too long: " + ze.getName());
+        final int version = zip64Length > 0 ? VERSION_ZIP64 : e.version();
+        
+        writeInt(CENTRAL_HEADER_SIG);
+        writeShort(version); // version made by
+        writeShort(version);
+        writeShort(e.flags);
+        writeShort(ze.getMethod());
+        writeInt(e.dosTime);
+        writeInt(ze.getCrc());
+        writeInt(Math.min(ze.getCompressedSize(), ZIP64_MAGIC));
+        writeInt(Math.min(ze.getSize(), ZIP64_MAGIC));
+        writeShort(e.name.length);
+        writeShort(e.extra.length + zip64Length);
+        writeShort(e.comment.length);
+        writeShort(0); // disk number start
+        writeShort(0); // internal attributes
+        writeInt(0);   // external attributes
+        writeInt(Math.min(e.offset, ZIP64_MAGIC));
+        write(e.name, 0, e.name.length);
+        if (zip64Length > 0) {
+            writeShort(ZIP64_ID);
+            writeShort(zip64.size());
+            write(zip64.toByteArray(), 0, zip64.size());
+        }
+        write(e.extra, 0, e.extra.length);
+        write(e.comment, 0, e.comment.length);
+    }
+
+    private void writeShort(int v) throws IOException {
+        final byte[] b = new byte[2];
+        putShort(b, 0, v);
+        write(b, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        final byte[] b = new byte[4];
+        putInt(b, 0, v);
+        write(b, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        final byte[] b = new byte[8];
+        putLong(b, 0, v);
+        write(b, 0, 8);
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off]   = (byte) v;
+        b[off+1] = (byte) (v >> 8);
+    }
+
+    private static void putInt(byte[] b, int off, long v) {
+        b[off]   = (byte) v;
+        b[off+1] = (byte) (v >> 8);
+        b[off+2] = (byte) (v >> 16);
+        b[off+3] = (byte) (v >> 24);
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, v);
+        putInt(b, off + 4, v >> 32);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            file.write(b, off, len);
+        } else {
+            if (buffered + len > buffer.length)
+                flushBuffer();
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+        }
+        position += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffered > 0) {
+            file.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private static boolean isAscii(byte[] b) {
+        for (int i = 0; i < b.length; i++)
+            if (b[i] < 0)
+                return false;
+        return true;
+    }
+
+    private static int toDosTime(long time) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16); // 1980-01-01
+        return (year - 1980) << 25
+            | (c.get(Calendar.MONTH) + 1) << 21
+            | c.get(Calendar.DAY_OF_MONTH) << 16
+            | c.get(Calendar.HOUR_OF_DAY) << 11
+            | c.get(Calendar.MINUTE) << 5
+            | c.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -225,16 +225,19 @@ public final class DataAction
          final Field field,
          final Multiset<LWComponent> targetsUsed)
     {
-        final Collection linkTargets = getLinkTargets(map);
+        final List<? extends LWComponent> linkTargets = getLinkTargets(map);
 
-        Log.debug("LINK-TARGETS: " + Util.tags(linkTargets));
+        if (DEBUG.Enabled) Log.debug("LINK-TARGETS: " + Util.tags(linkTargets));
         
         List<LWLink> links = Collections.EMPTY_LIST;
         
         if (linkTargets.size() > 0) {
+            // Only test each new node against the targets it could possibly relate to,
+            // found via an index of all the targets, instead of against every target.
+            final LinkTargetIndex index = new LinkTargetIndex(linkTargets);
             links = new ArrayList();
             for (LWComponent newNode : nodes) {
-                links.addAll(makeLinks(linkTargets, newNode, field, targetsUsed));
+                links.addAll(makeLinks(index.getCandidates(newNode, field), newNode, field, targetsUsed));
             }
         }
 
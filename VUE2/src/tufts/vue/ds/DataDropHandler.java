@@ -123,10 +123,17 @@ class DataDropHandler extends MapDropTarget.DropHandler
 //             GUI.activateWaitCursor(); // *** STILL isn't working even though the drop is complete & drag/drop cursor should be cleared
 //             try {
                 Log.info("servicing the drop: " + drop);
-                serviceDrop(DataDropHandler.this, drop, newNodes, clusteringTargets);
-                if (drop.items != null && drop.items.size() > 0)
-                    MapDropTarget.addNodesToMap(drop);
-                MapDropTarget.completeDrop(drop);
+                final LWMap map = drop.viewer.getMap();
+                // a data drop can create thousands of nodes & links: collect all their events
+                map.beginEventBatch();
+                try {
+                    serviceDrop(DataDropHandler.this, drop, newNodes, clusteringTargets);
+                    if (drop.items != null && drop.items.size() > 0)
+                        MapDropTarget.addNodesToMap(drop);
+                    MapDropTarget.completeDrop(drop);
+                } finally {
+                    map.endEventBatch();
+                }
                 String undoName = "Data Drop";
                 if (droppingDataItem.getField() != null)
                     undoName += " (" + droppingDataItem.getField().getName() + ")";
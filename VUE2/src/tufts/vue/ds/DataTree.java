@@ -204,6 +204,12 @@ public class DataTree extends javax.swing.JTree
     }
 
     private static boolean isDataEvent(tufts.vue.LWCEvent e) {
+        if (e instanceof tufts.vue.LWCEvent.Batch) {
+            final tufts.vue.LWCEvent.Batch batch = (tufts.vue.LWCEvent.Batch) e;
+            return batch.hasKey(LWKey.DataUpdate)
+                || batch.hasKey(LWKey.HierarchyChanging)
+                || batch.hasKey(LWKey.Created);
+        }
         // we need to check for any childrenAdded/childrenRemoved right now, just in case ANY of them were data nodes
         return e.key == LWKey.DataUpdate
             || e.key == LWKey.HierarchyChanging
@@ -252,7 +258,12 @@ public class DataTree extends javax.swing.JTree
         VUE.activateWaitCursor();
     	try {
             annotateForMap(mActiveMap);
-            addMissingRowsToMap(mActiveMap);
+            mActiveMap.beginEventBatch();
+            try {
+                addMissingRowsToMap(mActiveMap);
+            } finally {
+                mActiveMap.endEventBatch();
+            }
         } catch (Throwable t) {
             Log.warn("addMissingRowsToMap", t);
         } finally {
@@ -0,0 +1,266 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.ds;
+
+import tufts.vue.DEBUG;
+import tufts.vue.LWComponent;
+import tufts.vue.MetaMap;
+
+import java.util.*;
+
+/**
+ * A hash index of the on-map nodes that new data nodes may be linked to, so that
+ * automatic data linking can find the few nodes that might be related to a new node by
+ * lookup, instead of testing the new node against every node on the map.
+ *
+ * The index only narrows down the candidates: the usual Relation checks are still made
+ * against each candidate, so the links created are the same as if every target had been
+ * tested.  To make sure of that, every way a Relation can be found (matching values,
+ * same row keys, user Associations, auto-relations by key field, and joins) is covered
+ * by a lookup that returns a superset of the targets it could relate to.  Candidates are
+ * always returned in the order of the original targets.
+ *
+ * Keys are case-independent, as they are in MetaMap.  The index is a snapshot: it's
+ * meant to be built, used for one batch of link creation, and thrown away.
+ */
+final class LinkTargetIndex
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(LinkTargetIndex.class);
+
+    private final LWComponent[] mTargets;
+    private final Schema[] mSchemas;
+    private final boolean[] mValueNodes;
+
+    /** all targets by key=value, for each of their String values */
+    private final Map<String,BitSet> mByEntry = new HashMap();
+    /** value nodes only, by their one field=value */
+    private final Map<String,BitSet> mValueNodesByEntry = new HashMap();
+    /** value nodes by their Field */
+    private final Map<Field,BitSet> mValueNodesByField = new HashMap();
+    /** value nodes (any node with an enumerated value key) by their Schema */
+    private final Map<Schema,BitSet> mEnumeratedBySchema = new HashMap();
+    /** all targets with data by their Schema */
+    private final Map<Schema,BitSet> mBySchema = new HashMap();
+
+    LinkTargetIndex(List<? extends LWComponent> targets)
+    {
+        final int size = targets.size();
+        mTargets = targets.toArray(new LWComponent[size]);
+        mSchemas = new Schema[size];
+        mValueNodes = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            final LWComponent target = mTargets[i];
+            final MetaMap data = target.getRawData();
+            if (data == null)
+                continue;
+            for (Map.Entry e : data.entries()) {
+                if (e.getValue() instanceof String)
+                    add(mByEntry, entryKey(e.getKey().toString(), (String) e.getValue()), i);
+            }
+            final Schema schema = data.getSchema();
+            if (schema == null)
+                continue;
+            mSchemas[i] = schema;
+            add(mBySchema, schema, i);
+            if (data.getString(LWComponent.EnumeratedValueKey) != null)
+                add(mEnumeratedBySchema, schema, i);
+            final Field valueField = target.getDataValueField();
+            if (valueField != null) {
+                mValueNodes[i] = true;
+                add(mValueNodesByField, valueField, i);
+                final String value = target.getDataValue(valueField.getName());
+                if (value != null)
+                    add(mValueNodesByEntry, entryKey(valueField.getName(), value), i);
+            }
+        }
+
+        if (DEBUG.SCHEMA) Log.debug("indexed " + this);
+    }
+
+    private static String entryKey(String key, String value) {
+        return key.toLowerCase() + '\0' + value;
+    }
+
+    private static void add(Map map, Object key, int i) {
+        BitSet bits = (BitSet) map.get(key);
+        if (bits == null)
+            map.put(key, bits = new BitSet());
+        bits.set(i);
+    }
+
+    /** add to the result all targets with an entry key=value */
+    private void addWithEntry(String key, String value, BitSet result) {
+        if (key == null || value == null)
+            return;
+        final BitSet bits = mByEntry.get(entryKey(key, value));
+        if (bits != null)
+            result.or(bits);
+    }
+
+    /** add to the result all targets from the given schema with an entry key=value */
+    private void addWithEntry(String key, String value, Schema schema, BitSet result) {
+        if (key == null || value == null)
+            return;
+        final BitSet bits = mByEntry.get(entryKey(key, value));
+        if (bits == null)
+            return;
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            if (mSchemas[i] == schema)
+                result.set(i);
+        }
+    }
+
+    /** add to the result all row node targets from the given schema with any of the given values for the given key */
+    private void addRowsWithAny(String key, Collection values, Schema schema, BitSet result) {
+        if (values == null)
+            return;
+        final BitSet rows = new BitSet();
+        for (Object value : values) {
+            if (value instanceof String)
+                addWithEntry(key, (String) value, schema, rows);
+        }
+        for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+            if (!mValueNodes[i])
+                result.set(i);
+        }
+    }
+
+    /**
+     * @param field -- if null, the node is assumed to be a row node, otherwise a value node for the given Field
+     * @return the targets the given node may have a relation to, in target order
+     */
+    List<LWComponent> getCandidates(LWComponent node, Field field)
+    {
+        final BitSet found = new BitSet();
+
+        if (field == null)
+            addRowNodeCandidates(node, found);
+        else
+            addValueNodeCandidates(node, field, found);
+
+        final List<LWComponent> candidates = new ArrayList(found.cardinality());
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1))
+            candidates.add(mTargets[i]);
+
+        if (DEBUG.SCHEMA || DEBUG.WORK) Log.debug("candidates for " + node + ": " + candidates.size() + " of " + mTargets.length);
+
+        return candidates;
+    }
+
+    /** covers the relations checked by DataAction.makeValueNodeLinks */
+    private void addValueNodeCandidates(LWComponent node, Field field, BitSet result)
+    {
+        final String fieldValue = node.getDataValue(field.getName());
+        if (fieldValue == null)
+            return;
+
+        // targets with the same value
+        addWithEntry(field.getName(), fieldValue, result);
+
+        // intra-schema (count) relations: only possible to value nodes from the field's schema
+        final Schema fieldSchema = field.getSchema();
+        final BitSet enumerated = mEnumeratedBySchema.get(fieldSchema);
+        if (enumerated != null)
+            result.or(enumerated);
+
+        // cross-schema joins: a target is related if it's value for the joined key is one of
+        // the values that key has in the rows of the field's schema that have our value
+        for (Schema schema : mBySchema.keySet()) {
+            if (schema == fieldSchema)
+                continue;
+            for (Association join : Association.getJoins(schema, field))
+                addJoinedTargets(join, field, fieldValue, schema, result);
+        }
+    }
+
+    /** the indexed inverse of the join run by Relation.getCrossSchemaJoinedValues */
+    private void addJoinedTargets(Association join, Field field, String fieldValue, Schema targetSchema, BitSet result)
+    {
+        final Schema fieldSchema = field.getSchema();
+        final Field indexKey = join.getFieldForSchema(fieldSchema);
+        final String targetKey = join.getKeyForSchema(targetSchema);
+
+        // the join matches index key rows either by the key itself, or any of it's aliases
+        final List<String> indexKeys = new ArrayList();
+        indexKeys.add(indexKey.getName());
+        for (Association a : Association.getAliases(indexKey)) {
+            if (a.isEnabled())
+                indexKeys.add(a.getPairedField(indexKey).getName());
+        }
+
+        final Collection<DataRow> rows = new ArrayList();
+        fieldSchema.getIndex().addRowsWith(field.getName(), fieldValue, rows);
+
+        final Set<String> joinedValues = new HashSet();
+        for (DataRow row : rows) {
+            for (String key : indexKeys)
+                joinedValues.addAll(row.getValues(key));
+        }
+        for (String value : joinedValues)
+            addWithEntry(targetKey, value, targetSchema, result);
+    }
+
+    /** covers the relations checked by DataAction.makeRowNodeLinks */
+    private void addRowNodeCandidates(LWComponent rowNode, BitSet result)
+    {
+        final MetaMap sourceRow = rowNode.getRawData();
+        final Schema sourceSchema = rowNode.getDataSchema();
+        if (sourceRow == null || sourceSchema == null)
+            return;
+
+        // value nodes for any of our values
+        for (Map.Entry e : sourceRow.entries()) {
+            if (e.getValue() instanceof String) {
+                final BitSet bits = mValueNodesByEntry.get(entryKey(e.getKey().toString(), (String) e.getValue()));
+                if (bits != null)
+                    result.or(bits);
+            }
+        }
+
+        // value nodes we may be related to by a count or a join
+        final boolean enumerated = sourceRow.getString(LWComponent.EnumeratedValueKey) != null;
+        for (Map.Entry<Field,BitSet> e : mValueNodesByField.entrySet()) {
+            final Field field = e.getKey();
+            if (field.getSchema() == sourceSchema ? enumerated : Association.hasJoins(sourceSchema, field))
+                result.or(e.getValue());
+        }
+
+        for (Schema schema : mBySchema.keySet()) {
+            if (schema == sourceSchema) {
+                // the same row: matching key field values
+                final String key = schema.getKeyFieldName();
+                if (key != null)
+                    addRowsWithAny(key, sourceRow.getValues(key), schema, result);
+            } else {
+                // related rows: by user associations...
+                for (Association a : Association.getBetweens(sourceSchema, schema))
+                    addRowsWithAny(a.getKeyForSchema(schema), sourceRow.getValues(a.getKeyForSchema(sourceSchema)), schema, result);
+                // ...or automatically, by the key field of either schema
+                final String sourceKey = sourceSchema.getKeyFieldName();
+                final String targetKey = schema.getKeyFieldName();
+                if (sourceKey != null)
+                    addRowsWithAny(sourceKey, sourceRow.getValues(sourceKey), schema, result);
+                if (targetKey != null)
+                    addRowsWithAny(targetKey, sourceRow.getValues(targetKey), schema, result);
+            }
+        }
+    }
+
+    @Override public String toString() {
+        return "LinkTargetIndex[" + mTargets.length + " targets; " + mByEntry.size() + " entries; " + mBySchema.size() + " schemas]";
+    }
+}
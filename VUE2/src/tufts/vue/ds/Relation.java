@@ -651,6 +651,70 @@ public final class Relation {
         }
     }
 
+    /** the same as searchDataWithField, but uses the given index of a Schema's rows instead of scanning them */
+    static void searchDataWithField
+        (final Field fieldKey,
+         final String fieldValue,
+         final RowIndex index,
+         final Collection results)
+    {
+        final String fieldName = fieldKey.getName();
+        
+        if (DEBUG.Enabled) Log.debug(String.format("searchDataWithField: %s=%s in %s", quoteKey(fieldKey), Util.tags(fieldValue), index));
+        
+        index.addRowsWith(fieldName, fieldValue, results);
+
+        for (Association a : Association.getAliases(fieldKey)) {
+            if (a.isEnabled()) {
+                final String relatedField = a.getPairedField(fieldKey).getName();
+                if (fieldName.equals(relatedField))
+                    continue; // already searched above
+                index.addRowsWith(relatedField, fieldValue, results);
+            }
+        }
+    }
+
+    /**
+     * The same as searchDataWithRow, but uses the given index of all the rows in
+     * searchSchema instead of scanning them.  The auto-relation check is the indexed
+     * equivalent of isAutoRelated: a row is related by key if it has rowKey's first value
+     * for key, or if it's own first value for key is any of rowKey's values for key.
+     * As rows may be found more than once, results should be a Set.
+     */
+    static void searchDataWithRow
+        (final Scannable rowKey,
+         final RowIndex index,
+         final Schema searchSchema,
+         final Collection results)
+    {
+        final Schema keySchema = rowKey.getSchema();
+
+        if (DEBUG.Enabled) Log.debug("searchDataWithRow: " + rowKey + " in " + searchSchema + " via " + index);
+
+        if (keySchema == searchSchema)
+            throw new Error("can only search a schema with a row from another schema: " + keySchema);
+        
+        for (Association a : Association.getBetweens(searchSchema, keySchema)) {
+            if (DEBUG.Enabled) Log.debug("searchDataWithRow: looking up " + a);
+            index.addRowsWith(a.getKeyForSchema(searchSchema),
+                              rowKey.getString(a.getKeyForSchema(keySchema)), // TODO: handle multiple values
+                              results);
+        }
+
+        addAutoRelated(rowKey, keySchema.getKeyFieldName(), index, results);
+        addAutoRelated(rowKey, searchSchema.getKeyFieldName(), index, results);
+    }
+
+    /** indexed equivalent of relatedBy(key, rowKey, row) for every row in the index */
+    private static void addAutoRelated(Scannable rowKey, String key, RowIndex index, Collection results)
+    {
+        if (key == null)
+            return;
+        index.addRowsWith(key, rowKey.getString(key), results);
+        for (String value : rowKey.getValues(key))
+            index.addRowsWithFirst(key, value, results);
+    }
+
     /** search the given Scannable's for the given key=value, and add matches to results */
     private static void searchData
         (final String key,
@@ -0,0 +1,189 @@
+/*
+* Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.ds;
+
+import tufts.vue.DEBUG;
+
+import java.util.*;
+
+/**
+ * A column-wise index of the rows in a Schema, for finding all the rows with a given
+ * key=value without scanning every row.  Each column (one per field name) keeps a
+ * dictionary of every distinct value seen in it, each with a compact array of the
+ * id's of the rows containing that value.  A row id is it's index in the row list
+ * the index was built from.
+ *
+ * Keys are case-independent, as they are in MetaMap.  This class is not synchronized:
+ * the Schema handles that.
+ */
+final class RowIndex
+{
+    private static final org.apache.log4j.Logger Log = org.apache.log4j.Logger.getLogger(RowIndex.class);
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private static final class Column {
+        final Map<String,Integer> codes = new HashMap();
+        String[] values = new String[16];
+        int[][] rows = new int[16][];
+        int[] rowCounts = new int[16];
+        int size;
+
+        /** @return the dictionary code for the given value, adding it if needed */
+        int encode(String value) {
+            final Integer code = codes.get(value);
+            if (code != null)
+                return code.intValue();
+            if (size == values.length) {
+                // (Arrays.copyOf is Java 6)
+                final int newSize = size * 2;
+                final String[] newValues = new String[newSize];
+                final int[][] newRows = new int[newSize][];
+                final int[] newRowCounts = new int[newSize];
+                System.arraycopy(values, 0, newValues, 0, size);
+                System.arraycopy(rows, 0, newRows, 0, size);
+                System.arraycopy(rowCounts, 0, newRowCounts, 0, size);
+                values = newValues;
+                rows = newRows;
+                rowCounts = newRowCounts;
+            }
+            values[size] = value;
+            codes.put(value, size);
+            return size++;
+        }
+
+        void add(String value, int rowId) {
+            final int code = encode(value);
+            int[] ids = rows[code];
+            final int count = rowCounts[code];
+            if (ids == null) {
+                rows[code] = ids = new int[2];
+            } else if (count > 0 && ids[count - 1] == rowId) {
+                return; // repeated value within the same row
+            } else if (count == ids.length) {
+                final int[] grown = new int[count * 2];
+                System.arraycopy(ids, 0, grown, 0, count);
+                rows[code] = ids = grown;
+            }
+            ids[count] = rowId;
+            rowCounts[code] = count + 1;
+        }
+
+        /** @return the ids of rows with the given value, in row order, in the first count slots of the array */
+        int[] rowsWith(String value) {
+            final Integer code = codes.get(value);
+            if (code == null || rows[code] == null)
+                return NO_ROWS;
+            return rows[code];
+        }
+
+        int count(String value) {
+            final Integer code = codes.get(value);
+            return code == null ? 0 : rowCounts[code];
+        }
+    }
+
+    private final Map<String,Column> mColumns = new HashMap();
+    private final List<DataRow> mRows = new ArrayList();
+
+    /** @return a new index of the given rows */
+    static RowIndex create(Collection<DataRow> rows) {
+        final RowIndex index = new RowIndex();
+        for (DataRow row : rows)
+            index.add(row);
+        if (DEBUG.SCHEMA) Log.debug("indexed " + index);
+        return index;
+    }
+
+    private Column column(String key, boolean create) {
+        final String name = key.toLowerCase();
+        Column c = mColumns.get(name);
+        if (c == null && create) {
+            c = new Column();
+            mColumns.put(name, c);
+        }
+        return c;
+    }
+
+    /** index the given row, which will have the next row id */
+    private void add(DataRow row) {
+        final int rowId = mRows.size();
+        mRows.add(row);
+        for (Map.Entry e : row.dataEntries()) {
+            final Object value = e.getValue();
+            if (value instanceof String)
+                column(e.getKey().toString(), true).add((String) value, rowId);
+        }
+    }
+
+    /** @return the number of rows indexed */
+    int size() {
+        return mRows.size();
+    }
+
+    /** add to results all rows with the given value for the given key */
+    void addRowsWith(String key, String value, Collection results) {
+        if (value == null)
+            return;
+        final Column c = column(key, false);
+        if (c == null)
+            return;
+        final int[] ids = c.rowsWith(value);
+        final int count = c.count(value);
+        for (int i = 0; i < count; i++)
+            results.add(mRows.get(ids[i]));
+    }
+
+    /**
+     * add to results all rows who's FIRST value for the given key is the given value -- the
+     * indexed equivalent of testing row.getString(key).equals(value) on every row.
+     */
+    void addRowsWithFirst(String key, String value, Collection results) {
+        if (value == null)
+            return;
+        final Column c = column(key, false);
+        if (c == null)
+            return;
+        final int[] ids = c.rowsWith(value);
+        final int count = c.count(value);
+        for (int i = 0; i < count; i++) {
+            final DataRow row = mRows.get(ids[i]);
+            if (value.equals(row.getString(key)))
+                results.add(row);
+        }
+    }
+
+    /** @return the first row (in row order) who's first value for the given key is the given value */
+    DataRow findFirst(String key, String value) {
+        if (value == null)
+            return null;
+        final Column c = column(key, false);
+        if (c == null)
+            return null;
+        final int[] ids = c.rowsWith(value);
+        final int count = c.count(value);
+        for (int i = 0; i < count; i++) {
+            final DataRow row = mRows.get(ids[i]);
+            if (value.equals(row.getString(key)))
+                return row;
+        }
+        return null;
+    }
+
+    @Override public String toString() {
+        return "RowIndex[" + mRows.size() + " rows; " + mColumns.size() + " columns]";
+    }
+}
@@ -71,6 +71,11 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
 
     private final List<DataRow> mRows = new ArrayList();
 
+    /** index of mRows by field value: null when it needs rebuilding (see getIndex) */
+    private RowIndex mIndex;
+    /** while loading, a pool of values seen so repeated values can share one instance */
+    private Map<String,String> mValuePool = new HashMap();
+
     //private Object mSource;
     private Resource mResource;
     
@@ -848,6 +853,8 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
     public synchronized void flushData() {
         if (DEBUG.Enabled) Log.debug("flushing " + this);
         mRows.clear();
+        mIndex = null;
+        mValuePool = new HashMap();
         mLongestFieldName = 10; // for debug
         for (Field f : getFields()) {
             f.flushStats(); // flush data / enums, but keep any style
@@ -855,10 +862,29 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
     }
 
     public synchronized DataRow findRow(Field field, String value) {
-        for (DataRow row : mRows)
-            if (row.contains(field, value))
-                return row;
-        return null;
+        return getIndex().findFirst(field.getName(), value);
+    }
+
+    /**
+     * @return the index of our rows.  Rows can have values added after they've been added
+     * to the schema (e.g., XML ingest, quantile analysis), so the index is built lazily
+     * on the first search after any change.
+     */
+    synchronized RowIndex getIndex() {
+        if (mIndex == null || mIndex.size() != mRows.size()) // the size check in case mRows was modified via getRows()
+            mIndex = RowIndex.create(mRows);
+        return mIndex;
+    }
+
+    /** @return a shared instance of the given value if we've seen it while loading, otherwise the value */
+    synchronized String internValue(String value) {
+        if (mValuePool == null)
+            return value;
+        final String pooled = mValuePool.get(value);
+        if (pooled != null)
+            return pooled;
+        mValuePool.put(value, value);
+        return value;
     }
 
     @Override
@@ -1249,8 +1275,9 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         return debug.toString();
     }
     
-    protected void addRow(DataRow row) {
+    protected synchronized void addRow(DataRow row) {
         mRows.add(row);
+        mIndex = null;
     }
     
     protected void addRow(String[] values) {
@@ -1489,6 +1516,10 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
                 Log.error("analysis failed on " + f, t);
             }
         }
+        // analysis may have added values to rows (quantiles)
+        mIndex = null;
+        // loading is done: the pool has served it's purpose
+        mValuePool = null;
     }
 
     public synchronized List<DataRow> getRows() {
@@ -1521,7 +1552,7 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         
         if (hasField(field)) {
             
-            Relation.searchDataWithField(field, fieldValue, getRows(), results);
+            Relation.searchDataWithField(field, fieldValue, getIndex(), results);
             
         } else {
 
@@ -1576,7 +1607,7 @@ public class Schema implements tufts.vue.XMLUnmarshalListener {
         // we use a HashSet to prevent duplicates, which could happen through
         // duplicate associations, or associations that are duped by an auto-join
 
-        Relation.searchDataWithRow(searchKeys, getRows(), this, matching);
+        Relation.searchDataWithRow(searchKeys, getIndex(), this, matching);
 
         return matching;
     }
@@ -1677,6 +1708,8 @@ final class DataRow implements Relation.Scannable{
         
         if (value.length() == 0)
             value = Field.EMPTY_VALUE;
+        else if (mmap.getSchema() != null)
+            value = mmap.getSchema().internValue(value);
         mmap.put(f.getName(), value);
         return value;
     }
@@ -529,6 +529,11 @@ public abstract class RectangularPoly2D extends RectangularShape
         ypoints[5] = cy - qh;
     }
     
+    /** @return the x coordinate of the given vertex, in path order */
+    public double getVertexX(int i) { return xpoints[i]; }
+    /** @return the y coordinate of the given vertex, in path order */
+    public double getVertexY(int i) { return ypoints[i]; }
+
     public PathIterator getPathIterator(AffineTransform affineTransform)
     {
         return new PolyIterator(affineTransform);
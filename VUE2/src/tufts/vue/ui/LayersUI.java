@@ -810,6 +810,13 @@ public class LayersUI extends tufts.vue.gui.Widget implements LWComponent.Listen
                 repaint(); // repaint the previews
             mLayerReloadRequired = false;
         }
+        else if (e instanceof LWCEvent.Batch) {
+            // we can't know where any hierarchy events in the batch came from
+            if (((LWCEvent.Batch)e).hasKeyPrefix("hier.")) {
+                mLayerReloadRequired = true;
+                if (DEBUG.EVENTS) Log.debug("TAGGED FOR RELOAD on " + e);
+            }
+        }
         else if (e.getSource() == mMap || mShowAll.isSelected()) {
             // any hierarcy event on the map itself must involve layers
             if (e.getName().startsWith("hier.")) {
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.vue.compare;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import edu.tufts.vue.compare.ConnectivityMatrix.Connections;
+import edu.tufts.vue.compare.ConnectivityMatrix.IndexedCountingSet;
+
+public class ConnectivityMatrixTest extends TestCase
+{
+    private static long key(int row, int col) {
+        return ((long) row << 32) | col;
+    }
+
+    /** @return every non-zero connection, found by iterating the slots */
+    private static Map<Long,Integer> contents(Connections cx) {
+        final Map<Long,Integer> found = new HashMap();
+        for (int slot = 0; slot < cx.slots(); slot++) {
+            final int value = cx.valueAt(slot);
+            if (value != 0)
+                assertNull("pair in two slots", found.put(key(cx.rowAt(slot), cx.colAt(slot)), value));
+        }
+        return found;
+    }
+
+    public void testUnsetConnectionsAreZero() {
+        final Connections cx = new Connections(4);
+        assertEquals(0, cx.get(0, 0));
+        assertEquals(0, cx.get(3, 7));
+        assertEquals(0, cx.count());
+        assertTrue(contents(cx).isEmpty());
+    }
+
+    public void testSetGetIsDirected() {
+        final Connections cx = new Connections(4);
+        cx.set(1, 2, 1);
+        assertEquals(1, cx.get(1, 2));
+        assertEquals(0, cx.get(2, 1));
+        cx.set(1, 2, 5);
+        assertEquals(5, cx.get(1, 2));
+        assertEquals(1, cx.count());
+    }
+
+    public void testZeroValuesAreNotCounted() {
+        final Connections cx = new Connections(4);
+        cx.set(0, 1, 0); // never stored
+        assertEquals(0, cx.count());
+        cx.set(0, 1, 3);
+        cx.set(1, 0, 3);
+        cx.set(0, 1, 0); // slot stays, but isn't a connection
+        assertEquals(0, cx.get(0, 1));
+        assertEquals(1, cx.count());
+        assertEquals(Collections.singletonMap(key(1, 0), 3), contents(cx));
+        cx.set(0, 1, 7); // re-uses the slot
+        assertEquals(7, cx.get(0, 1));
+        assertEquals(2, cx.count());
+    }
+
+    public void testAddAccumulates() {
+        final Connections cx = new Connections(4);
+        cx.add(2, 3, 1);
+        cx.add(2, 3, 1);
+        cx.add(2, 3, 4);
+        assertEquals(6, cx.get(2, 3));
+        cx.add(2, 3, -6);
+        assertEquals(0, cx.get(2, 3));
+        assertEquals(0, cx.count());
+    }
+
+    public void testLargeIndicesDontCollide() {
+        final Connections cx = new Connections(4);
+        final int big = Integer.MAX_VALUE;
+        cx.set(big, 0, 1);
+        cx.set(0, big, 2);
+        cx.set(big, big, 3);
+        cx.set(1, 0, 4);
+        assertEquals(1, cx.get(big, 0));
+        assertEquals(2, cx.get(0, big));
+        assertEquals(3, cx.get(big, big));
+        assertEquals(4, cx.get(1, 0));
+        assertEquals(0, cx.get(0, 1));
+        final Map<Long,Integer> found = contents(cx);
+        assertEquals(4, found.size());
+        assertEquals(Integer.valueOf(3), found.get(key(big, big)));
+    }
+
+    public void testGrowsPastExpectedSize() {
+        final Connections cx = new Connections(2);
+        final int initialSlots = cx.slots();
+        final Map<Long,Integer> expected = new HashMap();
+        final Random r = new Random(16);
+        for (int i = 0; i < 5000; i++) {
+            final int row = r.nextInt(300), col = r.nextInt(300), value = r.nextInt(5);
+            cx.set(row, col, value);
+            if (value == 0)
+                expected.remove(key(row, col));
+            else
+                expected.put(key(row, col), value);
+        }
+        assertTrue(cx.slots() > initialSlots);
+        assertEquals(expected.size(), cx.count());
+        assertEquals(expected, contents(cx));
+        for (Map.Entry<Long,Integer> e : expected.entrySet()) {
+            final long k = e.getKey();
+            assertEquals(e.getValue().intValue(), cx.get((int) (k >>> 32), (int) k));
+        }
+    }
+
+    public void testCopyIsIndependent() {
+        final Connections cx = new Connections(4);
+        cx.set(0, 1, 1);
+        final Connections copy = new Connections(cx);
+        copy.set(0, 1, 2);
+        copy.set(1, 0, 1);
+        assertEquals(1, cx.get(0, 1));
+        assertEquals(0, cx.get(1, 0));
+        assertEquals(1, cx.count());
+        assertEquals(2, copy.get(0, 1));
+        assertEquals(2, copy.count());
+    }
+
+    public void testAddAll() {
+        final Connections a = new Connections(4);
+        final Connections b = new Connections(4);
+        a.set(0, 1, 1);
+        a.set(1, 2, 2);
+        b.set(1, 2, 3);
+        b.set(2, 0, 4);
+        b.set(3, 3, 5);
+        b.set(3, 3, 0); // a dead slot: mustn't be carried over
+        a.addAll(b);
+        final Map<Long,Integer> expected = new HashMap();
+        expected.put(key(0, 1), 1);
+        expected.put(key(1, 2), 5);
+        expected.put(key(2, 0), 4);
+        assertEquals(expected, contents(a));
+        assertEquals(2, b.count());
+    }
+
+    public void testSetValueAtUpdatesInPlace() {
+        final Connections cx = new Connections(4);
+        cx.set(4, 5, 2);
+        for (int slot = 0; slot < cx.slots(); slot++)
+            if (cx.valueAt(slot) != 0)
+                cx.setValueAt(slot, cx.valueAt(slot) * 10);
+        assertEquals(20, cx.get(4, 5));
+    }
+
+    private static IndexedCountingSet keys(String... values) {
+        final IndexedCountingSet set = new IndexedCountingSet();
+        for (String s : values)
+            set.add(s);
+        return set;
+    }
+
+    public void testMatrixConnectionsByKey() {
+        final ConnectivityMatrix m = new ConnectivityMatrix(keys("a", "b", "c"));
+        m.setConnection("a", "b", 1);
+        m.setConnection("c", "a", 2);
+        m.setConnection("a", "nowhere", 3); // ignored
+        assertEquals(1, m.getConnection("a", "b"));
+        assertEquals(0, m.getConnection("b", "a"));
+        assertEquals(2, m.getConnection("c", "a"));
+        assertEquals(0, m.getConnection("a", "nowhere"));
+        assertEquals(2, m.getConnection(2, 0));
+        assertEquals(2, m.getConnectionCount());
+    }
+
+    public void testCompare() {
+        final ConnectivityMatrix m1 = new ConnectivityMatrix(keys("a", "b", "c"));
+        final ConnectivityMatrix m2 = new ConnectivityMatrix(keys("a", "b", "c"));
+        assertTrue(m1.compare(m2));
+        m1.setConnection("a", "b", 1);
+        assertFalse(m1.compare(m2));
+        assertFalse(m2.compare(m1));
+        m2.setConnection("b", "a", 1); // same count, different connection
+        assertFalse(m1.compare(m2));
+        m2.setConnection("b", "a", 0);
+        m2.setConnection("a", "b", 1);
+        assertTrue(m1.compare(m2));
+        assertTrue(m2.compare(m1));
+        m2.setConnection("a", "b", 2);
+        assertFalse(m1.compare(m2));
+        assertFalse(m1.compare(new ConnectivityMatrix(keys("a", "b", "c", "d"))));
+    }
+
+    public void testAsStringPrintsTheFullGrid() {
+        final ConnectivityMatrix m = new ConnectivityMatrix(keys("a", "b"));
+        m.setConnection("a", "b", 1);
+        final String nl = System.getProperty("line.separator");
+        final String[] lines = m.asString().split(nl);
+        assertEquals(3, lines.length);
+        assertEquals("a 0 1", lines[1]);
+        assertEquals("b . 0", lines[2]);
+    }
+}
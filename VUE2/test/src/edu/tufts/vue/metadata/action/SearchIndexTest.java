@@ -0,0 +1,173 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package edu.tufts.vue.metadata.action;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import tufts.vue.LWComponent;
+import tufts.vue.LWKey;
+import tufts.vue.LWMap;
+import tufts.vue.LWNode;
+
+public class SearchIndexTest extends TestCase
+{
+    private static final String ROLE = "http://vue.tufts.edu/custom.rdfs#Role";
+
+    private LWMap map;
+    private SearchIndex index;
+    private LWNode boston, newYork, kabosh;
+
+    protected void setUp() {
+        map = new LWMap("search test");
+        boston = node("Boston", "the hub");
+        newYork = node("New York", "not boston");
+        kabosh = node("Kabosh", null);
+        index = SearchIndex.getIndex(map);
+    }
+
+    private LWNode node(String label, String notes) {
+        final LWNode n = new LWNode(label);
+        if (notes != null)
+            n.setNotes(notes);
+        map.add(n);
+        return n;
+    }
+
+    private Set<LWComponent> search(String input) {
+        return search(input, false);
+    }
+
+    private Set<LWComponent> search(String input, boolean metadataOnly) {
+        final Set<LWComponent> results = new HashSet();
+        index.search(index.parse(input), metadataOnly, results);
+        return results;
+    }
+
+    private static Set<LWComponent> set(LWComponent... c) {
+        return new HashSet(Arrays.asList(c));
+    }
+
+    public void testIndexIsPerMap() {
+        assertSame(index, SearchIndex.getIndex(map));
+        assertNotSame(index, SearchIndex.getIndex(new LWMap("other")));
+    }
+
+    public void testContainsIgnoresCase() {
+        assertEquals(set(boston, newYork, kabosh), search("BOS"));
+        assertEquals(set(boston, newYork), search("ton"));
+        assertEquals(set(boston), search("label:ton"));
+        assertEquals(set(boston), search("HUB"));
+        assertTrue(search("chicago").isEmpty());
+        assertTrue(search("bostons").isEmpty());
+    }
+
+    public void testTermsShorterThanATrigram() {
+        assertEquals(set(boston, newYork, kabosh), search("o"));
+        assertEquals(set(newYork), search("ew"));
+    }
+
+    public void testEmptyTermFindsNothing() {
+        assertTrue(search("").isEmpty());
+        assertTrue(search("   ").isEmpty());
+    }
+
+    public void testFieldScope() {
+        assertEquals(set(newYork), search("notes:boston"));
+        assertEquals(set(boston), search("Label:boston"));
+        assertEquals(set(boston, newYork), search("notes:"));
+    }
+
+    public void testUnknownFieldIsPlainText() {
+        final SearchIndex.Criteria c = index.parse("nowhere:boston");
+        assertNull(c.key);
+        assertEquals("nowhere:boston", c.text);
+        assertTrue(search("nowhere:boston").isEmpty());
+    }
+
+    public void testPrefix() {
+        assertEquals(set(boston, newYork), search("bos*"));
+        assertEquals(set(kabosh), search("kab*"));
+        assertEquals(set(boston), search("label:bos*"));
+        assertEquals(set(newYork), search("yor*"));
+    }
+
+    public void testPhrase() {
+        final SearchIndex.Criteria c = index.parse("\"New York\"");
+        assertEquals("new york", c.text);
+        assertFalse(c.prefix);
+        assertEquals(set(newYork), search("\"new york\""));
+        assertEquals(set(newYork), search("new york"));
+        assertTrue(search("\"york new\"").isEmpty());
+    }
+
+    public void testMetadata() {
+        boston.getMetadataList().add(ROLE, "Mentor");
+        kabosh.getMetadataList().add(ROLE, "Boston mentor");
+        boston.notify(this, LWKey.MetaData);
+        kabosh.notify(this, LWKey.MetaData);
+        assertEquals(set(boston, kabosh), search("role:mentor"));
+        assertEquals(set(boston, kabosh), search("mentor"));
+        // only kabosh has "boston" in it's meta-data
+        assertEquals(set(kabosh), search("boston", true));
+        assertEquals(set(boston, newYork, kabosh), search("boston", false));
+    }
+
+    public void testMetadataReportedByTheMap() {
+        search("anything"); // index everything once
+        boston.getMetadataList().add(ROLE, "mentor");
+        newYork.getMetadataList().add(ROLE, "mentor");
+        map.notify(this, LWKey.MetaData); // as the meta-data editor does for a multiple selection
+        assertEquals(set(boston, newYork), search("role:mentor"));
+    }
+
+    public void testEditsAreReindexed() {
+        assertEquals(set(boston), search("label:boston"));
+        boston.setLabel("Cambridge");
+        assertTrue(search("label:boston").isEmpty());
+        assertEquals(set(boston), search("cambridge"));
+        assertEquals(set(newYork), search("boston"));
+        newYork.setNotes(null);
+        assertTrue(search("boston").isEmpty());
+    }
+
+    public void testAddedAndDeletedComponents() {
+        assertEquals(set(boston, newYork, kabosh), search("bos"));
+        final LWNode salem = node("Salem", null);
+        assertEquals(set(salem), search("salem"));
+
+        final LWNode child = new LWNode("Back Bay");
+        boston.addChild(child);
+        assertEquals(set(child), search("back bay"));
+
+        // deleting boston deletes it's child with it
+        boston.getParent().deleteChildPermanently(boston);
+        assertEquals(set(newYork, kabosh), search("bos"));
+        assertTrue(search("back bay").isEmpty());
+        assertTrue(search("the hub").isEmpty());
+    }
+
+    public void testSharedValues() {
+        final LWNode another = node("boston", null);
+        assertEquals(set(boston, another), search("label:boston"));
+        another.setLabel("elsewhere");
+        assertEquals(set(boston), search("label:boston"));
+        boston.getParent().deleteChildPermanently(boston);
+        assertTrue(search("label:boston").isEmpty());
+        assertEquals(set(newYork), search("boston"));
+    }
+}
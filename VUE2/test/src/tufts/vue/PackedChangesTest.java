@@ -0,0 +1,129 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.*;
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.geom.Point2D;
+
+import junit.framework.TestCase;
+
+import tufts.vue.UndoManager.PackedChanges;
+import tufts.vue.UndoManager.UndoItem;
+
+public class PackedChangesTest extends TestCase
+{
+    private final LWComponent c1 = new LWComponent();
+    private final LWComponent c2 = new LWComponent();
+
+    private static UndoItem item(LWComponent c, Object key, Object oldValue, int order) {
+        return new UndoItem(c, key, oldValue, order);
+    }
+
+    public void testRoundTripOfEveryKind() {
+        final Object[] values = {
+            new Float(1.5f),
+            new Double(-2.25),
+            Integer.valueOf(42),
+            new Color(10, 20, 30, 40),
+            new Point(3, -4),
+            new Point2D.Float(5.5f, 6.5f),
+            new Point2D.Double(7.125, -8.25),
+            new Size(9.5f, 10.5f),
+            "a label",
+            null,
+        };
+        final List<UndoItem> items = new ArrayList();
+        for (int i = 0; i < values.length; i++)
+            items.add(item(c1, "key" + i, values[i], i));
+
+        final PackedChanges packed = new PackedChanges(items);
+        assertEquals(values.length, packed.size());
+
+        final List<UndoItem> expanded = packed.expand(0);
+        assertEquals(values.length, expanded.size());
+        for (int i = 0; i < values.length; i++) {
+            final UndoItem e = expanded.get(i);
+            assertSame(c1, e.component);
+            assertEquals("key" + i, e.propKey);
+            assertEquals(i, e.order);
+            assertEquals(values[i], e.oldValue);
+            if (values[i] != null)
+                assertSame(values[i].getClass(), e.oldValue.getClass());
+        }
+        // the alpha must survive the trip
+        assertEquals(40, ((Color) expanded.get(3).oldValue).getAlpha());
+    }
+
+    public void testUnpackableValuesAreKeptAsIs() {
+        final Object label = new StringBuilder("mutable");
+        final Point2D.Float subclassed = new Point2D.Float(1, 2) {};
+        final List<UndoItem> items = new ArrayList();
+        items.add(item(c1, LWKey.Label, label, 0));
+        items.add(item(c1, LWKey.Location, subclassed, 1));
+
+        final List<UndoItem> expanded = new PackedChanges(items).expand(0);
+        assertSame(label, expanded.get(0).oldValue);
+        assertSame(subclassed, expanded.get(1).oldValue);
+    }
+
+    public void testRepeatedChangesCoalesceToTheOldestValue() {
+        final List<UndoItem> items = new ArrayList();
+        items.add(item(c1, LWKey.Location, new Point2D.Float(0, 0), 0));
+        items.add(item(c2, LWKey.Location, new Point2D.Float(100, 100), 1));
+        items.add(item(c1, LWKey.Location, new Point2D.Float(1, 1), 2));
+        items.add(item(c1, LWKey.Location, new Point2D.Float(2, 2), 3));
+
+        final PackedChanges packed = new PackedChanges(items);
+        assertEquals(2, packed.size());
+
+        final List<UndoItem> expanded = packed.expand(0);
+        // c1's change now sorts at the order of it's most recent change, but keeps it's first value
+        assertSame(c2, expanded.get(0).component);
+        assertEquals(1, expanded.get(0).order);
+        assertSame(c1, expanded.get(1).component);
+        assertEquals(3, expanded.get(1).order);
+        assertEquals(new Point2D.Float(0, 0), expanded.get(1).oldValue);
+    }
+
+    public void testDifferentKeysAreNotCoalesced() {
+        final List<UndoItem> items = new ArrayList();
+        items.add(item(c1, LWKey.Location, new Point2D.Float(0, 0), 0));
+        items.add(item(c1, LWKey.Size, new Size(1, 1), 1));
+        items.add(item(c2, LWKey.Location, new Point2D.Float(0, 0), 2));
+        assertEquals(3, new PackedChanges(items).size());
+    }
+
+    public void testPackedIsSmallerThanBoxed() {
+        final List<UndoItem> numbers = new ArrayList();
+        final List<UndoItem> objects = new ArrayList();
+        for (int i = 0; i < 1000; i++) {
+            final LWComponent c = new LWComponent();
+            numbers.add(item(c, LWKey.Location, new Point2D.Float(i, i), i));
+            objects.add(item(c, LWKey.Label, "label " + i, i));
+        }
+        final PackedChanges packed = new PackedChanges(numbers);
+        assertEquals(1000, packed.size());
+        assertTrue(packed.bytes < new PackedChanges(objects).bytes);
+    }
+
+    public void testEmpty() {
+        final PackedChanges packed = new PackedChanges(new ArrayList<UndoItem>());
+        assertEquals(0, packed.size());
+        assertTrue(packed.expand(5).isEmpty());
+    }
+}
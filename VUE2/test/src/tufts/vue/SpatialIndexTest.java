@@ -0,0 +1,130 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue;
+
+import java.util.*;
+import java.awt.geom.Rectangle2D;
+
+import junit.framework.TestCase;
+
+public class SpatialIndexTest extends TestCase
+{
+    private static Set<String> query(SpatialIndex<String> index, float x, float y, float w, float h) {
+        return index.query(x, y, w, h, new HashSet<String>());
+    }
+
+    public void testInsertAndQuery() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.put("a", 0, 0, 10, 10);
+        index.put("b", 100, 100, 10, 10);
+        assertEquals(2, index.size());
+        assertEquals(Collections.singleton("a"), query(index, 5, 5, 1, 1));
+        assertEquals(Collections.singleton("b"), query(index, 95, 95, 10, 10));
+        assertTrue(query(index, 50, 50, 10, 10).isEmpty());
+        assertEquals(new HashSet(Arrays.asList("a", "b")), query(index, -1, -1, 200, 200));
+    }
+
+    public void testEdgesTouching() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.put("a", 0, 0, 10, 10);
+        assertEquals(Collections.singleton("a"), query(index, 10, 10, 5, 5));
+        assertTrue(query(index, 10.5f, 10.5f, 5, 5).isEmpty());
+    }
+
+    public void testRemove() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.put("a", 0, 0, 10, 10);
+        index.put("b", 0, 0, 10, 10);
+        assertTrue(index.remove("a"));
+        assertFalse(index.remove("a"));
+        assertFalse(index.contains("a"));
+        assertEquals(Collections.singleton("b"), query(index, 0, 0, 10, 10));
+        assertEquals(1, index.size());
+    }
+
+    public void testMoveUpdatesBounds() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.put("a", 0, 0, 10, 10);
+        index.put("a", 500, 500, 10, 10);
+        assertEquals(1, index.size());
+        assertTrue(query(index, 0, 0, 10, 10).isEmpty());
+        assertEquals(Collections.singleton("a"), query(index, 505, 505, 1, 1));
+    }
+
+    public void testRootGrowsInEveryDirection() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.put("origin", 0, 0, 1, 1);
+        index.put("far-left-up", -100000, -100000, 5, 5);
+        index.put("far-right-down", 100000, 100000, 5, 5);
+        index.put("huge", -50, -50, 20000, 20000);
+        assertEquals(Collections.singleton("far-left-up"), query(index, -100000, -100000, 1, 1));
+        assertEquals(Collections.singleton("far-right-down"), query(index, 100004, 100004, 1, 1));
+        assertEquals(new HashSet(Arrays.asList("origin", "huge")), query(index, 0, 0, 1, 1));
+    }
+
+    public void testUnboundedAlwaysReturned() {
+        final SpatialIndex<String> index = new SpatialIndex();
+        index.putUnbounded("u");
+        index.put("nan", Float.NaN, 0, 10, 10);
+        index.put("null", (Rectangle2D) null);
+        index.put("a", 0, 0, 10, 10);
+        assertEquals(new HashSet(Arrays.asList("u", "nan", "null")), query(index, 1000, 1000, 1, 1));
+        // an unbounded item given real bounds is no longer returned everywhere
+        index.put("u", 0, 0, 1, 1);
+        assertEquals(new HashSet(Arrays.asList("nan", "null")), query(index, 1000, 1000, 1, 1));
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(query(index, 0, 0, 1, 1).isEmpty());
+    }
+
+    /** many items, forcing splits, checked against a brute force scan */
+    public void testMatchesBruteForce() {
+        final Random random = new Random(42);
+        final SpatialIndex<Integer> index = new SpatialIndex();
+        final Map<Integer,Rectangle2D.Float> bounds = new HashMap();
+        for (int i = 0; i < 2000; i++) {
+            final Rectangle2D.Float r = new Rectangle2D.Float(random.nextInt(4000) - 2000, random.nextInt(4000) - 2000,
+                                                              1 + random.nextInt(200), 1 + random.nextInt(200));
+            bounds.put(i, r);
+            index.put(i, r);
+        }
+        // move some, remove some
+        for (int i = 0; i < 500; i++) {
+            final Rectangle2D.Float r = bounds.get(i);
+            r.x += random.nextInt(1000) - 500;
+            index.put(i, r);
+        }
+        for (int i = 500; i < 800; i++) {
+            bounds.remove(i);
+            index.remove(i);
+        }
+        assertEquals(bounds.size(), index.size());
+        
+        for (int n = 0; n < 200; n++) {
+            final Rectangle2D.Float q = new Rectangle2D.Float(random.nextInt(4000) - 2000, random.nextInt(4000) - 2000,
+                                                              random.nextInt(500), random.nextInt(500));
+            final Set<Integer> expected = new HashSet();
+            for (Map.Entry<Integer,Rectangle2D.Float> e : bounds.entrySet()) {
+                final Rectangle2D.Float r = e.getValue();
+                if (r.x <= q.x + q.width && r.x + r.width >= q.x && r.y <= q.y + q.height && r.y + r.height >= q.y)
+                    expected.add(e.getKey());
+            }
+            final List<Integer> found = index.query(q, new ArrayList<Integer>());
+            assertEquals("no duplicates", new HashSet(found).size(), found.size());
+            assertEquals(expected, new HashSet(found));
+        }
+    }
+}
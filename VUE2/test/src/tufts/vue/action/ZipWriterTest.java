@@ -0,0 +1,200 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.action;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.TestCase;
+
+public class ZipWriterTest extends TestCase
+{
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("zipwriter", ".zip");
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] data(int size, int seed) {
+        final byte[] b = new byte[size];
+        final Random r = new Random(seed);
+        for (int i = 0; i < size; i++)
+            b[i] = (byte) (r.nextInt(4) + 'a'); // compressible, but not trivially
+        return b;
+    }
+
+    private static long crc(byte[] b) {
+        final CRC32 crc = new CRC32();
+        crc.update(b);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] b) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(b);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        while (!deflater.finished())
+            out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0)
+            out.write(buf, 0, len);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static ZipEntry entry(String name, String comment) {
+        final ZipEntry e = new ZipEntry(name);
+        e.setComment(comment);
+        return e;
+    }
+
+    private static void assertData(byte[] expected, byte[] actual) {
+        assertEquals(expected.length, actual.length);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testZipFileReadsBackEveryKindOfEntry() throws IOException {
+        final byte[] stored = data(1000, 1);
+        final byte[] deflated = data(20000, 2);
+        final byte[] streamedStored = data(70000, 3); // larger than the write buffer
+        final byte[] streamedDeflated = data(300000, 4);
+        final byte[] compressed = deflate(deflated);
+
+        final ZipWriter zip = new ZipWriter(file, 64 * 1024);
+        zip.putEntry(entry("dir/stored.txt", "\tspec: one"), ZipEntry.STORED, crc(stored), stored.length, stored, 0, stored.length);
+        zip.putEntry(entry("dir/deflated.txt", null), ZipEntry.DEFLATED, crc(deflated), deflated.length, compressed, 0, compressed.length);
+        ZipWriter.EntryStream out = zip.openEntry(entry("dir/streamed-stored.jpg", "\tspec: three"), false);
+        out.write(streamedStored, 0, 10);
+        out.write(streamedStored, 10, streamedStored.length - 10);
+        out.close();
+        out = zip.openEntry(entry("dir/caf\u00e9-\u00fcber.txt", "\tspec: f\u00fcnf"), true);
+        for (int i = 0; i < streamedDeflated.length; i += 1000)
+            out.write(streamedDeflated, i, Math.min(1000, streamedDeflated.length - i));
+        out.close();
+        zip.close();
+
+        final ZipFile zf = new ZipFile(file);
+        try {
+            assertEquals(4, zf.size());
+            final Object[][] expected = {
+                { "dir/stored.txt", "\tspec: one", stored, ZipEntry.STORED },
+                { "dir/deflated.txt", null, deflated, ZipEntry.DEFLATED },
+                { "dir/streamed-stored.jpg", "\tspec: three", streamedStored, ZipEntry.STORED },
+                { "dir/caf\u00e9-\u00fcber.txt", "\tspec: f\u00fcnf", streamedDeflated, ZipEntry.DEFLATED },
+            };
+            final Enumeration<? extends ZipEntry> entries = zf.entries();
+            for (Object[] x : expected) {
+                final ZipEntry e = entries.nextElement();
+                final byte[] b = (byte[]) x[2];
+                assertEquals(x[0], e.getName());
+                assertEquals(x[1], e.getComment());
+                assertEquals(((Integer) x[3]).intValue(), e.getMethod());
+                assertEquals(b.length, e.getSize());
+                assertEquals(crc(b), e.getCrc());
+                assertData(b, read(zf.getInputStream(e)));
+            }
+            assertFalse(entries.hasMoreElements());
+        } finally {
+            zf.close();
+        }
+
+        // the local headers must be right as well, for a streaming reader
+        final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+        try {
+            final byte[][] expected = { stored, deflated, streamedStored, streamedDeflated };
+            for (byte[] b : expected) {
+                assertNotNull(in.getNextEntry());
+                assertData(b, read(new FilterInputStream(in) { public void close() {} }));
+            }
+            assertNull(in.getNextEntry());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testAbortedEntryIsDiscarded() throws IOException {
+        final byte[] kept = data(5000, 5);
+        final ZipWriter zip = new ZipWriter(file, 1024);
+        ZipWriter.EntryStream out = zip.openEntry(entry("kept", null), true);
+        out.write(kept, 0, kept.length);
+        out.close();
+        out = zip.openEntry(entry("aborted", null), true);
+        out.write(data(5000, 6), 0, 5000);
+        out.abort();
+        zip.close();
+
+        final ZipFile zf = new ZipFile(file);
+        try {
+            assertEquals(1, zf.size());
+            assertNull(zf.getEntry("aborted"));
+            assertData(kept, read(zf.getInputStream(zf.getEntry("kept"))));
+        } finally {
+            zf.close();
+        }
+    }
+
+    public void testOpenEntryIsDiscardedOnClose() throws IOException {
+        final ZipWriter zip = new ZipWriter(file, 1024);
+        zip.putEntry(entry("kept", null), ZipEntry.STORED, crc(new byte[1]), 1, new byte[1], 0, 1);
+        final ZipWriter.EntryStream out = zip.openEntry(entry("open", null), false);
+        out.write(new byte[100], 0, 100);
+        zip.close();
+
+        final ZipFile zf = new ZipFile(file);
+        try {
+            assertEquals(1, zf.size());
+            assertNotNull(zf.getEntry("kept"));
+        } finally {
+            zf.close();
+        }
+    }
+
+    public void testMoreThan65535EntriesUseZip64() throws IOException {
+        final int count = 70000;
+        final ZipWriter zip = new ZipWriter(file, 64 * 1024);
+        for (int i = 0; i < count; i++) {
+            final byte[] b = String.valueOf(i).getBytes("UTF-8");
+            zip.putEntry(new ZipEntry("e" + i), ZipEntry.STORED, crc(b), b.length, b, 0, b.length);
+        }
+        zip.close();
+
+        final ZipFile zf = new ZipFile(file);
+        try {
+            assertEquals(count, zf.size());
+            for (int i : new int[] { 0, 65534, 65535, 65536, count - 1 }) {
+                final ZipEntry e = zf.getEntry("e" + i);
+                assertNotNull("e" + i, e);
+                assertEquals(String.valueOf(i), new String(read(zf.getInputStream(e)), "UTF-8"));
+            }
+        } finally {
+            zf.close();
+        }
+    }
+}
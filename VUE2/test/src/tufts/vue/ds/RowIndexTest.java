@@ -0,0 +1,141 @@
+/*
+ * Copyright 2003-2010 Tufts University  Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package tufts.vue.ds;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class RowIndexTest extends TestCase
+{
+    private final Field name = new Field("Name", null);
+    private final Field color = new Field("Color", null);
+
+    /** @param values alternating fields & values */
+    private static DataRow row(Object... values) {
+        final DataRow row = new DataRow(null);
+        for (int i = 0; i < values.length; i += 2)
+            row.addValue((Field) values[i], (String) values[i+1]);
+        return row;
+    }
+
+    private static List<DataRow> rowsWith(RowIndex index, String key, String value) {
+        final List<DataRow> found = new ArrayList();
+        index.addRowsWith(key, value, found);
+        return found;
+    }
+
+    private static List<DataRow> rowsWithFirst(RowIndex index, String key, String value) {
+        final List<DataRow> found = new ArrayList();
+        index.addRowsWithFirst(key, value, found);
+        return found;
+    }
+
+    public void testFindsRowsInRowOrder() {
+        final DataRow a = row(name, "a", color, "red");
+        final DataRow b = row(name, "b", color, "blue");
+        final DataRow c = row(name, "c", color, "red");
+        final RowIndex index = RowIndex.create(Arrays.asList(a, b, c));
+
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList(a, c), rowsWith(index, "Color", "red"));
+        assertEquals(Arrays.asList(b), rowsWith(index, "Color", "blue"));
+        assertEquals(Arrays.asList(b), rowsWith(index, "Name", "b"));
+        assertSame(a, index.findFirst("Color", "red"));
+    }
+
+    public void testKeysAreCaseIndependent() {
+        final DataRow a = row(name, "a");
+        final RowIndex index = RowIndex.create(Arrays.asList(a));
+        assertEquals(Arrays.asList(a), rowsWith(index, "name", "a"));
+        assertEquals(Arrays.asList(a), rowsWith(index, "NAME", "a"));
+        // values are not
+        assertTrue(rowsWith(index, "Name", "A").isEmpty());
+    }
+
+    public void testMissing() {
+        final RowIndex index = RowIndex.create(Arrays.asList(row(name, "a")));
+        assertTrue(rowsWith(index, "Name", "z").isEmpty());
+        assertTrue(rowsWith(index, "Shape", "a").isEmpty());
+        assertTrue(rowsWith(index, "Name", null).isEmpty());
+        assertNull(index.findFirst("Name", "z"));
+        assertNull(index.findFirst("Shape", "a"));
+        assertNull(index.findFirst("Name", null));
+        assertEquals(0, RowIndex.create(new ArrayList<DataRow>()).size());
+    }
+
+    public void testMultipleValuesInRow() {
+        final DataRow a = row(color, "red", color, "green");
+        final DataRow b = row(color, "green");
+        final RowIndex index = RowIndex.create(Arrays.asList(a, b));
+
+        assertEquals(Arrays.asList(a, b), rowsWith(index, "Color", "green"));
+        // only b has green as it's FIRST value
+        assertEquals(Arrays.asList(b), rowsWithFirst(index, "Color", "green"));
+        assertSame(b, index.findFirst("Color", "green"));
+        assertEquals(Arrays.asList(a), rowsWithFirst(index, "Color", "red"));
+    }
+
+    public void testRepeatedValueInRowFoundOnce() {
+        final DataRow a = row(color, "red", color, "red");
+        final RowIndex index = RowIndex.create(Arrays.asList(a));
+        assertEquals(Arrays.asList(a), rowsWith(index, "Color", "red"));
+    }
+
+    public void testGrowsPastInitialCapacity() {
+        // more distinct values than the initial dictionary size, and more rows per value
+        // than the initial row id array size
+        final List<DataRow> rows = new ArrayList();
+        for (int i = 0; i < 1000; i++)
+            rows.add(row(name, "n" + i, color, "c" + (i % 40)));
+        final RowIndex index = RowIndex.create(rows);
+
+        assertEquals(1000, index.size());
+        for (int v = 0; v < 40; v++) {
+            final List<DataRow> found = rowsWith(index, "Color", "c" + v);
+            assertEquals(25, found.size());
+            for (int i = 0; i < found.size(); i++)
+                assertSame(rows.get(v + i * 40), found.get(i));
+        }
+        for (int i = 0; i < 1000; i += 97)
+            assertSame(rows.get(i), index.findFirst("Name", "n" + i));
+    }
+
+    public void testMatchesScan() {
+        final Random random = new Random(7);
+        final List<DataRow> rows = new ArrayList();
+        for (int i = 0; i < 500; i++) {
+            if (random.nextBoolean())
+                rows.add(row(color, "c" + random.nextInt(20), color, "c" + random.nextInt(20)));
+            else
+                rows.add(row(color, "c" + random.nextInt(20)));
+        }
+        final RowIndex index = RowIndex.create(rows);
+        for (int v = 0; v < 20; v++) {
+            final String value = "c" + v;
+            final List<DataRow> scanned = new ArrayList();
+            final List<DataRow> scannedFirst = new ArrayList();
+            for (DataRow row : rows) {
+                if (row.getValues("Color").contains(value))
+                    scanned.add(row);
+                if (value.equals(row.getString("Color")))
+                    scannedFirst.add(row);
+            }
+            assertEquals(scanned, rowsWith(index, "Color", value));
+            assertEquals(scannedFirst, rowsWithFirst(index, "Color", value));
+        }
+    }
+}